@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2015 Chris Grindstaff, James Livingston and IBM Corporation
+ * Copyright (c) 2008, 2018 Chris Grindstaff, James Livingston and IBM Corporation
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -9,9 +9,13 @@
  *    Chris Grindstaff - initial API and implementation
  *    James Livingston - expose collection utils as API
  *    Andrew Johnson/IBM Corporation - add icon
+ *    IBM Corporation - compare the raw array content
  *******************************************************************************/
 package org.eclipse.mat.inspections.collections;
 
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.inspections.InspectionAssert;
@@ -72,25 +76,72 @@ public class PrimitiveArraysWithAConstantValueQuery implements IQuery
                 IPrimitiveArray array = (IPrimitiveArray) object;
 
                 int length = array.getLength();
-                if (length > 1)
-                {
-                    boolean allSame = true;
-                    Object value0 = array.getValueAt(0);
-                    for (int i = 1; i < length; i++)
-                    {
-                        Object valueAt = array.getValueAt(i);
-                        if (valueAt.equals(value0))
-                            continue;
-                        else
-                        {
-                            allSame = false;
-                            break;
-                        }
-                    }
-                    if (allSame)
-                        result.add(objectId);
-                }
+                if (length > 1 && allSame(array, length))
+                    result.add(objectId);
             }
         }
     }
+
+    /**
+     * Compares the elements in the raw content of the array, with the same
+     * result as comparing the boxed values with equals().
+     */
+    private static boolean allSame(IPrimitiveArray array, int length)
+    {
+        ByteBuffer buffer = array.getValueBuffer(0, length);
+        if (buffer == null)
+            return allSameValues(array.getValueArray(), length);
+        switch (array.getType())
+        {
+            case IObject.Type.BOOLEAN:
+            {
+                boolean value0 = buffer.get(0) != 0;
+                for (int i = 1; i < length; i++)
+                    if ((buffer.get(i) != 0) != value0)
+                        return false;
+                return true;
+            }
+            case IObject.Type.FLOAT:
+            {
+                // all NaNs are equal
+                int value0 = Float.floatToIntBits(buffer.getFloat(0));
+                for (int i = 1; i < length; i++)
+                    if (Float.floatToIntBits(buffer.getFloat(4 * i)) != value0)
+                        return false;
+                return true;
+            }
+            case IObject.Type.DOUBLE:
+            {
+                long value0 = Double.doubleToLongBits(buffer.getDouble(0));
+                for (int i = 1; i < length; i++)
+                    if (Double.doubleToLongBits(buffer.getDouble(8 * i)) != value0)
+                        return false;
+                return true;
+            }
+            default:
+            {
+                int elementSize = IPrimitiveArray.ELEMENT_SIZE[array.getType()];
+                int bytes = length * elementSize;
+                for (int i = elementSize; i < bytes; i++)
+                    if (buffer.get(i) != buffer.get(i % elementSize))
+                        return false;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Compares the boxed values, for a dump which does not give the raw
+     * content.
+     */
+    private static boolean allSameValues(Object values, int length)
+    {
+        if (values == null)
+            return false;
+        Object value0 = Array.get(values, 0);
+        for (int i = 1; i < length; i++)
+            if (!Array.get(values, i).equals(value0))
+                return false;
+        return true;
+    }
 }
@@ -672,4 +672,13 @@ public interface ISnapshot
      */
     public IThreadStack getThreadStack(int objectId) throws SnapshotException;
 
+    /**
+     * Get the hits, misses and contents of the cache of heap objects returned
+     * by {@link #getObject(int)}.
+     * 
+     * @return the statistics collected since the snapshot was opened
+     * @since 1.9
+     */
+    public ObjectCacheStatistics getObjectCacheStatistics();
+
 }
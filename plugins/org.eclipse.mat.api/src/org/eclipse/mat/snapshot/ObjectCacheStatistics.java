@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.snapshot;
+
+/**
+ * A summary of how well the cache of heap objects of a snapshot has worked so
+ * far.
+ *
+ * @see ISnapshot#getObjectCacheStatistics()
+ * @since 1.9
+ */
+public final class ObjectCacheStatistics
+{
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long size;
+    private final long weight;
+    private final long capacity;
+
+    public ObjectCacheStatistics(long hits, long misses, long evictions, long size, long weight, long capacity)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+        this.weight = weight;
+        this.capacity = capacity;
+    }
+
+    /**
+     * The number of lookups which found the object in the cache.
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * The number of lookups which had to read the object from the dump.
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * The number of objects removed from the cache to make room for others.
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * The number of objects currently in the cache.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * The total weight of the objects currently in the cache. This is the
+     * number of objects, or an estimate of their size in bytes if the
+     * capacity is given in bytes.
+     */
+    public long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * The maximum total weight of the objects in the cache.
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * The proportion of lookups which found the object in the cache.
+     * 
+     * @return a value between 0 and 1, or 0 if there have been no lookups
+     */
+    public double getHitRate()
+    {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " size=" + size //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+                        + " weight=" + weight + " capacity=" + capacity; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.eclipse.mat.snapshot.model;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * Interface for primitive arrays in the heap dump.
@@ -102,4 +104,23 @@ public interface IPrimitiveArray extends IArray
      * performance reasons.
      */
     public Object getValueArray(int offset, int length);
+
+    /**
+     * Get the elements of the array, beginning at <code>offset</code> and
+     * <code>length</code> number of elements, as a read-only buffer of their
+     * raw bytes. Each element takes {@link #ELEMENT_SIZE} bytes in big-endian
+     * order, with a boolean as one byte which is zero for false. For example
+     * element <code>i</code> of a char array is
+     * <code>buffer.getChar(2 * i)</code>.
+     * <p>
+     * The content is copied into a new buffer on each call, so the buffer
+     * stays valid after the snapshot is disposed. Where the heap dump allows,
+     * the raw bytes of the dump are copied without first converting them to a
+     * Java array, so scanning many arrays avoids converting and boxing each
+     * value.
+     * 
+     * @return the buffer, or null if the dump does not hold the content
+     * @since 1.9
+     */
+    public ByteBuffer getValueBuffer(int offset, int length);
 }
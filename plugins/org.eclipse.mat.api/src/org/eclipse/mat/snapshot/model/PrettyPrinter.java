@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2012 SAP AG and others.
+ * Copyright (c) 2008, 2018 SAP AG and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,9 +8,11 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Stefan Eggerstorfer - JDK7u6 doesn't have count/offset fields
+ *    IBM Corporation - read characters from the array buffer
  *******************************************************************************/
 package org.eclipse.mat.snapshot.model;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 import org.eclipse.mat.SnapshotException;
@@ -125,19 +127,14 @@ public final class PrettyPrinter
         if (contentToRead > length - offset)
             contentToRead = length - offset;
 
-        char[] value;
-        if (offset == 0 && length == contentToRead)
-            value = (char[]) charArray.getValueArray();
-        else
-            value = (char[]) charArray.getValueArray(offset, contentToRead);
-
+        ByteBuffer value = charArray.getValueBuffer(offset, contentToRead);
         if (value == null)
             return null;
 
-        StringBuilder result = new StringBuilder(value.length);
-        for (int ii = 0; ii < value.length; ii++)
+        StringBuilder result = new StringBuilder(contentToRead);
+        for (int ii = 0; ii < contentToRead; ii++)
         {
-            char val = value[ii];
+            char val = value.getChar(2 * ii);
             if (val >= 32 && val < 127)
                 result.append(val);
             else
@@ -169,19 +166,14 @@ public final class PrettyPrinter
         if (contentToRead > length - offset)
             contentToRead = length - offset;
 
-        byte[] value;
-        if (offset == 0 && length == contentToRead)
-            value = (byte[]) byteArray.getValueArray();
-        else
-            value = (byte[]) byteArray.getValueArray(offset, contentToRead);
-
+        ByteBuffer value = byteArray.getValueBuffer(offset, contentToRead);
         if (value == null)
             return null;
 
-        StringBuilder result = new StringBuilder(value.length);
-        for (int ii = 0; ii < value.length; ii++)
+        StringBuilder result = new StringBuilder(contentToRead);
+        for (int ii = 0; ii < contentToRead; ii++)
         {
-            byte val = value[ii];
+            byte val = value.get(ii);
             if (val >= 32 && val < 127)
                 result.append((char)val);
             else
@@ -59,7 +59,6 @@ import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.SetInt;
-import org.eclipse.mat.hprof.AbstractParser.Constants;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
 import org.eclipse.mat.query.IQuery;
 import org.eclipse.mat.query.IResult;
@@ -95,12 +94,6 @@ import org.eclipse.mat.util.SilentProgressListener;
 @HelpUrl("/org.eclipse.mat.ui.help/tasks/exportdump.html")
 public class ExportHprof implements IQuery
 {
-    /** A dummy stack trace */
-    private static final int UNKNOWN_STACK_TRACE_SERIAL = 1;
-
-    /** No stack frame available */
-    private static final int UNKNOWN_STACK_FRAME_SERIAL = -1;
-
     private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
 
     @Argument
@@ -145,9 +138,6 @@ public class ExportHprof implements IQuery
     @Argument(isMandatory = false, flag = "classInstance")
     public boolean classesAsInstances = false;
 
-    /** How big a heap dump segment can grow before it needs to be split */
-    private static final long MAX_SEGMENT = 0xffffffffL;
-
     /** Strings to HPROF ID */
     HashMap<String, Integer> stringToID = new HashMap<String, Integer>();
     int nextStringID = 1;
@@ -321,6 +311,9 @@ public class ExportHprof implements IQuery
     /** The size of the ID fields in the HPROF file */
     int idsize = 8;
 
+    /** Writes the HPROF records */
+    HprofWriter writer;
+
     /** Progress monitor work per class for dumping objects */
     private static final int WORK_OBJECT = 3;
 
@@ -355,17 +348,16 @@ public class ExportHprof implements IQuery
         DataOutputStream3 os = new DataOutputStream3(new BufferedOutputStream(new FileOutputStream(output), 1024 * 64));
         try
         {
-            os.writeBytes(AbstractParser.Version.JDK6.getLabel()+"\0"); //$NON-NLS-1$
             idsize = snapshot.getSnapshotInfo().getIdentifierSize();
-            os.writeInt(idsize);
             startTime = System.currentTimeMillis();
-            os.writeLong(startTime);
+            writer = new HprofWriter(idsize, startTime);
+            writer.writeHeader(os);
 
             // os.writeByte(Constants.Record.HEAP_SUMMARY);
 
             DataOutputStream3 os2 = new DataOutputStream3(new NullStream());
 
-            loadClasses(os, os2, startTime, listener);
+            loadClasses(os, listener);
 
             // Keep track of new strings
             int firstId = nextStringID;
@@ -380,7 +372,7 @@ public class ExportHprof implements IQuery
 
             listener.subTask(Messages.ExportHprof_PrepareThreadStacks);
             // Find all the strings
-            dumpThreadStacks(os2, startTime);
+            dumpThreadStacks(os2);
 
             // Write out new Strings from the classes etc.
             listener.subTask(Messages.ExportHprof_DumpStrings);
@@ -390,17 +382,15 @@ public class ExportHprof implements IQuery
                 int id = e.getValue();
                 if (id < firstId)
                     continue;
-                writeStringUTF(os, os2, startTime, ss, id);
+                writer.writeStringUTF(os, id, ss);
             }
 
             listener.subTask(Messages.ExportHprof_DumpThreadStacks);
-            dumpThreadStacks(os, startTime);
+            dumpThreadStacks(os);
 
             int segnum = 1;
             long seg1Start = os.size();
-            os.writeByte(Constants.Record.HEAP_DUMP_SEGMENT);
-            os.writeInt((int) (System.currentTimeMillis() - startTime));
-            os.writeInt((int)sizeseg1);
+            writer.writeHeapDumpSegmentHeader(os, sizeseg1);
 
             long markseg1a = os.size();
             listener.subTask(MessageUtil.format(Messages.ExportHprof_DumpClasses, segnum));
@@ -436,16 +426,14 @@ public class ExportHprof implements IQuery
                 long sizel = s2;
 
                 long segStart = os.size();
-                if (sizel > 0xffffffffL)
+                if (sizel > HprofWriter.MAX_SEGMENT)
                 {
                     // Too big, but carry on
                     listener.sendUserMessage(IProgressListener.Severity.WARNING,
                                     MessageUtil.format(Messages.ExportHprof_SegmentTooLong, segnum, Long.toHexString(segStart), sizel), null);
                 }
 
-                os.writeByte(Constants.Record.HEAP_DUMP_SEGMENT);
-                os.writeInt((int) (System.currentTimeMillis() - startTime));
-                os.writeInt((int)sizel);
+                writer.writeHeapDumpSegmentHeader(os, sizel);
 
                 long checkmark1 = os.size();
                 listener.subTask(MessageUtil.format(Messages.ExportHprof_DumpObjects, segnum));
@@ -459,9 +447,7 @@ public class ExportHprof implements IQuery
                 }
             } while (st > 0);
 
-            os.writeByte(Constants.Record.HEAP_DUMP_END);
-            os.writeInt((int) (System.currentTimeMillis() - startTime));
-            os.writeInt(0);
+            writer.writeHeapDumpEnd(os);
 
             os2.close();
         }
@@ -536,15 +522,10 @@ public class ExportHprof implements IQuery
      * Generate a dummy stack trace for when objects/classes
      * etc. were allocated. Needed for jhat.
      */
-    private int dummyStackTrace(DataOutput os, int dummyThread, long startTime) throws IOException
+    private int dummyStackTrace(DataOutput os, int dummyThread) throws IOException
     {
-        os.writeByte(Constants.Record.STACK_TRACE);
-        os.writeInt((int) (System.currentTimeMillis() - startTime));
-        os.writeInt(3 * 4);
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL);
-        os.writeInt(dummyThread);
-        os.writeInt(0); // No frames
-        return UNKNOWN_STACK_TRACE_SERIAL;
+        writer.writeStackTrace(os, HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, dummyThread, new long[0]); // No frames
+        return HprofWriter.UNKNOWN_STACK_TRACE_SERIAL;
     }
 
     /**
@@ -566,40 +547,30 @@ public class ExportHprof implements IQuery
             GCRootInfo gi[] = snapshot.getGCRootInfo(i);
             for (GCRootInfo gri : gi)
             {
-                int tp;
                 long contextAddr;
                 switch (gri.getType())
                 {
                     case Type.BUSY_MONITOR:
-                        tp = Constants.DumpSegment.ROOT_MONITOR_USED;
-                        os.writeByte(tp);
-                        writeID(os, gri.getObjectAddress());
+                        writer.writeRootMonitorUsed(os, gri.getObjectAddress());
                         ++roots;
                         break;
                     case Type.THREAD_OBJ:
-                        tp = Constants.DumpSegment.ROOT_THREAD_OBJECT;
-                        os.writeByte(tp);
-                        writeID(os, gri.getObjectAddress());
-                        os.writeInt(nextThreadSerial);
+                        Integer stackserial = threadToStack.get(gri.getObjectId());
+                        if (stackserial == null)
+                            stackserial = HprofWriter.UNKNOWN_STACK_TRACE_SERIAL;
+                        writer.writeRootThreadObject(os, gri.getObjectAddress(), nextThreadSerial, stackserial);
                         threadToSerial.put(gri.getObjectId(), nextThreadSerial);
                         // System.out.println("Thread "+gri.getObjectId()+"
                         // "+nextThreadSerial);
                         ++nextThreadSerial;
-                        Integer stackserial = threadToStack.get(gri.getObjectId());
-                        if (stackserial == null)
-                            stackserial = UNKNOWN_STACK_TRACE_SERIAL;
-                        os.writeInt(stackserial); // Stack trace
                         ++roots;
                         break;
                     case Type.JAVA_LOCAL:
                         contextAddr = gri.getContextAddress();
                         if (contextAddr == 0)
                         {
-                            tp = Constants.DumpSegment.ROOT_JAVA_FRAME;
-                            os.writeByte(tp);
-                            writeID(os, gri.getObjectAddress());
-                            os.writeInt(0); // thread serial
-                            os.writeInt(UNKNOWN_STACK_FRAME_SERIAL); // stack frame number
+                            // No thread serial or stack frame number
+                            writer.writeRootJavaFrame(os, gri.getObjectAddress(), 0, HprofWriter.UNKNOWN_STACK_FRAME_SERIAL);
                             ++roots;
                         }
                         break;
@@ -611,27 +582,19 @@ public class ExportHprof implements IQuery
                         // when no context address
                         if (contextAddr == 0 || contextAddr == gri.getObjectAddress())
                         {
-                            tp = Constants.DumpSegment.ROOT_JNI_GLOBAL;
-                            os.writeByte(tp);
-                            writeID(os, gri.getObjectAddress());
-                            writeID(os, 0); // JNI global ref ID
+                            writer.writeRootJNIGlobal(os, gri.getObjectAddress(), 0); // No JNI global ref ID
                             ++roots;
                         }
                         break;
                     case Type.SYSTEM_CLASS:
-                        tp = Constants.DumpSegment.ROOT_STICKY_CLASS;
-                        os.writeByte(tp);
-                        writeID(os, gri.getObjectAddress());
+                        writer.writeRootStickyClass(os, gri.getObjectAddress());
                         ++roots;
                         break;
                     case Type.THREAD_BLOCK:
                         contextAddr = gri.getContextAddress();
                         if (contextAddr == 0)
                         {
-                            tp = Constants.DumpSegment.ROOT_THREAD_BLOCK;
-                            os.writeByte(tp);
-                            writeID(os, gri.getObjectAddress());
-                            os.writeInt(0); // thread serial
+                            writer.writeRootThreadBlock(os, gri.getObjectAddress(), 0); // No thread serial
                             ++roots;
                         }
                         break;
@@ -639,9 +602,7 @@ public class ExportHprof implements IQuery
                     case Type.FINALIZABLE:
                     case Type.UNKNOWN:
                     default:
-                        tp = Constants.DumpSegment.ROOT_UNKNOWN;
-                        os.writeByte(tp);
-                        writeID(os, gri.getObjectAddress());
+                        writer.writeRootUnknown(os, gri.getObjectAddress());
                         ++roots;
                         break;
                 }
@@ -764,16 +725,15 @@ public class ExportHprof implements IQuery
     /**
      * Dump the thread stacks
      * @param os the main output stream
-     * @param startTime
      * @throws SnapshotException
      * @throws IOException
      */
-    private void dumpThreadStacks(DataOutput os, long startTime)
+    private void dumpThreadStacks(DataOutput os)
                     throws SnapshotException, IOException
     {
-        dummyStackTrace(os, UNKNOWN_STACK_TRACE_SERIAL, 1);
+        dummyStackTrace(os, HprofWriter.UNKNOWN_STACK_TRACE_SERIAL);
         int frameid = 1;
-        int serialid = UNKNOWN_STACK_TRACE_SERIAL + 1;
+        int serialid = HprofWriter.UNKNOWN_STACK_TRACE_SERIAL + 1;
         // Find the threads
         for (int i : snapshot.getGCRoots())
         {
@@ -811,31 +771,20 @@ public class ExportHprof implements IQuery
                             IClass cls1 = cls.iterator().next();
                             clsid = cls1.getObjectId();
                         }
-                        os.writeByte(Constants.Record.STACK_FRAME);
-                        os.writeInt((int) (System.currentTimeMillis() - startTime));
-                        os.writeInt(4 * idsize + 2 * 4);
-                        writeID(os, frameid);
-                        writeString(os, method);
-                        writeString(os, sig);
-                        writeString(os, sourcefile);
-                        os.writeInt(clsid);
-                        os.writeInt(linenum);
+                        writer.writeStackFrame(os, frameid, stringID(method), stringID(sig), stringID(sourcefile),
+                                        clsid, linenum);
                         ++frameid;
                     }
-                    os.writeByte(Constants.Record.STACK_TRACE);
-                    os.writeInt((int) (System.currentTimeMillis() - startTime));
-                    os.writeInt(3 * 4 + (frameid - firstframeid) * idsize);
-                    os.writeInt(serialid);
+                    long frames[] = new long[frameid - firstframeid];
+                    for (int j = firstframeid; j < frameid; ++j)
+                    {
+                        frames[j - firstframeid] = j;
+                    }
+                    writer.writeStackTrace(os, serialid, threadToSerial.get(i), frames);
                     Integer prev = threadToStack.put(i, serialid);
                     //if (prev != null && prev != serialid)
                     //    throw new IllegalStateException("thread " + i + "0x" + Long.toHexString(gr.getObjectAddress()) + " " + serialid + " != " + prev); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
                     ++serialid;
-                    os.writeInt(threadToSerial.get(i));
-                    os.writeInt(frameid - firstframeid);
-                    for (int j = firstframeid; j < frameid; ++j)
-                    {
-                        writeID(os, j);
-                    }
 
                 }
             }
@@ -843,63 +792,40 @@ public class ExportHprof implements IQuery
     }
 
     /**
-     * Write out the body of a load class definition.
+     * Write out the whole load class, and the class name if it is new
      * @param os
-     * @param startTime
      * @param cls
      * @throws IOException
      */
-    private void loadClassBody(DataOutput os, long startTime, IClass cls) throws IOException
+    private void loadClass(DataOutput os, IClass cls) throws IOException
     {
-        os.writeInt(cls.getObjectId()); // Class serial id
-        writeID(os, cls.getObjectAddress());
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
         String classname = cls.getName();
         classname = remap.renameClassName(classname);
-        writeString(os, classname);
-    }
-
-    /**
-     * Write out the whole load class, including the header and size
-     * @param os
-     * @param os2 Uses to measure the size of the body
-     * @param startTime
-     * @param cls
-     * @throws IOException
-     */
-    private void loadClass(DataOutput os, DataOutputStream3 os2, long startTime, IClass cls) throws IOException
-    {
         int str = nextStringID;
-        long mark = os2.size();
-        loadClassBody(os2, startTime, cls);
-        long end = os2.size();
+        long nameID = stringID(classname);
         if (nextStringID != str)
         {
-            String classname = cls.getName();
-            classname = remap.renameClassName(classname);
-            writeStringUTF(os, os2, startTime, classname, str);
+            writer.writeStringUTF(os, nameID, classname);
         }
-
-        loadClass(os, cls, startTime, (int) (end - mark));
+        // Class serial id
+        writer.writeLoadClass(os, cls.getObjectId(), cls.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, nameID);
     }
 
     /**
      * Generate load class definitions for all the classes.
      * @param os
-     * @param os2
-     * @param startTime
      * @param listener
      * @throws IOException
      * @throws SnapshotException
      */
-    private void loadClasses(DataOutput os, DataOutputStream3 os2, long startTime, IProgressListener listener)
+    private void loadClasses(DataOutput os, IProgressListener listener)
                     throws IOException, SnapshotException
     {
         for (IClass cls : snapshot.getClasses())
         {
             if (includeObject(cls.getObjectId()))
             {
-                loadClass(os, os2, startTime, cls);
+                loadClass(os, cls);
             }
             listener.worked(1);
             if (listener.isCanceled())
@@ -908,30 +834,6 @@ public class ExportHprof implements IQuery
         return;
     }
 
-    /**
-     * Write out a single string, as UTF-8.
-     * @param os
-     * @param os2
-     * @param startTime
-     * @param ss
-     * @param id
-     * @throws IOException
-     */
-    private void writeStringUTF(DataOutput os, DataOutputStream3 os2, long startTime, String ss, int id)
-                    throws IOException
-    {
-        os.writeByte(Constants.Record.STRING_IN_UTF8);
-        os.writeInt((int) (System.currentTimeMillis() - startTime));
-        long mark = os2.size();
-        writeID(os2, id);
-        byte utf[] = ss.getBytes(UTF8);
-        os2.write(utf);
-        long reclen = os2.size() - mark;
-        os.writeInt((int)reclen);
-        writeID(os, id);
-        os.write(utf);
-    }
-
     /**
      * Dump all the classes into a heap dump segment.
      * @param os
@@ -963,22 +865,9 @@ public class ExportHprof implements IQuery
         return;
     }
 
-    private void loadClass(DataOutput os, IClass cls, long startTime, int len) throws IOException
-    {
-        os.writeByte(Constants.Record.LOAD_CLASS);
-        os.writeInt((int) (System.currentTimeMillis() - startTime));
-        os.writeInt(len);
-        loadClassBody(os, startTime, cls);
-    }
-
     private void dumpClass(DataOutput os, IClass cls) throws IOException
     {
-        os.writeByte(Constants.DumpSegment.CLASS_DUMP);
-        writeID(os, cls.getObjectAddress());
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
         IClass sup = cls.getSuperClass();
-        writeID(os, sup != null ? sup.getObjectAddress() : 0);
-        writeID(os, cls.getClassLoaderAddress());
         // Remember the type of the loader as a possible type for all class loaders
         classloaders.add(cls.getClassLoaderId());
         // Calculate constant pool
@@ -1056,10 +945,6 @@ public class ExportHprof implements IQuery
                 }
             }
         }
-        writeID(os, signersId); // signers
-        writeID(os, protectionDomainId); // protection domain
-        writeID(os, reserved1Id); // reserved
-        writeID(os, reserved2Id); // reserved
         // Calculate the HPROF instance size as the size of an instance dump record data
         // not what this snapshot has as the whole instance size: cls.getHeapSizePerInstance();
         int hprofInstanceSize = 0;
@@ -1067,14 +952,12 @@ public class ExportHprof implements IQuery
         {
             for (FieldDescriptor fld : cls1.getFieldDescriptors())
             {
-                int type = fld.getType();
-                if (type == IObject.Type.OBJECT)
-                    hprofInstanceSize += idsize;
-                else
-                    hprofInstanceSize += IPrimitiveArray.ELEMENT_SIZE[type];
+                hprofInstanceSize += writer.getFieldSize(fld.getType());
             }
         }
-        os.writeInt(hprofInstanceSize);
+        writer.writeClassDumpHeader(os, cls.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                        sup != null ? sup.getObjectAddress() : 0, cls.getClassLoaderAddress(), signersId,
+                        protectionDomainId, reserved1Id, reserved2Id, hprofInstanceSize);
         // write constant pool
         os.writeShort(cpsize); // constant pool
         for (Field fld : statics)
@@ -1108,41 +991,7 @@ public class ExportHprof implements IQuery
         {
             String fieldName = fld.getName();
             fieldName = remap.renameMethodName(cls.getName(), fieldName, false);
-            writeString(os, fieldName);
-            int ty = fld.getType();
-            switch (ty)
-            {
-                case IObject.Type.BOOLEAN:
-                    os.writeByte(IObject.Type.BOOLEAN);
-                    break;
-                case IObject.Type.BYTE:
-                    os.writeByte(IObject.Type.BYTE);
-                    break;
-                case IObject.Type.CHAR:
-                    os.writeByte(IObject.Type.CHAR);
-                    break;
-                case IObject.Type.SHORT:
-                    os.writeByte(IObject.Type.SHORT);
-                    break;
-                case IObject.Type.INT:
-                    os.writeByte(IObject.Type.INT);
-                    break;
-                case IObject.Type.FLOAT:
-                    os.writeByte(IObject.Type.FLOAT);
-                    break;
-                case IObject.Type.LONG:
-                    os.writeByte(IObject.Type.LONG);
-                    break;
-                case IObject.Type.DOUBLE:
-                    os.writeByte(IObject.Type.DOUBLE);
-                    break;
-                case IObject.Type.OBJECT:
-                    os.writeByte(IObject.Type.OBJECT);
-                    break;
-                default:
-                    // Error
-                    break;
-            }
+            writer.writeFieldDescriptor(os, stringID(fieldName), fld.getType());
         }
         // Check this
         totalBytes += cls.getUsedHeapSize();
@@ -1313,7 +1162,7 @@ public class ExportHprof implements IQuery
                         ++j;
                         progress(numberOfObjects, j, listener);
 
-                        if (i >= end && end >= 0 || os.size() > MAX_SEGMENT)
+                        if (i >= end && end >= 0 || os.size() > HprofWriter.MAX_SEGMENT)
                         {
                             // Give up here if we have dumped all we should
                             // or we have overflowed
@@ -1395,54 +1244,38 @@ public class ExportHprof implements IQuery
                 Integer serial = threadToSerial.get(g.getContextId());
                 if (serial != null)
                 {
-                    os.writeByte(Constants.DumpSegment.ROOT_JNI_LOCAL);
-                    writeID(os, g.getObjectAddress());
-                    os.writeInt(serial);
-                    os.writeInt(findID(g.getObjectId(), objs)); // stack frame
-                                                                // number
+                    writer.writeRootJNILocal(os, g.getObjectAddress(), serial, findID(g.getObjectId(), objs));
                 }
                 break;
             case GCRootInfo.Type.JAVA_LOCAL:
                 serial = threadToSerial.get(g.getContextId());
                 if (serial != null)
                 {
-                    os.writeByte(Constants.DumpSegment.ROOT_JAVA_FRAME);
-                    writeID(os, g.getObjectAddress());
-                    os.writeInt(serial);
-                    os.writeInt(findID(g.getObjectId(), objs)); // stack frame
-                                                                // number
+                    writer.writeRootJavaFrame(os, g.getObjectAddress(), serial, findID(g.getObjectId(), objs));
                 }
                 break;
             case GCRootInfo.Type.NATIVE_STACK:
                 serial = threadToSerial.get(g.getContextId());
                 if (serial != null)
                 {
-                    os.writeByte(Constants.DumpSegment.ROOT_NATIVE_STACK);
                     // System.out.println("Thread found "+g.getContextId()+"
                     // "+serial+" "+g.getContextAddress());
-                    writeID(os, g.getObjectAddress());
-                    os.writeInt(serial);
+                    writer.writeRootNativeStack(os, g.getObjectAddress(), serial);
                 }
                 break;
             case GCRootInfo.Type.THREAD_BLOCK:
                 serial = threadToSerial.get(g.getContextId());
                 if (serial != null)
                 {
-                    os.writeByte(Constants.DumpSegment.ROOT_THREAD_BLOCK);
-                    writeID(os, g.getObjectAddress());
-                    os.writeInt(serial);
+                    writer.writeRootThreadBlock(os, g.getObjectAddress(), serial);
                 }
                 break;
             case GCRootInfo.Type.JAVA_STACK_FRAME:
                 serial = threadToSerial.get(g.getContextId());
                 if (serial != null)
                 {
-                    os.writeByte(Constants.DumpSegment.ROOT_JAVA_FRAME);
-                    writeID(os, g.getObjectAddress());
-                    os.writeInt(serial);
                     // Probably won't have a frame number??
-                    os.writeInt(findID(g.getObjectId(), objs)); // stack frame
-                                                                // number
+                    writer.writeRootJavaFrame(os, g.getObjectAddress(), serial, findID(g.getObjectId(), objs));
                 }
                 break;
             default:
@@ -1545,17 +1378,14 @@ public class ExportHprof implements IQuery
             long mark2 = os2.size();
             long size = mark2 - mark1;
 
-            if (check && os.size() + 1L + idsize + 4 + idsize + 4 + size > MAX_SEGMENT)
+            if (check && os.size() + writer.getInstanceDumpSize((int)size) > HprofWriter.MAX_SEGMENT)
             {
                 // Overflow
                 return false;
             }
 
-            os.writeByte(Constants.DumpSegment.INSTANCE_DUMP);
-            writeID(os, ii.getObjectAddress());
-            os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
-            writeID(os, cls.getObjectAddress());
-            os.writeInt((int)size);
+            writer.writeInstanceDumpHeader(os, ii.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                            cls.getObjectAddress(), (int)size);
             dumpInstance(os, cls, ii);
             if (classloaders.contains(io.getObjectId()))
                 ++totalClassloaders;
@@ -1601,31 +1431,18 @@ public class ExportHprof implements IQuery
         for (IClass cls2 = cls; cls2 != null; cls2 = cls2.getSuperClass())
         {
             for (FieldDescriptor fd : cls2.getFieldDescriptors()) {
-                int se;
-                switch (fd.getType())
-                {
-                    case IObject.Type.OBJECT:
-                        se = idsize;
-                        break;
-                    default:
-                        se = IPrimitiveArray.ELEMENT_SIZE[fd.getType()];
-                        break;
-                }
-                size2 += se;
+                size2 += writer.getFieldSize(fd.getType());
             }
         }
         size = size2;
-        if (check && os.size() + 1L + idsize + 4 + idsize + 4 + size > MAX_SEGMENT)
+        if (check && os.size() + writer.getInstanceDumpSize(size) > HprofWriter.MAX_SEGMENT)
         {
             // Overflow
             return false;
         }
 
-        os.writeByte(Constants.DumpSegment.INSTANCE_DUMP);
-        writeID(os, io.getObjectAddress());
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
-        writeID(os, cls.getObjectAddress());
-        os.writeInt((int)size);
+        writer.writeInstanceDumpHeader(os, io.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                        cls.getObjectAddress(), size);
         // Dump the actual fields
         Field ss[] = cls.getStaticFields().toArray(new Field[0]);
         for (IClass cls2 = cls; cls2 != null; cls2 = cls2.getSuperClass())
@@ -1648,17 +1465,7 @@ public class ExportHprof implements IQuery
                 if (fix >= ss.length)
                 {
                     // Not found
-                    int se;
-                    switch (fd.getType())
-                    {
-                        case IObject.Type.OBJECT:
-                            se = idsize;
-                            break;
-                        default:
-                            se = IPrimitiveArray.ELEMENT_SIZE[fd.getType()];
-                            break;
-                    }
-                    os.write(new byte[se]);
+                    os.write(new byte[writer.getFieldSize(fd.getType())]);
                 }
             }
         }
@@ -1667,17 +1474,14 @@ public class ExportHprof implements IQuery
     
     private boolean dumpObjectArray(DataOutputStream3 os, IObjectArray ii, boolean check) throws IOException
     {
-        if (check && os.size() + 1L + idsize + 4 + 4 + ii.getLength() * idsize > MAX_SEGMENT)
+        if (check && os.size() + writer.getObjectArrayDumpSize(ii.getLength()) > HprofWriter.MAX_SEGMENT)
         {
             // This object would overflow
             return false;
         }
 
-        os.writeByte(Constants.DumpSegment.OBJECT_ARRAY_DUMP);
-        writeID(os, ii.getObjectAddress());
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
-        os.writeInt(ii.getLength());
-        writeID(os, ii.getClazz().getObjectAddress());
+        writer.writeObjectArrayDumpHeader(os, ii.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                        ii.getLength(), ii.getClazz().getObjectAddress());
         long l[] = ii.getReferenceArray();
         for (int i = 0; i < ii.getLength(); ++i)
         {
@@ -1689,16 +1493,13 @@ public class ExportHprof implements IQuery
 
     private boolean dumpPrimitiveArray(DataOutputStream3 os, IPrimitiveArray ii, boolean check) throws IOException
     {
-        if (check && os.size() + 1L + idsize + 4 + 4 + 1 + ii.getLength() * (1L << (ii.getType() & 3) ) > MAX_SEGMENT)
+        if (check && os.size() + writer.getPrimitiveArrayDumpSize(ii.getLength(), ii.getType()) > HprofWriter.MAX_SEGMENT)
         {
             return false;
         }
 
-        os.writeByte(Constants.DumpSegment.PRIMITIVE_ARRAY_DUMP);
-        writeID(os, ii.getObjectAddress());
-        os.writeInt(UNKNOWN_STACK_TRACE_SERIAL); // stack trace serial number
-        os.writeInt(ii.getLength());
-        os.writeByte(ii.getType());
+        writer.writePrimitiveArrayDumpHeader(os, ii.getObjectAddress(), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                        ii.getLength(), ii.getType());
         // For safety, don't even read value for full redaction
         Object a = redact == RedactType.FULL ? null : ii.getValueArray();
         if (ii.getType() == IObject.Type.BOOLEAN)
@@ -1870,26 +1671,29 @@ public class ExportHprof implements IQuery
      */
     private void writeID(DataOutput os, long addr) throws IOException
     {
-        if (idsize == 4)
-        {
-            os.writeInt((int)addr);
-        }
-        else
-        {
-            os.writeLong(addr);
-        }
+        writer.writeID(os, addr);
     }
 
     /**
      * Write a string to the output stream as an ID.
-     * Add ID to the map if new, otherwise use the
-     * existing ID.
      * Something else will have to output the string definition.
      * @param os
      * @param s
      * @throws IOException
      */
     private void writeString(DataOutput os, String s) throws IOException
+    {
+        writeID(os, stringID(s));
+    }
+
+    /**
+     * The ID of a string.
+     * Add ID to the map if new, otherwise use the
+     * existing ID.
+     * @param s
+     * @return the ID
+     */
+    private long stringID(String s)
     {
         long id;
         if (stringToID.containsKey(s))
@@ -1901,7 +1705,7 @@ public class ExportHprof implements IQuery
             id = nextStringID++;
             stringToID.put(s, (int) id);
         }
-        writeID(os, id);
+        return id;
     }
 
     /**
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,12 +7,14 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - primitive array content as buffers
  *******************************************************************************/
 package org.eclipse.mat.hprof;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,6 +22,7 @@ import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.hprof.extension.IRuntimeEnhancer;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
 import org.eclipse.mat.parser.IObjectReader;
+import org.eclipse.mat.parser.IPrimitiveArrayBufferReader;
 import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.index.IndexReader;
 import org.eclipse.mat.parser.model.AbstractArrayImpl;
@@ -29,7 +32,7 @@ import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IObject;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 
-public class HprofHeapObjectReader implements IObjectReader
+public class HprofHeapObjectReader implements IObjectReader, IPrimitiveArrayBufferReader
 {
     public static final String VERSION_PROPERTY = "hprof.version"; //$NON-NLS-1$
 
@@ -136,6 +139,31 @@ public class HprofHeapObjectReader implements IObjectReader
         }
     }
 
+    /**
+     * @since 1.9
+     */
+    public ByteBuffer readPrimitiveArrayBuffer(PrimitiveArrayImpl array, int offset, int length) throws IOException,
+                    SnapshotException
+    {
+        Object info = array.getInfo();
+
+        if (info instanceof ArrayDescription.Offline)
+        {
+            return hprofDump.readPrimitiveArrayBuffer((ArrayDescription.Offline) info, offset, length);
+        }
+        else if (info instanceof ArrayDescription.Raw)
+        {
+            int elementSize = IPrimitiveArray.ELEMENT_SIZE[array.getType()];
+            byte[] content = ((ArrayDescription.Raw) info).getContent();
+            return ByteBuffer.wrap(content, offset * elementSize, length * elementSize).slice().asReadOnlyBuffer();
+        }
+        else
+        {
+            // already converted
+            return PrimitiveArrayImpl.toBuffer(info, offset, length);
+        }
+    }
+
     private Object convert(PrimitiveArrayImpl array, byte[] content)
     {
         if (array.getType() == IObject.Type.BYTE)
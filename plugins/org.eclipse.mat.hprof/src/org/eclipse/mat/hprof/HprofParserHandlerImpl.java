@@ -8,6 +8,7 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - bug fix for missing classes
+ *    IBM Corporation - memory budget for the index collectors
  *******************************************************************************/
 package org.eclipse.mat.hprof;
 
@@ -61,8 +62,8 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
 
     private IndexWriter.Identifier identifiers = null;
     private IndexWriter.IntArray1NWriter outbound = null;
-    private IndexWriter.IntIndexCollector object2classId = null;
-    private IndexWriter.LongIndexCollector object2position = null;
+    private IndexWriter.IIntIndexCollector object2classId = null;
+    private IndexWriter.ILongIndexCollector object2position = null;
     private IndexWriter.SizeIndexCollectorUncompressed array2size = null;
 
     private Set<Long> requiredArrayClassIDs = new HashSet<Long>();
@@ -87,7 +88,13 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
     public void beforePass1(XSnapshotInfo snapshotInfo) throws IOException
     {
         this.info = snapshotInfo;
-        this.identifiers = new IndexWriter.Identifier();
+        long budget = getMemoryBudget();
+        // the addresses are about a third of the memory for pass 2
+        if (budget >= 0)
+            this.identifiers = new IndexWriter.MappedIdentifier(new File(info.getPrefix() + "temp.o2a.map"), //$NON-NLS-1$
+                            budget / 3);
+        else
+            this.identifiers = new IndexWriter.Identifier();
     }
 
     public void beforePass2(IProgressListener monitor) throws IOException, SnapshotException
@@ -133,13 +140,7 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
         }
 
         // create index writers
-        outbound = new IndexWriter.IntArray1NWriter(this.identifiers.size(), Index.OUTBOUND.getFile(info.getPrefix()
-                        + "temp."));//$NON-NLS-1$
-        object2classId = new IndexWriter.IntIndexCollector(this.identifiers.size(), IndexWriter
-                        .mostSignificantBit(maxClassId));
-        object2position = new IndexWriter.LongIndexCollector(this.identifiers.size(), IndexWriter
-                        .mostSignificantBit(new File(this.info.getPath()).length()));
-        array2size = new IndexWriter.SizeIndexCollectorUncompressed(this.identifiers.size());
+        createIndexWriters(maxClassId, monitor);
 
         // java.lang.Class needs some special treatment so that object2classId
         // is written correctly
@@ -206,6 +207,82 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
         constantPool = null;
     }
 
+    /**
+     * Create the collectors for pass 2. Their heap is estimated first, and if
+     * that is more than the memory budget then the biggest collectors keep
+     * their values in memory mapped temporary files instead.
+     */
+    private void createIndexWriters(int maxClassId, IProgressListener monitor) throws IOException
+    {
+        int size = identifiers.size();
+        int classBits = IndexWriter.mostSignificantBit(maxClassId) + 1;
+        int positionBits = IndexWriter.mostSignificantBit(new File(info.getPath()).length()) + 1;
+
+        // the addresses, the outbound header, the compressed classes and
+        // file positions, and the array sizes
+        long identifierBytes = 8L * size;
+        long outboundBytes = 4L * size;
+        long classBytes = (long) size * classBits / 8;
+        long positionBytes = (long) size * positionBits / 8;
+        long sizeBytes = 4L * size;
+        long estimate = identifierBytes + outboundBytes + classBytes + positionBytes + sizeBytes;
+
+        long budget = getMemoryBudget();
+        long inHeap = estimate;
+        if (identifiers instanceof IndexWriter.MappedIdentifier
+                        && ((IndexWriter.MappedIdentifier) identifiers).isMapped())
+            inHeap -= identifierBytes;
+        boolean mapPositions = budget >= 0 && inHeap > budget;
+        if (mapPositions)
+            inHeap -= positionBytes;
+        boolean mapSizes = budget >= 0 && inHeap > budget;
+        if (mapSizes)
+            inHeap -= sizeBytes;
+        boolean mapClasses = budget >= 0 && inHeap > budget;
+        if (mapClasses)
+            inHeap -= classBytes;
+
+        if (budget >= 0)
+            monitor.sendUserMessage(IProgressListener.Severity.INFO, MessageUtil.format(
+                            Messages.HprofParserHandlerImpl_IndexMemoryBudget, size, toMB(estimate),
+                            toMB(estimate - inHeap), toMB(budget)), null);
+        else
+            monitor.sendUserMessage(IProgressListener.Severity.INFO, MessageUtil.format(
+                            Messages.HprofParserHandlerImpl_IndexMemoryEstimate, size, toMB(estimate)), null);
+
+        outbound = new IndexWriter.IntArray1NWriter(size, Index.OUTBOUND.getFile(info.getPrefix() + "temp."));//$NON-NLS-1$
+        if (mapClasses)
+            object2classId = new IndexWriter.MappedIntIndexCollector(size, new File(info.getPrefix()
+                            + "temp.o2c.map")); //$NON-NLS-1$
+        else
+            object2classId = new IndexWriter.IntIndexCollector(size, classBits - 1);
+        if (mapPositions)
+            object2position = new IndexWriter.MappedLongIndexCollector(size, new File(info.getPrefix()
+                            + "temp.o2hprof.map")); //$NON-NLS-1$
+        else
+            object2position = new IndexWriter.LongIndexCollector(size, positionBits - 1);
+        if (mapSizes)
+            array2size = new IndexWriter.MappedSizeIndexCollector(size, new File(info.getPrefix()
+                            + "temp.a2s.map")); //$NON-NLS-1$
+        else
+            array2size = new IndexWriter.SizeIndexCollectorUncompressed(size);
+    }
+
+    /**
+     * The memory budget in bytes from the memory_budget parse option, or -1
+     * if there is none.
+     */
+    private long getMemoryBudget()
+    {
+        Object budget = info.getProperty("$memoryBudget"); //$NON-NLS-1$
+        return budget instanceof Number ? ((Number) budget).longValue() : -1;
+    }
+
+    private static long toMB(long bytes)
+    {
+        return (bytes + 1024 * 1024 - 1) / (1024 * 1024);
+    }
+
     /**
      * Possible HPROF extension:
      * classes also with instance dump records.
@@ -538,12 +615,15 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
         index.setIdentifiers(identifiers);
 
         index.setArray2size(array2size.writeTo(Index.A2SIZE.getFile(info.getPrefix() + "temp."))); //$NON-NLS-1$
+        array2size.delete();
 
         index.setObject2classId(object2classId);
 
         index.setOutbound(outbound.flush());
 
-        return object2position.writeTo(new File(info.getPrefix() + "temp.o2hprof.index")); //$NON-NLS-1$
+        IOne2LongIndex id2position = object2position.writeTo(new File(info.getPrefix() + "temp.o2hprof.index")); //$NON-NLS-1$
+        object2position.delete();
+        return id2position;
     }
 
     private HashMapIntObject<List<XGCRootInfo>> map2ids(HashMapLongObject<List<XGCRootInfo>> source)
@@ -655,19 +735,16 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
     {
         int index = object.objectId;
 
-        // check if some thread to local variables references have to be added
-        HashMapLongObject<List<XGCRootInfo>> localVars = threadAddressToLocals.get(object.objectAddress);
-        if (localVars != null)
+        // log references
+        if (object.referenceIds != null)
         {
-            IteratorLong e = localVars.keys();
-            while (e.hasNext())
-            {
-                object.references.add(e.next());
-            }
+            outbound.log(index, object.referenceIds);
+        }
+        else
+        {
+            addLocalVariables(object);
+            outbound.log(identifiers, index, object.references);
         }
-
-        // log references
-        outbound.log(identifiers, index, object.references);
 
         int classIndex = object.clazz.getObjectId();
         object.clazz.addInstance(object.usedHeapSize);
@@ -681,6 +758,26 @@ public class HprofParserHandlerImpl implements IHprofParserHandler
             array2size.set(index, object.usedHeapSize);
     }
 
+    public void resolveReferences(HeapObject object)
+    {
+        addLocalVariables(object);
+        object.referenceIds = IndexWriter.IntArray1NWriter.resolve(identifiers, object.references);
+    }
+
+    private void addLocalVariables(HeapObject object)
+    {
+        // check if some thread to local variables references have to be added
+        HashMapLongObject<List<XGCRootInfo>> localVars = threadAddressToLocals.get(object.objectAddress);
+        if (localVars != null)
+        {
+            IteratorLong e = localVars.keys();
+            while (e.hasNext())
+            {
+                object.references.add(e.next());
+            }
+        }
+    }
+
     public void reportInstance(long id, long filePosition)
     {
         // Check for INSTANCE_DUMP for an existing class object
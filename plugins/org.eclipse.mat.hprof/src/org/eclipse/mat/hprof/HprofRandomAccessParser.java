@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2014 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,12 +7,14 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - memory mapped reading
  *******************************************************************************/
 package org.eclipse.mat.hprof;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -20,6 +22,7 @@ import java.util.List;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
 import org.eclipse.mat.parser.io.BufferedRandomAccessInputStream;
+import org.eclipse.mat.parser.io.MappedFile;
 import org.eclipse.mat.parser.io.PositionInputStream;
 import org.eclipse.mat.parser.model.ClassImpl;
 import org.eclipse.mat.parser.model.ClassLoaderImpl;
@@ -35,25 +38,77 @@ import org.eclipse.mat.snapshot.model.IObject;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.util.MessageUtil;
 
+/**
+ * Reads single objects from the dump file on demand. If enabled by
+ * {@link MappedFile#MAP_FILES} the file is memory mapped where possible, in
+ * which case each read decodes from a stream of its own
+ * so objects can be read by several threads at once. Otherwise reads share
+ * one buffered file and are serialized.
+ */
 public class HprofRandomAccessParser extends AbstractParser
 {
     public static final int LAZY_LOADING_LIMIT = 256;
 
+    private final MappedFile mapped;
+
     public HprofRandomAccessParser(File file, Version version, int identifierSize,
                     HprofPreferences.HprofStrictness strictnessPreference) throws IOException
     {
         super(strictnessPreference);
-        this.in = new PositionInputStream(new BufferedRandomAccessInputStream(new RandomAccessFile(file, "r"), 512)); //$NON-NLS-1$
+        this.mapped = map(file);
+        if (mapped == null)
+            this.in = new PositionInputStream(new BufferedRandomAccessInputStream(new RandomAccessFile(file, "r"), 512)); //$NON-NLS-1$
         this.version = version;
         this.idSize = identifierSize;
     }
 
+    /**
+     * Creates a reader with its own stream over the mapped file, for one call.
+     */
+    private HprofRandomAccessParser(HprofRandomAccessParser parser)
+    {
+        super(parser.strictnessPreference);
+        this.mapped = null;
+        this.in = new PositionInputStream(parser.mapped.newInputStream());
+        this.version = parser.version;
+        this.idSize = parser.idSize;
+    }
+
+    private static MappedFile map(File file)
+    {
+        if (!MappedFile.isEnabled())
+            return null;
+        try
+        {
+            return new MappedFile(file);
+        }
+        catch (IOException e)
+        {
+            // For example no address space left on a 32-bit VM, so read the file instead
+            return null;
+        }
+    }
+
     public synchronized void close() throws IOException
     {
-        in.close();
+        if (mapped != null)
+            mapped.close();
+        else
+            in.close();
+    }
+
+    public IObject read(int objectId, long position, ISnapshot dump) throws IOException, SnapshotException
+    {
+        if (mapped != null)
+            return new HprofRandomAccessParser(this).readObject(objectId, position, dump);
+
+        synchronized (this)
+        {
+            return readObject(objectId, position, dump);
+        }
     }
 
-    public synchronized IObject read(int objectId, long position, ISnapshot dump) throws IOException, SnapshotException
+    private IObject readObject(int objectId, long position, ISnapshot dump) throws IOException, SnapshotException
     {
         in.seek(position);
         int segmentType = in.readUnsignedByte();
@@ -197,27 +252,59 @@ public class HprofRandomAccessParser extends AbstractParser
         return array;
     }
 
-    public synchronized long[] readObjectArray(ArrayDescription.Offline descriptor, int offset, int length)
+    public long[] readObjectArray(ArrayDescription.Offline descriptor, int offset, int length)
                     throws IOException
     {
         int elementSize = this.idSize;
+        long position = descriptor.getPosition() + ((long)offset * elementSize);
 
-        in.seek(descriptor.getPosition() + ((long)offset * elementSize));
-        long[] data = new long[length];
-        for (int ii = 0; ii < data.length; ii++)
-            data[ii] = readID();
-        return data;
+        if (mapped != null)
+        {
+            long[] data = new long[length];
+            for (int ii = 0; ii < data.length; ii++, position += elementSize)
+                data[ii] = idSize == 4 ? (0x0FFFFFFFFL & mapped.readInt(position)) : mapped.readLong(position);
+            return data;
+        }
+
+        synchronized (this)
+        {
+            in.seek(position);
+            long[] data = new long[length];
+            for (int ii = 0; ii < data.length; ii++)
+                data[ii] = readID();
+            return data;
+        }
     }
 
-    public synchronized byte[] readPrimitiveArray(ArrayDescription.Offline descriptor, int offset, int length)
+    /**
+     * Reads the elements of a primitive array as a read-only buffer. The bytes
+     * are copied from the dump, so the buffer stays valid once the dump is
+     * closed.
+     */
+    public ByteBuffer readPrimitiveArrayBuffer(ArrayDescription.Offline descriptor, int offset, int length)
                     throws IOException
     {
-        int elementSize = descriptor.getElementSize();
+        return ByteBuffer.wrap(readPrimitiveArray(descriptor, offset, length)).asReadOnlyBuffer();
+    }
 
-        in.seek(descriptor.getPosition() + ((long)offset * elementSize));
+    public byte[] readPrimitiveArray(ArrayDescription.Offline descriptor, int offset, int length)
+                    throws IOException
+    {
+        int elementSize = descriptor.getElementSize();
+        long position = descriptor.getPosition() + ((long)offset * elementSize);
 
         byte[] data = new byte[length * elementSize];
-        in.readFully(data);
-        return data;
+        if (mapped != null)
+        {
+            mapped.readFully(position, data, 0, data.length);
+            return data;
+        }
+
+        synchronized (this)
+        {
+            in.seek(position);
+            in.readFully(data);
+            return data;
+        }
     }
 }
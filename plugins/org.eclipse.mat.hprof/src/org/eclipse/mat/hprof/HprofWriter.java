@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.hprof;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.eclipse.mat.hprof.AbstractParser.Constants;
+import org.eclipse.mat.hprof.AbstractParser.Version;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.IPrimitiveArray;
+
+/**
+ * Writes the records of a HPROF file.
+ * <p>
+ * The writer holds no output of its own, so the same record can be written to
+ * the real output and to a stream which just measures the size, as needed to
+ * fill in the length of a heap dump segment before its contents.
+ * Top level records are written complete. Heap dump records are written as
+ * a header, followed by the field values, array elements and so on written
+ * directly by the caller.
+ */
+public class HprofWriter
+{
+    /** A dummy stack trace, for when objects and classes were allocated */
+    public static final int UNKNOWN_STACK_TRACE_SERIAL = 1;
+
+    /** No stack frame available */
+    public static final int UNKNOWN_STACK_FRAME_SERIAL = -1;
+
+    /** The largest heap dump segment, as the length is 4 bytes */
+    public static final long MAX_SEGMENT = 0xffffffffL;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    private final int idsize;
+    private final long startTime;
+
+    /**
+     * @param idsize
+     *            the size of object addresses and other IDs, 4 or 8
+     * @param startTime
+     *            the time of the dump, record times are relative to this
+     */
+    public HprofWriter(int idsize, long startTime)
+    {
+        if (idsize != 4 && idsize != 8)
+            throw new IllegalArgumentException(Integer.toString(idsize));
+        this.idsize = idsize;
+        this.startTime = startTime;
+    }
+
+    public int getIdentifierSize()
+    {
+        return idsize;
+    }
+
+    /**
+     * The file header: the format version, the ID size and the time of the
+     * dump.
+     */
+    public void writeHeader(DataOutput os) throws IOException
+    {
+        os.writeBytes(Version.JDK6.getLabel() + "\0"); //$NON-NLS-1$
+        os.writeInt(idsize);
+        os.writeLong(startTime);
+    }
+
+    /**
+     * Write an ID of an object as an appropriate size.
+     */
+    public void writeID(DataOutput os, long addr) throws IOException
+    {
+        if (idsize == 4)
+        {
+            os.writeInt((int) addr);
+        }
+        else
+        {
+            os.writeLong(addr);
+        }
+    }
+
+    private void writeRecordHeader(DataOutput os, int tag, long length) throws IOException
+    {
+        os.writeByte(tag);
+        os.writeInt((int) (System.currentTimeMillis() - startTime));
+        os.writeInt((int) length);
+    }
+
+    /**
+     * A string, referred to by its ID in class, field and method names.
+     */
+    public void writeStringUTF(DataOutput os, long id, String s) throws IOException
+    {
+        byte utf[] = s.getBytes(UTF8);
+        writeRecordHeader(os, Constants.Record.STRING_IN_UTF8, idsize + utf.length);
+        writeID(os, id);
+        os.write(utf);
+    }
+
+    /**
+     * A load class record, which gives a name to a class.
+     */
+    public void writeLoadClass(DataOutput os, int classSerial, long classAddr, int stackTraceSerial, long nameID)
+                    throws IOException
+    {
+        writeRecordHeader(os, Constants.Record.LOAD_CLASS, 4 + idsize + 4 + idsize);
+        os.writeInt(classSerial);
+        writeID(os, classAddr);
+        os.writeInt(stackTraceSerial);
+        writeID(os, nameID);
+    }
+
+    public void writeStackFrame(DataOutput os, long frameID, long methodNameID, long signatureID,
+                    long sourceFileID, int classSerial, int lineNumber) throws IOException
+    {
+        writeRecordHeader(os, Constants.Record.STACK_FRAME, 4 * idsize + 2 * 4);
+        writeID(os, frameID);
+        writeID(os, methodNameID);
+        writeID(os, signatureID);
+        writeID(os, sourceFileID);
+        os.writeInt(classSerial);
+        os.writeInt(lineNumber);
+    }
+
+    public void writeStackTrace(DataOutput os, int stackTraceSerial, int threadSerial, long frameIDs[])
+                    throws IOException
+    {
+        writeRecordHeader(os, Constants.Record.STACK_TRACE, 3 * 4 + frameIDs.length * idsize);
+        os.writeInt(stackTraceSerial);
+        os.writeInt(threadSerial);
+        os.writeInt(frameIDs.length);
+        for (long frameID : frameIDs)
+            writeID(os, frameID);
+    }
+
+    /**
+     * The start of a heap dump segment. The heap dump records follow.
+     *
+     * @param length
+     *            the total size of the records in the segment, which should
+     *            be no more than {@link #MAX_SEGMENT}
+     */
+    public void writeHeapDumpSegmentHeader(DataOutput os, long length) throws IOException
+    {
+        writeRecordHeader(os, Constants.Record.HEAP_DUMP_SEGMENT, length);
+    }
+
+    public void writeHeapDumpEnd(DataOutput os) throws IOException
+    {
+        writeRecordHeader(os, Constants.Record.HEAP_DUMP_END, 0);
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // heap dump records
+    // //////////////////////////////////////////////////////////////
+
+    public void writeRootUnknown(DataOutput os, long addr) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_UNKNOWN);
+        writeID(os, addr);
+    }
+
+    public void writeRootJNIGlobal(DataOutput os, long addr, long globalRefID) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_JNI_GLOBAL);
+        writeID(os, addr);
+        writeID(os, globalRefID);
+    }
+
+    public void writeRootJNILocal(DataOutput os, long addr, int threadSerial, int frame) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_JNI_LOCAL);
+        writeID(os, addr);
+        os.writeInt(threadSerial);
+        os.writeInt(frame);
+    }
+
+    public void writeRootJavaFrame(DataOutput os, long addr, int threadSerial, int frame) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_JAVA_FRAME);
+        writeID(os, addr);
+        os.writeInt(threadSerial);
+        os.writeInt(frame);
+    }
+
+    public void writeRootNativeStack(DataOutput os, long addr, int threadSerial) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_NATIVE_STACK);
+        writeID(os, addr);
+        os.writeInt(threadSerial);
+    }
+
+    public void writeRootStickyClass(DataOutput os, long addr) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_STICKY_CLASS);
+        writeID(os, addr);
+    }
+
+    public void writeRootThreadBlock(DataOutput os, long addr, int threadSerial) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_THREAD_BLOCK);
+        writeID(os, addr);
+        os.writeInt(threadSerial);
+    }
+
+    public void writeRootMonitorUsed(DataOutput os, long addr) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_MONITOR_USED);
+        writeID(os, addr);
+    }
+
+    public void writeRootThreadObject(DataOutput os, long addr, int threadSerial, int stackTraceSerial)
+                    throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.ROOT_THREAD_OBJECT);
+        writeID(os, addr);
+        os.writeInt(threadSerial);
+        os.writeInt(stackTraceSerial);
+    }
+
+    /**
+     * The start of a class dump. It is followed by the constant pool, the
+     * static fields and the instance field descriptors, each a count then the
+     * entries.
+     *
+     * @param instanceSize
+     *            the size of the field values in an instance dump record of
+     *            this class, see {@link #getFieldSize(int)}
+     */
+    public void writeClassDumpHeader(DataOutput os, long classAddr, int stackTraceSerial, long superClassAddr,
+                    long classLoaderAddr, long signersAddr, long protectionDomainAddr, long reserved1,
+                    long reserved2, int instanceSize) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.CLASS_DUMP);
+        writeID(os, classAddr);
+        os.writeInt(stackTraceSerial);
+        writeID(os, superClassAddr);
+        writeID(os, classLoaderAddr);
+        writeID(os, signersAddr);
+        writeID(os, protectionDomainAddr);
+        writeID(os, reserved1);
+        writeID(os, reserved2);
+        os.writeInt(instanceSize);
+    }
+
+    /**
+     * An instance field descriptor of a class dump.
+     *
+     * @param type
+     *            the {@link IObject.Type} of the field
+     */
+    public void writeFieldDescriptor(DataOutput os, long nameID, int type) throws IOException
+    {
+        writeID(os, nameID);
+        os.writeByte(type);
+    }
+
+    /**
+     * The start of an instance dump, followed by the field values.
+     *
+     * @param length
+     *            the size of the field values
+     */
+    public void writeInstanceDumpHeader(DataOutput os, long addr, int stackTraceSerial, long classAddr, int length)
+                    throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.INSTANCE_DUMP);
+        writeID(os, addr);
+        os.writeInt(stackTraceSerial);
+        writeID(os, classAddr);
+        os.writeInt(length);
+    }
+
+    /**
+     * The start of an object array dump, followed by the IDs of the elements.
+     */
+    public void writeObjectArrayDumpHeader(DataOutput os, long addr, int stackTraceSerial, int length,
+                    long arrayClassAddr) throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.OBJECT_ARRAY_DUMP);
+        writeID(os, addr);
+        os.writeInt(stackTraceSerial);
+        os.writeInt(length);
+        writeID(os, arrayClassAddr);
+    }
+
+    /**
+     * The start of a primitive array dump, followed by the elements.
+     *
+     * @param type
+     *            the {@link IObject.Type} of the elements
+     */
+    public void writePrimitiveArrayDumpHeader(DataOutput os, long addr, int stackTraceSerial, int length, int type)
+                    throws IOException
+    {
+        os.writeByte(Constants.DumpSegment.PRIMITIVE_ARRAY_DUMP);
+        writeID(os, addr);
+        os.writeInt(stackTraceSerial);
+        os.writeInt(length);
+        os.writeByte(type);
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // sizes of heap dump records, for filling segments
+    // //////////////////////////////////////////////////////////////
+
+    /**
+     * The size of a field value or array element in the dump.
+     *
+     * @param type
+     *            the {@link IObject.Type}
+     */
+    public int getFieldSize(int type)
+    {
+        return type == IObject.Type.OBJECT ? idsize : IPrimitiveArray.ELEMENT_SIZE[type];
+    }
+
+    public long getInstanceDumpSize(int length)
+    {
+        return 1L + idsize + 4 + idsize + 4 + length;
+    }
+
+    public long getObjectArrayDumpSize(int length)
+    {
+        return 1L + idsize + 4 + 4 + idsize + (long) length * idsize;
+    }
+
+    public long getPrimitiveArrayDumpSize(int length, int type)
+    {
+        return 1L + idsize + 4 + 4 + 1 + (long) length * IPrimitiveArray.ELEMENT_SIZE[type];
+    }
+}
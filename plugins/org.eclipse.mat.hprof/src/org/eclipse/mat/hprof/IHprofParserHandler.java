@@ -39,6 +39,8 @@ public interface IHprofParserHandler
         public long usedHeapSize;
         public ArrayLong references = new ArrayLong();
         public boolean isArray = false;
+        /** The references converted to object ids, once resolved */
+        public int[] referenceIds;
 
         public HeapObject(int objectId, long objectAddress, ClassImpl clazz, long usedHeapSize)
         {
@@ -75,6 +77,13 @@ public interface IHprofParserHandler
 
     void addObject(HeapObject object, long filePosition) throws IOException;
 
+    /**
+     * Converts the references of an object to object ids ahead of
+     * {@link #addObject(HeapObject, long)}. This only reads the state of the
+     * handler, so it can be called from several threads during pass 2.
+     */
+    void resolveReferences(HeapObject object);
+
     void reportInstance(long id, long filePosition);
 
     void reportRequiredObjectArray(long arrayClassID);
@@ -44,6 +44,8 @@ public class Messages extends NLS
     public static String HprofParserHandlerImpl_Error_ExpectedClassSegment;
     public static String HprofParserHandlerImpl_Error_MultipleClassInstancesExist;
     public static String HprofParserHandlerImpl_HeapContainsObjects;
+    public static String HprofParserHandlerImpl_IndexMemoryBudget;
+    public static String HprofParserHandlerImpl_IndexMemoryEstimate;
     public static String HprofRandomAccessParser_Error_DumpIncomplete;
     public static String HprofRandomAccessParser_Error_DuplicateClass;
     public static String HprofRandomAccessParser_Error_IllegalDumpSegment;
@@ -82,6 +84,7 @@ public class Messages extends NLS
     public static String HPROFStrictness_Unhandled_Preference;
     public static String HPROFStrictness_Stopped;
     public static String HPROFPreferences_Additional_Class_References;
+    public static String HPROFPreferences_Parser_Threads;
 
     static
     {
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.hprof;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayLong;
+import org.eclipse.mat.util.IProgressListener;
+
+/**
+ * Reads ranges of heap dump records on a pool of worker threads, but hands
+ * the results back to the calling thread strictly in file order. Each worker
+ * delivers its results as blocks into a bounded queue, so only a limited
+ * amount of decoded data is held in memory however far the workers get ahead
+ * of the calling thread. Finished workers keep their blocks until the calling
+ * thread reaches their range, so the limit is shared between all the ranges,
+ * not just the ranges currently being read.
+ *
+ * @param <B>
+ *            the type of the blocks of decoded data
+ */
+/* package */abstract class OrderedRangeProcessor<B>
+{
+    /**
+     * A range of the dump file, consisting of the bodies of one or more
+     * consecutive heap dump records.
+     */
+    /* package */static final class Range
+    {
+        private final ArrayLong starts = new ArrayLong();
+        private final ArrayLong lengths = new ArrayLong();
+        private long size;
+
+        /* package */void add(long start, long length)
+        {
+            starts.add(start);
+            lengths.add(length);
+            size += length;
+        }
+
+        /* package */int getRecordCount()
+        {
+            return starts.size();
+        }
+
+        /* package */long getStart(int record)
+        {
+            return starts.get(record);
+        }
+
+        /* package */long getLength(int record)
+        {
+            return lengths.get(record);
+        }
+
+        /* package */long getSize()
+        {
+            return size;
+        }
+    }
+
+    /**
+     * Passes the blocks decoded by a worker thread to the calling thread.
+     */
+    /* package */interface Output<B>
+    {
+        /**
+         * Deliver the next block for the current range. Blocks if the calling
+         * thread has not yet caught up with this range.
+         */
+        void deliver(B block) throws InterruptedException;
+    }
+
+    // Smallest range of heap dump records read by one worker thread
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+
+    private static final Object END = new Object();
+
+    private static class Failure
+    {
+        final Throwable cause;
+
+        Failure(Throwable cause)
+        {
+            this.cause = cause;
+        }
+    }
+
+    private final String name;
+    private final int threads;
+    private final long maxBlocks;
+    private int queueLength;
+
+    /**
+     * @param name
+     *            name prefix of the worker threads
+     * @param threads
+     *            maximum number of worker threads
+     * @param blockSize
+     *            the approximate size in bytes of a block, used to limit the
+     *            blocks waiting for the calling thread in all the ranges
+     *            together to about 1/16 of the heap
+     */
+    /* package */OrderedRangeProcessor(String name, int threads, long blockSize)
+    {
+        this.name = name;
+        this.threads = threads;
+        this.maxBlocks = Runtime.getRuntime().maxMemory() / 16 / blockSize;
+    }
+
+    /**
+     * Split consecutive records into ranges, several for each thread so that
+     * the work is spread evenly. A single record is never split.
+     */
+    /* package */static List<Range> split(ArrayLong starts, ArrayLong lengths, int threads)
+    {
+        long total = 0;
+        for (int ii = 0; ii < lengths.size(); ii++)
+            total += lengths.get(ii);
+        long minRangeSize = Math.max(MIN_RANGE_SIZE, total / (threads * 4));
+
+        List<Range> ranges = new ArrayList<Range>();
+        Range range = null;
+        for (int ii = 0; ii < starts.size(); ii++)
+        {
+            if (range == null || range.getSize() >= minRangeSize)
+            {
+                range = new Range();
+                ranges.add(range);
+            }
+            range.add(starts.get(ii), lengths.get(ii));
+        }
+        return ranges;
+    }
+
+    /**
+     * Decode a range. Called on a worker thread, which should not modify any
+     * state shared with the calling thread.
+     */
+    protected abstract void read(Range range, Output<B> out) throws IOException, SnapshotException,
+                    InterruptedException;
+
+    /**
+     * Consume a decoded block. Called on the calling thread, in file order.
+     */
+    protected abstract void process(Range range, B block) throws IOException, SnapshotException;
+
+    /**
+     * Read all the ranges on the worker threads and process the results on
+     * the current thread in the order of the ranges.
+     */
+    /* package */void run(List<Range> ranges) throws IOException, SnapshotException
+    {
+        if (ranges.isEmpty())
+            return;
+
+        // Every range can be holding a full queue, as split() makes several
+        // ranges for each thread. Two blocks are always allowed so that a
+        // worker can carry on while the calling thread processes a block.
+        queueLength = (int) Math.max(2, Math.min(maxBlocks / ranges.size(), 1024));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, ranges.size())),
+                        new ThreadFactory()
+                        {
+                            private final AtomicInteger count = new AtomicInteger();
+
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t = new Thread(r, name + " " + count.incrementAndGet()); //$NON-NLS-1$
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+        try
+        {
+            List<Task> tasks = new ArrayList<Task>(ranges.size());
+            for (Range range : ranges)
+            {
+                Task task = new Task(range);
+                tasks.add(task);
+                executor.execute(task);
+            }
+
+            for (Task task : tasks)
+            {
+                for (Object next = task.take(); next != END; next = task.take())
+                {
+                    if (next instanceof Failure)
+                        rethrow(((Failure) next).cause);
+                    @SuppressWarnings("unchecked")
+                    B block = (B) next;
+                    process(task.range, block);
+                }
+            }
+        }
+        finally
+        {
+            // Stops workers which are still running after an error
+            executor.shutdownNow();
+        }
+    }
+
+    private static void rethrow(Throwable t) throws IOException, SnapshotException
+    {
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t instanceof SnapshotException)
+            throw (SnapshotException) t;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        throw new SnapshotException(t);
+    }
+
+    private class Task implements Runnable, Output<B>
+    {
+        final Range range;
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueLength);
+
+        Task(Range range)
+        {
+            this.range = range;
+        }
+
+        public void run()
+        {
+            try
+            {
+                read(range, this);
+                queue.put(END);
+            }
+            catch (InterruptedException e)
+            {
+                // Processing has been abandoned
+            }
+            catch (Throwable t)
+            {
+                try
+                {
+                    queue.put(new Failure(t));
+                }
+                catch (InterruptedException e)
+                {
+                    // Processing has been abandoned
+                }
+            }
+        }
+
+        public void deliver(B block) throws InterruptedException
+        {
+            queue.put(block);
+        }
+
+        Object take()
+        {
+            try
+            {
+                return queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IProgressListener.OperationCanceledException();
+            }
+        }
+    }
+}
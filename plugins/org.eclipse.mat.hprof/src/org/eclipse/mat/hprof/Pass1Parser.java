@@ -16,6 +16,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -27,6 +28,7 @@ import java.util.regex.Pattern;
 
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.collect.HashMapLongObject;
 import org.eclipse.mat.collect.HashMapLongObject.Entry;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
@@ -51,8 +53,13 @@ public class Pass1Parser extends AbstractParser
     private static final Pattern PATTERN_OBJ_ARRAY = Pattern.compile("^(\\[+)L(.*);$"); //$NON-NLS-1$
     private static final Pattern PATTERN_PRIMITIVE_ARRAY = Pattern.compile("^(\\[+)(.)$"); //$NON-NLS-1$
 
+    // Size in longs of a block of recorded sub-records
+    private static final int EVENT_BLOCK_SIZE = 8192;
+
     // New size of classes including per-instance fields
-    private final boolean NEWCLASSSIZE = HprofPreferences.useAdditionalClassReferences();
+    private final boolean NEWCLASSSIZE;
+    // Number of threads reading heap dump records, 1 to read them sequentially
+    private final int parserThreads;
 
     private HashMapLongObject<String> class2name = new HashMapLongObject<String>();
     private HashMapLongObject<Long> thread2id = new HashMapLongObject<Long>();
@@ -66,8 +73,14 @@ public class Pass1Parser extends AbstractParser
     private long previousArrayStart;
     private long previousArrayUncompressedEnd;
     private boolean foundCompressed;
-    private final boolean verbose = Platform.inDebugMode() && HprofPlugin.getDefault().isDebugging()
-                    && Boolean.parseBoolean(Platform.getDebugOption("org.eclipse.mat.hprof/debug/parser")); //$NON-NLS-1$
+    private final boolean verbose;
+    // Receives the contents of the heap dump sub-records
+    private final SubRecordListener records;
+    private final HandlerUpdate update;
+    private File file;
+    // Heap dump records not yet read, when reading in parallel
+    private final ArrayLong pendingStarts = new ArrayLong();
+    private final ArrayLong pendingLengths = new ArrayLong();
 
     public Pass1Parser(IHprofParserHandler handler, SimpleMonitor.Listener monitor,
                     HprofPreferences.HprofStrictness strictnessPreference)
@@ -75,11 +88,38 @@ public class Pass1Parser extends AbstractParser
         super(strictnessPreference);
         this.handler = handler;
         this.monitor = monitor;
+        this.NEWCLASSSIZE = HprofPreferences.useAdditionalClassReferences();
+        this.parserThreads = HprofPreferences.getParserThreads();
+        this.verbose = Platform.inDebugMode() && HprofPlugin.getDefault().isDebugging()
+                        && Boolean.parseBoolean(Platform.getDebugOption("org.eclipse.mat.hprof/debug/parser")); //$NON-NLS-1$
+        this.update = new HandlerUpdate();
+        this.records = update;
+    }
+
+    /**
+     * Creates a reader of heap dump records for a worker thread. It shares the
+     * constant pool and the class names of the main parser, which are not
+     * modified while the worker threads run, and passes everything it reads to
+     * the recorder.
+     */
+    private Pass1Parser(Pass1Parser parser, EventRecorder recorder)
+    {
+        super(parser.strictnessPreference);
+        this.handler = parser.handler;
+        this.version = parser.version;
+        this.idSize = parser.idSize;
+        this.class2name = parser.class2name;
+        this.NEWCLASSSIZE = parser.NEWCLASSSIZE;
+        this.parserThreads = 1;
+        this.verbose = false;
+        this.update = null;
+        this.records = recorder;
     }
 
     public void read(File file, String dumpNrToRead) throws SnapshotException, IOException
     {
         // See http://java.net/downloads/heap-snapshot/hprof-binary-format.html
+        this.file = file;
         in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
 
         int currentDumpNr = 0;
@@ -111,7 +151,9 @@ public class Pass1Parser extends AbstractParser
             {
                 if (monitor.isProbablyCanceled())
                     throw new IProgressListener.OperationCanceledException();
-                monitor.totalWorkDone(curPos / 1000);
+                // Progress of skipped heap dump records is reported once they are read
+                if (pendingStarts.isEmpty())
+                    monitor.totalWorkDone(curPos / 1000);
 
                 int record = in.readUnsignedByte();
 
@@ -159,12 +201,15 @@ public class Pass1Parser extends AbstractParser
                             throw new SnapshotException(MessageUtil.format(
                                             Messages.Pass1Parser_Error_IllegalRecordLength, length, Long.toHexString(in.position() - 4),
                                             Integer.toHexString(record), Long.toHexString(curPos)));
+                        readPendingDumpSegments();
                         readString(length);
                         break;
                     case Constants.Record.LOAD_CLASS:
+                        readPendingDumpSegments();
                         readLoadClass();
                         break;
                     case Constants.Record.UNLOAD_CLASS:
+                        readPendingDumpSegments();
                         readUnloadClass();
                         break;
                     case Constants.Record.STACK_FRAME:
@@ -183,7 +228,17 @@ public class Pass1Parser extends AbstractParser
                                 handler.addProperty(IHprofParserHandler.CREATION_DATE, String.valueOf(dumpTime));
                                 foundDump = true;
                             }
-                            readDumpSegments(length);
+                            if (parserThreads > 1)
+                            {
+                                // Read later, together with the following heap dump records
+                                pendingStarts.add(in.position());
+                                pendingLengths.add(length);
+                                in.skipBytes(length);
+                            }
+                            else
+                            {
+                                readDumpSegments(length);
+                            }
                         }
                         else
                             in.skipBytes(length);
@@ -233,6 +288,8 @@ public class Pass1Parser extends AbstractParser
 
                 curPos = in.position();
             }
+
+            readPendingDumpSegments();
         }
         finally
         {
@@ -324,6 +381,72 @@ public class Pass1Parser extends AbstractParser
         serNum2stackTrace.put(stackTraceNr, stackTrace);
     }
 
+    /**
+     * Reads the heap dump records skipped so far, in parallel, then applies
+     * what was read to the handler in file order. This must be done before the
+     * constant pool or the class names change, as the worker threads read them.
+     */
+    private void readPendingDumpSegments() throws IOException, SnapshotException
+    {
+        if (pendingStarts.isEmpty())
+            return;
+
+        List<OrderedRangeProcessor.Range> ranges = OrderedRangeProcessor.split(pendingStarts, pendingLengths,
+                        parserThreads);
+        pendingStarts.clear();
+        pendingLengths.clear();
+
+        if (verbose)
+            System.out.println("Reading " + ranges.size() + " ranges of heap dump records with " + parserThreads + " threads"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+        new OrderedRangeProcessor<EventBlock>("HPROF Pass1Parser", parserThreads, EVENT_BLOCK_SIZE * 8L) //$NON-NLS-1$
+        {
+            @Override
+            protected void read(OrderedRangeProcessor.Range range, Output<EventBlock> out) throws IOException,
+                            SnapshotException, InterruptedException
+            {
+                EventRecorder recorder = new EventRecorder(out);
+                Pass1Parser reader = new Pass1Parser(Pass1Parser.this, recorder);
+                try
+                {
+                    for (int ii = 0; ii < range.getRecordCount(); ii++)
+                    {
+                        long start = range.getStart(ii);
+                        if (reader.in == null || reader.in.position() > start)
+                        {
+                            // After a record which was too long, restart at the next record
+                            if (reader.in != null)
+                                reader.in.close();
+                            reader.in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
+                        }
+                        reader.in.skipBytes(start - reader.in.position());
+                        reader.readDumpSegments(range.getLength(ii));
+                    }
+                    recorder.flush();
+                }
+                finally
+                {
+                    if (reader.in != null)
+                        reader.in.close();
+                }
+            }
+
+            @Override
+            protected void process(OrderedRangeProcessor.Range range, EventBlock block) throws IOException,
+                            SnapshotException
+            {
+                long workDone = block.lastPosition / 1000;
+                if (monitor.getWorkDone() < workDone)
+                {
+                    if (monitor.isProbablyCanceled())
+                        throw new IProgressListener.OperationCanceledException();
+                    monitor.totalWorkDone(workDone);
+                }
+                block.replay(update);
+            }
+        }.run(ranges);
+    }
+
     private void readDumpSegments(long length) throws IOException, SnapshotException
     {
         long segmentStartPos = in.position();
@@ -331,8 +454,9 @@ public class Pass1Parser extends AbstractParser
 
         while (segmentStartPos < segmentsEndPos)
         {
+            // Worker threads have no monitor, progress is reported as the records are applied
             long workDone = segmentStartPos / 1000;
-            if (this.monitor.getWorkDone() < workDone)
+            if (this.monitor != null && this.monitor.getWorkDone() < workDone)
             {
                 if (this.monitor.isProbablyCanceled())
                     throw new IProgressListener.OperationCanceledException();
@@ -393,76 +517,41 @@ public class Pass1Parser extends AbstractParser
         if (verbose)
             System.out.println("    Finished heap sub-records."); //$NON-NLS-1$
         if (segmentStartPos != segmentsEndPos)
-        {
-            switch (strictnessPreference)
-            {
-                case STRICTNESS_STOP:
-                    throw new SnapshotException(Messages.HPROFStrictness_Stopped,
-                                    new SnapshotException(
-                                                    MessageUtil.format(Messages.Pass1Parser_UnexpectedEndPosition,
-                                                                    Long.toHexString(segmentsEndPos - length), length,
-                                                                    Long.toHexString(segmentStartPos),
-                                                                    Long.toHexString(segmentsEndPos))));
-                case STRICTNESS_WARNING:
-                case STRICTNESS_PERMISSIVE:
-                    monitor.sendUserMessage(Severity.WARNING, MessageUtil.format(
-                                    Messages.Pass1Parser_UnexpectedEndPosition,
-                                    Long.toHexString(segmentsEndPos - length), length,
-                                    Long.toHexString(segmentStartPos), Long.toHexString(segmentsEndPos)), null);
-                    break;
-                default:
-                    throw new SnapshotException(Messages.HPROFStrictness_Unhandled_Preference);
-            }
-        }
+            records.unexpectedEndPosition(length, segmentStartPos, segmentsEndPos);
     }
 
-    private void readGCThreadObject(int gcType) throws IOException
+    private void readGCThreadObject(int gcType) throws IOException, SnapshotException
     {
         long id = readID();
         int threadSerialNo = in.readInt();
-        thread2id.put(threadSerialNo, id);
-        handler.addGCRoot(id, 0, gcType);
+        records.threadRoot(id, threadSerialNo, gcType);
 
         in.skipBytes(4);
     }
 
-    private void readGC(int gcType, int skip) throws IOException
+    private void readGC(int gcType, int skip) throws IOException, SnapshotException
     {
         long id = readID();
-        handler.addGCRoot(id, 0, gcType);
+        records.gcRoot(id, gcType);
 
         if (skip > 0)
             in.skipBytes(skip);
     }
 
-    private void readGCWithThreadContext(int gcType, boolean hasLineInfo) throws IOException
+    private void readGCWithThreadContext(int gcType, boolean hasLineInfo) throws IOException, SnapshotException
     {
         long id = readID();
         int threadSerialNo = in.readInt();
-        Long tid = thread2id.get(threadSerialNo);
-        if (tid != null)
-        {
-            handler.addGCRoot(id, tid, gcType);
-        }
-        else
-        {
-            handler.addGCRoot(id, 0, gcType);
-        }
+        records.threadContextRoot(id, threadSerialNo, gcType);
 
         if (hasLineInfo)
         {
             int lineNumber = in.readInt();
-            List<JavaLocal> locals = thread2locals.get(threadSerialNo);
-            if (locals == null)
-            {
-                locals = new ArrayList<JavaLocal>();
-                thread2locals.put(threadSerialNo, locals);
-            }
-            locals.add(new JavaLocal(id, lineNumber, gcType));
+            records.javaLocal(id, threadSerialNo, lineNumber, gcType);
         }
     }
 
-    private void readClassDump(long segmentStartPos) throws IOException
+    private void readClassDump(long segmentStartPos) throws IOException, SnapshotException
     {
         long address = readID();
         in.skipBytes(4); // stack trace serial number
@@ -586,131 +675,53 @@ public class Pass1Parser extends AbstractParser
         ClassImpl clazz = new ClassImpl(address, className, superClassObjectId, classLoaderObjectId, statics, fields);
         // This will be replaced by a size calculated from the field sizes
         clazz.setHeapSizePerInstance(instsize);
-        handler.addClass(clazz, segmentStartPos);
-        
-        // Just in case the superclass is missing
-        if (superClassObjectId != 0 && handler.lookupClass(superClassObjectId) == null)
-        {
-            // Try to calculate how big the superclass should be
-            int ownFieldsSize = 0;
-            for (FieldDescriptor field : clazz.getFieldDescriptors())
-            {
-                int type = field.getType();
-                if (type == IObject.Type.OBJECT)
-                    ownFieldsSize += idSize;
-                else
-                    ownFieldsSize += IPrimitiveArray.ELEMENT_SIZE[type];
-            }
-            int supersize = Math.max(instsize - ownFieldsSize, 0);
-            // A real size of an instance will override this
-            handler.reportRequiredClass(superClassObjectId, supersize);
-        }
 
-        // Check / set types of classes
-        if (class2type.containsKey(address))
-        {
-            // Already seen an instance dump for class type
-            long typeId = class2type.get(address);
-            IClass type = handler.lookupClass(typeId);
-            if (type instanceof ClassImpl)
-            {
-                clazz.setClassInstance((ClassImpl)type);
-            }
-        }
-        for (Iterator<Entry<Long>>it = class2type.entries(); it.hasNext(); )
+        // Calculate how big the superclass should be, in case it is missing
+        int ownFieldsSize = 0;
+        for (FieldDescriptor field : clazz.getFieldDescriptors())
         {
-            Entry<Long>e = it.next();
-            if (e.getValue() == address)
-            {
-                // Existing class has this class as its type
-                IClass base = handler.lookupClass(e.getKey());
-                if (base instanceof ClassImpl)
-                {
-                    ClassImpl baseCls = (ClassImpl)base;
-                    baseCls.setClassInstance(clazz);
-                }
-            }
+            int type = field.getType();
+            if (type == IObject.Type.OBJECT)
+                ownFieldsSize += idSize;
+            else
+                ownFieldsSize += IPrimitiveArray.ELEMENT_SIZE[type];
         }
+        int supersize = Math.max(instsize - ownFieldsSize, 0);
+        records.classDump(segmentStartPos, clazz, supersize);
     }
 
-    private void readInstanceDump(long segmentStartPos) throws IOException
+    private void readInstanceDump(long segmentStartPos) throws IOException, SnapshotException
     {
         long address = readID();
-        handler.reportInstance(address, segmentStartPos);
         in.skipBytes(4); // stack trace serial
         long classID = readID();
         int payload = in.readInt();
-        // check if class needs to be created
-        IClass instanceType = handler.lookupClass(classID);
-        if (instanceType == null)
-            handler.reportRequiredClass(classID, payload);
-        else
-        {
-            // If this is a instance record for a class
-            IClass instanceCls = handler.lookupClass(address);
-            if (instanceCls instanceof ClassImpl)
-            {
-                // Set the type here
-                ClassImpl instClsImpl = (ClassImpl)instanceCls;
-                instClsImpl.setClassInstance((ClassImpl) instanceType);
-            }
-        }
-        // Is this actually a class?
-        if (class2name.containsKey(address))
-        {
-            // record its type
-            class2type.put(address, classID);
-        }
+        records.instanceDump(segmentStartPos, address, classID, payload);
 
         in.skipBytes(payload);
     }
 
-    private void readObjectArrayDump(long segmentStartPos) throws IOException
+    private void readObjectArrayDump(long segmentStartPos) throws IOException, SnapshotException
     {
         long address = readID();
-        if (!foundCompressed && idSize == 8 && address > previousArrayStart && address < previousArrayUncompressedEnd)
-        {
-            monitor.sendUserMessage(
-                            Severity.INFO,
-                            MessageUtil.format(Messages.Pass1Parser_DetectedCompressedReferences,
-                                            Long.toHexString(address), Long.toHexString(previousArrayStart)), null);
-            handler.addProperty(IHprofParserHandler.REFERENCE_SIZE, "4"); //$NON-NLS-1$
-            foundCompressed = true;
-        }
-
-        handler.reportInstance(address, segmentStartPos);
-
         in.skipBytes(4); // stack trace serial
         int size = in.readInt();
         long arrayClassObjectID = readID();
-
-        // check if class needs to be created
-        IClass arrayType = handler.lookupClass(arrayClassObjectID);
-        if (arrayType == null)
-            handler.reportRequiredObjectArray(arrayClassObjectID);
+        records.objectArrayDump(segmentStartPos, address, arrayClassObjectID, size);
 
         in.skipBytes((long) size * idSize);
-        previousArrayStart = address;
-        previousArrayUncompressedEnd = address + 16 + (long)size * 8;
     }
 
     private void readPrimitiveArrayDump(long segmentStartPos) throws SnapshotException, IOException
     {
         long address = readID();
-        handler.reportInstance(address, segmentStartPos);
-
         in.skipBytes(4);
         int size = in.readInt();
         byte elementType = in.readByte();
 
         if ((elementType < IPrimitiveArray.Type.BOOLEAN) || (elementType > IPrimitiveArray.Type.LONG))
             throw new SnapshotException(Messages.Pass1Parser_Error_IllegalType);
-
-        // check if class needs to be created
-        String name = IPrimitiveArray.TYPE[elementType];
-        IClass clazz = handler.lookupClassByName(name, true);
-        if (clazz == null)
-            handler.reportRequiredPrimitiveArray(elementType);
+        records.primitiveArrayDump(segmentStartPos, address, elementType);
 
         int elementSize = IPrimitiveArray.ELEMENT_SIZE[elementType];
         in.skipBytes((long) elementSize * size);
@@ -899,4 +910,395 @@ public class Pass1Parser extends AbstractParser
             return type;
         }
     }
+
+    /**
+     * Receives the contents of the heap dump sub-records as they are read.
+     */
+    private interface SubRecordListener
+    {
+        void gcRoot(long id, int gcType) throws IOException, SnapshotException;
+
+        void threadRoot(long id, int threadSerialNo, int gcType) throws IOException, SnapshotException;
+
+        void threadContextRoot(long id, int threadSerialNo, int gcType) throws IOException, SnapshotException;
+
+        void javaLocal(long id, int threadSerialNo, int lineNumber, int gcType) throws IOException,
+                        SnapshotException;
+
+        void classDump(long segmentStartPos, ClassImpl clazz, int supersize) throws IOException, SnapshotException;
+
+        void instanceDump(long segmentStartPos, long address, long classID, int payload) throws IOException,
+                        SnapshotException;
+
+        void objectArrayDump(long segmentStartPos, long address, long arrayClassObjectID, int size)
+                        throws IOException, SnapshotException;
+
+        void primitiveArrayDump(long segmentStartPos, long address, byte elementType) throws IOException,
+                        SnapshotException;
+
+        void unexpectedEndPosition(long length, long segmentStartPos, long segmentsEndPos) throws IOException,
+                        SnapshotException;
+    }
+
+    /**
+     * Applies the heap dump sub-records to the handler and to the state of the
+     * parser. Only ever called in file order.
+     */
+    private class HandlerUpdate implements SubRecordListener
+    {
+        public void gcRoot(long id, int gcType) throws IOException
+        {
+            handler.addGCRoot(id, 0, gcType);
+        }
+
+        public void threadRoot(long id, int threadSerialNo, int gcType) throws IOException
+        {
+            thread2id.put(threadSerialNo, id);
+            handler.addGCRoot(id, 0, gcType);
+        }
+
+        public void threadContextRoot(long id, int threadSerialNo, int gcType) throws IOException
+        {
+            Long tid = thread2id.get(threadSerialNo);
+            if (tid != null)
+            {
+                handler.addGCRoot(id, tid, gcType);
+            }
+            else
+            {
+                handler.addGCRoot(id, 0, gcType);
+            }
+        }
+
+        public void javaLocal(long id, int threadSerialNo, int lineNumber, int gcType)
+        {
+            List<JavaLocal> locals = thread2locals.get(threadSerialNo);
+            if (locals == null)
+            {
+                locals = new ArrayList<JavaLocal>();
+                thread2locals.put(threadSerialNo, locals);
+            }
+            locals.add(new JavaLocal(id, lineNumber, gcType));
+        }
+
+        public void classDump(long segmentStartPos, ClassImpl clazz, int supersize) throws IOException
+        {
+            long address = clazz.getObjectAddress();
+            long superClassObjectId = clazz.getSuperClassAddress();
+            handler.addClass(clazz, segmentStartPos);
+
+            // Just in case the superclass is missing
+            if (superClassObjectId != 0 && handler.lookupClass(superClassObjectId) == null)
+            {
+                // A real size of an instance will override this
+                handler.reportRequiredClass(superClassObjectId, supersize);
+            }
+
+            // Check / set types of classes
+            if (class2type.containsKey(address))
+            {
+                // Already seen an instance dump for class type
+                long typeId = class2type.get(address);
+                IClass type = handler.lookupClass(typeId);
+                if (type instanceof ClassImpl)
+                {
+                    clazz.setClassInstance((ClassImpl)type);
+                }
+            }
+            for (Iterator<Entry<Long>>it = class2type.entries(); it.hasNext(); )
+            {
+                Entry<Long>e = it.next();
+                if (e.getValue() == address)
+                {
+                    // Existing class has this class as its type
+                    IClass base = handler.lookupClass(e.getKey());
+                    if (base instanceof ClassImpl)
+                    {
+                        ClassImpl baseCls = (ClassImpl)base;
+                        baseCls.setClassInstance(clazz);
+                    }
+                }
+            }
+        }
+
+        public void instanceDump(long segmentStartPos, long address, long classID, int payload)
+        {
+            handler.reportInstance(address, segmentStartPos);
+            // check if class needs to be created
+            IClass instanceType = handler.lookupClass(classID);
+            if (instanceType == null)
+                handler.reportRequiredClass(classID, payload);
+            else
+            {
+                // If this is a instance record for a class
+                IClass instanceCls = handler.lookupClass(address);
+                if (instanceCls instanceof ClassImpl)
+                {
+                    // Set the type here
+                    ClassImpl instClsImpl = (ClassImpl)instanceCls;
+                    instClsImpl.setClassInstance((ClassImpl) instanceType);
+                }
+            }
+            // Is this actually a class?
+            if (class2name.containsKey(address))
+            {
+                // record its type
+                class2type.put(address, classID);
+            }
+        }
+
+        public void objectArrayDump(long segmentStartPos, long address, long arrayClassObjectID, int size)
+                        throws IOException
+        {
+            if (!foundCompressed && idSize == 8 && address > previousArrayStart && address < previousArrayUncompressedEnd)
+            {
+                monitor.sendUserMessage(
+                                Severity.INFO,
+                                MessageUtil.format(Messages.Pass1Parser_DetectedCompressedReferences,
+                                                Long.toHexString(address), Long.toHexString(previousArrayStart)), null);
+                handler.addProperty(IHprofParserHandler.REFERENCE_SIZE, "4"); //$NON-NLS-1$
+                foundCompressed = true;
+            }
+
+            handler.reportInstance(address, segmentStartPos);
+
+            // check if class needs to be created
+            IClass arrayType = handler.lookupClass(arrayClassObjectID);
+            if (arrayType == null)
+                handler.reportRequiredObjectArray(arrayClassObjectID);
+
+            previousArrayStart = address;
+            previousArrayUncompressedEnd = address + 16 + (long)size * 8;
+        }
+
+        public void primitiveArrayDump(long segmentStartPos, long address, byte elementType)
+        {
+            handler.reportInstance(address, segmentStartPos);
+
+            // check if class needs to be created
+            String name = IPrimitiveArray.TYPE[elementType];
+            IClass clazz = handler.lookupClassByName(name, true);
+            if (clazz == null)
+                handler.reportRequiredPrimitiveArray(elementType);
+        }
+
+        public void unexpectedEndPosition(long length, long segmentStartPos, long segmentsEndPos)
+                        throws SnapshotException
+        {
+            switch (strictnessPreference)
+            {
+                case STRICTNESS_STOP:
+                    throw new SnapshotException(Messages.HPROFStrictness_Stopped,
+                                    new SnapshotException(
+                                                    MessageUtil.format(Messages.Pass1Parser_UnexpectedEndPosition,
+                                                                    Long.toHexString(segmentsEndPos - length), length,
+                                                                    Long.toHexString(segmentStartPos),
+                                                                    Long.toHexString(segmentsEndPos))));
+                case STRICTNESS_WARNING:
+                case STRICTNESS_PERMISSIVE:
+                    monitor.sendUserMessage(Severity.WARNING, MessageUtil.format(
+                                    Messages.Pass1Parser_UnexpectedEndPosition,
+                                    Long.toHexString(segmentsEndPos - length), length,
+                                    Long.toHexString(segmentStartPos), Long.toHexString(segmentsEndPos)), null);
+                    break;
+                default:
+                    throw new SnapshotException(Messages.HPROFStrictness_Unhandled_Preference);
+            }
+        }
+    }
+
+    /**
+     * A block of heap dump sub-records read by a worker thread, packed into
+     * longs, waiting to be applied in file order.
+     */
+    private static class EventBlock
+    {
+        static final int GC_ROOT = 1;
+        static final int THREAD_ROOT = 2;
+        static final int THREAD_CONTEXT_ROOT = 3;
+        static final int JAVA_LOCAL = 4;
+        static final int CLASS_DUMP = 5;
+        static final int INSTANCE_DUMP = 6;
+        static final int OBJECT_ARRAY_DUMP = 7;
+        static final int PRIMITIVE_ARRAY_DUMP = 8;
+        static final int UNEXPECTED_END_POSITION = 9;
+
+        // The kind of record is stored in the top byte of the first long
+        static final int KIND_SHIFT = 56;
+        static final long VALUE_MASK = (1L << KIND_SHIFT) - 1;
+
+        final long[] events = new long[EVENT_BLOCK_SIZE];
+        int size;
+        final List<ClassImpl> classes = new ArrayList<ClassImpl>();
+        long lastPosition;
+
+        boolean hasRoom()
+        {
+            // Enough for the longest record
+            return size + 4 <= events.length;
+        }
+
+        void add(int kind, long value)
+        {
+            events[size++] = ((long) kind << KIND_SHIFT) | value;
+        }
+
+        void replay(SubRecordListener listener) throws IOException, SnapshotException
+        {
+            int classIndex = 0;
+            int ii = 0;
+            while (ii < size)
+            {
+                long header = events[ii++];
+                long value = header & VALUE_MASK;
+                switch ((int) (header >>> KIND_SHIFT))
+                {
+                    case GC_ROOT:
+                        listener.gcRoot(events[ii++], (int) value);
+                        break;
+                    case THREAD_ROOT:
+                        listener.threadRoot(events[ii++], (int) events[ii++], (int) value);
+                        break;
+                    case THREAD_CONTEXT_ROOT:
+                        listener.threadContextRoot(events[ii++], (int) events[ii++], (int) value);
+                        break;
+                    case JAVA_LOCAL:
+                        listener.javaLocal(events[ii++], (int) events[ii++], (int) events[ii++], (int) value);
+                        break;
+                    case CLASS_DUMP:
+                        listener.classDump(value, classes.get(classIndex++), (int) events[ii++]);
+                        break;
+                    case INSTANCE_DUMP:
+                        listener.instanceDump(value, events[ii++], events[ii++], (int) events[ii++]);
+                        break;
+                    case OBJECT_ARRAY_DUMP:
+                        listener.objectArrayDump(value, events[ii++], events[ii++], (int) events[ii++]);
+                        break;
+                    case PRIMITIVE_ARRAY_DUMP:
+                        listener.primitiveArrayDump(value, events[ii++], (byte) events[ii++]);
+                        break;
+                    case UNEXPECTED_END_POSITION:
+                        listener.unexpectedEndPosition(value, events[ii++], events[ii++]);
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the heap dump sub-records read by a worker thread into blocks.
+     */
+    private static class EventRecorder implements SubRecordListener
+    {
+        private final OrderedRangeProcessor.Output<EventBlock> out;
+        private EventBlock block = new EventBlock();
+
+        EventRecorder(OrderedRangeProcessor.Output<EventBlock> out)
+        {
+            this.out = out;
+        }
+
+        private EventBlock block() throws InterruptedIOException
+        {
+            if (!block.hasRoom())
+                flush();
+            return block;
+        }
+
+        void flush() throws InterruptedIOException
+        {
+            try
+            {
+                out.deliver(block);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            block = new EventBlock();
+        }
+
+        public void gcRoot(long id, int gcType) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.GC_ROOT, gcType);
+            b.events[b.size++] = id;
+        }
+
+        public void threadRoot(long id, int threadSerialNo, int gcType) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.THREAD_ROOT, gcType);
+            b.events[b.size++] = id;
+            b.events[b.size++] = threadSerialNo;
+        }
+
+        public void threadContextRoot(long id, int threadSerialNo, int gcType) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.THREAD_CONTEXT_ROOT, gcType);
+            b.events[b.size++] = id;
+            b.events[b.size++] = threadSerialNo;
+        }
+
+        public void javaLocal(long id, int threadSerialNo, int lineNumber, int gcType) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.JAVA_LOCAL, gcType);
+            b.events[b.size++] = id;
+            b.events[b.size++] = threadSerialNo;
+            b.events[b.size++] = lineNumber;
+        }
+
+        public void classDump(long segmentStartPos, ClassImpl clazz, int supersize) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.CLASS_DUMP, segmentStartPos);
+            b.events[b.size++] = supersize;
+            b.classes.add(clazz);
+            b.lastPosition = segmentStartPos;
+        }
+
+        public void instanceDump(long segmentStartPos, long address, long classID, int payload) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.INSTANCE_DUMP, segmentStartPos);
+            b.events[b.size++] = address;
+            b.events[b.size++] = classID;
+            b.events[b.size++] = payload;
+            b.lastPosition = segmentStartPos;
+        }
+
+        public void objectArrayDump(long segmentStartPos, long address, long arrayClassObjectID, int size)
+                        throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.OBJECT_ARRAY_DUMP, segmentStartPos);
+            b.events[b.size++] = address;
+            b.events[b.size++] = arrayClassObjectID;
+            b.events[b.size++] = size;
+            b.lastPosition = segmentStartPos;
+        }
+
+        public void primitiveArrayDump(long segmentStartPos, long address, byte elementType) throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.PRIMITIVE_ARRAY_DUMP, segmentStartPos);
+            b.events[b.size++] = address;
+            b.events[b.size++] = elementType;
+            b.lastPosition = segmentStartPos;
+        }
+
+        public void unexpectedEndPosition(long length, long segmentStartPos, long segmentsEndPos)
+                        throws IOException
+        {
+            EventBlock b = block();
+            b.add(EventBlock.UNEXPECTED_END_POSITION, length);
+            b.events[b.size++] = segmentStartPos;
+            b.events[b.size++] = segmentsEndPos;
+        }
+    }
 }
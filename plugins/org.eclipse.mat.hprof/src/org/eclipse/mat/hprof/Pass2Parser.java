@@ -15,9 +15,12 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.hprof.IHprofParserHandler.HeapObject;
 import org.eclipse.mat.hprof.ui.HprofPreferences;
 import org.eclipse.mat.hprof.ui.HprofPreferences.HprofStrictness;
@@ -44,6 +47,19 @@ public class Pass2Parser extends AbstractParser
     private SimpleMonitor.Listener monitor;
     // New size of classes including per-instance fields
     private static final boolean NEWCLASSSIZE = false;
+    // Maximum number of objects and of references in a block of decoded objects
+    private static final int OBJECT_BLOCK_SIZE = 4096;
+    private static final int REFERENCE_BLOCK_SIZE = 65536;
+
+    private final int parserThreads;
+    // Receives the decoded objects when reading on a worker thread
+    private final OrderedRangeProcessor.Output<ObjectBlock> out;
+    private ObjectBlock block;
+
+    private File file;
+    // Heap dump records still to be read in parallel
+    private final ArrayLong pendingStarts = new ArrayLong();
+    private final ArrayLong pendingLengths = new ArrayLong();
 
     public Pass2Parser(IHprofParserHandler handler, SimpleMonitor.Listener monitor,
                     HprofPreferences.HprofStrictness strictnessPreference)
@@ -51,10 +67,28 @@ public class Pass2Parser extends AbstractParser
         super(strictnessPreference);
         this.handler = handler;
         this.monitor = monitor;
+        this.parserThreads = HprofPreferences.getParserThreads();
+        this.out = null;
+    }
+
+    /**
+     * Creates a parser to decode the objects of a range of heap dump records
+     * on a worker thread.
+     */
+    private Pass2Parser(Pass2Parser parser, OrderedRangeProcessor.Output<ObjectBlock> out)
+    {
+        super(parser.strictnessPreference);
+        this.handler = parser.handler;
+        this.version = parser.version;
+        this.idSize = parser.idSize;
+        this.parserThreads = 1;
+        this.out = out;
+        this.block = new ObjectBlock();
     }
 
     public void read(File file, String dumpNrToRead) throws SnapshotException, IOException
     {
+        this.file = file;
         in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
 
         int currentDumpNr = 0;
@@ -74,7 +108,9 @@ public class Pass2Parser extends AbstractParser
             {
                 if (monitor.isProbablyCanceled())
                     throw new IProgressListener.OperationCanceledException();
-                monitor.totalWorkDone(curPos / 1000);
+                // Progress of skipped heap dump records is reported once they are read
+                if (pendingStarts.isEmpty())
+                    monitor.totalWorkDone(curPos / 1000);
 
                 int record = in.readUnsignedByte();
 
@@ -92,7 +128,19 @@ public class Pass2Parser extends AbstractParser
                     case Constants.Record.HEAP_DUMP:
                     case Constants.Record.HEAP_DUMP_SEGMENT:
                         if (dumpMatches(currentDumpNr, dumpNrToRead))
-                            readDumpSegments(length);
+                        {
+                            if (parserThreads > 1)
+                            {
+                                // Read later, together with the other heap dump records
+                                pendingStarts.add(in.position());
+                                pendingLengths.add(length);
+                                in.skipBytes(length);
+                            }
+                            else
+                            {
+                                readDumpSegments(length);
+                            }
+                        }
                         else
                             in.skipBytes(length);
 
@@ -111,6 +159,8 @@ public class Pass2Parser extends AbstractParser
 
                 curPos = in.position();
             }
+
+            readPendingDumpSegments();
         }
         finally
         {
@@ -123,6 +173,73 @@ public class Pass2Parser extends AbstractParser
         }
     }
 
+    /**
+     * Decode the objects of the deferred heap dump records on several threads,
+     * resolving their references there too. The objects are then added to the
+     * handler on this thread in file order, as when reading sequentially.
+     */
+    private void readPendingDumpSegments() throws IOException, SnapshotException
+    {
+        if (pendingStarts.isEmpty())
+            return;
+
+        List<OrderedRangeProcessor.Range> ranges = OrderedRangeProcessor.split(pendingStarts, pendingLengths,
+                        parserThreads);
+        pendingStarts.clear();
+        pendingLengths.clear();
+
+        new OrderedRangeProcessor<ObjectBlock>("HPROF Pass2Parser", parserThreads, //$NON-NLS-1$
+                        OBJECT_BLOCK_SIZE * 64L + REFERENCE_BLOCK_SIZE * 4L)
+        {
+            @Override
+            protected void read(OrderedRangeProcessor.Range range, Output<ObjectBlock> out) throws IOException,
+                            SnapshotException, InterruptedException
+            {
+                Pass2Parser reader = new Pass2Parser(Pass2Parser.this, out);
+                try
+                {
+                    for (int ii = 0; ii < range.getRecordCount(); ii++)
+                    {
+                        long start = range.getStart(ii);
+                        if (reader.in == null || reader.in.position() > start)
+                        {
+                            // After a record which was too long, restart at the next record
+                            if (reader.in != null)
+                                reader.in.close();
+                            reader.in = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
+                        }
+                        reader.in.skipBytes(start - reader.in.position());
+                        reader.readDumpSegments(range.getLength(ii));
+                        reader.block.lastPosition = reader.in.position();
+                    }
+                    reader.deliver();
+                }
+                finally
+                {
+                    if (reader.in != null)
+                        reader.in.close();
+                }
+            }
+
+            @Override
+            protected void process(OrderedRangeProcessor.Range range, ObjectBlock block) throws IOException,
+                            SnapshotException
+            {
+                long workDone = block.lastPosition / 1000;
+                if (monitor.getWorkDone() < workDone)
+                {
+                    if (monitor.isProbablyCanceled())
+                        throw new IProgressListener.OperationCanceledException();
+                    monitor.totalWorkDone(workDone);
+                }
+                for (String warning : block.warnings)
+                    monitor.sendUserMessage(Severity.WARNING, warning, null);
+                for (int ii = 0; ii < block.objects.size(); ii++)
+                    handler.addObject(block.objects.get(ii), block.positions.get(ii));
+            }
+        }.run(ranges);
+    }
+
     private void readDumpSegments(long length) throws SnapshotException, IOException
     {
         long segmentStartPos = in.position();
@@ -131,7 +248,7 @@ public class Pass2Parser extends AbstractParser
         while (segmentStartPos < segmentsEndPos)
         {
             long workDone = segmentStartPos / 1000;
-            if (this.monitor.getWorkDone() < workDone)
+            if (this.monitor != null && this.monitor.getWorkDone() < workDone)
             {
                 if (this.monitor.isProbablyCanceled())
                     throw new IProgressListener.OperationCanceledException();
@@ -287,7 +404,7 @@ public class Pass2Parser extends AbstractParser
             
             if (endPos >= in.position() && unknown && (strictnessPreference == HprofStrictness.STRICTNESS_WARNING || strictnessPreference == HprofStrictness.STRICTNESS_PERMISSIVE))
             {
-                monitor.sendUserMessage(Severity.WARNING, MessageUtil.format(Messages.Pass2Parser_Error_InsufficientBytesRead, thisClazz.getName(), Long.toHexString(id), Long.toHexString(segmentStartPos), Long.toHexString(endPos), Long.toHexString(in.position())), null);
+                warning(MessageUtil.format(Messages.Pass2Parser_Error_InsufficientBytesRead, thisClazz.getName(), Long.toHexString(id), Long.toHexString(segmentStartPos), Long.toHexString(endPos), Long.toHexString(in.position())));
                 in.skipBytes(endPos - in.position());
             }
             else
@@ -296,7 +413,7 @@ public class Pass2Parser extends AbstractParser
             }
         }
 
-        handler.addObject(heapObject, segmentStartPos);
+        addObject(heapObject, segmentStartPos);
     }
 
     private void readObjectArrayDump(long segmentStartPos) throws IOException
@@ -325,7 +442,7 @@ public class Pass2Parser extends AbstractParser
                 heapObject.references.add(refId);
         }
 
-        handler.addObject(heapObject, segmentStartPos);
+        addObject(heapObject, segmentStartPos);
     }
 
     private void readPrimitiveArrayDump(long segmentStartPost) throws SnapshotException, IOException
@@ -350,10 +467,65 @@ public class Pass2Parser extends AbstractParser
         heapObject.references.add(clazz.getObjectAddress());
         heapObject.isArray = true;
 
-        handler.addObject(heapObject, segmentStartPost);
+        addObject(heapObject, segmentStartPost);
 
         int elementSize = IPrimitiveArray.ELEMENT_SIZE[elementType];
         in.skipBytes((long) elementSize * size);
     }
 
+    private void addObject(HeapObject heapObject, long filePosition) throws IOException
+    {
+        if (out == null)
+        {
+            handler.addObject(heapObject, filePosition);
+            return;
+        }
+
+        handler.resolveReferences(heapObject);
+        // Only the resolved references are needed from now on
+        heapObject.references = null;
+        block.objects.add(heapObject);
+        block.positions.add(filePosition);
+        block.references += heapObject.referenceIds.length;
+        block.lastPosition = filePosition;
+        if (block.objects.size() >= OBJECT_BLOCK_SIZE || block.references >= REFERENCE_BLOCK_SIZE)
+            deliver();
+    }
+
+    private void warning(String message)
+    {
+        if (out == null)
+            monitor.sendUserMessage(Severity.WARNING, message, null);
+        else
+            block.warnings.add(message);
+    }
+
+    private void deliver() throws IOException
+    {
+        try
+        {
+            out.deliver(block);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        ObjectBlock next = new ObjectBlock();
+        next.lastPosition = block.lastPosition;
+        block = next;
+    }
+
+    /**
+     * Objects decoded by a worker thread, with their references resolved,
+     * waiting to be added to the handler.
+     */
+    private static class ObjectBlock
+    {
+        final List<HeapObject> objects = new ArrayList<HeapObject>();
+        final ArrayLong positions = new ArrayLong();
+        final List<String> warnings = new ArrayList<String>();
+        int references;
+        long lastPosition;
+    }
 }
@@ -13,6 +13,7 @@ package org.eclipse.mat.hprof.ui;
 import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
 import org.eclipse.jface.preference.IPreferenceStore;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.jface.preference.RadioGroupFieldEditor;
 import org.eclipse.mat.hprof.HprofPlugin;
 import org.eclipse.mat.hprof.Messages;
@@ -70,6 +71,10 @@ public class HPROFPreferencePage extends FieldEditorPreferencePage implements IW
                         }, getFieldEditorParent(), true));
         addField(new BooleanFieldEditor(HprofPreferences.ADDITIONAL_CLASS_REFERENCES, Messages.HPROFPreferences_Additional_Class_References,
                         getFieldEditorParent()));
+        IntegerFieldEditor threads = new IntegerFieldEditor(HprofPreferences.PARSER_THREADS,
+                        Messages.HPROFPreferences_Parser_Threads, getFieldEditorParent());
+        threads.setValidRange(0, 1024);
+        addField(threads);
     }
 
     /**
@@ -27,6 +27,9 @@ public class HprofPreferences
     /** Additional references for classes */
     public static final String ADDITIONAL_CLASS_REFERENCES = "hprofAddClassRefs"; //$NON-NLS-1$
 
+    /** Number of threads used to read the heap dump segments */
+    public static final String PARSER_THREADS = "hprofParserThreads"; //$NON-NLS-1$
+
     /**
      * Return the currently selected preference for strictness. This first
      * checks the preference store, and then checks for any -D$(STRICTNESS)=true
@@ -123,4 +126,25 @@ public class HprofPreferences
         return Platform.getPreferencesService().getBoolean(HprofPlugin.getDefault().getBundle().getSymbolicName(),
                         HprofPreferences.ADDITIONAL_CLASS_REFERENCES, false, null);
     }
+
+    /**
+     * Return the number of threads to use for reading the heap dump segments.
+     * This first checks the preference store, and then checks for any
+     * -D$(PARSER_THREADS)=n command line argument. A value of 0 or less means
+     * one thread per available processor.
+     * 
+     * @return the number of parser threads, at least 1
+     */
+    public static int getParserThreads()
+    {
+        int threads = Platform.getPreferencesService().getInt(HprofPlugin.getDefault().getBundle().getSymbolicName(),
+                        HprofPreferences.PARSER_THREADS, 0, null);
+
+        // Check if the user overrides on the command line
+        threads = Integer.getInteger(PARSER_THREADS, threads);
+
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        return threads;
+    }
 }
@@ -27,6 +27,7 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer
             IPreferenceStore store = (IPreferenceStore)HprofPlugin.getDefault().getPreferenceStore();
             store.setDefault(HprofPreferences.STRICTNESS_PREF, HprofPreferences.DEFAULT_STRICTNESS.toString());
             store.setDefault(HprofPreferences.ADDITIONAL_CLASS_REFERENCES, Boolean.FALSE);
+            store.setDefault(HprofPreferences.PARSER_THREADS, 0);
         }
         catch (LinkageError e)
         {
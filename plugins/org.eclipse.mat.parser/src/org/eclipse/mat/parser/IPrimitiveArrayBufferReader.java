@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.parser.model.PrimitiveArrayImpl;
+
+/**
+ * Optionally implemented by an {@link IObjectReader} which can copy the
+ * content of primitive arrays as the raw bytes, without converting them to
+ * Java arrays. Other readers have the arrays converted by
+ * {@link PrimitiveArrayImpl#getValueBuffer(int, int)}.
+ * 
+ * @since 1.9
+ */
+public interface IPrimitiveArrayBufferReader
+{
+    /**
+     * Get the elements of a primitive array as a buffer.
+     * 
+     * @param array
+     *            the array
+     * @param offset
+     *            where in the array to start
+     * @param length
+     *            how many elements to read
+     * @return a read-only buffer in the format described by
+     *         {@link org.eclipse.mat.snapshot.model.IPrimitiveArray#getValueBuffer(int, int)}
+     * @throws IOException
+     * @throws SnapshotException
+     */
+    ByteBuffer readPrimitiveArrayBuffer(PrimitiveArrayImpl array, int offset, int length) //
+                    throws IOException, SnapshotException;
+}
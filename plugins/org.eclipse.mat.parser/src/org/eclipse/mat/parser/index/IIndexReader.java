@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG and others.
+ * Copyright (c) 2008, 2018 SAP AG and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -64,6 +64,27 @@ public interface IIndexReader
         int[] get(int index);
     }
 
+    /**
+     * Optionally implemented by an {@link IOne2ManyIndex} which can look up
+     * the entries for several indices in one pass.
+     * @since 1.9
+     */
+    public interface IOne2ManyBatchIndex extends IOne2ManyIndex
+    {
+        /**
+         * Get the entries for several indices at once. The indices are looked
+         * up in increasing order, so the index is read sequentially whatever
+         * the order of the request.
+         * @param index the indices to look up, in any order and possibly repeated
+         * @param offsets if not null, an array of at least index.length + 1
+         * which is filled so that the entries for index[i] are
+         * result[offsets[i]] to result[offsets[i + 1] - 1]
+         * @return the entries for all the indices, concatenated in the order of the indices
+         * @since 1.9
+         */
+        int[] getAll(int[] index, int[] offsets);
+    }
+
     /**
      * Index from object id to several object ids.
      * For example inbound references from an object.
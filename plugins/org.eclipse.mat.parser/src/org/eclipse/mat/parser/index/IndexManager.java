@@ -50,7 +50,13 @@ public class IndexManager
          * Retained size cache for a class loader: loader+all classes+all instances. 
          * @since 1.2
          */
-        I2RETAINED("i2sv2", RetainedSizeCache.class); //$NON-NLS-1$
+        I2RETAINED("i2sv2", RetainedSizeCache.class), //$NON-NLS-1$
+        /**
+         * Address samples: every n-th address of the identifier index, to
+         * find an address by reading one page of the identifier index.
+         * @since 1.9
+         */
+        IDENTIFIER_SAMPLES("idxs", IndexReader.LongIndexSampleReader.class); //$NON-NLS-1$
         /*
          * Other indexes:
          * i2s
@@ -86,6 +92,8 @@ public class IndexManager
     public IIndexReader.IOne2OneIndex domIn;
     /** @noreference This field is not intended to be referenced by clients. */
     public RetainedSizeCache i2sv2;
+    /** @since 1.9 */
+    public IndexReader.LongIndexSampleReader idxs;
 
     public void setReader(final Index index, final IIndexReader reader)
     {
@@ -198,6 +206,16 @@ public class IndexManager
         return idx;
     }
 
+    /**
+     * @return the samples of the identifier index, or null for snapshots
+     *         parsed without them
+     * @since 1.9
+     */
+    public IndexReader.LongIndexSampleReader o2addressSamples()
+    {
+        return idxs;
+    }
+
     /**
 	 * @since 1.0
 	 */
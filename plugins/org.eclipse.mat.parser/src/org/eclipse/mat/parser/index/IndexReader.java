@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2014 SAP AG, IBM Corporation and others.
+ * Copyright (c) 2008, 2018 SAP AG, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,14 +8,20 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - enhancements for huge dumps
+ *    IBM Corporation - memory mapped index files
+ *    IBM Corporation - sampled address lookup
  *******************************************************************************/
 package org.eclipse.mat.parser.index;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
+import java.util.Arrays;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayIntCompressed;
@@ -23,15 +29,174 @@ import org.eclipse.mat.collect.ArrayLongCompressed;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.parser.index.IndexWriter.ArrayIntLongCompressed;
 import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.parser.io.MappedFile;
 import org.eclipse.mat.parser.io.SimpleBufferedRandomAccessInputStream;
 
 /**
  * Implementations to read index files.
+ * <p>
+ * If enabled by {@link MappedFile#MAP_FILES}, readers opened on a complete
+ * index file map the file into memory where possible and decode the
+ * compressed pages in place. They neither cache decoded pages nor lock, so
+ * can be read by several threads at once. Readers returned by the
+ * {@link IndexWriter}, which include temporary indexes deleted during
+ * parsing, and readers of an index whose file is not mapped read the pages
+ * into soft referenced caches instead.
  */
 public abstract class IndexReader
 {
     public static final boolean DEBUG = false;
 
+    /**
+     * Map an index file, if enabled and possible.
+     * 
+     * @return the mapped file, or null to read the file instead
+     */
+    static MappedFile map(File indexFile)
+    {
+        if (!MappedFile.isEnabled())
+            return null;
+        try
+        {
+            return new MappedFile(indexFile);
+        }
+        catch (IOException e)
+        {
+            // For example no address space left on a 32-bit VM
+            return null;
+        }
+    }
+
+    /**
+     * A page of longs of a mapped index file, decoded in place in the same way
+     * as {@link ArrayLongCompressed}.
+     */
+    static class MappedLongPage extends ArrayLongCompressed
+    {
+        private final MappedFile file;
+        private final long start;
+        private final long end;
+        private final int varyingBits;
+        private final int trailingClearBits;
+
+        MappedLongPage(MappedFile file, long start, long end, byte[] header)
+        {
+            super(header);
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.varyingBits = header[0];
+            this.trailingClearBits = header[1];
+        }
+
+        @Override
+        public long get(int index)
+        {
+            if (varyingBits == 0)
+                return 0;
+
+            try
+            {
+                final long pos = (long) (index) * varyingBits;
+                long idx = start + 2 + (pos >>> 3);
+                int off = ((int) (pos)) & 0x7;
+
+                // The value starts off bits into the big-endian word at idx
+                long value = readWord(idx) << off;
+                if (off + varyingBits > 0x40)
+                    value |= (file.readByte(idx + 8) & 0xff) >>> (0x8 - off);
+                return (value >>> (0x40 - varyingBits)) << trailingClearBits;
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * The 8 bytes at the position, padded with zeros at the end of the
+         * file.
+         */
+        private long readWord(long position) throws IOException
+        {
+            if (position <= file.length() - 8)
+                return file.readLong(position);
+
+            long word = 0;
+            for (int ii = 0; ii < 8; ii++)
+            {
+                word <<= 0x8;
+                if (position + ii < file.length())
+                    word |= file.readByte(position + ii) & 0xff;
+            }
+            return word;
+        }
+
+        @Override
+        public void set(int index, long value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] toByteArray()
+        {
+            try
+            {
+                byte[] data = new byte[(int) (end - start)];
+                file.readFully(start, data, 0, data.length);
+                return data;
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * A page of ints, or of positions, of a mapped index file, decoded in
+     * place in the same way as {@link ArrayIntCompressed}.
+     */
+    static class MappedIntPage extends ArrayIntLongCompressed
+    {
+        MappedIntPage(MappedFile file, long start, long end) throws IOException
+        {
+            this(new MappedLongPage(file, start, end, readHeader(file, start)));
+        }
+
+        private MappedIntPage(MappedLongPage page)
+        {
+            super(new byte[] { (byte) page.varyingBits, (byte) page.trailingClearBits }, page);
+        }
+
+        private static byte[] readHeader(MappedFile file, long start) throws IOException
+        {
+            byte[] header = new byte[2];
+            file.readFully(start, header, 0, header.length);
+            return header;
+        }
+
+        @Override
+        public int get(int index)
+        {
+            // The low 32 bits are decoded exactly as for ints
+            return (int) base.get(index);
+        }
+
+        @Override
+        public void set(int index, int value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] toByteArray()
+        {
+            return base.toByteArray();
+        }
+    }
+
     /**
      * An int to int index reader.
      * 
@@ -68,6 +233,8 @@ public abstract class IndexReader
         File indexFile;
         public SimpleBufferedRandomAccessInputStream in;
         long[] pageStart;
+        MappedFile mapped;
+        MappedIntPage[] mappedPages;
 
         IntIndexReader(File indexFile, IndexWriter.Pages<SoftReference<ArrayIntCompressed>> pages, long size,
                         int pageSize, long[] pageStart)
@@ -91,18 +258,30 @@ public abstract class IndexReader
 
         public IntIndexReader(File indexFile) throws IOException
         {
-            this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r")), 0, indexFile.length());//$NON-NLS-1$
             this.indexFile = indexFile;
+            this.mapped = map(indexFile);
+            if (mapped == null)
+                this.in = new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r"));//$NON-NLS-1$
+            readIndex(0, indexFile.length());
         }
 
         public IntIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length) throws IOException
         {
             this.in = in;
-            this.in.seek(start + length - 16);
+            readIndex(start, length);
+        }
 
-            long lastOffset = this.in.readLong();
-            int pageSize = this.in.readInt();
-            int size = this.in.readInt();
+        IntIndexReader(MappedFile mapped, long start, long length) throws IOException
+        {
+            this.mapped = mapped;
+            readIndex(start, length);
+        }
+
+        private void readIndex(long start, long length) throws IOException
+        {
+            long lastOffset = readLong(start + length - 16);
+            int pageSize = readInt(start + length - 8);
+            int size = readInt(start + length - 4);
 
             int pages;
             if (size >= 0)
@@ -122,8 +301,41 @@ public abstract class IndexReader
 
             pageStart = new long[pages];
 
-            this.in.seek(start + length - 8 - (pageStart.length * 8));
-            this.in.readLongArray(pageStart);
+            if (mapped != null)
+            {
+                for (int ii = 0; ii < pageStart.length; ii++)
+                    pageStart[ii] = mapped.readLong(start + length - 8 - (pageStart.length - ii) * 8);
+
+                createMappedPages();
+            }
+            else
+            {
+                this.in.seek(start + length - 8 - (pageStart.length * 8));
+                this.in.readLongArray(pageStart);
+            }
+        }
+
+        private void createMappedPages() throws IOException
+        {
+            mappedPages = new MappedIntPage[pageStart.length - 1];
+            for (int ii = 0; ii < mappedPages.length; ii++)
+                mappedPages[ii] = new MappedIntPage(mapped, pageStart[ii], pageStart[ii + 1]);
+        }
+
+        private long readLong(long position) throws IOException
+        {
+            if (mapped != null)
+                return mapped.readLong(position);
+            in.seek(position);
+            return in.readLong();
+        }
+
+        private int readInt(long position) throws IOException
+        {
+            if (mapped != null)
+                return mapped.readInt(position);
+            in.seek(position);
+            return in.readInt();
         }
 
         private synchronized void open()
@@ -148,6 +360,14 @@ public abstract class IndexReader
         {
             unload();
 
+            if (mapped != null)
+            {
+                // an embedded index shares the mapping of the enclosing file
+                if (indexFile != null)
+                    mapped.close();
+                mapped = null;
+            }
+
             if (in != null)
             {
                 try
@@ -168,6 +388,9 @@ public abstract class IndexReader
         @Override
         protected ArrayIntCompressed getPage(int page)
         {
+            if (mappedPages != null)
+                return mappedPages[page];
+
             SoftReference<ArrayIntCompressed> ref = pages.get(page);
             ArrayIntCompressed array = ref == null ? null : ref.get();
             if (array == null)
@@ -232,6 +455,10 @@ public abstract class IndexReader
         {
             super(in, start, length);
         }
+        PositionIndexReader(MappedFile mapped, long start, long length) throws IOException
+        {
+            super(mapped, start, length);
+        }
         public PositionIndexReader(File indexFile, IndexWriter.Pages<SoftReference<ArrayIntCompressed>> pages, int size,
                         int pageSize, long[] pageStart)
         {
@@ -249,6 +476,9 @@ public abstract class IndexReader
         @Override
         protected ArrayIntLongCompressed getPage(int page)
         {
+            if (mappedPages != null)
+                return mappedPages[page];
+
             SoftReference<ArrayIntCompressed> ref = pages.get(page);
             ArrayIntCompressed array = ref == null ? null : ref.get();
             if (array instanceof ArrayIntLongCompressed)
@@ -366,10 +596,11 @@ public abstract class IndexReader
         }
     }
 
-    /* package */static class IntIndex1NReader implements IIndexReader.IOne2ManyIndex
+    /* package */static class IntIndex1NReader implements IIndexReader.IOne2ManyBatchIndex
     {
         File indexFile;
         SimpleBufferedRandomAccessInputStream in;
+        MappedFile mapped;
         IntIndexReader header;
         IntIndexReader body;
 
@@ -379,14 +610,25 @@ public abstract class IndexReader
             {
                 this.indexFile = indexFile;
 
-                open();
-
                 long indexLength = indexFile.length();
-                in.seek(indexLength - 8);
-                long divider = in.readLong();
+                mapped = map(indexFile);
+                if (mapped != null)
+                {
+                    long divider = mapped.readLong(indexLength - 8);
+
+                    this.header = new PositionIndexReader(mapped, divider, indexLength - divider - 8);
+                    this.body = new IntIndexReader(mapped, 0, divider);
+                }
+                else
+                {
+                    open();
 
-                this.header = new PositionIndexReader(in, divider, indexLength - divider - 8);
-                this.body = new IntIndexReader(in, 0, divider);
+                    in.seek(indexLength - 8);
+                    long divider = in.readLong();
+
+                    this.header = new PositionIndexReader(in, divider, indexLength - divider - 8);
+                    this.body = new IntIndexReader(in, 0, divider);
+                }
 
                 this.body.LOCK = this.header.LOCK;
 
@@ -418,6 +660,59 @@ public abstract class IndexReader
             return body.getNext(p + 1, length);
         }
 
+        public int[] getAll(int[] index, int[] offsets)
+        {
+            // Visit the indices in increasing order, remembering their slots
+            long[] order = new long[index.length];
+            for (int ii = 0; ii < index.length; ii++)
+                order[ii] = ((long) index[ii] << 32) | ii;
+            Arrays.sort(order);
+
+            // First pass through the header
+            long[] start = new long[index.length];
+            int[] length = new int[index.length];
+            for (long o : order)
+            {
+                int ii = (int) o;
+                locate(index[ii], start, length, ii);
+            }
+
+            if (offsets == null)
+                offsets = new int[index.length + 1];
+            long total = 0;
+            for (int ii = 0; ii < index.length; ii++)
+            {
+                offsets[ii] = (int) total;
+                total += length[ii];
+            }
+            if (total > Integer.MAX_VALUE)
+                throw new IllegalArgumentException(Long.toString(total));
+            offsets[index.length] = (int) total;
+
+            // Second pass through the body
+            int[] result = new int[(int) total];
+            for (long o : order)
+            {
+                int ii = (int) o;
+                if (length[ii] > 0)
+                {
+                    int[] entries = body.getNext(start[ii], length[ii]);
+                    System.arraycopy(entries, 0, result, offsets[ii], entries.length);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Find where the entries for an index are held in the body.
+         */
+        void locate(int index, long[] start, int[] length, int slot)
+        {
+            long p = header.getPos(index);
+            start[slot] = p + 1;
+            length[slot] = body.get(p);
+        }
+
         protected synchronized void open()
         {
             try
@@ -442,8 +737,16 @@ public abstract class IndexReader
 
         public synchronized void close()
         {
-            header.unload();
-            body.unload();
+            if (header != null)
+                header.unload();
+            if (body != null)
+                body.unload();
+
+            if (mapped != null)
+            {
+                mapped.close();
+                mapped = null;
+            }
 
             if (in != null)
             {
@@ -515,31 +818,41 @@ public abstract class IndexReader
          */
         public int[] get(int index)
         {
-            long p0;
-            long p1;
-
-            if (index + 1 < header.size())
-            {
-                p0 = header.getPos(index++);
-                p1 = header.getPos(index);
-                if (p0 == 0)
-                    return new int[0];
+            long p0 = header.getPos(index);
+            if (p0 == 0)
+                return new int[0];
 
-                for (index++; p1 < p0 && index < header.size(); index++)
-                    p1 = header.getPos(index);
+            return body.getNext(p0 - 1, (int)(end(index, p0) - p0));
+        }
 
-                if (p1 < p0)
-                    p1 = body.size + 1;
+        @Override
+        void locate(int index, long[] start, int[] length, int slot)
+        {
+            long p0 = header.getPos(index);
+            if (p0 == 0)
+            {
+                start[slot] = 0;
+                length[slot] = 0;
             }
             else
             {
-                p0 = header.getPos(index);
-                if (p0 == 0)
-                    return new int[0];
-                p1 = body.size + 1;
+                start[slot] = p0 - 1;
+                length[slot] = (int)(end(index, p0) - p0);
             }
+        }
 
-            return body.getNext(p0 - 1, (int)(p1 - p0));
+        /**
+         * The end of the entries starting at p0 is the next greater position.
+         */
+        private long end(int index, long p0)
+        {
+            for (index++; index < header.size(); index++)
+            {
+                long p1 = header.getPos(index);
+                if (p1 >= p0)
+                    return p1;
+            }
+            return body.size + 1;
         }
 
     }
@@ -612,6 +925,8 @@ public abstract class IndexReader
         File indexFile;
         SimpleBufferedRandomAccessInputStream in;
         long[] pageStart;
+        MappedFile mapped;
+        MappedLongPage[] mappedPages;
 
         public LongIndexReader(File indexFile, HashMapIntObject<Object> pages, int size, int pageSize, long[] pageStart)
                         throws IOException
@@ -628,19 +943,40 @@ public abstract class IndexReader
 
         public LongIndexReader(File indexFile) throws IOException
         {
-            this(new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r")), 0, indexFile.length());//$NON-NLS-1$
             this.indexFile = indexFile;
-
-            open();
+            this.mapped = map(indexFile);
+            if (mapped == null)
+                this.in = new SimpleBufferedRandomAccessInputStream(new RandomAccessFile(indexFile, "r"));//$NON-NLS-1$
+            readIndex(0, indexFile.length());
         }
 
         protected LongIndexReader(SimpleBufferedRandomAccessInputStream in, long start, long length) throws IOException
         {
             this.in = in;
-            this.in.seek(start + length - 8);
+            readIndex(start, length);
+        }
 
-            int pageSize = this.in.readInt();
-            int size = this.in.readInt();
+        LongIndexReader(MappedFile mapped, long start, long length) throws IOException
+        {
+            this.mapped = mapped;
+            readIndex(start, length);
+        }
+
+        private void readIndex(long start, long length) throws IOException
+        {
+            int pageSize;
+            int size;
+            if (mapped != null)
+            {
+                pageSize = mapped.readInt(start + length - 8);
+                size = mapped.readInt(start + length - 4);
+            }
+            else
+            {
+                this.in.seek(start + length - 8);
+                pageSize = this.in.readInt();
+                size = this.in.readInt();
+            }
 
             init(size, pageSize);
 
@@ -648,8 +984,29 @@ public abstract class IndexReader
 
             pageStart = new long[pages];
 
-            this.in.seek(start + length - 8 - (pageStart.length * 8));
-            this.in.readLongArray(pageStart);
+            if (mapped != null)
+            {
+                for (int ii = 0; ii < pageStart.length; ii++)
+                    pageStart[ii] = mapped.readLong(start + length - 8 - (pageStart.length - ii) * 8);
+
+                createMappedPages();
+            }
+            else
+            {
+                this.in.seek(start + length - 8 - (pageStart.length * 8));
+                this.in.readLongArray(pageStart);
+            }
+        }
+
+        private void createMappedPages() throws IOException
+        {
+            mappedPages = new MappedLongPage[pageStart.length - 1];
+            for (int ii = 0; ii < mappedPages.length; ii++)
+            {
+                byte[] header = new byte[2];
+                mapped.readFully(pageStart[ii], header, 0, header.length);
+                mappedPages[ii] = new MappedLongPage(mapped, pageStart[ii], pageStart[ii + 1], header);
+            }
         }
 
         private synchronized void open() throws IOException
@@ -667,6 +1024,14 @@ public abstract class IndexReader
         {
             unload();
 
+            if (mapped != null)
+            {
+                // an embedded index shares the mapping of the enclosing file
+                if (indexFile != null)
+                    mapped.close();
+                mapped = null;
+            }
+
             if (in != null)
             {
                 try
@@ -684,10 +1049,38 @@ public abstract class IndexReader
             }
         }
 
+        @Override
+        public int reverse(long value)
+        {
+            if (mappedPages == null)
+                return super.reverse(value);
+
+            // No cache of the first probes, as it is not safe for several threads
+            int low = 0;
+            int high = size - 1;
+
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                long midVal = mappedPages[mid / pageSize].get(mid % pageSize);
+
+                if (midVal < value)
+                    low = mid + 1;
+                else if (midVal > value)
+                    high = mid - 1;
+                else
+                    return mid; // key found
+            }
+            return -(low + 1); // key not found.
+        }
+
         @SuppressWarnings("unchecked")
         @Override
         protected ArrayLongCompressed getPage(int page)
         {
+            if (mappedPages != null)
+                return mappedPages[page];
+
             SoftReference<ArrayLongCompressed> ref = (SoftReference<ArrayLongCompressed>) pages.get(page);
             ArrayLongCompressed array = ref == null ? null : ref.get();
             if (array == null)
@@ -736,10 +1129,112 @@ public abstract class IndexReader
 
     }
 
+    /**
+     * Every n-th value of a sorted long index, such as the object addresses,
+     * held in memory, so that a search of the index only reads the one page
+     * holding the value.
+     * 
+     * <pre>
+     * step (4)
+     * size of the sampled index (4)
+     * value 0, value step, value 2 * step, ... (8 each)
+     * </pre>
+     * @since 1.9
+     */
+    public static class LongIndexSampleReader implements IIndexReader
+    {
+        File indexFile;
+        int step;
+        int size;
+        long[] samples;
+
+        public LongIndexSampleReader(File indexFile) throws IOException
+        {
+            this.indexFile = indexFile;
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                step = in.readInt();
+                size = in.readInt();
+                if (step <= 0 || size < 0)
+                    throw new IOException(indexFile.getName());
+
+                samples = new long[size == 0 ? 0 : (size - 1) / step + 1];
+                for (int ii = 0; ii < samples.length; ii++)
+                    samples[ii] = in.readLong();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        /**
+         * Search the sampled index for a value.
+         * 
+         * @param index
+         *            the index which was sampled
+         * @param value
+         *            the value to find
+         * @return the position of the value, or -1 - the insertion point if
+         *         it is not in the index
+         */
+        public int reverse(IIndexReader.IOne2LongIndex index, long value)
+        {
+            // not the index which was sampled
+            if (index.size() != size)
+                return index.reverse(value);
+
+            int sample = Arrays.binarySearch(samples, value);
+            if (sample >= 0)
+                return sample * step;
+
+            // the last sample before the value
+            sample = -2 - sample;
+            if (sample < 0)
+                return -1;
+
+            int low = sample * step;
+            int high = Math.min(low + step, size) - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                long midVal = index.get(mid);
+
+                if (midVal < value)
+                    low = mid + 1;
+                else if (midVal > value)
+                    high = mid - 1;
+                else
+                    return mid; // key found
+            }
+            return -(low + 1); // key not found.
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public void unload()
+        {}
+
+        public void close()
+        {}
+
+        public void delete()
+        {
+            if (indexFile != null)
+                indexFile.delete();
+        }
+    }
+
     public static class LongIndex1NReader implements IIndexReader
     {
         File indexFile;
         SimpleBufferedRandomAccessInputStream in;
+        MappedFile mapped;
         IntIndexReader header;
         LongIndexReader body;
 
@@ -747,14 +1242,25 @@ public abstract class IndexReader
         {
             this.indexFile = indexFile;
 
-            open();
-
             long indexLength = indexFile.length();
-            in.seek(indexLength - 8);
-            long divider = in.readLong();
+            mapped = map(indexFile);
+            if (mapped != null)
+            {
+                long divider = mapped.readLong(indexLength - 8);
 
-            this.header = new IntIndexReader(in, divider, indexLength - divider - 8);
-            this.body = new LongIndexReader(in, 0, divider);
+                this.header = new IntIndexReader(mapped, divider, indexLength - divider - 8);
+                this.body = new LongIndexReader(mapped, 0, divider);
+            }
+            else
+            {
+                open();
+
+                in.seek(indexLength - 8);
+                long divider = in.readLong();
+
+                this.header = new IntIndexReader(in, divider, indexLength - divider - 8);
+                this.body = new LongIndexReader(in, 0, divider);
+            }
 
             this.body.LOCK = this.header.LOCK;
         }
@@ -797,6 +1303,12 @@ public abstract class IndexReader
         {
             unload();
 
+            if (mapped != null)
+            {
+                mapped.close();
+                mapped = null;
+            }
+
             if (in != null)
             {
                 try
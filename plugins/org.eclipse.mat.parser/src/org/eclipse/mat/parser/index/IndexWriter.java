@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2014 SAP AG, IBM Corporation and others.
+ * Copyright (c) 2008, 2018 SAP AG, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,10 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - enhancements for huge dumps
+ *    IBM Corporation - parallel external sort of inbound references
+ *    IBM Corporation - memory mapped collectors
+ *    IBM Corporation - memory mapped identifiers and bucketed address lookup
+ *    IBM Corporation - sampled address lookup
  *******************************************************************************/
 package org.eclipse.mat.parser.index;
 
@@ -17,18 +21,32 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayIntCompressed;
 import org.eclipse.mat.collect.ArrayLong;
 import org.eclipse.mat.collect.ArrayLongCompressed;
-import org.eclipse.mat.collect.ArrayUtils;
-import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntLong;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.HashMapIntObject.Entry;
@@ -70,11 +88,24 @@ public abstract class IndexWriter
 
     public static class Identifier implements IIndexReader.IOne2LongIndex
     {
+        /** The average number of addresses in a bucket of the lookup table */
+        private static final int BUCKET_SIZE = 64;
+
         long[] identifiers;
         int size;
 
+        /**
+         * The index of the first address of each bucket once the addresses
+         * are sorted, so that {@link #reverse(long)} only searches one bucket.
+         * Each bucket covers the same range of addresses.
+         */
+        int[] buckets;
+        long minimum;
+        int shift;
+
         public void add(long id)
         {
+            buckets = null;
             if (identifiers == null)
             {
                 identifiers = new long[10000];
@@ -99,6 +130,43 @@ public abstract class IndexWriter
         public void sort()
         {
             Arrays.sort(identifiers, 0, size);
+            buildBuckets();
+        }
+
+        /**
+         * Builds the lookup table of the sorted addresses.
+         */
+        void buildBuckets()
+        {
+            buckets = null;
+            if (size == 0)
+                return;
+
+            long min = get(0);
+            // unsigned, as the addresses may span the sign bit
+            long range = get(size - 1) - min;
+            // at least two buckets, so the shift stays below 64
+            int target = size / BUCKET_SIZE + 2;
+            int s = 0;
+            for (long r = range; r < 0 || r >= target; r = range >>> s)
+                s++;
+
+            int noOfBuckets = (int) (range >>> s) + 1;
+            int[] table = new int[noOfBuckets + 1];
+            int bucket = 0;
+            int index = 0;
+            for (IteratorLong it = iterator(); it.hasNext(); index++)
+            {
+                int b = (int) ((it.next() - min) >>> s);
+                while (bucket <= b)
+                    table[bucket++] = index;
+            }
+            while (bucket <= noOfBuckets)
+                table[bucket++] = size;
+
+            minimum = min;
+            shift = s;
+            buckets = table;
         }
 
         public int size()
@@ -116,8 +184,19 @@ public abstract class IndexWriter
 
         public int reverse(long val)
         {
-            int a, c;
-            for (a = 0, c = size; a < c;)
+            int a = 0, c = size;
+            int[] table = buckets;
+            if (table != null)
+            {
+                if (val < minimum)
+                    return -1;
+                long bucket = (val - minimum) >>> shift;
+                if (bucket >= table.length - 1)
+                    return -1 - size;
+                a = table[(int) bucket];
+                c = table[(int) bucket + 1];
+            }
+            for (; a < c;)
             {
                 // Avoid overflow problems by using unsigned divide by 2
                 int b = (a + c) >>> 1;
@@ -204,6 +283,15 @@ public abstract class IndexWriter
         {
             return new IntIndexStreamer().writeTo(indexFile, dataElements);
         }
+
+        /**
+         * Release the values once they have been written.
+         * @since 1.9
+         */
+        public void delete()
+        {
+            dataElements = null;
+        }
     }
 
     /**
@@ -281,6 +369,68 @@ public abstract class IndexWriter
         }
     }
 
+    /**
+     * Collects the sizes of objects in a memory mapped file instead of the
+     * Java heap.
+     * @since 1.9
+     */
+    public static class MappedSizeIndexCollector extends SizeIndexCollectorUncompressed
+    {
+        private final int size;
+        private MappedArray array;
+
+        /**
+         * @param size
+         *            the number of objects
+         * @param file
+         *            the temporary file, deleted when the collector is
+         *            deleted
+         */
+        public MappedSizeIndexCollector(int size, File file) throws IOException
+        {
+            super(0);
+            this.size = size;
+            this.array = new MappedArray(file, (long) size << 2);
+        }
+
+        @Override
+        public void set(int index, int value)
+        {
+            array.putInt(index, value);
+        }
+
+        @Override
+        public int get(int index)
+        {
+            return array.getInt(index);
+        }
+
+        @Override
+        public IIndexReader.IOne2SizeIndex writeTo(File indexFile) throws IOException
+        {
+            return new SizeIndexReader(new IntIndexStreamer().writeTo(indexFile, new IteratorInt()
+            {
+                int next;
+
+                public boolean hasNext()
+                {
+                    return next < size;
+                }
+
+                public int next()
+                {
+                    return array.getInt(next++);
+                }
+            }));
+        }
+
+        @Override
+        public void delete()
+        {
+            array.close();
+        }
+    }
+
     static class Pages<V>
     {
         int size;
@@ -516,7 +666,18 @@ public abstract class IndexWriter
         }
     }
 
-    public static class IntIndexCollector extends IntIndex<ArrayIntCompressed> implements IOne2OneIndex
+    /**
+     * Collects an int for each object, set in any order, for a 1:1 index.
+     * @since 1.9
+     */
+    public interface IIntIndexCollector extends IOne2OneIndex
+    {
+        void set(int index, int value);
+
+        IIndexReader.IOne2OneIndex writeTo(File indexFile) throws IOException;
+    }
+
+    public static class IntIndexCollector extends IntIndex<ArrayIntCompressed> implements IIntIndexCollector
     {
         int mostSignificantBit;
 
@@ -559,6 +720,501 @@ public abstract class IndexWriter
         }
     }
 
+    /**
+     * A large array of ints or longs outside the Java heap, in a memory
+     * mapped temporary file. The operating system pages the file in and out
+     * as needed, so the array may be bigger than the heap.
+     */
+    static class MappedArray
+    {
+        // 1GB, a whole number of ints and longs
+        private static final int CHUNK_SHIFT = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+        private final File file;
+        private RandomAccessFile raf;
+        private MappedByteBuffer[] chunks;
+
+        MappedArray(File file, long bytes) throws IOException
+        {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            try
+            {
+                raf.setLength(bytes);
+                FileChannel channel = raf.getChannel();
+                chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+                for (int ii = 0; ii < chunks.length; ii++)
+                {
+                    long position = (long) ii << CHUNK_SHIFT;
+                    chunks[ii] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(CHUNK_MASK + 1,
+                                    bytes - position));
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+
+        int getInt(long index)
+        {
+            long pos = index << 2;
+            return chunks[(int) (pos >>> CHUNK_SHIFT)].getInt((int) (pos & CHUNK_MASK));
+        }
+
+        void putInt(long index, int value)
+        {
+            long pos = index << 2;
+            chunks[(int) (pos >>> CHUNK_SHIFT)].putInt((int) (pos & CHUNK_MASK), value);
+        }
+
+        long getLong(long index)
+        {
+            long pos = index << 3;
+            return chunks[(int) (pos >>> CHUNK_SHIFT)].getLong((int) (pos & CHUNK_MASK));
+        }
+
+        void putLong(long index, long value)
+        {
+            long pos = index << 3;
+            chunks[(int) (pos >>> CHUNK_SHIFT)].putLong((int) (pos & CHUNK_MASK), value);
+        }
+
+        /**
+         * Close and delete the file. The mapping is only released when the
+         * buffers are garbage collected, so on some platforms the file is
+         * deleted on exit instead.
+         */
+        synchronized void close()
+        {
+            chunks = null;
+            if (raf != null)
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (IOException ignore)
+                {
+                    // $JL-EXC$
+                }
+                raf = null;
+                if (!file.delete())
+                    file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Collects an int for each object in a memory mapped file instead of the
+     * Java heap.
+     * @since 1.9
+     */
+    public static class MappedIntIndexCollector implements IIntIndexCollector
+    {
+        private final int size;
+        private MappedArray array;
+
+        /**
+         * @param size
+         *            the number of objects
+         * @param file
+         *            the temporary file, deleted when the collector is
+         *            deleted
+         */
+        public MappedIntIndexCollector(int size, File file) throws IOException
+        {
+            this.size = size;
+            this.array = new MappedArray(file, (long) size << 2);
+        }
+
+        public void set(int index, int value)
+        {
+            array.putInt(index, value);
+        }
+
+        public int get(int index)
+        {
+            return array.getInt(index);
+        }
+
+        public int[] getNext(int index, int length)
+        {
+            int[] answer = new int[length];
+            for (int ii = 0; ii < length; ii++)
+                answer[ii] = array.getInt(index + ii);
+            return answer;
+        }
+
+        public int[] getAll(int[] index)
+        {
+            int[] answer = new int[index.length];
+            for (int ii = 0; ii < answer.length; ii++)
+                answer[ii] = array.getInt(index[ii]);
+            return answer;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public IIndexReader.IOne2OneIndex writeTo(File indexFile) throws IOException
+        {
+            return new IntIndexStreamer().writeTo(indexFile, new IteratorInt()
+            {
+                int next;
+
+                public boolean hasNext()
+                {
+                    return next < size;
+                }
+
+                public int next()
+                {
+                    return array.getInt(next++);
+                }
+            });
+        }
+
+        public void unload()
+        {}
+
+        public void close()
+        {}
+
+        public void delete()
+        {
+            array.close();
+        }
+    }
+
+    /**
+     * Collects the object addresses in the Java heap up to a limit. After
+     * that the addresses are written to a temporary file in sorted runs,
+     * which {@link #sort()} merges into a memory mapped file. Lookups then
+     * read the mapped file, so only the bucket table stays in the heap.
+     * @since 1.9
+     */
+    public static class MappedIdentifier extends Identifier
+    {
+        private static final int MIN_RUN = 1 << 16;
+
+        private final File file;
+        private final int maxInHeap;
+        private int generation;
+
+        /** the addresses not yet written to a run or merged */
+        private long[] buffer;
+        private int buffered;
+
+        /** the sorted runs written before the first merge */
+        private File runFile;
+        private DataOutputStream runs;
+        private ArrayInt runLengths = new ArrayInt();
+        private long spilled;
+
+        /** the sorted addresses from the last merge */
+        private MappedArray sorted;
+        private int mapped;
+
+        /**
+         * @param file
+         *            the temporary file, deleted when the identifier is
+         *            deleted
+         * @param memory
+         *            the bytes of Java heap to use for addresses before they
+         *            are written to the file
+         */
+        public MappedIdentifier(File file, long memory)
+        {
+            this.file = file;
+            this.maxInHeap = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_RUN, memory / 8));
+        }
+
+        /**
+         * @return true if the sorted addresses are in the mapped file instead
+         *         of the Java heap
+         */
+        public boolean isMapped()
+        {
+            return sorted != null;
+        }
+
+        @Override
+        public void add(long id)
+        {
+            buckets = null;
+            if (buffer == null)
+                buffer = new long[Math.min(10000, maxInHeap)];
+
+            if (buffered == buffer.length)
+            {
+                if (buffered >= maxInHeap && sorted == null)
+                {
+                    writeRun();
+                }
+                else
+                {
+                    int minCapacity = buffered + 1;
+                    int newCapacity = newCapacity(buffer.length, minCapacity);
+                    if (sorted == null)
+                        newCapacity = Math.min(newCapacity, maxInHeap);
+                    if (newCapacity < minCapacity)
+                    {
+                        // Avoid strange exceptions later
+                        throw new OutOfMemoryError(MessageUtil.format(Messages.IndexWriter_Error_ArrayLength, minCapacity, newCapacity));
+                    }
+                    buffer = copyOf(buffer, newCapacity);
+                }
+            }
+
+            buffer[buffered++] = id;
+            size++;
+        }
+
+        private void writeRun()
+        {
+            try
+            {
+                if (runs == null)
+                {
+                    runFile = new File(file.getPath() + ".runs"); //$NON-NLS-1$
+                    runs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile)));
+                }
+                Arrays.sort(buffer, 0, buffered);
+                for (int ii = 0; ii < buffered; ii++)
+                    runs.writeLong(buffer[ii]);
+                runLengths.add(buffered);
+                spilled += buffered;
+                buffered = 0;
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void sort()
+        {
+            buckets = null;
+            if (buffer != null)
+                Arrays.sort(buffer, 0, buffered);
+            if (spilled > 0 || sorted != null)
+            {
+                try
+                {
+                    merge();
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+            buildBuckets();
+        }
+
+        /**
+         * Merges the mapped addresses, the runs and the buffer into a new
+         * mapped file.
+         */
+        private void merge() throws IOException
+        {
+            MappedArray runArray = null;
+            MappedArray out = null;
+            try
+            {
+                PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(runLengths.size() + 2);
+                if (sorted != null)
+                    add(queue, new Cursor(sorted, null, 0, mapped));
+                if (runs != null)
+                {
+                    runs.close();
+                    runs = null;
+                    runArray = new MappedArray(runFile, spilled << 3);
+                    long start = 0;
+                    for (int ii = 0; ii < runLengths.size(); ii++)
+                    {
+                        add(queue, new Cursor(runArray, null, start, start + runLengths.get(ii)));
+                        start += runLengths.get(ii);
+                    }
+                }
+                add(queue, new Cursor(null, buffer, 0, buffered));
+
+                File outFile = generation == 0 ? file : new File(file.getPath() + "." + generation); //$NON-NLS-1$
+                out = new MappedArray(outFile, (long) size << 3);
+                generation++;
+                for (long index = 0; !queue.isEmpty(); index++)
+                {
+                    Cursor cursor = queue.poll();
+                    out.putLong(index, cursor.key);
+                    add(queue, cursor);
+                }
+
+                if (sorted != null)
+                    sorted.close();
+                sorted = out;
+                out = null;
+                mapped = size;
+                buffer = null;
+                buffered = 0;
+                runLengths.clear();
+                spilled = 0;
+            }
+            finally
+            {
+                if (runArray != null)
+                    runArray.close();
+                if (out != null)
+                    out.close();
+            }
+        }
+
+        private static void add(PriorityQueue<Cursor> queue, Cursor cursor)
+        {
+            if (cursor.next())
+                queue.add(cursor);
+        }
+
+        @Override
+        public long get(int index)
+        {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size); //$NON-NLS-1$//$NON-NLS-2$
+
+            if (index < mapped)
+                return sorted.getLong(index);
+            if (spilled > 0)
+                throw new IllegalStateException();
+            return buffer[index - mapped];
+        }
+
+        @Override
+        public IteratorLong iterator()
+        {
+            return new IteratorLong()
+            {
+                int index = 0;
+
+                public boolean hasNext()
+                {
+                    return index < size;
+                }
+
+                public long next()
+                {
+                    return get(index++);
+                }
+            };
+        }
+
+        @Override
+        public long[] getNext(int index, int length)
+        {
+            long answer[] = new long[length];
+            for (int ii = 0; ii < length; ii++)
+                answer[ii] = get(index + ii);
+            return answer;
+        }
+
+        @Override
+        public void delete()
+        {
+            buckets = null;
+            buffer = null;
+            if (sorted != null)
+            {
+                sorted.close();
+                sorted = null;
+            }
+            if (runs != null)
+            {
+                try
+                {
+                    runs.close();
+                }
+                catch (IOException ignore)
+                {
+                    // $JL-EXC$
+                }
+                runs = null;
+            }
+            if (runFile != null)
+                runFile.delete();
+        }
+
+        /**
+         * Reads the addresses of a sorted run from a mapped file or the
+         * buffer.
+         */
+        private static final class Cursor implements Comparable<Cursor>
+        {
+            private final MappedArray array;
+            private final long[] heap;
+            private long position;
+            private final long end;
+            long key;
+
+            Cursor(MappedArray array, long[] heap, long start, long end)
+            {
+                this.array = array;
+                this.heap = heap;
+                this.position = start;
+                this.end = end;
+            }
+
+            boolean next()
+            {
+                if (position >= end)
+                    return false;
+                key = array != null ? array.getLong(position) : heap[(int) position];
+                position++;
+                return true;
+            }
+
+            public int compareTo(Cursor o)
+            {
+                return key < o.key ? -1 : key == o.key ? 0 : 1;
+            }
+        }
+    }
+
+    /**
+     * Writes every n-th value of a sorted long index, such as the object
+     * addresses, for {@link IndexReader.LongIndexSampleReader}.
+     * @since 1.9
+     */
+    public static class LongIndexSampleWriter
+    {
+        /**
+         * The default distance between samples. It divides
+         * {@link IndexWriter#PAGE_SIZE_LONG}, so the values between two
+         * samples are in one page.
+         */
+        public static final int STEP = 1000;
+
+        public IndexReader.LongIndexSampleReader writeTo(File indexFile, long[] values, int step) throws IOException
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            try
+            {
+                out.writeInt(step);
+                out.writeInt(values.length);
+                for (int ii = 0; ii < values.length; ii += step)
+                    out.writeLong(values[ii]);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            return new IndexReader.LongIndexSampleReader(indexFile);
+        }
+    }
+
     public static class IntIndexStreamer extends IntIndex<SoftReference<ArrayIntCompressed>>
     {
         DataOutputStream out;
@@ -744,6 +1400,40 @@ public abstract class IndexWriter
          * @since 1.2
          */
         public void log(IIndexReader.IOne2LongIndex identifier, int index, ArrayLong references) throws IOException
+        {
+            int[] objectIds = new int[references.size()];
+            int length = resolve(identifier, references, objectIds);
+
+            this.set(index, objectIds, 0, length);
+        }
+
+        /**
+         * Converts the addresses of references to object ids in the way
+         * {@link #log(IIndexReader.IOne2LongIndex, int, ArrayLong)} does, so
+         * that the result can be logged later with {@link #log(int, int[])}.
+         * The writer is not used, so several threads can resolve references
+         * while another thread logs them.
+         * 
+         * @param identifier
+         *            the sorted object addresses
+         * @param references
+         *            the addresses, with the pseudo reference first; sorted by
+         *            this method
+         * @return the object ids, without duplicates, pseudo reference first
+         * @since 1.9
+         */
+        public static int[] resolve(IIndexReader.IOne2LongIndex identifier, ArrayLong references)
+        {
+            int[] objectIds = new int[references.size()];
+            int length = resolve(identifier, references, objectIds);
+            if (length == objectIds.length)
+                return objectIds;
+            int[] answer = new int[length];
+            System.arraycopy(objectIds, 0, answer, 0, length);
+            return answer;
+        }
+
+        private static int resolve(IIndexReader.IOne2LongIndex identifier, ArrayLong references, int[] objectIds)
         {
             // remove duplicates and convert to identifiers
             // keep pseudo reference as first one
@@ -752,7 +1442,6 @@ public abstract class IndexWriter
 
             references.sort();
 
-            int[] objectIds = new int[references.size()];
             int length = 1;
 
             long current = 0, last = references.firstElement() - 1;
@@ -774,7 +1463,7 @@ public abstract class IndexWriter
                 last = current;
             }
 
-            this.set(index, objectIds, 0, length);
+            return length;
         }
 
         /**
@@ -911,8 +1600,24 @@ public abstract class IndexWriter
 
     }
 
+    /**
+     * Builds the inbound index from the outbound references of each object.
+     * <p>
+     * The references are logged to segment files by object. When flushed,
+     * the segments are sorted and the duplicates removed on a pool of threads
+     * while the calling thread writes the finished segments to the index in
+     * order. The sorting is limited to a memory budget: segments are only
+     * started when there is room for them and a segment with more references
+     * than a share of the budget is sorted in runs, which are merged from
+     * disk as the segment is written.
+     */
     public static class InboundWriter
     {
+        /** Heap used to sort one reference, as a single long key */
+        private static final int BYTES_PER_REFERENCE = 8;
+        /** The smallest sorted run, however small the memory budget */
+        private static final int MIN_RUN = 4096;
+
         int size;
         File indexFile;
         int[] header;
@@ -924,13 +1629,40 @@ public abstract class IndexWriter
         BitOutputStream[] segments;
         long[] segmentSizes;
 
+        private final int threads;
+        private final long memory;
+
         /**
+         * Sorts with a thread for each processor, using up to an eighth of
+         * the maximum heap.
+         * 
          * @throws IOException
          */
         public InboundWriter(int size, File indexFile) throws IOException
+        {
+            this(size, indexFile, Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 8);
+        }
+
+        /**
+         * @param size
+         *            the number of objects
+         * @param indexFile
+         *            the index to write, also the base name of the temporary
+         *            segment files
+         * @param threads
+         *            the number of threads sorting segments
+         * @param memory
+         *            the number of bytes of heap for the segments being
+         *            sorted or waiting to be written
+         * @throws IOException
+         * @since 1.9
+         */
+        public InboundWriter(int size, File indexFile, int threads, long memory) throws IOException
         {
             this.size = size;
             this.indexFile = indexFile;
+            this.threads = Math.max(1, threads);
+            this.memory = memory;
 
             int requiredSegments = (size / 500000) + 1;
 
@@ -986,22 +1718,53 @@ public abstract class IndexWriter
             DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
                             new FileOutputStream(this.indexFile), 1024 * 256));
 
-            BitInputStream segmentIn = null;
+            ExecutorService executor = null;
+            List<File> runFiles = Collections.synchronizedList(new ArrayList<File>());
+            LinkedList<SortTask> pending = new LinkedList<SortTask>();
 
             try
             {
                 IntIndexStreamer body = new IntIndexStreamer();
                 body.openStream(index, 0);
 
-                for (int segment = 0; segment < segments.length; segment++)
+                if (threads > 1)
                 {
-                    if (monitor.isCanceled())
-                        throw new IProgressListener.OperationCanceledException();
+                    executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+                    {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, "InboundWriter " + count.incrementAndGet()); //$NON-NLS-1$
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
 
-                    File segmentFile = new File(this.indexFile.getAbsolutePath() + segment + ".log");//$NON-NLS-1$
-                    int startIndex = segment * pageSize;
-                    processGiantSegmentFile(monitor, keyWriter, body, segmentFile, segmentSizes[segment], segment, startIndex);
+                // the budget and the largest run, as numbers of references
+                long budget = Math.max(memory / BYTES_PER_REFERENCE, MIN_RUN);
+                int maxRun = (int) Math.min(Math.max(budget / threads, MIN_RUN), Integer.MAX_VALUE - 8);
+
+                ReferenceWriter writer = new ReferenceWriter(body, keyWriter);
+                long inProgress = 0;
+                for (int segment = 0; segment < segments.length; segment++)
+                {
+                    if (segmentSizes[segment] == 0)
+                        continue;
+
+                    SortTask task = new SortTask(segment, maxRun, runFiles, monitor);
+                    // write earlier segments until there is room for this one
+                    while (!pending.isEmpty() && inProgress + task.references > budget)
+                        inProgress -= write(pending.removeFirst(), writer, monitor);
+
+                    if (executor != null)
+                        executor.execute(task);
+                    pending.add(task);
+                    inProgress += task.references;
                 }
+                while (!pending.isEmpty())
+                    write(pending.removeFirst(), writer, monitor);
 
                 // write header
                 long divider = body.closeStream();
@@ -1052,307 +1815,397 @@ public abstract class IndexWriter
                 catch (IOException ignore)
                 {}
 
-                try
+                if (executor != null)
+                {
+                    // stop the sorting of the remaining segments after a failure
+                    for (SortTask task : pending)
+                        task.cancel(true);
+                    executor.shutdownNow();
+                    try
+                    {
+                        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    }
+                    catch (InterruptedException ignore)
+                    {}
+                }
+
+                // normal operation will have deleted these files
+                synchronized (runFiles)
                 {
-                    if (segmentIn != null)
-                        segmentIn.close();
+                    for (File f : runFiles)
+                        f.delete();
                 }
-                catch (IOException ignore)
-                {}
 
                 if (monitor.isCanceled())
                     cancel();
             }
         }
 
-        private void processGiantSegmentFile(IProgressListener monitor, KeyWriter keyWriter,
-                        IntIndexStreamer body, File segmentFile, long segmentSize, int segment, int startIndex) throws IOException
-                        {
-            final int SUBSIZE = 500000 * 16;
-            if (!segmentFile.exists())
-                return;
-            if (segmentSize < SUBSIZE)
+        /**
+         * Write the references of a sorted segment to the index body.
+         * 
+         * @return the number of references the segment was allowed in memory
+         */
+        private long write(SortTask task, ReferenceWriter writer, IProgressListener monitor) throws IOException
+        {
+            // sort on this thread if no worker has started the task yet
+            task.run();
+            SortedSegment sorted;
+            try
             {
-                processSegmentFile(monitor, keyWriter, body, segmentFile, (int)segmentSize, segment);
-                return;
+                sorted = task.get();
             }
-
-            // read payload and get counts of refs per object
-            BitInputStream segmentIn = new BitInputStream(new FileInputStream(segmentFile));
-            int counts[];
-            try
+            catch (InterruptedException e)
             {
-                counts = new int[pageSize];
-                for (long ii = 0; ii < segmentSize; ii++)
-                {
-
-                    segmentIn.readBit();
-
-                    int objIndex = segmentIn.readInt(bitLength);
-                    segmentIn.readInt(bitLength);
-
-                    counts[objIndex - startIndex]++;
-                }
+                throw new IProgressListener.OperationCanceledException();
             }
-            finally
+            catch (ExecutionException e)
             {
-                segmentIn.close();
+                Throwable t = e.getCause();
+                if (t instanceof IOException)
+                    throw (IOException) t;
+                if (t instanceof RuntimeException)
+                    throw (RuntimeException) t;
+                if (t instanceof Error)
+                    throw (Error) t;
+                IOException ioe = new IOException(t.getMessage());
+                ioe.initCause(t);
+                throw ioe;
             }
 
-            if (monitor.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
-
-            // Work out where to split the segment
-            int subsegment[] = new int[pageSize];
-            int subsegSize = SUBSIZE;
-            int subsegs = -1;
-            for (int jj = 0; jj < counts.length; ++jj)
+            if (sorted.runs == null)
             {
-                if (counts[jj] > 0 && (long)subsegSize + counts[jj] > SUBSIZE)
+                for (int ii = 0; ii < sorted.length; ii++)
                 {
-                    subsegSize = 0;
-                    subsegs++;
+                    if (ii % 100000 == 0 && monitor.isCanceled())
+                        throw new IProgressListener.OperationCanceledException();
+                    writer.write(sorted.keys[ii]);
                 }
-                subsegSize += counts[jj];
-                subsegment[jj] = subsegs;
             }
-            ++subsegs;
-
-            if (subsegs <= 1)
+            else
             {
-                // Only one subsegment, so use the original segment
-                processSegmentFile(monitor, keyWriter, body, segmentFile, (int)segmentSize, segment);
-                return;
+                merge(sorted.runs, sorted.runLengths, writer, monitor);
             }
+            writer.finish();
+            return task.references;
+        }
 
-            // Create the subsegments
-            BitOutputStream[] subsegments = new BitOutputStream[subsegs];
-            int[] subsegmentSizes = new int[subsegs];
+        /**
+         * Merge the sorted runs of a large segment, removing the duplicates
+         * across runs.
+         */
+        private void merge(File[] runs, long[] runLengths, ReferenceWriter writer, IProgressListener monitor)
+                        throws IOException
+        {
+            PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.length);
             try
             {
-                try
+                for (int ii = 0; ii < runs.length; ii++)
                 {
-                    for (int ss = 0; ss < subsegs; ++ss)
-                    {
-                        File subsegmentFile = new File(this.indexFile.getAbsolutePath() + segment +"." + ss + ".log");//$NON-NLS-1$ //$NON-NLS-2$
-                        subsegments[ss] = new BitOutputStream(new FileOutputStream(subsegmentFile));
-                    }
+                    RunReader reader = new RunReader(runs[ii], runLengths[ii]);
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
 
-                    // Partition payload
-                    segmentIn = new BitInputStream(new FileInputStream(segmentFile));
-                    try
-                    {
-                        for (long ii = 0; ii < segmentSize; ii++)
-                        {
-                            if (ii % 1000 == 0 && monitor.isCanceled())
-                                throw new IProgressListener.OperationCanceledException();
+                Deduplicator duplicates = new Deduplicator();
+                long count = 0;
+                while (!queue.isEmpty())
+                {
+                    if (++count % 100000 == 0 && monitor.isCanceled())
+                        throw new IProgressListener.OperationCanceledException();
 
-                            boolean isPseudo = segmentIn.readBit() == 1;
+                    RunReader reader = queue.poll();
+                    if (duplicates.keep(reader.key))
+                        writer.write(reader.key);
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
+            }
+            finally
+            {
+                for (RunReader reader : queue)
+                    reader.close();
+                for (File run : runs)
+                    run.delete();
+            }
+        }
 
-                            int objectIndex = segmentIn.readInt(bitLength);
-                            int refIndex = segmentIn.readInt(bitLength);
+        /**
+         * A reference as a key which sorts by object, then the pseudo
+         * references in descending order, then the other references in
+         * ascending order.
+         */
+        private static long key(int objectIndex, int refIndex, boolean isPseudo)
+        {
+            int ref = isPseudo ? -1 - refIndex : refIndex;
+            return ((long) objectIndex << 32) | ((ref ^ Integer.MIN_VALUE) & 0xffffffffL);
+        }
 
-                            int subseg = subsegment[objectIndex - startIndex];
+        private static int objectIndex(long key)
+        {
+            return (int) (key >>> 32);
+        }
 
-                            subsegments[subseg].writeBit(isPseudo ? 1 : 0);
-                            subsegments[subseg].writeInt(objectIndex, bitLength);
-                            subsegments[subseg].writeInt(refIndex, bitLength);
+        /**
+         * @return the reference, negative for a pseudo reference
+         */
+        private static int encodedRef(long key)
+        {
+            return (int) key ^ Integer.MIN_VALUE;
+        }
 
-                            subsegmentSizes[subseg]++;
+        private long readKey(BitInputStream in) throws IOException
+        {
+            boolean isPseudo = in.readBit() == 1;
+            int objectIndex = in.readInt(bitLength);
+            int refIndex = in.readInt(bitLength);
+            return key(objectIndex, refIndex, isPseudo);
+        }
 
-                        }
-                    }
-                    finally
-                    {
-                        segmentIn.close();
-                    }
-                }
-                finally 
-                {
-                    // Close the subfiles
-                    for (int ss = 0; ss < subsegs; ++ss)
-                    {
-                        if (subsegments[ss] != null)
-                            subsegments[ss].close();
-                    }
-                }
+        private void writeKey(BitOutputStream out, long key) throws IOException
+        {
+            int ref = encodedRef(key);
+            out.writeBit(ref < 0 ? 1 : 0);
+            out.writeInt(objectIndex(key), bitLength);
+            out.writeInt(ref < 0 ? -1 - ref : ref, bitLength);
+        }
 
-                // delete segment log
-                segmentFile.delete();
-                segmentFile = null;
+        /**
+         * A segment sorted in memory, or the files of its sorted runs.
+         */
+        private static final class SortedSegment
+        {
+            long[] keys;
+            int length;
+            File[] runs;
+            long[] runLengths;
+        }
 
-                // Process the subsegments
-                for (int ss = 0; ss < subsegs; ++ss)
-                {
-                    File subsegmentFile = new File(this.indexFile.getAbsolutePath() + segment +"." + ss + ".log");//$NON-NLS-1$ //$NON-NLS-2$
-                    processSegmentFile(monitor, keyWriter, body, subsegmentFile, subsegmentSizes[ss], segment);
-                }
-            }
-            finally
+        /**
+         * Reads a segment file and sorts it, in one go if it fits in a run,
+         * otherwise as sorted run files.
+         */
+        private final class SortTask extends FutureTask<SortedSegment>
+        {
+            final long references;
+
+            SortTask(final int segment, final int maxRun, final List<File> runFiles, final IProgressListener monitor)
             {
-                // Tidy up in case of cancel
-                // Normal operation will have deleted these files
-                for (int ss = 0; ss < subsegs; ++ss)
+                super(new Callable<SortedSegment>()
                 {
-                    File subsegmentFile = new File(this.indexFile.getAbsolutePath() + segment +"." + ss + ".log");//$NON-NLS-1$ //$NON-NLS-2$
-                    if (subsegmentFile.exists())
-                        subsegmentFile.delete();
-                }
+                    public SortedSegment call() throws IOException
+                    {
+                        return sort(segment, maxRun, runFiles, monitor);
+                    }
+                });
+                this.references = Math.min(segmentSizes[segment], maxRun);
             }
         }
 
-        private void processSegmentFile(IProgressListener monitor, KeyWriter keyWriter, IntIndexStreamer body, File segmentFile, int segmentSize, int segment) throws IOException
+        private SortedSegment sort(int segment, int maxRun, List<File> runFiles, IProgressListener monitor)
+                        throws IOException
         {
-            if (!segmentFile.exists())
-                return;
+            File segmentFile = new File(this.indexFile.getAbsolutePath() + segment + ".log");//$NON-NLS-1$
+            long segmentSize = segmentSizes[segment];
+            SortedSegment answer = new SortedSegment();
 
-            // read & sort payload
             BitInputStream segmentIn = new BitInputStream(new FileInputStream(segmentFile));
-
-            int objIndex[];
-            int refIndex[];
             try
             {
-                objIndex= new int[segmentSize];
-                refIndex= new int[segmentSize];
-
-                for (int ii = 0; ii < segmentSize; ii++)
+                long[] keys = new long[(int) Math.min(segmentSize, maxRun)];
+                List<File> runs = segmentSize > maxRun ? new ArrayList<File>() : null;
+                ArrayLong runLengths = new ArrayLong();
+                long done = 0;
+                while (done < segmentSize)
                 {
+                    int length = (int) Math.min(segmentSize - done, keys.length);
+                    for (int ii = 0; ii < length; ii++)
+                    {
+                        if (ii % 100000 == 0 && (monitor.isCanceled() || Thread.currentThread().isInterrupted()))
+                            throw new IProgressListener.OperationCanceledException();
+                        keys[ii] = readKey(segmentIn);
+                    }
+                    done += length;
 
-                    boolean isPseudo = segmentIn.readBit() == 1;
+                    Arrays.sort(keys, 0, length);
 
-                    objIndex[ii] = segmentIn.readInt(bitLength);
-                    refIndex[ii] = segmentIn.readInt(bitLength);
+                    // remove the duplicates in place
+                    Deduplicator duplicates = new Deduplicator();
+                    int kept = 0;
+                    for (int ii = 0; ii < length; ii++)
+                    {
+                        if (duplicates.keep(keys[ii]))
+                            keys[kept++] = keys[ii];
+                    }
 
-                    if (isPseudo)
-                        refIndex[ii] = -1 - refIndex[ii]; // 0 is a valid!
+                    if (runs == null)
+                    {
+                        answer.keys = keys;
+                        answer.length = kept;
+                    }
+                    else
+                    {
+                        File run = new File(this.indexFile.getAbsolutePath() + segment + "." + runs.size() + ".log");//$NON-NLS-1$ //$NON-NLS-2$
+                        runFiles.add(run);
+                        runs.add(run);
+                        runLengths.add(kept);
+                        BitOutputStream out = new BitOutputStream(new FileOutputStream(run));
+                        try
+                        {
+                            for (int ii = 0; ii < kept; ii++)
+                                writeKey(out, keys[ii]);
+                        }
+                        finally
+                        {
+                            out.close();
+                        }
+                    }
+                }
+                if (runs != null)
+                {
+                    answer.runs = runs.toArray(new File[runs.size()]);
+                    answer.runLengths = runLengths.toArray();
                 }
             }
             finally
             {
                 segmentIn.close();
-                segmentIn = null;
             }
 
-            if (monitor.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
-
             // delete segment log
             segmentFile.delete();
-            segmentFile = null;
 
-            processSegment(monitor, keyWriter, body, objIndex, refIndex);
+            return answer;
         }
 
-        private void processSegment(IProgressListener monitor, KeyWriter keyWriter,
-                        IntIndexStreamer body, int[] objIndex, int[] refIndex) throws IOException
+        /**
+         * Reads the keys of a sorted run.
+         */
+        private final class RunReader implements Comparable<RunReader>
         {
-            // sort (only by objIndex though)
-            ArrayUtils.sort(objIndex, refIndex);
+            private final BitInputStream in;
+            private long remaining;
+            long key;
 
-            // write index body
-            int start = 0;
-            int previous = -1;
-
-            for (int ii = 0; ii <= objIndex.length; ii++)
+            RunReader(File run, long length) throws IOException
             {
-                if (ii == 0)
-                {
-                    start = ii;
-                    previous = objIndex[ii];
-                }
-                else if (ii == objIndex.length || previous != objIndex[ii])
-                {
-                    if (monitor.isCanceled())
-                        throw new IProgressListener.OperationCanceledException();
+                remaining = length;
+                in = new BitInputStream(new FileInputStream(run));
+            }
 
-                    setHeader(previous, body.size + 1);
+            boolean next() throws IOException
+            {
+                if (remaining == 0)
+                    return false;
+                remaining--;
+                key = readKey(in);
+                return true;
+            }
 
-                    processObject(keyWriter, body, previous, refIndex, start, ii);
+            void close() throws IOException
+            {
+                in.close();
+            }
 
-                    if (ii < objIndex.length)
-                    {
-                        previous = objIndex[ii];
-                        start = ii;
-                    }
-                }
+            public int compareTo(RunReader o)
+            {
+                return key < o.key ? -1 : key == o.key ? 0 : 1;
             }
         }
 
-        private void processObject(KeyWriter keyWriter, IntIndexStreamer body, int objectId,
-                        int[] refIndex, int fromIndex, int toIndex) throws IOException
+        /**
+         * Decides which of the sorted references of an object go in the
+         * index: each pseudo reference once, then each other reference once
+         * unless it is also a pseudo reference.
+         */
+        private static final class Deduplicator
         {
-            Arrays.sort(refIndex, fromIndex, toIndex);
+            private int objectIndex = -1;
+            private SetInt pseudo = new SetInt();
+            private boolean hasPrevious;
+            private int previous;
 
-            int endPseudo = fromIndex;
-
-            if ((toIndex - fromIndex) > 100000)
+            boolean keep(long key)
             {
-                BitField duplicates = new BitField(size);
+                int obj = objectIndex(key);
+                if (obj != objectIndex)
+                {
+                    objectIndex = obj;
+                    pseudo.clear();
+                    hasPrevious = false;
+                }
 
-                int jj = fromIndex;
+                int ref = encodedRef(key);
+                if (ref < 0)
+                    return pseudo.add(-1 - ref);
 
-                for (; jj < toIndex; jj++) // pseudo references
-                {
-                    if (refIndex[jj] >= 0)
-                        break;
+                boolean keep = (!hasPrevious || ref != previous) && !pseudo.contains(ref);
+                hasPrevious = true;
+                previous = ref;
+                return keep;
+            }
+        }
 
-                    endPseudo++;
-                    refIndex[jj] = -refIndex[jj] - 1;
+        /**
+         * Appends the references of each object to the index body, setting
+         * the header to the start of the references and storing the number
+         * of pseudo references.
+         */
+        private final class ReferenceWriter
+        {
+            private final IntIndexStreamer body;
+            private final KeyWriter keyWriter;
+            private int objectIndex = -1;
+            private int pseudo;
 
-                    if (!duplicates.get(refIndex[jj]))
-                    {
-                        body.add(refIndex[jj]);
-                        duplicates.set(refIndex[jj]);
-                    }
-                }
+            ReferenceWriter(IntIndexStreamer body, KeyWriter keyWriter)
+            {
+                this.body = body;
+                this.keyWriter = keyWriter;
+            }
 
-                for (; jj < toIndex; jj++) // other references
+            void write(long key) throws IOException
+            {
+                int obj = objectIndex(key);
+                if (obj != objectIndex)
                 {
-                    if ((jj == fromIndex || refIndex[jj - 1] != refIndex[jj]) && !duplicates.get(refIndex[jj]))
-                    {
-                        body.add(refIndex[jj]);
-                    }
+                    finish();
+                    objectIndex = obj;
+                    setHeader(obj, body.size + 1);
                 }
-            }
-            else
-            {
-                SetInt duplicates = new SetInt(toIndex - fromIndex);
 
-                int jj = fromIndex;
-
-                for (; jj < toIndex; jj++) // pseudo references
+                int ref = encodedRef(key);
+                if (ref < 0)
                 {
-                    if (refIndex[jj] >= 0)
-                        break;
-
-                    endPseudo++;
-                    refIndex[jj] = -refIndex[jj] - 1;
-
-                    if (duplicates.add(refIndex[jj]))
-                        body.add(refIndex[jj]);
+                    pseudo++;
+                    body.add(-1 - ref);
                 }
-
-                for (; jj < toIndex; jj++) // other references
+                else
                 {
-                    if ((jj == fromIndex || refIndex[jj - 1] != refIndex[jj]) && !duplicates.contains(refIndex[jj]))
-                    {
-                        body.add(refIndex[jj]);
-                    }
+                    body.add(ref);
                 }
             }
 
-            if (endPseudo > fromIndex)
-            { 
-                long h = getHeader(objectId);
-                if (h > INBOUND_MAX_KEY1)
-                {
-                    keyWriter.storeKey(objectId, new long[] { h - 1, endPseudo - fromIndex });
-                }
-                else
+            void finish()
+            {
+                if (pseudo > 0)
                 {
-                    keyWriter.storeKey(objectId, new int[] { header[objectId] - 1, endPseudo - fromIndex });
+                    long h = getHeader(objectIndex);
+                    if (h > INBOUND_MAX_KEY1)
+                    {
+                        keyWriter.storeKey(objectIndex, new long[] { h - 1, pseudo });
+                    }
+                    else
+                    {
+                        keyWriter.storeKey(objectIndex, new int[] { header[objectIndex] - 1, pseudo });
+                    }
                 }
+                objectIndex = -1;
+                pseudo = 0;
             }
         }
 
@@ -1627,7 +2480,25 @@ public abstract class IndexWriter
         }
     }
 
-    public static class LongIndexCollector extends LongIndex
+    /**
+     * Collects a long for each object, set in any order, for a 1:1 index.
+     * @since 1.9
+     */
+    public interface ILongIndexCollector
+    {
+        void set(int index, long value);
+
+        long get(int index);
+
+        IIndexReader.IOne2LongIndex writeTo(File indexFile) throws IOException;
+
+        /**
+         * Release the values once they have been written.
+         */
+        void delete();
+    }
+
+    public static class LongIndexCollector extends LongIndex implements ILongIndexCollector
     {
         int mostSignificantBit;
 
@@ -1655,6 +2526,85 @@ public abstract class IndexWriter
             // needed to re-compress
             return new LongIndexStreamer().writeTo(indexFile, this.size, this.pages, this.pageSize);
         }
+
+        /**
+         * Release the values once they have been written.
+         * @since 1.9
+         */
+        public void delete()
+        {
+            pages = null;
+        }
+    }
+
+    /**
+     * Collects a long for each object in a memory mapped file instead of the
+     * Java heap.
+     * @since 1.9
+     */
+    public static class MappedLongIndexCollector implements ILongIndexCollector
+    {
+        private final int size;
+        private MappedArray array;
+
+        /**
+         * @param size
+         *            the number of objects
+         * @param file
+         *            the temporary file, deleted when the collector is
+         *            deleted
+         */
+        public MappedLongIndexCollector(int size, File file) throws IOException
+        {
+            this.size = size;
+            this.array = new MappedArray(file, (long) size << 3);
+        }
+
+        public void set(int index, long value)
+        {
+            array.putLong(index, value);
+        }
+
+        public long get(int index)
+        {
+            return array.getLong(index);
+        }
+
+        public long[] getNext(int index, int length)
+        {
+            long[] answer = new long[length];
+            for (int ii = 0; ii < length; ii++)
+                answer[ii] = array.getLong(index + ii);
+            return answer;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public IIndexReader.IOne2LongIndex writeTo(File indexFile) throws IOException
+        {
+            return new LongIndexStreamer().writeTo(indexFile, new IteratorLong()
+            {
+                int next;
+
+                public boolean hasNext()
+                {
+                    return next < size;
+                }
+
+                public long next()
+                {
+                    return array.getLong(next++);
+                }
+            });
+        }
+
+        public void delete()
+        {
+            array.close();
+        }
     }
 
     public static class LongIndexStreamer extends LongIndex
@@ -1691,7 +2641,7 @@ public abstract class IndexWriter
             for (int ii = 0; ii < noOfPages; ii++)
             {
                 ArrayLongCompressed a = (ArrayLongCompressed) pages.get(ii);
-                int len = (ii + 1) < noOfPages ? pageSize : (size % pageSize);
+                int len = (ii + 1) < noOfPages ? pageSize : size - ii * pageSize;
 
                 if (a == null)
                     addAll(new long[len]);
@@ -1892,6 +2842,16 @@ public abstract class IndexWriter
             super(b.toByteArray());
             base = new ArrayLongCompressed(b.toByteArray());
         }
+        /**
+         * For pages which are decoded elsewhere.
+         * @param header the first two bytes of the compressed page
+         * @param b the page as longs
+         */
+        ArrayIntLongCompressed(byte[] header, ArrayLongCompressed b)
+        {
+            super(header);
+            base = b;
+        }
         long getPos(int offset)
         {
             return base.get(offset);
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2013 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,14 +8,29 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - allow larger resize of arrays 
+ *    IBM Corporation - read predecessors, sort dominated objects and accumulate retained sizes in parallel
+ *    IBM Corporation - iterative parallel calculation of the dominators
  *******************************************************************************/
 package org.eclipse.mat.parser.internal;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayUtils;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.IteratorInt;
@@ -33,7 +48,122 @@ public class DominatorTree
     public static void calculate(SnapshotImpl snapshot, IProgressListener listener) throws SnapshotException,
                     IOException
     {
-        new Calculator(snapshot, listener).compute();
+        calculate(snapshot, listener, 1);
+    }
+
+    /**
+     * Calculate the dominator tree, using several threads.
+     * <p>
+     * With one thread the Lengauer-Tarjan algorithm is used. With more threads
+     * the dominators are found by iterating over the objects in depth first
+     * order in parallel until nothing changes, and the dominated objects of
+     * each object are also sorted in parallel. The dominator tree is unique,
+     * so the indexes are the same as with a single thread.
+     *
+     * @param threads
+     *            the number of threads, 1 to calculate everything on the
+     *            current thread
+     */
+    public static void calculate(SnapshotImpl snapshot, IProgressListener listener, int threads)
+                    throws SnapshotException, IOException
+    {
+        Calculator calculator = new Calculator(snapshot, listener, threads);
+        try
+        {
+            calculator.compute();
+        }
+        finally
+        {
+            calculator.shutdown();
+        }
+    }
+
+    /**
+     * Computes blocks of results on worker threads ahead of the calling
+     * thread, which takes them in order. Only a limited number of blocks are
+     * in progress or waiting at any time.
+     */
+    static abstract class OrderedBlocks<T>
+    {
+        private final ExecutorService executor;
+        private final int blocks;
+        private final int ahead;
+        private final LinkedList<Future<T>> pending = new LinkedList<Future<T>>();
+        private int next;
+
+        /**
+         * @param executor
+         *            the worker threads, or null to compute each block on the
+         *            calling thread when it is taken
+         * @param blocks
+         *            the number of blocks
+         * @param ahead
+         *            the number of blocks to compute ahead of the caller
+         */
+        OrderedBlocks(ExecutorService executor, int blocks, int ahead)
+        {
+            this.executor = executor;
+            this.blocks = blocks;
+            this.ahead = ahead;
+        }
+
+        protected abstract T compute(int block) throws Exception;
+
+        T take() throws SnapshotException, IOException
+        {
+            if (executor == null)
+            {
+                try
+                {
+                    return compute(next++);
+                }
+                catch (Exception e)
+                {
+                    throw rethrow(e);
+                }
+            }
+
+            while (next < blocks && pending.size() < ahead)
+            {
+                final int block = next++;
+                pending.add(executor.submit(new Callable<T>()
+                {
+                    public T call() throws Exception
+                    {
+                        return compute(block);
+                    }
+                }));
+            }
+
+            try
+            {
+                return pending.removeFirst().get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IProgressListener.OperationCanceledException();
+            }
+            catch (ExecutionException e)
+            {
+                throw rethrow(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Rethrows the failure of a task run on another thread.
+     */
+    static RuntimeException rethrow(Throwable t) throws SnapshotException, IOException
+    {
+        if (t instanceof SnapshotException)
+            throw (SnapshotException) t;
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        throw new SnapshotException(t);
     }
 
     static class Calculator
@@ -58,10 +188,42 @@ public class DominatorTree
         private static int ROOT_VALUE = -1;
         private static int[] ROOT_VALUE_ARR = new int[] { ROOT_VALUE };
 
+        // Objects handled by each parallel task
+        private static final int BLOCK_SIZE = 1024;
+        // Size of the temporary arrays used by each task for sorting
+        private static final int TASK_TEMP_ARR_LENGTH = 65536;
+        // Independent dominator subtrees wanted for each thread
+        private static final int SUBTREES_PER_THREAD = 16;
+        // Limit to the levels of the dominator tree expanded to find them
+        private static final int MAX_EXPANSION_DEPTH = 64;
+
+        private ExecutorService executor;
+        private int threads;
+
         public Calculator(SnapshotImpl snapshot, IProgressListener listener) throws SnapshotException
+        {
+            this(snapshot, listener, 1);
+        }
+
+        public Calculator(SnapshotImpl snapshot, IProgressListener listener, int threads) throws SnapshotException
         {
 
             this.snapshot = snapshot;
+            this.threads = threads;
+            if (threads > 1)
+            {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+                {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "DominatorTree " + count.incrementAndGet()); //$NON-NLS-1$
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
             inboundIndex = snapshot.getIndexManager().inbound();
             outboundIndex = snapshot.getIndexManager().outbound();
             this.monitor = new SimpleMonitor(Messages.DominatorTree_CalculatingDominatorTree, listener, new int[] {
@@ -121,6 +283,69 @@ public class DominatorTree
              * Reallocate just before use. 
              */
             dom = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
+
+            if (executor == null)
+                lengauerTarjan(progressListener);
+            else
+                iterate(progressListener);
+            dom[r] = 0;
+
+            progressListener.done();
+
+            parent = anchestor = vertex = label = semi = bucket = null;
+            inboundIndex.unload();
+
+            if (progressListener0.isCanceled())
+                throw new IProgressListener.OperationCanceledException();
+
+            // pre-condition for index writing:
+            // retainedSetIdx is still sorted by object id
+            snapshot.getIndexManager().setReader(
+                            IndexManager.Index.DOMINATOR,
+                            new IndexWriter.IntIndexStreamer().writeTo(IndexManager.Index.DOMINATOR.getFile(snapshot
+                                            .getSnapshotInfo().getPrefix()), new IteratorInt()
+                            {
+                                int nextIndex = 2;
+
+                                public boolean hasNext()
+                                {
+                                    return nextIndex < dom.length;
+                                }
+
+                                public int next()
+                                {
+                                    return dom[nextIndex++];
+                                }
+
+                            }));
+
+            int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
+            for (int i = 0; i < objectIds.length; i++)
+                objectIds[i] = i - 2;
+
+            objectIds[0] = -2;
+            objectIds[1] = ROOT_VALUE;
+            progressListener0.worked(1);
+
+            ArrayUtils.sort(dom, objectIds, 2, dom.length - 2);
+            progressListener0.worked(1);
+
+            FlatDominatorTree tree = new FlatDominatorTree(snapshot, dom, objectIds, ROOT_VALUE);
+
+            if (progressListener0.isCanceled())
+                throw new IProgressListener.OperationCanceledException();
+
+            writeIndexFiles(tree);
+            progressListener0.done();
+
+        }
+
+        /**
+         * The Lengauer-Tarjan algorithm, visiting the vertices in strict
+         * reverse depth first order on the current thread.
+         */
+        private void lengauerTarjan(IProgressListener progressListener)
+        {
             bucket = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
 
             Arrays.fill(bucket, -1);
@@ -178,56 +403,135 @@ public class DominatorTree
                     dom[w] = dom[dom[w]];
                 }
             }
-            dom[r] = 0;
-
-            progressListener.done();
-
-            parent = anchestor = vertex = label = semi = bucket = null;
-            inboundIndex.unload();
+        }
 
-            if (progressListener0.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
+        /**
+         * Calculates the dominators on the worker threads by iterating to a
+         * fixed point, as in Cooper, Harvey and Kennedy's "A Simple, Fast
+         * Dominance Algorithm".
+         * <p>
+         * The tentative dominator of each vertex starts as its parent in the
+         * depth first spanning tree. In each pass the threads take blocks of
+         * vertices in depth first order and replace the tentative dominator
+         * by the nearest common ancestor, in the tentative tree, of it and
+         * all the predecessors. Every dominator of a vertex stays an ancestor
+         * of it in the tentative tree, and a tentative dominator only ever
+         * moves up the tree, so the threads can read each other's updates at
+         * any time. The passes stop after one with no changes, which is then
+         * the dominator tree.
+         * <p>
+         * Vertices held only by the root, or with a single predecessor,
+         * cannot change again so are marked as settled by clearing their
+         * parent and skipped in later passes. The predecessors are read from
+         * the inbound index by all the threads at once, which does not block
+         * when the index file is memory mapped.
+         */
+        private void iterate(IProgressListener progressListener) throws SnapshotException, IOException
+        {
+            for (int i = 2; i <= n; i++)
+                dom[vertex[i]] = parent[vertex[i]];
 
-            // pre-condition for index writing:
-            // retainedSetIdx is still sorted by object id
-            snapshot.getIndexManager().setReader(
-                            IndexManager.Index.DOMINATOR,
-                            new IndexWriter.IntIndexStreamer().writeTo(IndexManager.Index.DOMINATOR.getFile(snapshot
-                                            .getSnapshotInfo().getPrefix()), new IteratorInt()
+            final int blocks = (n - 1 + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            final IProgressListener listener = progressListener;
+            int reported = 0;
+            for (int pass = 0;; pass++)
+            {
+                final AtomicInteger nextBlock = new AtomicInteger();
+                final AtomicInteger changed = new AtomicInteger();
+                final AtomicInteger done = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+                for (int t = 0; t < threads; t++)
+                {
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call()
+                        {
+                            for (int b = nextBlock.getAndIncrement(); b < blocks; b = nextBlock.getAndIncrement())
                             {
-                                int nextIndex = 2;
-
-                                public boolean hasNext()
-                                {
-                                    return nextIndex < dom.length;
-                                }
-
-                                public int next()
-                                {
-                                    return dom[nextIndex++];
-                                }
-
-                            }));
-
-            int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects() + 2];
-            for (int i = 0; i < objectIds.length; i++)
-                objectIds[i] = i - 2;
-
-            objectIds[0] = -2;
-            objectIds[1] = ROOT_VALUE;
-            progressListener0.worked(1);
+                                if (listener.isCanceled() || Thread.currentThread().isInterrupted())
+                                    throw new IProgressListener.OperationCanceledException();
+                                int first = 2 + b * BLOCK_SIZE;
+                                int end = Math.min(first + BLOCK_SIZE, n + 1);
+                                changed.addAndGet(relax(first, end));
+                                done.addAndGet(end - first);
+                            }
+                            return null;
+                        }
+                    }));
+                }
 
-            ArrayUtils.sort(dom, objectIds, 2, dom.length - 2);
-            progressListener0.worked(1);
+                for (Future<?> future : futures)
+                {
+                    while (!waitFor(future))
+                    {
+                        if (progressListener.isCanceled())
+                            throw new IProgressListener.OperationCanceledException();
+                        // the first pass visits every vertex, so report that
+                        if (pass == 0 && done.get() / 1000 > reported)
+                        {
+                            progressListener.worked(done.get() / 1000 - reported);
+                            reported = done.get() / 1000;
+                        }
+                    }
+                }
 
-            FlatDominatorTree tree = new FlatDominatorTree(snapshot, dom, objectIds, ROOT_VALUE);
+                if (changed.get() == 0)
+                    break;
+            }
+        }
 
-            if (progressListener0.isCanceled())
-                throw new IProgressListener.OperationCanceledException();
+        /**
+         * Updates the tentative dominators of the vertices with depth first
+         * numbers from first up to end.
+         * 
+         * @return the number of changed dominators
+         */
+        private int relax(int first, int end)
+        {
+            int changes = 0;
+            for (int i = first; i < end; i++)
+            {
+                int w = vertex[i];
+                if (parent[w] == 0)
+                    continue;
 
-            writeIndexFiles(tree);
-            progressListener0.done();
+                int idom = dom[w];
+                int count = 0;
+                for (int v : getPredecessors(w))
+                {
+                    v += 2;
+                    // ignore unreachable objects
+                    if (v < 0 || semi[v] == 0)
+                        continue;
+                    idom = intersect(v, idom);
+                    count++;
+                }
+                if (idom != dom[w])
+                {
+                    dom[w] = idom;
+                    changes++;
+                }
+                if (idom == r || count <= 1)
+                    parent[w] = 0;
+            }
+            return changes;
+        }
 
+        /**
+         * The nearest common ancestor of two vertices in the tentative
+         * dominator tree. A tentative dominator always has a lower depth
+         * first number than its vertex, so the walks end.
+         */
+        private int intersect(int v1, int v2)
+        {
+            while (v1 != v2)
+            {
+                while (semi[v1] > semi[v2])
+                    v1 = dom[v1];
+                while (semi[v2] > semi[v1])
+                    v2 = dom[v2];
+            }
+            return v1;
         }
 
         private void dfs(int root) throws UnsupportedOperationException
@@ -389,7 +693,54 @@ public class DominatorTree
             anchestor[w] = v;
         }
 
-        private void writeIndexFiles(FlatDominatorTree tree) throws IOException
+        /**
+         * Temporary arrays for the radix sort, for one thread.
+         */
+        static class SortArrays
+        {
+            final long[] tempLongArray;
+            final int[] tempIntArray;
+
+            SortArrays(int length)
+            {
+                tempLongArray = new long[length];
+                tempIntArray = new int[length];
+            }
+        }
+
+        /**
+         * Waits a short time for a task.
+         * 
+         * @return true if the task has completed
+         */
+        private static boolean waitFor(Future<?> future) throws SnapshotException, IOException
+        {
+            try
+            {
+                future.get(100, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            catch (TimeoutException e)
+            {
+                return false;
+            }
+            catch (InterruptedException e)
+            {
+                throw new IProgressListener.OperationCanceledException();
+            }
+            catch (ExecutionException e)
+            {
+                throw rethrow(e.getCause());
+            }
+        }
+
+        void shutdown()
+        {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+
+        private void writeIndexFiles(FlatDominatorTree tree) throws IOException, SnapshotException
         {
 
             IndexWriter.IntArray1NWriter writer = new IndexWriter.IntArray1NWriter(dom.length - 1,
@@ -400,10 +751,48 @@ public class DominatorTree
             IProgressListener progressListener = this.monitor.nextMonitor();
             progressListener.beginTask(Messages.DominatorTree_CreateDominatorsIndexFile, numberOfObjects / 1000);
 
+            // The sorted dominated objects for each block of objects
+            final FlatDominatorTree flatTree = tree;
+            final int total = numberOfObjects + 1;
+            final ThreadLocal<SortArrays> sortArrays = new ThreadLocal<SortArrays>()
+            {
+                protected SortArrays initialValue()
+                {
+                    return new SortArrays(TASK_TEMP_ARR_LENGTH);
+                }
+            };
+            OrderedBlocks<int[][]> dominated = new OrderedBlocks<int[][]>(executor, (total + BLOCK_SIZE - 1)
+                            / BLOCK_SIZE, threads * 4)
+            {
+                protected int[][] compute(int block)
+                {
+                    SortArrays temp = sortArrays.get();
+                    int first = block * BLOCK_SIZE;
+                    int[][] answer = new int[Math.min(BLOCK_SIZE, total - first)][];
+                    for (int ii = 0; ii < answer.length; ii++)
+                    {
+                        answer[ii] = flatTree.getSuccessorsArr(first + ii - 1);
+                        flatTree.sortByTotalSize(answer[ii], temp.tempLongArray, temp.tempIntArray);
+                    }
+                    return answer;
+                }
+            };
+            int[][] block = null;
+
             for (int i = -1; i < numberOfObjects; i++)
             {
-                int[] successors = tree.getSuccessorsArr(i);
-                tree.sortByTotalSize(successors);
+                int[] successors;
+                if (executor != null)
+                {
+                    if ((i + 1) % BLOCK_SIZE == 0)
+                        block = dominated.take();
+                    successors = block[(i + 1) % BLOCK_SIZE];
+                }
+                else
+                {
+                    successors = tree.getSuccessorsArr(i);
+                    tree.sortByTotalSize(successors);
+                }
                 writer.log(i + 1, successors);
 
                 if (i % 1000 == 0)
@@ -474,6 +863,15 @@ public class DominatorTree
             }
 
             public void sortByTotalSize(int[] objectIds)
+            {
+                sortByTotalSize(objectIds, tempLongArray, tempIntArray);
+            }
+
+            /**
+             * Sort using the supplied temporary arrays, so that several
+             * threads can sort at once.
+             */
+            void sortByTotalSize(int[] objectIds, long[] tempLongArray, int[] tempIntArray)
             {
                 int length = objectIds.length;
 
@@ -486,7 +884,7 @@ public class DominatorTree
 
                 // sort both arrays according to the total sizes
                 if (totalSizes.length > 1)
-                    if (totalSizes.length > TEMP_ARR_LENGTH)
+                    if (totalSizes.length > tempLongArray.length)
                     {
                         ArrayUtils.sortDesc(totalSizes, objectIds);
                     }
@@ -539,6 +937,41 @@ public class DominatorTree
                                 .getNumberOfObjects(), IndexWriter.mostSignificantBit(dump.getSnapshotInfo()
                                 .getUsedHeapSize()));
 
+                IProgressListener progressListener = Calculator.this.monitor.nextMonitor();
+                progressListener.beginTask(Messages.DominatorTree_CalculateRetainedSizes, dump.getSnapshotInfo()
+                                .getNumberOfObjects() / 1000);
+
+                if (executor == null)
+                    accumulate(e, progressListener, null);
+                else
+                    accumulateParallel(e, progressListener);
+
+                int numberOfObjects = dump.getSnapshotInfo().getNumberOfObjects();
+                for (int i = 0; i < numberOfObjects; i++)
+                    retained.set(i, ts[i + 2]);
+
+                dump.getIndexManager().setReader(
+                                Index.O2RETAINED,
+                                retained.writeTo(IndexManager.Index.O2RETAINED.getFile(dump.getSnapshotInfo()
+                                                .getPrefix())));
+                retained = null;
+
+                progressListener.done();
+            }
+
+            /**
+             * Adds up the total sizes of the objects dominated by e, whose
+             * own size must already be in ts. Several threads can accumulate
+             * separate subtrees at once.
+             * 
+             * @param done
+             *            null to report progress directly to the listener,
+             *            otherwise counts thousands of objects for the
+             *            calling thread to report
+             */
+            private void accumulate(int e, IProgressListener progressListener, AtomicInteger done)
+                            throws SnapshotException
+            {
                 int capacity = 2047; // capacity for the arrays - allows resize up to 2047<<20
                 int size = 0;
                 int[] stack = new int[capacity];
@@ -550,9 +983,6 @@ public class DominatorTree
                 succStack[size] = currentSucc;
                 size++;
 
-                IProgressListener progressListener = Calculator.this.monitor.nextMonitor();
-                progressListener.beginTask(Messages.DominatorTree_CalculateRetainedSizes, dump.getSnapshotInfo()
-                                .getNumberOfObjects() / 1000);
                 int counter = 0;
 
                 while (size > 0)
@@ -593,25 +1023,103 @@ public class DominatorTree
 
                         if (currentEntry >= 0)
                         {
-                            retained.set(currentEntry, ts[currentEntry + 2]);
                             if (++counter % 1000 == 0)
                             {
-                                if (progressListener.isCanceled())
+                                if (progressListener.isCanceled() || Thread.currentThread().isInterrupted())
                                     throw new IProgressListener.OperationCanceledException();
-                                progressListener.worked(1);
+                                if (done == null)
+                                    progressListener.worked(1);
+                                else
+                                    done.incrementAndGet();
                             }
                         }
 
                     }
                 }
+            }
 
-                dump.getIndexManager().setReader(
-                                Index.O2RETAINED,
-                                retained.writeTo(IndexManager.Index.O2RETAINED.getFile(dump.getSnapshotInfo()
-                                                .getPrefix())));
-                retained = null;
+            /**
+             * Adds up the total sizes in parallel. The top of the tree is
+             * expanded level by level until there are enough independent
+             * subtrees for the threads, then the subtrees are accumulated by
+             * the worker threads, and lastly the expanded top of the tree.
+             */
+            private void accumulateParallel(int e, IProgressListener progressListener) throws SnapshotException,
+                            IOException
+            {
+                // The expanded objects, in breadth first order
+                ArrayInt upper = new ArrayInt();
+                ArrayInt upperDominators = new ArrayInt();
 
-                progressListener.done();
+                ArrayInt subtrees = new ArrayInt(getSuccessorsArr(e));
+                ArrayInt subtreeDominators = new ArrayInt();
+                for (int i = 0; i < subtrees.size(); i++)
+                    subtreeDominators.add(e);
+
+                for (int depth = 0; depth < MAX_EXPANSION_DEPTH && subtrees.size() > 0
+                                && subtrees.size() < threads * SUBTREES_PER_THREAD; depth++)
+                {
+                    ArrayInt next = new ArrayInt();
+                    ArrayInt nextDominators = new ArrayInt();
+                    for (int i = 0; i < subtrees.size(); i++)
+                    {
+                        int objectId = subtrees.get(i);
+                        upper.add(objectId);
+                        upperDominators.add(subtreeDominators.get(i));
+                        ts[objectId + 2] = snapshot.getHeapSize(objectId);
+                        for (int child : getSuccessorsArr(objectId))
+                        {
+                            next.add(child);
+                            nextDominators.add(objectId);
+                        }
+                    }
+                    subtrees = next;
+                    subtreeDominators = nextDominators;
+                }
+
+                final int[] roots = subtrees.toArray();
+                final IProgressListener listener = progressListener;
+                final AtomicInteger nextRoot = new AtomicInteger();
+                final AtomicInteger done = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+                for (int i = 0; i < threads; i++)
+                {
+                    futures.add(executor.submit(new Callable<Object>()
+                    {
+                        public Object call() throws SnapshotException
+                        {
+                            for (int k = nextRoot.getAndIncrement(); k < roots.length; k = nextRoot
+                                            .getAndIncrement())
+                            {
+                                ts[roots[k] + 2] = snapshot.getHeapSize(roots[k]);
+                                accumulate(roots[k], listener, done);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+
+                int reported = 0;
+                for (Future<?> future : futures)
+                {
+                    while (!waitFor(future))
+                    {
+                        if (progressListener.isCanceled())
+                            throw new IProgressListener.OperationCanceledException();
+                        int work = done.get();
+                        if (work > reported)
+                        {
+                            progressListener.worked(work - reported);
+                            reported = work;
+                        }
+                    }
+                }
+
+                // The subtrees are complete, so add them to the expanded objects
+                for (int i = 0; i < roots.length; i++)
+                    ts[subtreeDominators.get(i) + 2] += ts[roots[i] + 2];
+                for (int i = upper.size() - 1; i >= 0; i--)
+                    ts[upperDominators.get(i) + 2] += ts[upper.get(i) + 2];
             }
         }
     }
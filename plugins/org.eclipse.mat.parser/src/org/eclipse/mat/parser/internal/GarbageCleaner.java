@@ -20,6 +20,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.eclipse.mat.collect.ArrayInt;
+import org.eclipse.mat.collect.ConcurrentBitField;
 import org.eclipse.mat.collect.BitField;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.IteratorInt;
@@ -58,7 +59,7 @@ import org.eclipse.mat.util.SilentProgressListener;
             final int oldNoOfObjects = idx.identifiers.size();
 
             // determine reachable objects
-            boolean[] reachable = new boolean[oldNoOfObjects];
+            ConcurrentBitField reachable = new ConcurrentBitField(oldNoOfObjects);
             int newNoOfObjects = 0;
             int[] newRoots = idx.gcRoots.getAllKeys();
 
@@ -78,7 +79,7 @@ import org.eclipse.mat.util.SilentProgressListener;
             {
                 try
                 {
-                    marker.markMultiThreaded(numProcessors);
+                    newNoOfObjects = marker.markMultiThreaded(numProcessors);
                 }
                 catch (InterruptedException e)
                 {
@@ -86,12 +87,6 @@ import org.eclipse.mat.util.SilentProgressListener;
                     ioe.initCause(e);
                     throw ioe;
                 }
-
-                // find the number of new objects. It's not returned by marker
-                for (boolean b : reachable)
-                    if (b)
-                        newNoOfObjects++;
-
             }
             else
             {
@@ -141,7 +136,7 @@ import org.eclipse.mat.util.SilentProgressListener;
             long memFree = 0;
             for (int ii = 0, jj = 0; ii < oldNoOfObjects; ii++)
             {
-                if (reachable[ii])
+                if (reachable.get(ii))
                 {
                     map[ii] = jj;
                     id2a[jj++] = identifiers.get(ii);
@@ -238,6 +233,10 @@ import org.eclipse.mat.util.SilentProgressListener;
             listener.subTask(MessageUtil.format(Messages.GarbageCleaner_Writing, indexFile.getAbsolutePath()));
             idxManager.setReader(Index.IDENTIFIER, new IndexWriter.LongIndexStreamer().writeTo(indexFile, id2a));
 
+            indexFile = Index.IDENTIFIER_SAMPLES.getFile(idx.snapshotInfo.getPrefix());
+            idxManager.setReader(Index.IDENTIFIER_SAMPLES, new IndexWriter.LongIndexSampleWriter().writeTo(indexFile,
+                            id2a, IndexWriter.LongIndexSampleWriter.STEP));
+
             if (listener.isCanceled())
                 throw new IProgressListener.OperationCanceledException();
             listener.worked(1); // 6
@@ -325,7 +324,8 @@ import org.eclipse.mat.util.SilentProgressListener;
             IndexWriter.IntArray1NSortedWriter w_out = new IndexWriter.IntArray1NSortedWriter(newNoOfObjects,
                             IndexManager.Index.OUTBOUND.getFile(idx.snapshotInfo.getPrefix()));
             IndexWriter.InboundWriter w_in = new IndexWriter.InboundWriter(newNoOfObjects, IndexManager.Index.INBOUND
-                            .getFile(idx.snapshotInfo.getPrefix()));
+                            .getFile(idx.snapshotInfo.getPrefix()), Runtime.getRuntime().availableProcessors(),
+                            getInboundMemory(arguments));
 
             for (int ii = 0; ii < oldNoOfObjects; ii++)
             {
@@ -418,6 +418,28 @@ import org.eclipse.mat.util.SilentProgressListener;
         }
     }
 
+    /**
+     * The heap for sorting the inbound references, from the inbound_memory
+     * option in megabytes. The default is an eighth of the memory budget or
+     * of the maximum heap.
+     */
+    private static long getInboundMemory(Map<String, String> arguments)
+    {
+        long budget = SnapshotFactoryImpl.getMemoryBudget(arguments);
+        long dflt = (budget >= 0 ? budget : Runtime.getRuntime().maxMemory()) / 8;
+        String memory = arguments.get("inbound_memory"); //$NON-NLS-1$
+        if (memory == null)
+            return dflt;
+        try
+        {
+            return Long.parseLong(memory.trim()) * 1024 * 1024;
+        }
+        catch (NumberFormatException e)
+        {
+            return dflt;
+        }
+    }
+
     private static HashMapIntObject<XGCRootInfo[]> fix(HashMapIntObject<List<XGCRootInfo>> roots, final int[] map)
     {
         HashMapIntObject<XGCRootInfo[]> answer = new HashMapIntObject<XGCRootInfo[]>(roots.size());
@@ -509,7 +531,7 @@ import org.eclipse.mat.util.SilentProgressListener;
         }
     }
 
-    private static void createHistogramOfUnreachableObjects(PreliminaryIndexImpl idx, boolean[] reachable)
+    private static void createHistogramOfUnreachableObjects(PreliminaryIndexImpl idx, ConcurrentBitField reachable)
     {
         IOne2SizeIndex array2size = idx.array2size;
 
@@ -518,9 +540,9 @@ import org.eclipse.mat.util.SilentProgressListener;
         int totalObjectCount = 0;
         long totalSize = 0;
 
-        for (int ii = 0; ii < reachable.length; ii++)
+        for (int ii = 0; ii < reachable.size(); ii++)
         {
-            if (!reachable[ii])
+            if (!reachable.get(ii))
             {
                 int classId = idx.object2classId.get(ii);
 
@@ -578,11 +600,11 @@ import org.eclipse.mat.util.SilentProgressListener;
     // //////////////////////////////////////////////////////////////
 
     private static int markUnreachableAsGCRoots(final PreliminaryIndexImpl idx, //
-                    boolean[] reachable, //
+                    ConcurrentBitField reachable, //
                     int noReachableObjects, //
                     int extraRootType, IProgressListener listener)
     {
-        final int noOfObjects = reachable.length;
+        final int noOfObjects = reachable.size();
         final IOne2LongIndex identifiers = idx.identifiers;
         final IOne2ManyIndex preOutbound = idx.outbound;
 
@@ -590,7 +612,7 @@ import org.eclipse.mat.util.SilentProgressListener;
         byte inbounds[] = new byte[noOfObjects];
         for (int ii = 0; ii < noOfObjects; ++ii)
         {
-            if (!reachable[ii])
+            if (!reachable.get(ii))
             {
                 // We only need search the unreachable objects as
                 // the reachable ones will have already marked
@@ -612,7 +634,7 @@ import org.eclipse.mat.util.SilentProgressListener;
         for (int ii = 0; ii < noOfObjects; ++ii)
         {
             // Do the objects with no inbounds first
-            if (!reachable[ii] && inbounds[ii] == 0)
+            if (!reachable.get(ii) && inbounds[ii] == 0)
             {
                 // Identify this unreachable object as a root,
                 // No need to mark it as the marker will do that
@@ -632,7 +654,7 @@ import org.eclipse.mat.util.SilentProgressListener;
         {
             try
             {
-                marker2.markMultiThreaded(numProcessors);
+                noReachableObjects += marker2.markMultiThreaded(numProcessors);
             }
             catch (InterruptedException e)
             {
@@ -640,13 +662,6 @@ import org.eclipse.mat.util.SilentProgressListener;
                 oc.initCause(e);
                 throw oc;
             }
-
-            // find the number of new objects. It's not returned by marker
-            int newNoOfObjects = 0;
-            for (boolean b : reachable)
-                if (b)
-                    newNoOfObjects++;
-            noReachableObjects = newNoOfObjects;
         }
         else
         {
@@ -658,7 +673,7 @@ import org.eclipse.mat.util.SilentProgressListener;
         unref.clear();
         for (int ii = 0; ii < noOfObjects; ++ii)
         {
-            if (!reachable[ii])
+            if (!reachable.get(ii))
             {
                 // Add to list
                 unref.add(ii);
@@ -676,7 +691,7 @@ import org.eclipse.mat.util.SilentProgressListener;
             for (IteratorInt it = unref.iterator(); it.hasNext();)
             {
                 int ii = it.next();
-                if (!reachable[ii])
+                if (!reachable.get(ii))
                 {
                     // We only need search the unreachable objects as
                     // the reachable ones will have already marked
@@ -688,7 +703,7 @@ import org.eclipse.mat.util.SilentProgressListener;
                         // and only count unreachable refs
                         // We only need to recount outbound refs as the
                         // inbound ref count will be unchanged.
-                        if (out != ii && !reachable[out])
+                        if (out != ii && !reachable.get(out))
                         {
                             // Avoid overflow
                             if (outbounds[ii] != -1) outbounds[ii]++;
@@ -743,10 +758,10 @@ import org.eclipse.mat.util.SilentProgressListener;
      * @param inbounds count of inbounds (as 0..255)
      * @return candidate root or -1
      */
-    private static int selectRoot(int ii, int pass, int passes, boolean[] reachable, final IOne2ManyIndex preOutbound,
+    private static int selectRoot(int ii, int pass, int passes, ConcurrentBitField reachable, final IOne2ManyIndex preOutbound,
                     byte[] outbounds, byte[] inbounds)
     {
-        if (reachable[ii])
+        if (reachable.get(ii))
             return -1;
 
         // Check for objects with 1 inbound, pointing to another object 
@@ -760,7 +775,7 @@ import org.eclipse.mat.util.SilentProgressListener;
                 {
                     // Exclude objects pointing to themselves
                     // and only count unreachable refs
-                    if (out != ii && !reachable[out])
+                    if (out != ii && !reachable.get(out))
                     {
                         if ((inbounds[out] & 0xff) != 1)
                             continue;
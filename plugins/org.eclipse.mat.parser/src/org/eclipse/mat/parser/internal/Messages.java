@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2009, 2011 SAP AG and IBM Corporation.
+ * Copyright (c) 2009, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,9 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - validation of indices
+ *    IBM Corporation - OQL aggregate functions
+ *    IBM Corporation - closed mapped files
+ *    IBM Corporation - dominator threads option
  *******************************************************************************/
 package org.eclipse.mat.parser.internal;
 
@@ -18,6 +21,7 @@ public class Messages extends NLS
     private static final String BUNDLE_NAME = "org.eclipse.mat.parser.internal.messages"; //$NON-NLS-1$
     public static String AbstractObjectImpl_Error_FieldContainsIllegalReference;
     public static String AbstractObjectImpl_Error_FieldIsNotReference;
+    public static String Aggregate_Error_NotGrouped;
     public static String BitOutputStream_Error_ArrayFull;
     public static String ClassHistogramRecordBuilder_Error_IllegalUseOfHistogramBuilder;
     public static String DominatorTree_CalculateRetainedSizes;
@@ -40,6 +44,7 @@ public class Messages extends NLS
     public static String IndexReader_Error_IndexIsEmbedded;
     public static String IndexWriter_Error_ArrayLength;
     public static String IndexWriter_Error_ObjectArrayLength;
+    public static String MappedFile_Error_Closed;
     public static String MethodCallExpression_Error_MethodNotFound;
     public static String MultiplePathsFromGCRootsComputerImpl_FindingPaths;
     public static String SnapshotFactoryImpl_ClassIDNotFound;
@@ -64,6 +69,7 @@ public class Messages extends NLS
     public static String SnapshotFactoryImpl_IndexAddressHasSameAddressAsPrevious;
     public static String SnapshotFactoryImpl_IndexAddressIsSmallerThanPrevious;
     public static String SnapshotFactoryImpl_IndexAddressNegativeArraySize;
+    public static String SnapshotFactoryImpl_InvalidDominatorThreads;
     public static String SnapshotFactoryImpl_InvalidFirstOutbound;
     public static String SnapshotFactoryImpl_InvalidOutbound;
     public static String SnapshotFactoryImpl_NoOutbounds;
@@ -73,6 +79,7 @@ public class Messages extends NLS
     public static String SnapshotFactoryImpl_ObjectsFoundButClassesHadObjectsAndClassesInTotal;
     public static String SnapshotFactoryImpl_ReparsingHeapDumpAsIndexOutOfDate;
     public static String SnapshotFactoryImpl_ReparsingHeapDumpWithOutOfDateIndex;
+    public static String SnapshotFactoryImpl_ResumingParse;
     public static String SnapshotFactoryImpl_UnableToDeleteIndexFile;
     public static String SnapshotFactoryImpl_ValidatingGCRoots;
     public static String SnapshotFactoryImpl_ValidatingIndices;
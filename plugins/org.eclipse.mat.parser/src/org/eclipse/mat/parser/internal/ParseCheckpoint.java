@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.mat.collect.BitField;
+import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.parser.index.IndexManager;
+import org.eclipse.mat.parser.model.ClassImpl;
+import org.eclipse.mat.parser.model.XGCRootInfo;
+import org.eclipse.mat.parser.model.XSnapshotInfo;
+
+/**
+ * Records how far the parsing of a heap dump has got, so that after a failure
+ * or cancellation the next attempt to open the dump can carry on from the
+ * last completed phase instead of parsing the dump again.
+ * <p>
+ * The manifest is a properties file next to the index files. It is written at
+ * the end of each phase and deleted once the dominator tree is complete, so
+ * its presence means the parse is incomplete. The first phase recorded is the
+ * writing of the final object indexes by the garbage cleaner: before that the
+ * results of the parser passes are held in memory and by the index builder.
+ */
+class ParseCheckpoint
+{
+    enum Phase
+    {
+        /**
+         * The identifier, class, array size, inbound and outbound indexes
+         * and the parser specific indexes are written. The rest of the
+         * snapshot is in the state file.
+         */
+        INDEXES,
+        /**
+         * The snapshot index file is written, only the dominator tree is
+         * missing.
+         */
+        SNAPSHOT
+    }
+
+    private static final String VERSION = "MAT_CHECKPOINT_01"; //$NON-NLS-1$
+
+    private static final String KEY_VERSION = "version"; //$NON-NLS-1$
+    private static final String KEY_LENGTH = "dump.length"; //$NON-NLS-1$
+    private static final String KEY_LAST_MODIFIED = "dump.lastModified"; //$NON-NLS-1$
+    private static final String KEY_PARSER = "parser"; //$NON-NLS-1$
+    private static final String KEY_KEEP_UNREACHABLE = "keep_unreachable_objects"; //$NON-NLS-1$
+    private static final String KEY_PHASE = "phase"; //$NON-NLS-1$
+
+    private final File dump;
+    private final String prefix;
+    private final String parserId;
+    private final boolean keepUnreachable;
+    private Phase phase;
+
+    ParseCheckpoint(File dump, String prefix, String parserId, Map<String, String> args)
+    {
+        this(dump, prefix, parserId, keepUnreachable(args), null);
+    }
+
+    private ParseCheckpoint(File dump, String prefix, String parserId, boolean keepUnreachable, Phase phase)
+    {
+        this.dump = dump;
+        this.prefix = prefix;
+        this.parserId = parserId;
+        this.keepUnreachable = keepUnreachable;
+        this.phase = phase;
+    }
+
+    private static boolean keepUnreachable(Map<String, String> args)
+    {
+        return Boolean.parseBoolean(args.get("keep_unreachable_objects")); //$NON-NLS-1$
+    }
+
+    static File getManifestFile(String prefix)
+    {
+        return new File(prefix + "checkpoint"); //$NON-NLS-1$
+    }
+
+    static File getStateFile(String prefix)
+    {
+        return new File(prefix + "checkpoint.state"); //$NON-NLS-1$
+    }
+
+    /**
+     * Read the checkpoint of an earlier parse of the dump.
+     *
+     * @return the checkpoint, or null if there is none or it does not match
+     *         the dump and the parse options
+     */
+    static ParseCheckpoint read(File dump, String prefix, Map<String, String> args)
+    {
+        File manifest = getManifestFile(prefix);
+        if (!manifest.isFile())
+            return null;
+
+        Properties props = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(manifest);
+            props.load(in);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+
+        try
+        {
+            if (!VERSION.equals(props.getProperty(KEY_VERSION)))
+                return null;
+            if (Long.parseLong(props.getProperty(KEY_LENGTH)) != dump.length()
+                            || Long.parseLong(props.getProperty(KEY_LAST_MODIFIED)) != dump.lastModified())
+                return null;
+            boolean keepUnreachable = Boolean.parseBoolean(props.getProperty(KEY_KEEP_UNREACHABLE));
+            if (keepUnreachable != keepUnreachable(args))
+                return null;
+            String parserId = props.getProperty(KEY_PARSER);
+            if (parserId == null)
+                return null;
+            Phase phase = Phase.valueOf(props.getProperty(KEY_PHASE));
+            return new ParseCheckpoint(dump, prefix, parserId, keepUnreachable, phase);
+        }
+        catch (RuntimeException e)
+        {
+            // missing or garbled entries
+            return null;
+        }
+    }
+
+    Phase getPhase()
+    {
+        return phase;
+    }
+
+    String getParserId()
+    {
+        return parserId;
+    }
+
+    /**
+     * The garbage cleaner and the index builder have written the final
+     * indexes. Saves the rest of the builder so that the snapshot can be
+     * created without parsing the dump.
+     */
+    void indexesWritten(SnapshotImplBuilder builder) throws IOException
+    {
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        getStateFile(prefix))));
+        try
+        {
+            out.writeUTF(VERSION);
+            out.writeObject(builder.getSnapshotInfo());
+            out.writeObject(builder.getClassCache());
+            out.writeObject(builder.getRoots());
+            out.writeObject(builder.getRootsPerThread());
+            out.writeObject(builder.getArrayObjects());
+        }
+        finally
+        {
+            out.close();
+        }
+        write(Phase.INDEXES);
+    }
+
+    /**
+     * The snapshot index file has been written.
+     */
+    void snapshotWritten() throws IOException
+    {
+        write(Phase.SNAPSHOT);
+    }
+
+    /**
+     * Recreate the snapshot builder from the state file and the indexes
+     * written before the checkpoint.
+     */
+    @SuppressWarnings("unchecked")
+    SnapshotImplBuilder readBuilder() throws IOException
+    {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+                        getStateFile(prefix))));
+        try
+        {
+            String version = in.readUTF();
+            if (!VERSION.equals(version))
+                throw new IOException(version);
+
+            XSnapshotInfo snapshotInfo = (XSnapshotInfo) in.readObject();
+            SnapshotImplBuilder builder = new SnapshotImplBuilder(snapshotInfo);
+            builder.setClassCache((HashMapIntObject<ClassImpl>) in.readObject());
+            builder.setRoots((HashMapIntObject<XGCRootInfo[]>) in.readObject());
+            builder.setRootsPerThread((HashMapIntObject<HashMapIntObject<XGCRootInfo[]>>) in.readObject());
+            builder.setArrayObjects((BitField) in.readObject());
+
+            IndexManager indexManager = new IndexManager();
+            boolean done = false;
+            try
+            {
+                indexManager.init(prefix);
+                done = true;
+            }
+            finally
+            {
+                // close the indexes opened before the failure
+                if (!done)
+                {
+                    try
+                    {
+                        indexManager.close();
+                    }
+                    catch (IOException ignore)
+                    {
+                        // $JL-EXC$
+                    }
+                }
+            }
+            builder.setIndexManager(indexManager);
+            return builder;
+        }
+        catch (ClassNotFoundException e)
+        {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Remove the dominator tree indexes of an attempt which did not complete.
+     */
+    void discardDominatorTree()
+    {
+        IndexManager.Index.DOMINATOR.getFile(prefix).delete();
+        IndexManager.Index.O2RETAINED.getFile(prefix).delete();
+        IndexManager.Index.DOMINATED.getFile(prefix).delete();
+    }
+
+    /**
+     * The parse is complete, so the checkpoint is no longer needed.
+     */
+    void delete()
+    {
+        getManifestFile(prefix).delete();
+        getStateFile(prefix).delete();
+    }
+
+    private void write(Phase phase) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty(KEY_VERSION, VERSION);
+        props.setProperty(KEY_LENGTH, Long.toString(dump.length()));
+        props.setProperty(KEY_LAST_MODIFIED, Long.toString(dump.lastModified()));
+        props.setProperty(KEY_PARSER, parserId);
+        props.setProperty(KEY_KEEP_UNREACHABLE, Boolean.toString(keepUnreachable));
+        props.setProperty(KEY_PHASE, phase.name());
+
+        OutputStream out = new FileOutputStream(getManifestFile(prefix));
+        try
+        {
+            props.store(out, null);
+        }
+        finally
+        {
+            out.close();
+        }
+        this.phase = phase;
+    }
+
+    private static void close(InputStream in)
+    {
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException ignore)
+            {
+                // $JL-EXC$
+            }
+        }
+    }
+}
@@ -8,6 +8,8 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - validation of indices
+ *    IBM Corporation - parallel dominator tree option
+ *    IBM Corporation - resume parsing from checkpoints
  *******************************************************************************/
 package org.eclipse.mat.parser.internal;
 
@@ -91,15 +93,28 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
             prefix += snapshot_identifier + "."; //$NON-NLS-1$
         }
 
+        // an earlier parse which failed or was cancelled part way through
+        ParseCheckpoint checkpoint = ParseCheckpoint.read(file, prefix, args);
+        if (checkpoint != null)
+            checkpoint.discardDominatorTree();
+        // the indexes of an incomplete parse which cannot be resumed
+        boolean incomplete = checkpoint == null && ParseCheckpoint.getManifestFile(prefix).exists();
+
         try
         {
             File indexFile = new File(prefix + "index");//$NON-NLS-1$
-            if (indexFile.exists())
+            if (indexFile.exists() && !incomplete)
             {
                 // check if hprof file is newer than index file
                 if (file.lastModified() <= indexFile.lastModified())
                 {
-                    answer = SnapshotImpl.readFromFile(file, prefix, listener);
+                    SnapshotImpl snapshot = SnapshotImpl.readFromFile(file, prefix, listener);
+                    if (checkpoint != null)
+                    {
+                        listener.subTask(MessageUtil.format(Messages.SnapshotFactoryImpl_ResumingParse, file.getPath()));
+                        snapshot = complete(snapshot, checkpoint, args, listener);
+                    }
+                    answer = snapshot;
                 }
                 else
                 {
@@ -113,11 +128,12 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
         }
         catch (IOException ignore_and_reparse)
         {
-            String text = ignore_and_reparse.getMessage() != null ? ignore_and_reparse.getMessage()
-                            : ignore_and_reparse.getClass().getName();
-            String message = MessageUtil.format(Messages.SnapshotFactoryImpl_Error_ReparsingHeapDump, text);
-            listener.sendUserMessage(Severity.WARNING, message, ignore_and_reparse);
-            listener.subTask(message);
+            warnReparsing(ignore_and_reparse, listener);
+        }
+
+        if (answer == null && checkpoint != null)
+        {
+            answer = resume(file, checkpoint, args, listener);
         }
 
         if (answer == null)
@@ -197,7 +213,8 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
 
 			if (indexBuilder == null)
 				continue;
-            
+
+            ParseCheckpoint checkpoint = null;
             try
             {
                 indexBuilder.init(file, prefix);
@@ -217,6 +234,12 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
                     snapshotInfo.setProperty("$runtimeId", snapshot_identifier);//$NON-NLS-1$
                 }
 
+                long memoryBudget = getMemoryBudget(args);
+                if (memoryBudget >= 0)
+                {
+                    snapshotInfo.setProperty("$memoryBudget", memoryBudget);//$NON-NLS-1$
+                }
+
                 PreliminaryIndexImpl idx = new PreliminaryIndexImpl(snapshotInfo);
 
                 indexBuilder.fill(idx, listener);
@@ -232,28 +255,20 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
 
                 indexBuilder.clean(purgedMapping, listener);
 
-                SnapshotImpl snapshot = builder.create(parser, listener);
-                boolean done = false;
-                try
-                {
-                    snapshot.calculateDominatorTree(listener);
-                    done = true;
-                }
-                finally
-                {
-                    if (!done)
-                    {
-                        // Error in dominator tree, so close the index files
-                        snapshot.dispose();
-                    }
-                }
+                checkpoint = new ParseCheckpoint(file, prefix, parser.getUniqueIdentifier(), args);
+                checkpoint.indexesWritten(builder);
 
-                return snapshot;
+                SnapshotImpl snapshot = builder.create(parser, listener);
+                return complete(snapshot, checkpoint, args, listener);
             }
             catch (IOException ioe)
             {
-                errors.add(ioe);
                 indexBuilder.cancel();
+                // the parser understood the dump, so keep its checkpoint
+                if (checkpoint != null)
+                    throw new SnapshotException(MessageUtil.format(Messages.SnapshotFactoryImpl_Error_OpeningHeapDump,
+                                    file.getName()), ioe);
+                errors.add(ioe);
             }
             catch (Exception e)
             {
@@ -287,6 +302,164 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
         }
     }
 
+    /**
+     * Carry on with a parse which failed or was cancelled after the object
+     * indexes were written.
+     *
+     * @return the snapshot, or null if the dump has to be parsed again
+     */
+    private SnapshotImpl resume(File file, ParseCheckpoint checkpoint, Map<String, String> args,
+                    IProgressListener listener) throws SnapshotException
+    {
+        Parser parser = ParserPlugin.getDefault().getParserRegistry().lookupParser(checkpoint.getParserId());
+        if (parser == null)
+            return null;
+
+        listener.subTask(MessageUtil.format(Messages.SnapshotFactoryImpl_ResumingParse, file.getPath()));
+
+        SnapshotImplBuilder builder = null;
+        try
+        {
+            builder = checkpoint.readBuilder();
+            SnapshotImpl snapshot = builder.create(parser, listener);
+            return complete(snapshot, checkpoint, args, listener);
+        }
+        catch (IOException e)
+        {
+            return abandon(builder, checkpoint, e, listener);
+        }
+        catch (SnapshotException e)
+        {
+            // for example a stale or corrupt saved state
+            return abandon(builder, checkpoint, e, listener);
+        }
+        catch (IProgressListener.OperationCanceledException e)
+        {
+            // keep the checkpoint to resume from next time
+            closeIndexes(builder);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            // for example a saved state of the wrong type
+            return abandon(builder, checkpoint, e, listener);
+        }
+    }
+
+    /**
+     * Give up on a checkpoint which cannot be resumed, so that this and
+     * later attempts parse the dump again.
+     *
+     * @return null
+     */
+    private static SnapshotImpl abandon(SnapshotImplBuilder builder, ParseCheckpoint checkpoint, Exception e,
+                    IProgressListener listener)
+    {
+        closeIndexes(builder);
+        checkpoint.delete();
+        warnReparsing(e, listener);
+        return null;
+    }
+
+    private static void closeIndexes(SnapshotImplBuilder builder)
+    {
+        if (builder != null && builder.getIndexManager() != null)
+        {
+            try
+            {
+                builder.getIndexManager().close();
+            }
+            catch (IOException ignore)
+            {
+                // $JL-EXC$
+            }
+        }
+    }
+
+    /**
+     * Record that the snapshot index file is written, then calculate the
+     * dominator tree, the last phase of the parse.
+     */
+    private static SnapshotImpl complete(SnapshotImpl snapshot, ParseCheckpoint checkpoint,
+                    Map<String, String> args, IProgressListener listener) throws SnapshotException, IOException
+    {
+        boolean done = false;
+        try
+        {
+            if (checkpoint.getPhase() != ParseCheckpoint.Phase.SNAPSHOT)
+                checkpoint.snapshotWritten();
+            snapshot.calculateDominatorTree(listener, getDominatorThreads(args, listener));
+            done = true;
+        }
+        finally
+        {
+            if (!done)
+            {
+                // Error in dominator tree, so close the index files
+                snapshot.dispose();
+            }
+        }
+
+        checkpoint.delete();
+        return snapshot;
+    }
+
+    private static void warnReparsing(Exception e, IProgressListener listener)
+    {
+        String text = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        String message = MessageUtil.format(Messages.SnapshotFactoryImpl_Error_ReparsingHeapDump, text);
+        listener.sendUserMessage(Severity.WARNING, message, e);
+        listener.subTask(message);
+    }
+
+    /**
+     * The heap the parser may use for its indexes, from the memory_budget
+     * option in megabytes, or -1 for no limit.
+     */
+    static long getMemoryBudget(Map<String, String> args)
+    {
+        String budget = args.get("memory_budget"); //$NON-NLS-1$
+        if (budget == null)
+            return -1;
+        try
+        {
+            long answer = Long.parseLong(budget.trim());
+            return answer >= 0 ? answer * 1024 * 1024 : -1;
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * The number of threads for the dominator tree calculation, from the
+     * dominator_threads option. By default, or with 1, it is calculated on the
+     * current thread with the Lengauer-Tarjan algorithm. 0 means one thread
+     * for each processor.
+     */
+    private static int getDominatorThreads(Map<String, String> args, IProgressListener listener)
+    {
+        String threads = args.get("dominator_threads"); //$NON-NLS-1$
+        if (threads == null)
+            return 1;
+        try
+        {
+            int answer = Integer.parseInt(threads.trim());
+            if (answer > 0)
+                return answer;
+            if (answer == 0)
+                return Runtime.getRuntime().availableProcessors();
+        }
+        catch (NumberFormatException e)
+        {
+            // $JL-EXC$
+        }
+        listener.sendUserMessage(Severity.WARNING, MessageUtil.format(
+                        Messages.SnapshotFactoryImpl_InvalidDominatorThreads, threads), null);
+        return 1;
+    }
+
     /**
      * Check that indices look valid
      * 
@@ -624,6 +797,8 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
         final Pattern indexPattern = Pattern.compile("([A-Za-z0-9]+\\.)?index$"); //$NON-NLS-1$
         final Pattern threadPattern = Pattern.compile("threads$"); //$NON-NLS-1$
         final Pattern logPattern = Pattern.compile("inbound\\.index.*\\.log$"); //$NON-NLS-1$
+        final Pattern checkpointPattern = Pattern.compile("checkpoint(\\.state)?$"); //$NON-NLS-1$
+        final Pattern mapPattern = Pattern.compile("temp\\.[A-Za-z0-9]+\\.map(\\.[A-Za-z0-9]+)?$"); //$NON-NLS-1$
 
         File[] files = directory.listFiles(new FileFilter()
         {
@@ -636,7 +811,9 @@ public class SnapshotFactoryImpl implements SnapshotFactory.Implementation
                 return name.startsWith(fragment)
                                 && (indexPattern.matcher(name.substring(fragment.length())).matches()
                                   || threadPattern.matcher(name.substring(fragment.length())).matches() 
-                                  || logPattern.matcher(name.substring(fragment.length())).matches());
+                                  || logPattern.matcher(name.substring(fragment.length())).matches()
+                                  || checkpointPattern.matcher(name.substring(fragment.length())).matches()
+                                  || mapPattern.matcher(name.substring(fragment.length())).matches());
             }
         });
 
@@ -8,6 +8,7 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - validation of indices
+ *    IBM Corporation - parallel histogram of objects
  *******************************************************************************/
 package org.eclipse.mat.parser.internal;
 
@@ -30,12 +31,15 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayInt;
 import org.eclipse.mat.collect.ArrayIntBig;
 import org.eclipse.mat.collect.BitField;
+import org.eclipse.mat.collect.ConcurrentBitField;
 import org.eclipse.mat.collect.HashMapIntObject;
 import org.eclipse.mat.collect.IteratorInt;
 import org.eclipse.mat.collect.SetInt;
@@ -45,6 +49,7 @@ import org.eclipse.mat.parser.index.IIndexReader.IOne2OneIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2SizeIndex;
 import org.eclipse.mat.parser.index.IndexManager;
 import org.eclipse.mat.parser.index.IndexManager.Index;
+import org.eclipse.mat.parser.index.IndexReader;
 import org.eclipse.mat.parser.internal.snapshot.HistogramBuilder;
 import org.eclipse.mat.parser.internal.snapshot.MultiplePathsFromGCRootsComputerImpl;
 import org.eclipse.mat.parser.internal.snapshot.ObjectCache;
@@ -68,6 +73,7 @@ import org.eclipse.mat.snapshot.Histogram;
 import org.eclipse.mat.snapshot.IMultiplePathsFromGCRootsComputer;
 import org.eclipse.mat.snapshot.IPathsFromGCRootsComputer;
 import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.ObjectCacheStatistics;
 import org.eclipse.mat.snapshot.PathsFromGCRootsTree;
 import org.eclipse.mat.snapshot.UnreachableObjectsHistogram;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
@@ -89,6 +95,31 @@ public final class SnapshotImpl implements ISnapshot
 
     private static final String VERSION = "MAT_01";//$NON-NLS-1$
 
+    /**
+     * System property giving the number of heap objects to cache.
+     */
+    private static final String OBJECT_CACHE_SIZE = "objectCacheSize"; //$NON-NLS-1$
+    /**
+     * System property giving the estimated bytes of heap objects to cache.
+     * Takes precedence over {@link #OBJECT_CACHE_SIZE}.
+     */
+    private static final String OBJECT_CACHE_BYTES = "objectCacheBytes"; //$NON-NLS-1$
+    private static final int DEFAULT_OBJECT_CACHE_SIZE = 10000;
+    /**
+     * Number of objects whose references are read from an index at once.
+     */
+    private static final int REFERENCE_BATCH_SIZE = 10000;
+
+    /**
+     * Fewest objects for which a histogram is built with several threads.
+     */
+    private static final int PARALLEL_HISTOGRAM_SIZE = 100000;
+    /**
+     * System property giving the most threads building a histogram. By
+     * default there is one for each processor.
+     */
+    private static final String HISTOGRAM_THREADS = "histogramThreads"; //$NON-NLS-1$
+
     @SuppressWarnings("unchecked")
     public static SnapshotImpl readFromFile(File file, String prefix, IProgressListener listener)
                     throws SnapshotException, IOException
@@ -302,7 +333,7 @@ public final class SnapshotImpl implements ISnapshot
         this.dominatorTreeCalculated = indexManager.dominated() != null && indexManager.o2retained() != null
                         && indexManager.dominator() != null;
 
-        this.objectCache = new HeapObjectCache(this, 1000);
+        this.objectCache = createObjectCache();
 
         this.heapObjectReader.open(this);
 
@@ -475,6 +506,16 @@ public final class SnapshotImpl implements ISnapshot
 
         progressMonitor.beginTask(Messages.SnapshotImpl_BuildingHistogram, objectIds.length >>> 8);
 
+        int threads = Integer.getInteger(HISTOGRAM_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads > 1 && objectIds.length >= PARALLEL_HISTOGRAM_SIZE)
+        {
+            int numberOfThreads = Math.min(threads, objectIds.length / (PARALLEL_HISTOGRAM_SIZE / 4));
+            if (!addToHistogramMultiThreaded(histogramBuilder, objectIds, numberOfThreads, progressMonitor))
+                return null;
+            progressMonitor.done();
+            return histogramBuilder.toHistogram(this, false);
+        }
+
         // Arrays.sort(objectIds);
         // int[] classIds = indexManager.o2class().getAll(objectIds);
 
@@ -500,6 +541,106 @@ public final class SnapshotImpl implements ISnapshot
         return histogramBuilder.toHistogram(this, false);
     }
 
+    /**
+     * Splits the objects into one consecutive part for each thread. Each
+     * thread builds a partial histogram of its part, and the partial
+     * histograms are then merged in order, so the objects of each class are
+     * in the same order as with a single thread.
+     * 
+     * @return false if cancelled
+     */
+    private boolean addToHistogramMultiThreaded(HistogramBuilder histogramBuilder, final int[] objectIds,
+                    int numberOfThreads, IProgressListener progressMonitor) throws SnapshotException
+    {
+        final HistogramBuilder[] partials = new HistogramBuilder[numberOfThreads];
+        final Throwable[] failures = new Throwable[numberOfThreads];
+        final AtomicInteger worked = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++)
+        {
+            final int index = i;
+            final int from = (int) ((long) objectIds.length * i / numberOfThreads);
+            final int to = (int) ((long) objectIds.length * (i + 1) / numberOfThreads);
+            partials[i] = new HistogramBuilder(null);
+            threads[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        IOne2OneIndex o2class = indexManager.o2class();
+                        HistogramBuilder partial = partials[index];
+                        for (int ii = from; ii < to; ii++)
+                        {
+                            partial.add(o2class.get(objectIds[ii]), objectIds[ii], getHeapSize(objectIds[ii]));
+
+                            if ((ii & 0xff) == 0)
+                            {
+                                if (stopped.get())
+                                    return;
+                                worked.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failures[index] = t;
+                    }
+                }
+            }, "HistogramThread-" + (i + 1)); //$NON-NLS-1$
+            threads[i].start();
+        }
+
+        // wait for all the threads to finish, reporting the objects added so far
+        int reported = 0;
+        try
+        {
+            for (int i = 0; i < numberOfThreads; i++)
+            {
+                while (threads[i].isAlive())
+                {
+                    threads[i].join(100);
+                    if (progressMonitor.isCanceled())
+                    {
+                        stopped.set(true);
+                        return false;
+                    }
+                    int work = worked.get();
+                    if (work > reported)
+                    {
+                        progressMonitor.worked(work - reported);
+                        reported = work;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            stopped.set(true);
+            OperationCanceledException oc = new IProgressListener.OperationCanceledException();
+            oc.initCause(e);
+            throw oc;
+        }
+
+        for (Throwable failure : failures)
+        {
+            if (failure instanceof SnapshotException)
+                throw (SnapshotException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw new SnapshotException(failure);
+        }
+
+        for (HistogramBuilder partial : partials)
+            histogramBuilder.addAll(partial);
+        return true;
+    }
+
     public int[] getInboundRefererIds(int objectId) throws SnapshotException
     {
         return indexManager.inbound().get(objectId);
@@ -512,60 +653,55 @@ public final class SnapshotImpl implements ISnapshot
 
     public int[] getInboundRefererIds(int[] objectIds, IProgressListener progressMonitor) throws SnapshotException
     {
-        if (progressMonitor == null)
-            progressMonitor = new VoidProgressListener();
-
-        IIndexReader.IOne2ManyIndex inbound = indexManager.inbound();
-
-        SetInt result = new SetInt();
-        progressMonitor.beginTask(Messages.SnapshotImpl_ReadingInboundReferrers, objectIds.length / 100);
-
-        for (int ii = 0; ii < objectIds.length; ii++)
-        {
-            int[] referees = inbound.get(objectIds[ii]);
-            for (int refereeId : referees)
-                result.add(refereeId);
-
-            if (ii % 100 == 0)
-            {
-                if (progressMonitor.isCanceled())
-                    return null;
-                progressMonitor.worked(1);
-            }
-        }
-
-        int[] endResult = result.toArray();
-        // It used to be sorted before (TreeSet<Integer>) but I don't
-        // remember if this is needed
-        // Arrays.sort(endResult);
-
-        progressMonitor.done();
-
-        return endResult;
+        return getReferences(indexManager.inbound(), objectIds, Messages.SnapshotImpl_ReadingInboundReferrers,
+                        progressMonitor);
     }
 
     public int[] getOutboundReferentIds(int[] objectIds, IProgressListener progressMonitor) throws SnapshotException
+    {
+        return getReferences(indexManager.outbound(), objectIds, Messages.SnapshotImpl_ReadingOutboundReferrers,
+                        progressMonitor);
+    }
+
+    /**
+     * Collect the distinct references of the objects from a 1:N index. The
+     * objects are read in batches in increasing order of id, so an index
+     * which can look up a batch at once is read sequentially rather than page
+     * by page at random.
+     */
+    private int[] getReferences(IIndexReader.IOne2ManyIndex index, int[] objectIds, String task,
+                    IProgressListener progressMonitor)
     {
         if (progressMonitor == null)
             progressMonitor = new VoidProgressListener();
 
-        IIndexReader.IOne2ManyIndex outbound = indexManager.outbound();
+        int[] sorted = new int[objectIds.length];
+        System.arraycopy(objectIds, 0, sorted, 0, objectIds.length);
+        Arrays.sort(sorted);
 
         SetInt result = new SetInt();
-        progressMonitor.beginTask(Messages.SnapshotImpl_ReadingOutboundReferrers, objectIds.length / 100);
+        progressMonitor.beginTask(task, (sorted.length + REFERENCE_BATCH_SIZE - 1) / REFERENCE_BATCH_SIZE);
 
-        for (int ii = 0; ii < objectIds.length; ii++)
+        for (int ii = 0; ii < sorted.length; ii += REFERENCE_BATCH_SIZE)
         {
-            int[] referees = outbound.get(objectIds[ii]);
-            for (int refereeId : referees)
-                result.add(refereeId);
+            int[] batch = new int[Math.min(REFERENCE_BATCH_SIZE, sorted.length - ii)];
+            System.arraycopy(sorted, ii, batch, 0, batch.length);
 
-            if (ii % 100 == 0)
+            if (index instanceof IIndexReader.IOne2ManyBatchIndex)
             {
-                if (progressMonitor.isCanceled())
-                    return null;
-                progressMonitor.worked(1);
+                for (int refereeId : ((IIndexReader.IOne2ManyBatchIndex) index).getAll(batch, null))
+                    result.add(refereeId);
             }
+            else
+            {
+                for (int objectId : batch)
+                    for (int refereeId : index.get(objectId))
+                        result.add(refereeId);
+            }
+
+            if (progressMonitor.isCanceled())
+                return null;
+            progressMonitor.worked(1);
         }
 
         int[] endResult = result.toArray();
@@ -604,7 +740,7 @@ public final class SnapshotImpl implements ISnapshot
             progressMonitor = new VoidProgressListener();
 
         /* a bit field to mark all reached objects */
-        boolean[] reachable = new boolean[numberOfObjects];
+        ConcurrentBitField reachable = new ConcurrentBitField(numberOfObjects);
 
         /*
          * Initially mark all the objects whose retained set is to be calculated
@@ -613,7 +749,7 @@ public final class SnapshotImpl implements ISnapshot
          */
         for (int objId : objectIds)
         {
-            reachable[objId] = true;
+            reachable.set(objId);
         }
 
         /*
@@ -621,9 +757,7 @@ public final class SnapshotImpl implements ISnapshot
          * references, and mark all unmarked objects. The retained set will
          * contain the unmarked objects
          */
-        ObjectMarker marker = new ObjectMarker(roots.getAllKeys(), reachable, indexManager.outbound(),
-                        IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                        progressMonitor);
+        ObjectMarker marker = new ObjectMarker(roots.getAllKeys(), reachable, indexManager.outbound(), progressMonitor);
         int numReached;
         try
         {
@@ -644,14 +778,14 @@ public final class SnapshotImpl implements ISnapshot
          */
         for (int objId : objectIds)
         {
-            reachable[objId] = false;
+            reachable.clear(objId);
         }
 
         /* Put each unmarked bit into the retained set */
         int j = 0;
         for (int i = 0; i < numberOfObjects; i++)
         {
-            if (!reachable[i])
+            if (!reachable.get(i))
             {
                 retained[j++] = i;
             }
@@ -677,8 +811,8 @@ public final class SnapshotImpl implements ISnapshot
         if (progressMonitor == null)
             progressMonitor = new VoidProgressListener();
 
-        /* a boolean[] to mark all reached objects */
-        boolean[] reachable = new boolean[numberOfObjects];
+        /* a bit field to mark all reached objects */
+        ConcurrentBitField reachable = new ConcurrentBitField(numberOfObjects);
 
         /*
          * Initially mark all the objects whose retained set is to be calculated
@@ -687,7 +821,7 @@ public final class SnapshotImpl implements ISnapshot
          */
         for (int objId : objectIds)
         {
-            reachable[objId] = true;
+            reachable.set(objId);
         }
 
         /*
@@ -696,9 +830,7 @@ public final class SnapshotImpl implements ISnapshot
          * them
          */
         int[] gcRoots = roots.getAllKeys();
-        ObjectMarker marker = new ObjectMarker(gcRoots, reachable, indexManager.outbound(),
-                        IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                        progressMonitor);
+        ObjectMarker marker = new ObjectMarker(gcRoots, reachable, indexManager.outbound(), progressMonitor);
         try
         {
             marker.markMultiThreaded(availableProcessors);
@@ -714,7 +846,7 @@ public final class SnapshotImpl implements ISnapshot
          */
         for (int objId : objectIds)
         {
-            reachable[objId] = false;
+            reachable.clear(objId);
         }
 
         /*
@@ -726,7 +858,7 @@ public final class SnapshotImpl implements ISnapshot
         /* Put each unmarked object into the retained set */
         for (int i = 0; i < numberOfObjects; i++)
         {
-            if (!reachable[i])
+            if (!reachable.get(i))
             {
                 retained.add(i);
             }
@@ -792,29 +924,28 @@ public final class SnapshotImpl implements ISnapshot
          * excludedReferences, until initial are reached. The non-marked objects
          * will be a common retained set from the excluded and initial objects
          */
-        boolean[] firstPass = new boolean[getSnapshotInfo().getNumberOfObjects()];
+        ConcurrentBitField firstPass = new ConcurrentBitField(getSnapshotInfo().getNumberOfObjects());
         // mark all initial
         for (int objId : objectIds)
         {
-            firstPass[objId] = true;
+            firstPass.set(objId);
         }
-        ObjectMarker marker = new ObjectMarker(getGCRoots(), firstPass, getIndexManager().outbound,
-                        IndexManager.Index.OUTBOUND.getFile(getSnapshotInfo().getPrefix()).length(),
-                        progressMonitor);
+        ObjectMarker marker = new ObjectMarker(getGCRoots(), firstPass, getIndexManager().outbound, progressMonitor);
         marker.markSingleThreaded(excludedReferences, this);
 
         // un-mark initial - they have to go into the retained set
         for (int objId : objectIds)
         {
-            firstPass[objId] = false;
+            firstPass.clear(objId);
         }
 
         /*
          * Second pass - from the non-marked objects mark the ones starting from
          * the initial set (objectIds)
          */
-        boolean[] secondPass = new boolean[firstPass.length];
-        System.arraycopy(firstPass, 0, secondPass, 0, firstPass.length);
+        ConcurrentBitField secondPass = new ConcurrentBitField(firstPass.size());
+        for (IteratorInt it = firstPass.iterator(); it.hasNext();)
+            secondPass.set(it.next());
 
         ObjectMarker secondMarker = new ObjectMarker(objectIds, secondPass, getIndexManager().outbound,
                         progressMonitor);
@@ -827,7 +958,7 @@ public final class SnapshotImpl implements ISnapshot
         ArrayIntBig retainedSet = new ArrayIntBig();
         for (int i = 0; i < numObjects; i++)
         {
-            if (!firstPass[i] && secondPass[i])
+            if (!firstPass.get(i) && secondPass.get(i))
             {
                 retainedSet.add(i);
             }
@@ -1213,10 +1344,21 @@ public final class SnapshotImpl implements ISnapshot
 
     public void calculateDominatorTree(IProgressListener listener) throws SnapshotException,
                     IProgressListener.OperationCanceledException
+    {
+        calculateDominatorTree(listener, 1);
+    }
+
+    /**
+     * Calculate the dominator tree using several threads.
+     *
+     * @see DominatorTree#calculate(SnapshotImpl, IProgressListener, int)
+     */
+    public void calculateDominatorTree(IProgressListener listener, int threads) throws SnapshotException,
+                    IProgressListener.OperationCanceledException
     {
         try
         {
-            DominatorTree.calculate(this, listener);
+            DominatorTree.calculate(this, listener, threads);
             dominatorTreeCalculated = indexManager.dominated() != null && indexManager.o2retained() != null
                             && indexManager.dominator() != null;
         }
@@ -1369,6 +1511,11 @@ public final class SnapshotImpl implements ISnapshot
         return this.objectCache.get(objectId);
     }
 
+    public ObjectCacheStatistics getObjectCacheStatistics()
+    {
+        return this.objectCache.getStatistics();
+    }
+
     public GCRootInfo[] getGCRootInfo(int objectId) throws SnapshotException
     {
         return roots.get(objectId);
@@ -1480,7 +1627,9 @@ public final class SnapshotImpl implements ISnapshot
 
     public int mapAddressToId(long objectAddress) throws SnapshotException
     {
-        int objectId = indexManager.o2address().reverse(objectAddress);
+        IndexReader.LongIndexSampleReader samples = indexManager.o2addressSamples();
+        int objectId = samples != null ? samples.reverse(indexManager.o2address(), objectAddress) : indexManager
+                        .o2address().reverse(objectAddress);
         if (objectId < 0)
             throw new SnapshotException(MessageUtil.format(Messages.SnapshotImpl_Error_ObjectNotFound,
                             new Object[] { "0x" //$NON-NLS-1$
@@ -2046,14 +2195,37 @@ public final class SnapshotImpl implements ISnapshot
     // private classes
     // //////////////////////////////////////////////////////////////
 
+    private HeapObjectCache createObjectCache()
+    {
+        long bytes = Long.getLong(OBJECT_CACHE_BYTES, 0);
+        if (bytes > 0)
+            return new HeapObjectCache(this, bytes, (int) Math.min(bytes / 256, Integer.MAX_VALUE), true);
+        int size = Math.max(Integer.getInteger(OBJECT_CACHE_SIZE, DEFAULT_OBJECT_CACHE_SIZE), 1);
+        return new HeapObjectCache(this, size, size, false);
+    }
+
     private static final class HeapObjectCache extends ObjectCache<IObject>
     {
         SnapshotImpl snapshot;
+        boolean weighBytes;
 
-        private HeapObjectCache(SnapshotImpl snapshot, int maxSize)
+        private HeapObjectCache(SnapshotImpl snapshot, long capacity, int expectedEntries, boolean weighBytes)
         {
-            super(maxSize);
+            super(capacity, expectedEntries);
             this.snapshot = snapshot;
+            this.weighBytes = weighBytes;
+        }
+
+        /**
+         * Estimates the memory used by the object and the data read from the
+         * dump for it, which is roughly twice the size in the dump.
+         */
+        @Override
+        protected int weigh(IObject object)
+        {
+            if (!weighBytes)
+                return 1;
+            return (int) Math.min(100 + 2 * object.getUsedHeapSize(), Integer.MAX_VALUE);
         }
 
         @Override
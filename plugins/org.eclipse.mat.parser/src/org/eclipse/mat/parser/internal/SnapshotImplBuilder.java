@@ -84,11 +84,21 @@ public class SnapshotImplBuilder
         this.rootsPerThread = rootsPerThread;
     }
 
+    public HashMapIntObject<HashMapIntObject<XGCRootInfo[]>> getRootsPerThread()
+    {
+        return rootsPerThread;
+    }
+
     public void setArrayObjects(BitField arrayObjects)
     {
         this.arrayObjects = arrayObjects;
     }
 
+    public BitField getArrayObjects()
+    {
+        return arrayObjects;
+    }
+
     public SnapshotImpl create(Parser parser, IProgressListener listener) throws IOException, SnapshotException
     {
         IObjectReader heapObjectReader = parser.create(IObjectReader.class, ParserRegistry.OBJECT_READER);
@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.parser.internal.oql.compiler.Aggregate;
+import org.eclipse.mat.parser.internal.oql.compiler.EvaluationContext;
+import org.eclipse.mat.parser.internal.oql.compiler.Expression;
+import org.eclipse.mat.parser.internal.oql.compiler.FilterPlan;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.util.MessageUtil;
+
+/**
+ * The groups of the objects selected by a query with a GROUP BY clause or
+ * with aggregates in the select list.
+ * <p>
+ * The objects are not kept, only the first object of each group and the
+ * running values of the aggregates, so the memory needed depends on the
+ * number of groups only. Groups by one object, such as the class of the
+ * objects, are found by object id.
+ */
+class GroupedSelection extends Selection
+{
+    static final class Group
+    {
+        final Object[] keys;
+        final Accumulator[] accumulators;
+
+        /** the first object of the group */
+        Object element;
+        long sequence;
+
+        Group(Object[] keys, Accumulator[] accumulators, Object element, long sequence)
+        {
+            this.keys = keys;
+            this.accumulators = accumulators;
+            this.element = element;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the object id as an Integer, or the object
+         */
+        Object getElement()
+        {
+            return element;
+        }
+
+        Object[] getAggregates()
+        {
+            Object[] values = new Object[accumulators.length];
+            for (int ii = 0; ii < values.length; ii++)
+                values[ii] = accumulators[ii].getValue();
+            return values;
+        }
+    }
+
+    private final List<Expression> groupBy;
+    private final List<Aggregate> aggregates;
+    private final boolean indexed;
+
+    /** the groups by one object, by object id */
+    private final HashMapIntObject<Group> groupsById = new HashMapIntObject<Group>();
+    /** the other groups, by key or list of keys */
+    private final Map<Object, Group> groups = new HashMap<Object, Group>();
+
+    /**
+     * @param groupBy
+     *            the GROUP BY expressions, or null for one group
+     * @param aggregates
+     *            the aggregates of the query, in the order of their index
+     */
+    GroupedSelection(List<Expression> groupBy, List<Aggregate> aggregates, EvaluationContext ctx)
+    {
+        this(groupBy != null ? groupBy : Collections.<Expression> emptyList(), aggregates, isIndexed(groupBy,
+                        aggregates, ctx));
+    }
+
+    private GroupedSelection(List<Expression> groupBy, List<Aggregate> aggregates, boolean indexed)
+    {
+        this.groupBy = groupBy;
+        this.aggregates = aggregates;
+        this.indexed = indexed;
+    }
+
+    private static boolean isIndexed(List<Expression> groupBy, List<Aggregate> aggregates, EvaluationContext ctx)
+    {
+        if (groupBy != null)
+        {
+            for (Expression expression : groupBy)
+            {
+                if (!FilterPlan.isIndexed(expression, ctx))
+                    return false;
+            }
+        }
+
+        for (Aggregate aggregate : aggregates)
+        {
+            if (!FilterPlan.isIndexed(aggregate, ctx))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    GroupedSelection copy()
+    {
+        return new GroupedSelection(groupBy, aggregates, indexed);
+    }
+
+    @Override
+    boolean isEvaluating()
+    {
+        return true;
+    }
+
+    @Override
+    boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    @Override
+    boolean isFull()
+    {
+        return false;
+    }
+
+    @Override
+    void add(EvaluationContext ctx, Object element, Object subject, long sequence) throws SnapshotException
+    {
+        ctx.setSubject(subject);
+
+        Object[] keys = new Object[groupBy.size()];
+        for (int ii = 0; ii < keys.length; ii++)
+            keys[ii] = groupBy.get(ii).compute(ctx);
+
+        Group group = get(keys);
+        if (group == null)
+        {
+            Accumulator[] accumulators = new Accumulator[aggregates.size()];
+            for (int ii = 0; ii < accumulators.length; ii++)
+                accumulators[ii] = newAccumulator(aggregates.get(ii));
+
+            group = new Group(keys, accumulators, element, sequence);
+            put(group);
+        }
+
+        for (int ii = 0; ii < group.accumulators.length; ii++)
+            group.accumulators[ii].add(aggregates.get(ii).getArgument().compute(ctx));
+    }
+
+    @Override
+    void addAll(Selection other)
+    {
+        for (Group group : ((GroupedSelection) other).getGroups())
+        {
+            Group existing = get(group.keys);
+            if (existing == null)
+            {
+                put(group);
+                continue;
+            }
+
+            for (int ii = 0; ii < existing.accumulators.length; ii++)
+                existing.accumulators[ii].merge(group.accumulators[ii]);
+
+            if (group.sequence < existing.sequence)
+            {
+                existing.element = group.element;
+                existing.sequence = group.sequence;
+            }
+        }
+    }
+
+    /**
+     * @return the groups in the order their first objects were scanned
+     */
+    List<Group> getGroups()
+    {
+        List<Group> answer = new ArrayList<Group>(groupsById.size() + groups.size());
+        for (Iterator<Group> iter = groupsById.values(); iter.hasNext();)
+            answer.add(iter.next());
+        answer.addAll(groups.values());
+
+        Collections.sort(answer, new Comparator<Group>()
+        {
+            public int compare(Group g1, Group g2)
+            {
+                return g1.sequence < g2.sequence ? -1 : g1.sequence == g2.sequence ? 0 : 1;
+            }
+        });
+        return answer;
+    }
+
+    private Group get(Object[] keys)
+    {
+        if (keys.length == 1 && keys[0] instanceof IObject)
+            return groupsById.get(((IObject) keys[0]).getObjectId());
+        return groups.get(keys.length == 1 ? keys[0] : Arrays.asList(keys));
+    }
+
+    private void put(Group group)
+    {
+        Object[] keys = group.keys;
+        if (keys.length == 1 && keys[0] instanceof IObject)
+            groupsById.put(((IObject) keys[0]).getObjectId(), group);
+        else
+            groups.put(keys.length == 1 ? keys[0] : Arrays.asList(keys), group);
+    }
+
+    // //////////////////////////////////////////////////////////////
+    // aggregates
+    // //////////////////////////////////////////////////////////////
+
+    private static Accumulator newAccumulator(Aggregate aggregate)
+    {
+        if (aggregate instanceof Aggregate.Count)
+            return new Count();
+        else if (aggregate instanceof Aggregate.Sum)
+            return new Sum(aggregate);
+        else if (aggregate instanceof Aggregate.Avg)
+            return new Avg(aggregate);
+        else if (aggregate instanceof Aggregate.Min)
+            return new Extreme(-1);
+        else
+            return new Extreme(1);
+    }
+
+    /**
+     * The running value of an aggregate for one group. Null values are
+     * skipped.
+     */
+    private static abstract class Accumulator
+    {
+        abstract void add(Object value) throws SnapshotException;
+
+        abstract void merge(Accumulator other);
+
+        abstract Object getValue();
+    }
+
+    private static class Count extends Accumulator
+    {
+        long count;
+
+        @Override
+        void add(Object value)
+        {
+            if (value != null)
+                count++;
+        }
+
+        @Override
+        void merge(Accumulator other)
+        {
+            count += ((Count) other).count;
+        }
+
+        @Override
+        Object getValue()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * The sum of integral values is a long, else a double.
+     */
+    private static class Sum extends Accumulator
+    {
+        final Aggregate aggregate;
+        long count;
+        long longSum;
+        double doubleSum;
+        boolean isDouble;
+
+        Sum(Aggregate aggregate)
+        {
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        void add(Object value) throws SnapshotException
+        {
+            if (value == null)
+                return;
+
+            if (!(value instanceof Number))
+                throw new SnapshotException(MessageUtil.format(Messages.Function_Error_NeedsNumberAsInput, aggregate
+                                .getArgument(), value, value.getClass().getName(), aggregate.getSymbol()));
+
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+            {
+                longSum += ((Number) value).longValue();
+            }
+            else
+            {
+                doubleSum += ((Number) value).doubleValue();
+                isDouble = true;
+            }
+            count++;
+        }
+
+        @Override
+        void merge(Accumulator other)
+        {
+            Sum sum = (Sum) other;
+            count += sum.count;
+            longSum += sum.longSum;
+            doubleSum += sum.doubleSum;
+            isDouble |= sum.isDouble;
+        }
+
+        @Override
+        Object getValue()
+        {
+            if (count == 0)
+                return null;
+            return isDouble ? (Object) (doubleSum + longSum) : (Object) longSum;
+        }
+    }
+
+    private static class Avg extends Sum
+    {
+        Avg(Aggregate aggregate)
+        {
+            super(aggregate);
+        }
+
+        @Override
+        Object getValue()
+        {
+            if (count == 0)
+                return null;
+            return (doubleSum + longSum) / count;
+        }
+    }
+
+    /**
+     * The least (-1) or greatest (1) value.
+     */
+    private static class Extreme extends Accumulator
+    {
+        final int direction;
+        Object value;
+
+        Extreme(int direction)
+        {
+            this.direction = direction;
+        }
+
+        @Override
+        void add(Object value)
+        {
+            if (value == null)
+                return;
+            if (this.value == null || OrderedSelection.compareValues(value, this.value) * direction > 0)
+                this.value = value;
+        }
+
+        @Override
+        void merge(Accumulator other)
+        {
+            add(((Extreme) other).value);
+        }
+
+        @Override
+        Object getValue()
+        {
+            return value;
+        }
+    }
+}
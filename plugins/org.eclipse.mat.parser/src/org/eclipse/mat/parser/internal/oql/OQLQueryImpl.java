@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,10 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - bug fixes for instanceof
+ *    IBM Corporation - evaluate the WHERE clause with several threads
+ *    IBM Corporation - evaluate conditions on indexed attributes first
+ *    IBM Corporation - ORDER BY and LIMIT
+ *    IBM Corporation - GROUP BY and aggregates
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql;
 
@@ -18,6 +22,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -29,9 +35,12 @@ import org.eclipse.mat.collect.IteratorInt;
 import org.eclipse.mat.collect.IteratorLong;
 import org.eclipse.mat.collect.SetInt;
 import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.parser.internal.oql.compiler.Aggregate;
 import org.eclipse.mat.parser.internal.oql.compiler.CompilerImpl;
 import org.eclipse.mat.parser.internal.oql.compiler.EvaluationContext;
 import org.eclipse.mat.parser.internal.oql.compiler.Expression;
+import org.eclipse.mat.parser.internal.oql.compiler.FilterPlan;
+import org.eclipse.mat.parser.internal.oql.compiler.IndexedObject;
 import org.eclipse.mat.parser.internal.oql.compiler.Query;
 import org.eclipse.mat.parser.internal.oql.compiler.Query.SelectItem;
 import org.eclipse.mat.parser.internal.oql.parser.OQLParser;
@@ -56,8 +65,28 @@ import org.eclipse.mat.util.VoidProgressListener;
 
 public class OQLQueryImpl implements IOQLQuery
 {
+    /**
+     * Fewest objects for which the WHERE clause is evaluated by several
+     * threads.
+     */
+    private static final int PARALLEL_FILTER_SIZE = 10000;
+
+    /**
+     * System property giving the number of threads evaluating the WHERE
+     * clause. By default there is one for each processor.
+     */
+    private static final String FILTER_THREADS = "oqlFilterThreads"; //$NON-NLS-1$
+
+    /**
+     * Number of objects evaluated by a thread at a time.
+     */
+    private static final int FILTER_BLOCK_SIZE = 1000;
+
     Query query;
     EvaluationContext ctx;
+    FilterPlan filterPlan;
+    /** the aggregates of the select list and ORDER BY clause */
+    List<Aggregate> aggregates;
 
     // //////////////////////////////////////////////////////////////
     // result set implementations
@@ -341,6 +370,65 @@ public class OQLQueryImpl implements IOQLQuery
         }
     }
 
+    /**
+     * Result from a select with GROUP BY or aggregates, one row per group.
+     * The values are calculated when the groups are complete.
+     */
+    private static class GroupResultSet implements CustomTableResultSet
+    {
+        OQLQueryImpl source;
+
+        Column[] columns;
+        Object[][] rows;
+
+        GroupResultSet(OQLQueryImpl source, Object[][] rows)
+        {
+            this.source = source;
+            this.rows = rows;
+
+            List<SelectItem> selectList = source.query.getSelectClause().getSelectList();
+            columns = new Column[selectList.size()];
+            for (int ii = 0; ii < columns.length; ii++)
+                columns[ii] = buildColumn(selectList.get(ii), rows[0][ii]);
+        }
+
+        public ResultMetaData getResultMetaData()
+        {
+            return null;
+        }
+
+        public Column[] getColumns()
+        {
+            return columns;
+        }
+
+        public int getRowCount()
+        {
+            return rows.length;
+        }
+
+        public Object getColumnValue(Object row, int columnIndex)
+        {
+            return rows[(Integer) row][columnIndex];
+        }
+
+        public IContextObject getContext(Object row)
+        {
+            // a group has no single object
+            return null;
+        }
+
+        public Object getRow(int index)
+        {
+            return index;
+        }
+
+        public String getOQLQuery()
+        {
+            return source.query.toString();
+        }
+    }
+
     private static Column buildColumn(SelectItem column, Object columnValue)
     {
         String name = column.getName();
@@ -648,6 +736,22 @@ public class OQLQueryImpl implements IOQLQuery
 
         if (query.getFromClause() != null)
             this.ctx.setAlias(query.getFromClause().getAlias());
+
+        this.filterPlan = FilterPlan.create(query.getWhereClause(), this.ctx);
+
+        this.aggregates = new ArrayList<Aggregate>();
+        if (query.getSelectClause() != null)
+        {
+            for (SelectItem item : query.getSelectClause().getSelectList())
+                Aggregate.collect(item.getExpression(), aggregates);
+        }
+        if (query.getOrderBy() != null)
+        {
+            for (Query.OrderByItem item : query.getOrderBy())
+                Aggregate.collect(item.getExpression(), aggregates);
+        }
+        for (int ii = 0; ii < aggregates.size(); ii++)
+            aggregates.get(ii).setIndex(ii);
     }
 
     private void initSnapshot(ISnapshot snapshot)
@@ -955,31 +1059,57 @@ public class OQLQueryImpl implements IOQLQuery
             else if (result instanceof Iterable)
             {
                 List<Object> r = new ArrayList<Object>();
+                Selection selection = createSelection();
 
                 for (Object obj : (Iterable<?>) result)
                 {
                     if (accept(obj))
-                        r.add(obj);
+                    {
+                        if (selection == null)
+                            r.add(obj);
+                        else if (addSelected(selection, obj))
+                            break;
+                    }
                 }
 
+                if (selection != null)
+                    return select(selection, false, listener);
+
                 return r.isEmpty() ? null : select(r, listener);
             }
             else if (result.getClass().isArray())
             {
                 List<Object> r = new ArrayList<Object>();
+                Selection selection = createSelection();
 
                 int length = Array.getLength(result);
                 for (int ii = 0; ii < length; ii++)
                 {
                     Object obj = Array.get(result, ii);
                     if (accept(obj))
-                        r.add(obj);
+                    {
+                        if (selection == null)
+                            r.add(obj);
+                        else if (addSelected(selection, obj))
+                            break;
+                    }
                 }
 
+                if (selection != null)
+                    return select(selection, false, listener);
+
                 return r.isEmpty() ? null : select(r, listener);
             }
             else
             {
+                Selection selection = createSelection();
+                if (selection != null)
+                {
+                    if (accept(result))
+                        addSelected(selection, result);
+                    return select(selection, false, listener);
+                }
+
                 return accept(result) ? select(result, listener) : null;
             }
         }
@@ -1105,15 +1235,27 @@ public class OQLQueryImpl implements IOQLQuery
             listener.beginTask(Messages.OQLQueryImpl_SelectingObjects, classes.size());
 
             IntResult filteredSet = createIntResult(classes.size());
+            Selection selection = createSelection();
+            IndexedObject indexed = new IndexedObject(ctx.getSnapshot());
             for (IClass clasz : classes)
             {
-                if (accept(clasz.getObjectId()))
-                    filteredSet.add(clasz.getObjectId());
+                int id = clasz.getObjectId();
+                if (accept(ctx, indexed, id))
+                {
+                    if (selection == null)
+                        filteredSet.add(id);
+                    else if (addSelected(selection, indexed, id))
+                        break;
+                }
 
                 if (listener.isCanceled())
                     throw new IProgressListener.OperationCanceledException();
                 listener.worked(1);
             }
+
+            if (selection != null)
+                return select(selection, true, listener);
+
             return filteredSet.isEmpty() ? null : select(filteredSet, listener);
 
         }
@@ -1122,36 +1264,63 @@ public class OQLQueryImpl implements IOQLQuery
             listener.beginTask(Messages.OQLQueryImpl_CollectingObjects, classes.size());
 
             IntResult filteredSet = createIntResult(classes.size() * 100);
+            Selection selection = createSelection();
             for (IClass clasz : classes)
             {
                 listener.subTask(MessageUtil.format(Messages.OQLQueryImpl_CheckingClass,
                                 new Object[] { clasz.getName() }));
 
-                int[] ids = clasz.getObjectIds();
-                for (int id : ids)
-                {
-                    if (accept(id))
-                        filteredSet.add(id);
-                }
+                filter(clasz.getObjectIds(), filteredSet, selection, listener);
 
                 if (listener.isCanceled())
                     throw new IProgressListener.OperationCanceledException();
                 listener.worked(1);
+
+                if (selection != null && selection.isFull())
+                    break;
             }
 
+            if (selection != null)
+                return select(selection, true, listener);
+
             return filteredSet.isEmpty() ? null : select(filteredSet, listener);
         }
     }
 
-    private boolean accept(int objectId) throws SnapshotException
+    /**
+     * Evaluates first the conditions which only need the indexes, and reads
+     * the object only if there are other conditions.
+     */
+    private boolean accept(EvaluationContext ctx, IndexedObject indexed, int objectId) throws SnapshotException
     {
-        if (query.getWhereClause() == null)
+        Expression indexFilter = filterPlan.getIndexFilter();
+        if (indexFilter != null)
+        {
+            indexed.setObjectId(objectId);
+            ctx.setSubject(indexed);
+
+            Boolean result = (Boolean) indexFilter.compute(ctx);
+            if (result == null || !result.booleanValue())
+                return false;
+        }
+
+        Expression objectFilter = filterPlan.getObjectFilter();
+        if (objectFilter == null)
             return true;
 
-        return accept(ctx.getSnapshot().getObject(objectId));
+        ctx.setSubject(ctx.getSnapshot().getObject(objectId));
+
+        Boolean result = (Boolean) objectFilter.compute(ctx);
+
+        return result == null ? false : result.booleanValue();
     }
 
     private boolean accept(Object object) throws SnapshotException
+    {
+        return accept(ctx, object);
+    }
+
+    private boolean accept(EvaluationContext ctx, Object object) throws SnapshotException
     {
         if (query.getWhereClause() == null)
             return true;
@@ -1165,19 +1334,254 @@ public class OQLQueryImpl implements IOQLQuery
 
     private Object filterAndSelect(IntResult objectIds, IProgressListener listener) throws SnapshotException
     {
-        IntResult filteredSet = createIntResult(objectIds.size());
+        Selection selection = createSelection();
+        if (selection == null)
+        {
+            IntResult filteredSet = createIntResult(objectIds.size());
+
+            filter(objectIds.toArray(), filteredSet, null, listener);
+
+            return filteredSet.isEmpty() ? null : select(filteredSet, listener);
+        }
+
+        int[] ids = objectIds.toArray();
+        if (query.getSelectClause().isDistinct())
+        {
+            // drop duplicates first so that the LIMIT counts distinct objects
+            SetInt seen = new SetInt(ids.length);
+            ArrayInt unique = new ArrayInt(ids.length);
+            for (int id : ids)
+            {
+                if (seen.add(id))
+                    unique.add(id);
+            }
+            ids = unique.toArray();
+        }
+
+        filter(ids, null, selection, listener);
+
+        return select(selection, true, listener);
+    }
+
+    /**
+     * Adds the objects which satisfy the WHERE clause to the result, in
+     * order, or to the selection if the query has an ORDER BY, LIMIT or
+     * GROUP BY clause. Many objects are evaluated by several threads, unless this is
+     * already one of them evaluating a sub-query.
+     */
+    private void filter(int[] objectIds, IntResult result, Selection selection, IProgressListener listener)
+                    throws SnapshotException
+    {
+        if (selection == null && query.getWhereClause() == null)
+        {
+            result.addAll(objectIds);
+            return;
+        }
+
+        // without WHERE and ORDER BY the LIMIT is reached quickest by one thread
+        boolean evaluate = query.getWhereClause() != null || selection.isEvaluating();
 
-        for (IntIterator iter = objectIds.iterator(); iter.hasNext();)
+        int threads = Integer.getInteger(FILTER_THREADS, Runtime.getRuntime().availableProcessors());
+        if (evaluate && threads > 1 && objectIds.length >= PARALLEL_FILTER_SIZE
+                        && !(Thread.currentThread() instanceof FilterThread))
+        {
+            filterMultiThreaded(objectIds, result, selection, threads, listener);
+            return;
+        }
+
+        IndexedObject indexed = new IndexedObject(ctx.getSnapshot());
+        for (int ii = 0; ii < objectIds.length; ii++)
         {
             if (listener.isCanceled())
                 throw new IProgressListener.OperationCanceledException();
 
-            int id = iter.nextInt();
-            if (accept(id))
-                filteredSet.add(id);
+            if (accept(ctx, indexed, objectIds[ii]))
+            {
+                if (selection == null)
+                    result.add(objectIds[ii]);
+                else if (addSelected(selection, ctx, indexed, objectIds[ii], selection.scanned + ii))
+                    break;
+            }
+        }
+
+        if (selection != null)
+            selection.scanned += objectIds.length;
+    }
+
+    /**
+     * @return the selection for the GROUP BY, ORDER BY or LIMIT clauses of
+     *         the query, or null if the objects are selected in scan order
+     */
+    private Selection createSelection()
+    {
+        if (query.getGroupBy() != null || !aggregates.isEmpty())
+            return new GroupedSelection(query.getGroupBy(), aggregates, ctx);
+        if (query.getOrderBy() != null || query.getLimit() >= 0)
+            return new OrderedSelection(query, ctx);
+        return null;
+    }
+
+    /**
+     * Adds an accepted object to the selection.
+     * 
+     * @return true if no further object can be selected
+     */
+    private boolean addSelected(Selection selection, EvaluationContext ctx, IndexedObject indexed, int objectId,
+                    long sequence) throws SnapshotException
+    {
+        Object subject = null;
+        if (selection.isEvaluating())
+        {
+            if (selection.isIndexed())
+            {
+                indexed.setObjectId(objectId);
+                subject = indexed;
+            }
+            else
+            {
+                // the WHERE clause may have read the object already
+                subject = ctx.getSubject();
+                if (!(subject instanceof IObject) || ((IObject) subject).getObjectId() != objectId)
+                    subject = ctx.getSnapshot().getObject(objectId);
+            }
+        }
+
+        selection.add(ctx, objectId, subject, sequence);
+        return selection.isFull();
+    }
+
+    private boolean addSelected(Selection selection, IndexedObject indexed, int objectId) throws SnapshotException
+    {
+        return addSelected(selection, ctx, indexed, objectId, selection.scanned++);
+    }
+
+    private boolean addSelected(Selection selection, Object object) throws SnapshotException
+    {
+        selection.add(ctx, object, object, selection.scanned++);
+        return selection.isFull();
+    }
+
+    private static class FilterThread extends Thread
+    {
+        FilterThread(Runnable runnable, String name)
+        {
+            super(runnable, name);
+        }
+    }
+
+    /**
+     * The threads take blocks of objects in turn and evaluate the WHERE
+     * clause with their own copy of the evaluation context. The objects
+     * accepted from each block are then added to the result in block order.
+     * With a selection each thread selects from its blocks on its own, and
+     * the selections of the threads are merged at the end.
+     */
+    private void filterMultiThreaded(final int[] objectIds, IntResult result, Selection selection,
+                    int numberOfThreads, IProgressListener listener) throws SnapshotException
+    {
+        final int blocks = (objectIds.length + FILTER_BLOCK_SIZE - 1) / FILTER_BLOCK_SIZE;
+        final int[][] accepted = new int[blocks][];
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final long scanned = selection != null ? selection.scanned : 0;
+
+        numberOfThreads = Math.min(numberOfThreads, blocks);
+        final Throwable[] failures = new Throwable[numberOfThreads];
+        final Selection[] selections = new Selection[numberOfThreads];
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++)
+        {
+            final int index = i;
+            if (selection != null)
+                selections[i] = selection.copy();
+            threads[i] = new FilterThread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        EvaluationContext local = ctx.copy();
+                        IndexedObject indexed = new IndexedObject(local.getSnapshot());
+                        Selection localSelection = selections[index];
+                        ArrayInt block = new ArrayInt(FILTER_BLOCK_SIZE);
+                        // a thread takes its blocks in scan order, so once its
+                        // selection is full later blocks cannot add to it
+                        for (int b = nextBlock.getAndIncrement(); b < blocks && !stopped.get()
+                                        && (localSelection == null || !localSelection.isFull()); b = nextBlock
+                                        .getAndIncrement())
+                        {
+                            block.clear();
+                            int end = Math.min(objectIds.length, (b + 1) * FILTER_BLOCK_SIZE);
+                            for (int ii = b * FILTER_BLOCK_SIZE; ii < end; ii++)
+                            {
+                                if (accept(local, indexed, objectIds[ii]))
+                                {
+                                    if (localSelection == null)
+                                        block.add(objectIds[ii]);
+                                    else
+                                        addSelected(localSelection, local, indexed, objectIds[ii], scanned + ii);
+                                }
+                            }
+                            if (localSelection == null)
+                                accepted[b] = block.toArray();
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failures[index] = t;
+                        stopped.set(true);
+                    }
+                }
+            }, "OQLFilterThread-" + (i + 1)); //$NON-NLS-1$
+            threads[i].start();
+        }
+
+        try
+        {
+            for (Thread thread : threads)
+            {
+                while (thread.isAlive())
+                {
+                    thread.join(100);
+                    if (listener.isCanceled())
+                    {
+                        stopped.set(true);
+                        throw new IProgressListener.OperationCanceledException();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            stopped.set(true);
+            IProgressListener.OperationCanceledException oc = new IProgressListener.OperationCanceledException();
+            oc.initCause(e);
+            throw oc;
+        }
+
+        for (Throwable failure : failures)
+        {
+            if (failure instanceof SnapshotException)
+                throw (SnapshotException) failure;
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw new SnapshotException(failure);
         }
 
-        return filteredSet.isEmpty() ? null : select(filteredSet, listener);
+        if (selection != null)
+        {
+            for (Selection localSelection : selections)
+                selection.addAll(localSelection);
+            selection.scanned += objectIds.length;
+        }
+        else
+        {
+            for (int[] block : accepted)
+                result.addAll(block);
+        }
     }
 
     private Object select(IntResult objectIds, IProgressListener listener) throws SnapshotException
@@ -1256,6 +1660,111 @@ public class OQLQueryImpl implements IOQLQuery
         }
     }
 
+    /**
+     * Selects the objects of an ordered selection, or the groups of a grouped
+     * selection.
+     * 
+     * @param objectIds
+     *            the selection holds object ids rather than objects
+     */
+    private Object select(Selection selection, boolean objectIds, IProgressListener listener)
+                    throws SnapshotException
+    {
+        if (selection instanceof GroupedSelection)
+            return selectGroups(((GroupedSelection) selection).getGroups(), objectIds, listener);
+
+        OrderedSelection ordered = (OrderedSelection) selection;
+        if (objectIds)
+        {
+            IntResult r = new IntArrayResult(ordered.toArray());
+            return r.isEmpty() ? null : select(r, listener);
+        }
+        else
+        {
+            List<Object> r = ordered.toList();
+            return r.isEmpty() ? null : select(r, listener);
+        }
+    }
+
+    /**
+     * The select list and the ORDER BY clause are evaluated on the first
+     * object of each group, with the values of the aggregates of the group.
+     * Without a select list the first objects are selected.
+     */
+    private Object selectGroups(List<GroupedSelection.Group> groups, boolean objectIds, IProgressListener listener)
+                    throws SnapshotException
+    {
+        if (groups.isEmpty())
+            return null;
+
+        try
+        {
+            if (query.getOrderBy() != null || query.getLimit() >= 0)
+            {
+                OrderedSelection ordered = new OrderedSelection(query, ctx);
+                for (int ii = 0; ii < groups.size(); ii++)
+                {
+                    GroupedSelection.Group group = groups.get(ii);
+                    ctx.setAggregates(group.getAggregates());
+                    ordered.add(ctx, group, ordered.isEvaluating() ? subject(group, objectIds) : null, ii);
+                }
+
+                List<GroupedSelection.Group> sorted = new ArrayList<GroupedSelection.Group>(groups.size());
+                for (Object group : ordered.toList())
+                    sorted.add((GroupedSelection.Group) group);
+                groups = sorted;
+            }
+
+            Query.SelectClause select = query.getSelectClause();
+            if (select.getSelectList().isEmpty() || select.isAsObjects() || select.isRetainedSet())
+            {
+                ctx.setAggregates(null);
+
+                if (objectIds)
+                {
+                    IntResult r = new IntArrayResult(groups.size());
+                    for (GroupedSelection.Group group : groups)
+                        r.add((Integer) group.getElement());
+                    return r.isEmpty() ? null : select(r, listener);
+                }
+                else
+                {
+                    List<Object> r = new ArrayList<Object>(groups.size());
+                    for (GroupedSelection.Group group : groups)
+                        r.add(group.getElement());
+                    return r.isEmpty() ? null : select(r, listener);
+                }
+            }
+
+            List<SelectItem> selectList = select.getSelectList();
+            Object[][] rows = new Object[groups.size()][];
+            for (int ii = 0; ii < rows.length; ii++)
+            {
+                GroupedSelection.Group group = groups.get(ii);
+                Object subject = subject(group, objectIds);
+                ctx.setAggregates(group.getAggregates());
+
+                rows[ii] = new Object[selectList.size()];
+                for (int jj = 0; jj < rows[ii].length; jj++)
+                {
+                    ctx.setSubject(subject);
+                    rows[ii][jj] = selectList.get(jj).getExpression().compute(ctx);
+                }
+            }
+
+            return new GroupResultSet(getSelectQuery(), rows);
+        }
+        finally
+        {
+            ctx.setAggregates(null);
+        }
+    }
+
+    private Object subject(GroupedSelection.Group group, boolean objectIds) throws SnapshotException
+    {
+        return objectIds ? ctx.getSnapshot().getObject((Integer) group.getElement()) : group.getElement();
+    }
+
     /**
      * Get an query without the union clause for results before applying the union clause.
      * @return A new query without the union clause.
@@ -1265,6 +1774,17 @@ public class OQLQueryImpl implements IOQLQuery
         q2.setSelectClause(query.getSelectClause());
         q2.setFromClause(query.getFromClause());
         q2.setWhereClause(query.getWhereClause());
+        if (query.getGroupBy() != null)
+        {
+            for (Expression expression : query.getGroupBy())
+                q2.addGroupBy(expression);
+        }
+        if (query.getOrderBy() != null)
+        {
+            for (Query.OrderByItem item : query.getOrderBy())
+                q2.addOrderBy(item);
+        }
+        q2.setLimit(query.getLimit());
         OQLQueryImpl qi = new OQLQueryImpl(ctx, q2);
         return qi;
     }
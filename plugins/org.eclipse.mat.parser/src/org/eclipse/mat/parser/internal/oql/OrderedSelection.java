@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.parser.internal.oql.compiler.EvaluationContext;
+import org.eclipse.mat.parser.internal.oql.compiler.FilterPlan;
+import org.eclipse.mat.parser.internal.oql.compiler.Query;
+import org.eclipse.mat.snapshot.model.IObject;
+
+/**
+ * The objects selected by a query with an ORDER BY or a LIMIT clause.
+ * <p>
+ * With a LIMIT only that many objects are kept, in a heap with the last of
+ * them at its head, so a scan of many objects needs memory for the selected
+ * objects only. Objects with equal ORDER BY values, or all objects without
+ * an ORDER BY, stay in the order they were scanned.
+ */
+class OrderedSelection extends Selection
+{
+    private static final class Entry
+    {
+        final Object element;
+        final Object[] keys;
+        final long sequence;
+
+        Entry(Object element, Object[] keys, long sequence)
+        {
+            this.element = element;
+            this.keys = keys;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Query.OrderByItem> orderBy;
+    private final boolean[] descending;
+    private final boolean indexed;
+    private final int limit;
+    private final Comparator<Entry> order;
+
+    /** with a limit, the selected entries with the last at the head */
+    private final PriorityQueue<Entry> heap;
+    /** without a limit, all entries */
+    private final List<Entry> entries;
+
+    OrderedSelection(Query query, EvaluationContext ctx)
+    {
+        this(orderBy(query), isIndexed(query.getOrderBy(), ctx), query.getLimit());
+    }
+
+    private OrderedSelection(List<Query.OrderByItem> orderBy, boolean indexed, int limit)
+    {
+        this.orderBy = orderBy;
+        this.descending = new boolean[orderBy.size()];
+        for (int ii = 0; ii < descending.length; ii++)
+            descending[ii] = orderBy.get(ii).isDescending();
+        this.indexed = indexed;
+        this.limit = limit;
+        this.order = new Comparator<Entry>()
+        {
+            public int compare(Entry e1, Entry e2)
+            {
+                return compareEntries(e1, e2);
+            }
+        };
+
+        if (limit >= 0)
+        {
+            this.heap = new PriorityQueue<Entry>(Math.max(1, Math.min(limit, 1024)), Collections.reverseOrder(order));
+            this.entries = null;
+        }
+        else
+        {
+            this.heap = null;
+            this.entries = new ArrayList<Entry>();
+        }
+    }
+
+    private static List<Query.OrderByItem> orderBy(Query query)
+    {
+        List<Query.OrderByItem> orderBy = query.getOrderBy();
+        return orderBy != null ? orderBy : Collections.<Query.OrderByItem> emptyList();
+    }
+
+    private static boolean isIndexed(List<Query.OrderByItem> orderBy, EvaluationContext ctx)
+    {
+        if (orderBy == null)
+            return false;
+
+        for (Query.OrderByItem item : orderBy)
+        {
+            if (!FilterPlan.isIndexed(item.getExpression(), ctx))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    OrderedSelection copy()
+    {
+        return new OrderedSelection(orderBy, indexed, limit);
+    }
+
+    @Override
+    boolean isEvaluating()
+    {
+        return !orderBy.isEmpty();
+    }
+
+    @Override
+    boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    @Override
+    boolean isFull()
+    {
+        return orderBy.isEmpty() && limit >= 0 && heap.size() >= limit;
+    }
+
+    @Override
+    void add(EvaluationContext ctx, Object element, Object subject, long sequence) throws SnapshotException
+    {
+        Object[] keys = null;
+        if (!orderBy.isEmpty())
+        {
+            ctx.setSubject(subject);
+            keys = new Object[orderBy.size()];
+            for (int ii = 0; ii < keys.length; ii++)
+                keys[ii] = orderBy.get(ii).getExpression().compute(ctx);
+        }
+
+        add(new Entry(element, keys, sequence));
+    }
+
+    @Override
+    void addAll(Selection other)
+    {
+        OrderedSelection selection = (OrderedSelection) other;
+        for (Entry entry : selection.heap != null ? selection.heap : selection.entries)
+            add(entry);
+    }
+
+    private void add(Entry entry)
+    {
+        if (heap == null)
+        {
+            entries.add(entry);
+        }
+        else if (heap.size() < limit)
+        {
+            heap.add(entry);
+        }
+        else if (limit > 0 && order.compare(entry, heap.peek()) < 0)
+        {
+            heap.poll();
+            heap.add(entry);
+        }
+    }
+
+    /**
+     * @return the selected elements in order
+     */
+    List<Object> toList()
+    {
+        List<Entry> sorted = new ArrayList<Entry>(heap != null ? heap : entries);
+        Collections.sort(sorted, order);
+
+        List<Object> answer = new ArrayList<Object>(sorted.size());
+        for (Entry entry : sorted)
+            answer.add(entry.element);
+        return answer;
+    }
+
+    /**
+     * @return the selected object ids in order
+     */
+    int[] toArray()
+    {
+        List<Object> elements = toList();
+        int[] answer = new int[elements.size()];
+        for (int ii = 0; ii < answer.length; ii++)
+            answer[ii] = (Integer) elements.get(ii);
+        return answer;
+    }
+
+    private int compareEntries(Entry e1, Entry e2)
+    {
+        for (int ii = 0; ii < descending.length; ii++)
+        {
+            Object v1 = e1.keys[ii];
+            Object v2 = e2.keys[ii];
+
+            // null values come last in either direction
+            if (v1 == null || v2 == null)
+            {
+                if (v1 != v2)
+                    return v1 == null ? 1 : -1;
+                continue;
+            }
+
+            int c = compareValues(v1, v2);
+            if (c != 0)
+                return descending[ii] ? -c : c;
+        }
+
+        return e1.sequence < e2.sequence ? -1 : e1.sequence == e2.sequence ? 0 : 1;
+    }
+
+    /**
+     * Compares numbers by value, objects by id, and other values of the same
+     * class by their natural order, else by their text.
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object v1, Object v2)
+    {
+        if (v1 instanceof Number && v2 instanceof Number)
+        {
+            if (v1 instanceof Double || v1 instanceof Float || v2 instanceof Double || v2 instanceof Float)
+                return Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+
+            long l1 = ((Number) v1).longValue();
+            long l2 = ((Number) v2).longValue();
+            return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+        }
+        else if (v1 instanceof IObject && v2 instanceof IObject)
+        {
+            int id1 = ((IObject) v1).getObjectId();
+            int id2 = ((IObject) v2).getObjectId();
+            return id1 < id2 ? -1 : id1 == id2 ? 0 : 1;
+        }
+        else if (v1 instanceof Comparable && v1.getClass() == v2.getClass())
+        {
+            return ((Comparable<Object>) v1).compareTo(v2);
+        }
+        else
+        {
+            return String.valueOf(v1).compareTo(String.valueOf(v2));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.parser.internal.oql.compiler.EvaluationContext;
+
+/**
+ * Collects the objects accepted by the scan of a query which are not simply
+ * added to the result in scan order, because the query has an ORDER BY,
+ * LIMIT or GROUP BY clause.
+ * <p>
+ * A selection is used by one thread. Each filter thread has its own copy,
+ * and the copies are added together at the end.
+ */
+abstract class Selection
+{
+    /** the number of objects scanned, for the sequence of the next ones */
+    long scanned;
+
+    /**
+     * An empty selection of the same kind, for another thread.
+     */
+    abstract Selection copy();
+
+    /**
+     * Are expressions evaluated for each object?
+     */
+    abstract boolean isEvaluating();
+
+    /**
+     * Can the expressions be evaluated with only the indexed attributes of
+     * the objects, see {@link org.eclipse.mat.parser.internal.oql.compiler.IndexedObject}?
+     */
+    abstract boolean isIndexed();
+
+    /**
+     * No object scanned later can be selected any more.
+     */
+    abstract boolean isFull();
+
+    /**
+     * @param ctx
+     *            the context to evaluate the expressions with
+     * @param element
+     *            the object id as an Integer, or the object
+     * @param subject
+     *            the object or its indexed attributes to evaluate the
+     *            expressions on, or null if the selection is not evaluating
+     * @param sequence
+     *            the position of the object in the scan
+     */
+    abstract void add(EvaluationContext ctx, Object element, Object subject, long sequence) throws SnapshotException;
+
+    /**
+     * Adds the objects selected by another thread.
+     */
+    abstract void addAll(Selection other);
+}
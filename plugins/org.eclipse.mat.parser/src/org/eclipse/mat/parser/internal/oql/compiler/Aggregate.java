@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql.compiler;
+
+import java.util.List;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.parser.internal.Messages;
+import org.eclipse.mat.util.MessageUtil;
+import org.eclipse.mat.util.IProgressListener.OperationCanceledException;
+
+/**
+ * A built-in aggregate function such as count(s), over the objects of one
+ * group of a GROUP BY clause or, without a GROUP BY clause, over all the
+ * selected objects.
+ * <p>
+ * The argument is evaluated for each object while the objects are scanned.
+ * The aggregate itself yields the value for the current group, see
+ * {@link EvaluationContext#getAggregates()}.
+ */
+public abstract class Aggregate extends Function
+{
+    private int index = -1;
+
+    Aggregate(Expression argument)
+    {
+        super(argument);
+    }
+
+    public Expression getArgument()
+    {
+        return argument;
+    }
+
+    /**
+     * @param index
+     *            the position of the value of this aggregate in the values of
+     *            the aggregates of a group
+     */
+    public void setIndex(int index)
+    {
+        this.index = index;
+    }
+
+    @Override
+    public Object compute(EvaluationContext ctx) throws SnapshotException, OperationCanceledException
+    {
+        Object[] values = ctx.getAggregates();
+        if (values == null || index < 0)
+            throw new SnapshotException(MessageUtil.format(Messages.Aggregate_Error_NotGrouped, this));
+
+        return values[index];
+    }
+
+    /**
+     * Adds the aggregates used by the expression to the list, but not those
+     * of sub-queries.
+     */
+    public static void collect(Expression expression, List<Aggregate> aggregates)
+    {
+        if (expression instanceof Aggregate)
+        {
+            aggregates.add((Aggregate) expression);
+        }
+        else if (expression instanceof Function)
+        {
+            collect(((Function) expression).argument, aggregates);
+        }
+        else if (expression instanceof Operation)
+        {
+            for (Expression argument : ((Operation) expression).getArguments())
+                collect(argument, aggregates);
+        }
+        else if (expression instanceof PathExpression)
+        {
+            for (Object element : ((PathExpression) expression).attributes)
+            {
+                if (element instanceof MethodCallExpression)
+                {
+                    for (Expression parameter : ((MethodCallExpression) element).parameters)
+                        collect(parameter, aggregates);
+                }
+                else if (element instanceof ArrayIndexExpression)
+                {
+                    for (Expression parameter : ((ArrayIndexExpression) element).parameters)
+                        collect(parameter, aggregates);
+                }
+                else if (element instanceof Expression)
+                {
+                    collect((Expression) element, aggregates);
+                }
+            }
+        }
+    }
+
+    public static class Count extends Aggregate
+    {
+        public Count(Expression argument)
+        {
+            super(argument);
+        }
+
+        @Override
+        public String getSymbol()
+        {
+            return "count";//$NON-NLS-1$
+        }
+    }
+
+    public static class Sum extends Aggregate
+    {
+        public Sum(Expression argument)
+        {
+            super(argument);
+        }
+
+        @Override
+        public String getSymbol()
+        {
+            return "sum";//$NON-NLS-1$
+        }
+    }
+
+    public static class Min extends Aggregate
+    {
+        public Min(Expression argument)
+        {
+            super(argument);
+        }
+
+        @Override
+        public String getSymbol()
+        {
+            return "min";//$NON-NLS-1$
+        }
+    }
+
+    public static class Max extends Aggregate
+    {
+        public Max(Expression argument)
+        {
+            super(argument);
+        }
+
+        @Override
+        public String getSymbol()
+        {
+            return "max";//$NON-NLS-1$
+        }
+    }
+
+    public static class Avg extends Aggregate
+    {
+        public Avg(Expression argument)
+        {
+            super(argument);
+        }
+
+        @Override
+        public String getSymbol()
+        {
+            return "avg";//$NON-NLS-1$
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2014 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,7 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - array indexing
+ *    IBM Corporation - aggregate functions
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
@@ -146,6 +147,26 @@ public class CompilerImpl implements ICompiler
         {
             return new Function.Eval((Expression) subject);
         }
+        else if ("count".equals(name))//$NON-NLS-1$
+        {
+            return new Aggregate.Count((Expression) subject);
+        }
+        else if ("sum".equals(name))//$NON-NLS-1$
+        {
+            return new Aggregate.Sum((Expression) subject);
+        }
+        else if ("min".equals(name))//$NON-NLS-1$
+        {
+            return new Aggregate.Min((Expression) subject);
+        }
+        else if ("max".equals(name))//$NON-NLS-1$
+        {
+            return new Aggregate.Max((Expression) subject);
+        }
+        else if ("avg".equals(name))//$NON-NLS-1$
+        {
+            return new Aggregate.Avg((Expression) subject);
+        }
         else
         {
             return null;
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,6 +7,8 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - evaluation by several threads
+ *    IBM Corporation - values of aggregates
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
@@ -21,12 +23,26 @@ public class EvaluationContext
 
     String alias;
 
+    Object[] aggregates;
+
     public EvaluationContext(EvaluationContext parent)
     {
         this.parent = parent;
         this.snapshot = parent != null ? parent.snapshot : null;
     }
 
+    /**
+     * A context with the same parent, snapshot and alias, for evaluating the
+     * same query on another thread.
+     */
+    public EvaluationContext copy()
+    {
+        EvaluationContext copy = new EvaluationContext(parent);
+        copy.snapshot = snapshot;
+        copy.alias = alias;
+        return copy;
+    }
+
     public ISnapshot getSnapshot()
     {
         return snapshot != null ? snapshot : parent != null ? parent.getSnapshot() : null;
@@ -47,6 +63,20 @@ public class EvaluationContext
         this.subject = subject;
     }
 
+    /**
+     * The values of the aggregates of the current group, see
+     * {@link Aggregate}, or null outside of a group.
+     */
+    public Object[] getAggregates()
+    {
+        return aggregates != null ? aggregates : parent != null ? parent.getAggregates() : null;
+    }
+
+    public void setAggregates(Object[] aggregates)
+    {
+        this.aggregates = aggregates;
+    }
+
     public Object getAlias(String name)
     {
         if (name == null)
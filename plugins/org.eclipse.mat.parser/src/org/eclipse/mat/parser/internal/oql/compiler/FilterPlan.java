@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.mat.parser.internal.oql.compiler.CompilerImpl.ConstantExpression;
+
+/**
+ * Splits a WHERE clause into the conditions which only need the built-in
+ * attributes of an object available from the snapshot indexes, and the
+ * conditions which need the object itself.
+ * <p>
+ * The first are evaluated against an {@link IndexedObject}, so objects they
+ * reject are never read from the heap dump. Their conditions are evaluated
+ * before the others.
+ */
+public class FilterPlan
+{
+    /**
+     * Built-in attributes read from the indexes, see {@link IndexedObject}.
+     */
+    private static final Set<String> INDEXED_ATTRIBUTES = new HashSet<String>(Arrays.asList(new String[] {
+                    "objectId", "objectAddress", "usedHeapSize", "retainedHeapSize", "clazz" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+    private final Expression indexFilter;
+    private final Expression objectFilter;
+
+    private FilterPlan(Expression indexFilter, Expression objectFilter)
+    {
+        this.indexFilter = indexFilter;
+        this.objectFilter = objectFilter;
+    }
+
+    /**
+     * @param whereClause
+     *            the WHERE clause, or null
+     * @param ctx
+     *            the context of the query, with the alias of the FROM clause
+     * @return the plan for the WHERE clause
+     */
+    public static FilterPlan create(Expression whereClause, EvaluationContext ctx)
+    {
+        if (whereClause == null)
+            return new FilterPlan(null, null);
+
+        Expression[] conditions = whereClause instanceof Operation.And ? ((Operation.And) whereClause)
+                        .getArguments() : new Expression[] { whereClause };
+
+        List<Expression> indexConditions = new ArrayList<Expression>();
+        List<Expression> objectConditions = new ArrayList<Expression>();
+        for (Expression condition : conditions)
+        {
+            if (isIndexed(condition, ctx))
+                indexConditions.add(condition);
+            else
+                objectConditions.add(condition);
+        }
+
+        return new FilterPlan(and(indexConditions), and(objectConditions));
+    }
+
+    private static Expression and(List<Expression> conditions)
+    {
+        if (conditions.isEmpty())
+            return null;
+        if (conditions.size() == 1)
+            return conditions.get(0);
+        return new Operation.And(conditions.toArray(new Expression[conditions.size()]));
+    }
+
+    /**
+     * The conditions to evaluate against an {@link IndexedObject}, or null.
+     */
+    public Expression getIndexFilter()
+    {
+        return indexFilter;
+    }
+
+    /**
+     * The conditions to evaluate against the object, or null.
+     */
+    public Expression getObjectFilter()
+    {
+        return objectFilter;
+    }
+
+    /**
+     * Can the expression be evaluated with only the indexed attributes of the
+     * subject?
+     */
+    public static boolean isIndexed(Expression expression, EvaluationContext ctx)
+    {
+        if (expression instanceof ConstantExpression)
+            return true;
+
+        if (expression instanceof Operation)
+            return isIndexed(((Operation) expression).getArguments(), ctx);
+
+        if (expression instanceof Function)
+            return isIndexed(((Function) expression).argument, ctx);
+
+        if (expression instanceof PathExpression)
+            return isIndexed((PathExpression) expression, ctx);
+
+        if (expression instanceof QueryExpression)
+            return !expression.isContextDependent(ctx);
+
+        return false;
+    }
+
+    /**
+     * Can the argument of the aggregate be evaluated with only the indexed
+     * attributes of the subject? count(s) on the alias of the query only needs
+     * to see that there is an object.
+     */
+    public static boolean isIndexed(Aggregate aggregate, EvaluationContext ctx)
+    {
+        if (aggregate instanceof Aggregate.Count && aggregate.argument instanceof PathExpression)
+        {
+            List<Object> attributes = ((PathExpression) aggregate.argument).attributes;
+            if (attributes.size() == 1 && attributes.get(0) instanceof Attribute)
+            {
+                Attribute attribute = (Attribute) attributes.get(0);
+                if (!attribute.isNative() && !attribute.isEnvVar() && attribute.getName().equals(ctx.alias))
+                    return true;
+            }
+        }
+
+        return isIndexed(aggregate.argument, ctx);
+    }
+
+    private static boolean isIndexed(Expression[] expressions, EvaluationContext ctx)
+    {
+        for (Expression expression : expressions)
+        {
+            if (!isIndexed(expression, ctx))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isIndexed(PathExpression path, EvaluationContext ctx)
+    {
+        List<Object> attributes = path.attributes;
+
+        int index = 0;
+        Object first = attributes.get(0);
+        if (!(first instanceof Attribute))
+            return false;
+
+        Attribute attribute = (Attribute) first;
+        if (attribute.isEnvVar())
+            return false;
+        if (!attribute.isNative())
+        {
+            if (attribute.getName().equals(ctx.alias))
+            {
+                // the alias of this query must be followed by an indexed attribute
+                index++;
+                if (index >= attributes.size() || !(attributes.get(index) instanceof Attribute))
+                    return false;
+                attribute = (Attribute) attributes.get(index);
+                if (!attribute.isNative() || !INDEXED_ATTRIBUTES.contains(attribute.getName()))
+                    return false;
+            }
+            else if (!ctx.isAlias(attribute.getName()) && !"snapshot".equals(attribute.getName())) //$NON-NLS-1$
+            {
+                // a field of the subject
+                return false;
+            }
+        }
+        else if (!INDEXED_ATTRIBUTES.contains(attribute.getName()))
+        {
+            return false;
+        }
+
+        // the arguments of method calls and array indexes further on the path
+        for (index++; index < attributes.size(); index++)
+        {
+            Object element = attributes.get(index);
+            if (element instanceof MethodCallExpression)
+            {
+                if (!isIndexed(((MethodCallExpression) element).parameters.toArray(new Expression[0]), ctx))
+                    return false;
+            }
+            else if (element instanceof ArrayIndexExpression)
+            {
+                if (!isIndexed(((ArrayIndexExpression) element).parameters.toArray(new Expression[0]), ctx))
+                    return false;
+            }
+            else if (element instanceof Expression)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
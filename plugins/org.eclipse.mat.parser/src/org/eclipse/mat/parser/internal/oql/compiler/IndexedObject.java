@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.internal.oql.compiler;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.model.IClass;
+
+/**
+ * The built-in attributes of an object, read from the snapshot indexes
+ * without reading the object from the heap dump. The properties have the
+ * same names and values as those of {@link org.eclipse.mat.snapshot.model.IObject}.
+ * <p>
+ * One instance is reused for the objects evaluated by one thread.
+ */
+public class IndexedObject
+{
+    private final ISnapshot snapshot;
+    private int objectId;
+
+    public IndexedObject(ISnapshot snapshot)
+    {
+        this.snapshot = snapshot;
+    }
+
+    public void setObjectId(int objectId)
+    {
+        this.objectId = objectId;
+    }
+
+    public int getObjectId()
+    {
+        return objectId;
+    }
+
+    public long getObjectAddress() throws SnapshotException
+    {
+        return snapshot.mapIdToAddress(objectId);
+    }
+
+    public long getUsedHeapSize() throws SnapshotException
+    {
+        return snapshot.getHeapSize(objectId);
+    }
+
+    public long getRetainedHeapSize() throws SnapshotException
+    {
+        return snapshot.getRetainedHeapSize(objectId);
+    }
+
+    public IClass getClazz() throws SnapshotException
+    {
+        return snapshot.getClassOf(objectId);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.valueOf(objectId);
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2012 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,7 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - matching of overloaded methods
+ *    IBM Corporation - reuse the method found for the same argument types
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
@@ -31,9 +32,40 @@ import org.eclipse.mat.util.PatternUtil;
 
 class MethodCallExpression extends Expression
 {
+    /**
+     * A method chosen for a subject class and the classes of the arguments,
+     * with the arguments to be converted to a {@link Pattern}.
+     */
+    private static final class ResolvedMethod
+    {
+        final Class<?> subjectClass;
+        final Class<?>[] argumentTypes;
+        final Method method;
+        final boolean[] patterns;
+
+        ResolvedMethod(Class<?> subjectClass, Class<?>[] argumentTypes, Method method, boolean[] patterns)
+        {
+            this.subjectClass = subjectClass;
+            this.argumentTypes = argumentTypes;
+            this.method = method;
+            this.patterns = patterns;
+        }
+
+        boolean matches(Class<?> subjectClass, Class<?>[] argumentTypes)
+        {
+            return this.subjectClass == subjectClass && Arrays.equals(this.argumentTypes, argumentTypes);
+        }
+    }
+
     String name;
     List<Expression> parameters;
 
+    /**
+     * The method found by the last call, so that methods are only searched
+     * again when the subject or the arguments have different classes.
+     */
+    private volatile ResolvedMethod resolved;
+
     public MethodCallExpression(String name, List<Expression> parameters)
     {
         this.name = name;
@@ -62,6 +94,26 @@ class MethodCallExpression extends Expression
             return name != null ? name : ((IObject) subject).getTechnicalName();
         }
 
+        // the method found last time for the same types of subject and arguments
+        Class<?>[] argumentTypes = new Class<?>[arguments.length];
+        for (int ii = 0; ii < arguments.length; ii++)
+        {
+            if (arguments[ii] == ConstantExpression.NULL)
+                arguments[ii] = null;
+            if (arguments[ii] != null)
+                argumentTypes[ii] = arguments[ii].getClass();
+        }
+        ResolvedMethod resolved = this.resolved;
+        if (resolved != null && resolved.matches(subject.getClass(), argumentTypes))
+        {
+            for (int ii = 0; ii < arguments.length; ii++)
+            {
+                if (resolved.patterns[ii])
+                    arguments[ii] = Pattern.compile(PatternUtil.smartFix(String.valueOf(arguments[ii]), false));
+            }
+            return invoke(resolved.method, subject, arguments);
+        }
+
         /*
          * Finding the right method is tricky as the arguments have already been boxed.
          * E.g. consider overloaded methods 
@@ -146,22 +198,12 @@ class MethodCallExpression extends Expression
                         }
                     }
 
-                    try
-                    {
-                        return methods[ii].invoke(subject, arguments);
-                    }
-                    catch (IllegalArgumentException e)
-                    {
-                        throw new SnapshotException(Arrays.toString(arguments), e);
-                    }
-                    catch (IllegalAccessException e)
-                    {
-                        throw new SnapshotException(methods[ii].toString(), e);
-                    }
-                    catch (InvocationTargetException e)
-                    {
-                        throw new SnapshotException(e);
-                    }
+                    boolean[] patterns = new boolean[arguments.length];
+                    for (int jj = 0; savedArgs != null && jj < arguments.length; jj++)
+                        patterns[jj] = savedArgs[jj] != null;
+                    this.resolved = new ResolvedMethod(subjectClass, argumentTypes, methods[ii], patterns);
+
+                    return invoke(methods[ii], subject, arguments);
                 }
             }
         }
@@ -177,6 +219,26 @@ class MethodCallExpression extends Expression
                         new Object[] { this.name, argTypes, subject, subject != null ? subject.getClass().getName() : null }));
     }
 
+    private Object invoke(Method method, Object subject, Object[] arguments) throws SnapshotException
+    {
+        try
+        {
+            return method.invoke(subject, arguments);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new SnapshotException(Arrays.toString(arguments), e);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new SnapshotException(method.toString(), e);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw new SnapshotException(e);
+        }
+    }
+
     /**
      * Try for a good match on the method.
      * Also try unboxed arguments.
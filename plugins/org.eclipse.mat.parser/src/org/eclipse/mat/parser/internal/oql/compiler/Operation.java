@@ -11,11 +11,11 @@
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.eclipse.mat.SnapshotException;
@@ -682,7 +682,8 @@ abstract class Operation extends Expression
 
     static class InstanceOf extends Operation
     {
-        private static Map<String, Set<String>> class2intf = new HashMap<String, Set<String>>();
+        // shared by the threads evaluating a WHERE clause
+        private static final ConcurrentMap<String, Set<String>> class2intf = new ConcurrentHashMap<String, Set<String>>();
 
         String className;
 
@@ -725,8 +726,12 @@ abstract class Operation extends Expression
             Set<String> intf = class2intf.get(context.getName());
             if (intf == null)
             {
-                class2intf.put(context.getName(), intf = new HashSet<String>());
+                // only publish the set once it is complete
+                intf = new HashSet<String>();
                 inspect(intf, context);
+                Set<String> other = class2intf.putIfAbsent(context.getName(), intf);
+                if (other != null)
+                    intf = other;
             }
             return intf;
         }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2015 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,13 +8,16 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson - array indexing and wrapping
+ *    IBM Corporation - resolve fields and properties once per class
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
 import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Array;
+import java.lang.reflect.Method;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -25,7 +28,9 @@ import org.eclipse.mat.parser.internal.Messages;
 import org.eclipse.mat.snapshot.model.Field;
 import org.eclipse.mat.snapshot.model.FieldDescriptor;
 import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.snapshot.model.IInstance;
 import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.ObjectReference;
 import org.eclipse.mat.util.MessageUtil;
 
 class PathExpression extends Expression
@@ -53,11 +58,143 @@ class PathExpression extends Expression
          */
     };
     
-    private List<Object> attributes;
+    /**
+     * How the field of an attribute is found for the objects of one class.
+     */
+    private static final class FieldAccess
+    {
+        final int classId;
+        final boolean found;
+        /** position of the field in {@link IInstance#getFields()}, or -1 */
+        final int fieldIndex;
+
+        FieldAccess(int classId, boolean found, int fieldIndex)
+        {
+            this.classId = classId;
+            this.found = found;
+            this.fieldIndex = fieldIndex;
+        }
+
+        Object resolveValue(IObject object, String name) throws SnapshotException
+        {
+            if (fieldIndex < 0)
+                return object.resolveValue(name);
+
+            List<Field> fields = ((IInstance) object).getFields();
+            if (fieldIndex >= fields.size() || !name.equals(fields.get(fieldIndex).getName()))
+                return object.resolveValue(name);
+
+            Object value = fields.get(fieldIndex).getValue();
+            if (value instanceof ObjectReference)
+            {
+                ObjectReference ref = (ObjectReference) value;
+                try
+                {
+                    value = ref.getObject();
+                }
+                catch (SnapshotException e)
+                {
+                    String msg = MessageUtil.format(Messages.AbstractObjectImpl_Error_FieldContainsIllegalReference,
+                                    new Object[] { name, object.getTechnicalName(),
+                                                    Long.toHexString(ref.getObjectAddress()) });
+                    throw new SnapshotException(msg, e);
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * The read method of a property for the objects of one Java class.
+     */
+    private static final class PropertyAccess
+    {
+        final Class<?> type;
+        final Method readMethod;
+
+        PropertyAccess(Class<?> type, Method readMethod)
+        {
+            this.type = type;
+            this.readMethod = readMethod;
+        }
+    }
+
+    List<Object> attributes;
+
+    /**
+     * The field or property last resolved for each element of the path, so
+     * that it is looked up once per class and not once per object. The
+     * entries are immutable, so threads evaluating the same expression can
+     * replace them without locking.
+     */
+    private final Object[] resolved;
 
     public PathExpression(List<Object> attributes)
     {
         this.attributes = attributes;
+        this.resolved = new Object[attributes.size()];
+    }
+
+    private FieldAccess fieldAccess(int index, Attribute attribute, IObject object)
+    {
+        IClass clazz = object.getClazz();
+        Object entry = resolved[index];
+        if (entry instanceof FieldAccess && ((FieldAccess) entry).classId == clazz.getObjectId())
+            return (FieldAccess) entry;
+
+        boolean found = false;
+        field: for (IClass cls = clazz; cls != null; cls = cls.getSuperClass())
+        {
+            for (FieldDescriptor fd : cls.getFieldDescriptors())
+            {
+                if (fd.getName().equals(attribute.getName()))
+                {
+                    found = true;
+                    break field;
+                }
+            }
+        }
+
+        // A hidden field is shadowed by the last field of that name
+        int fieldIndex = -1;
+        if (found && object instanceof IInstance)
+        {
+            List<Field> fields = ((IInstance) object).getFields();
+            for (int ii = fields.size() - 1; ii >= 0; ii--)
+            {
+                if (attribute.getName().equals(fields.get(ii).getName()))
+                {
+                    fieldIndex = ii;
+                    break;
+                }
+            }
+        }
+
+        FieldAccess access = new FieldAccess(clazz.getObjectId(), found, fieldIndex);
+        resolved[index] = access;
+        return access;
+    }
+
+    private Method propertyAccess(int index, Attribute attribute, Class<?> type) throws IntrospectionException
+    {
+        Object entry = resolved[index];
+        if (entry instanceof PropertyAccess && ((PropertyAccess) entry).type == type)
+            return ((PropertyAccess) entry).readMethod;
+
+        Method readMethod = null;
+        BeanInfo info = Introspector.getBeanInfo(type);
+        for (PropertyDescriptor descriptor : info.getPropertyDescriptors())
+        {
+            if (attribute.getName().equals(descriptor.getName()))
+            {
+                readMethod = descriptor.getReadMethod();
+                break;
+            }
+        }
+
+        if (readMethod != null)
+            resolved[index] = new PropertyAccess(type, readMethod);
+        return readMethod;
     }
 
     @Override
@@ -115,24 +252,13 @@ class PathExpression extends Expression
                         }
                         else
                         {
-                            boolean didFindProperty = false;
-
-                            BeanInfo info = Introspector.getBeanInfo(current.getClass());
-                            PropertyDescriptor[] descriptors = info.getPropertyDescriptors();
-
-                            for (PropertyDescriptor descriptor : descriptors)
-                            {
-                                if (attribute.getName().equals(descriptor.getName()))
-                                {
-                                    current = descriptor.getReadMethod().invoke(current, (Object[]) null);
-                                    didFindProperty = true;
-                                    break;
-                                }
-                            }
+                            Method readMethod = propertyAccess(index, attribute, current.getClass());
 
-                            if (!didFindProperty) { throw new SnapshotException(MessageUtil.format(
+                            if (readMethod == null) { throw new SnapshotException(MessageUtil.format(
                                             Messages.PathExpression_Error_TypeHasNoProperty, new Object[] {
                                                             current.getClass().getName(), attribute.name })); }
+
+                            current = readMethod.invoke(current, (Object[]) null);
                         }
 
                     }
@@ -140,21 +266,11 @@ class PathExpression extends Expression
                     {
                         IObject c = (IObject) current;
                         // Performance optimization - check that the field exists first
-                        boolean found = false;
-                        field: for (IClass cls = c.getClazz(); cls != null; cls = cls.getSuperClass())
-                        {
-                            for (FieldDescriptor fd : cls.getFieldDescriptors())
-                            {
-                                if (fd.getName().equals(attribute.getName()))
-                                {
-                                    found = true;
-                                    break field;
-                                }
-                            }
-                        }
+                        FieldAccess access = fieldAccess(index, attribute, c);
+                        boolean found = access.found;
                         if (found)
                         {
-                            current = c.resolveValue(attribute.getName());
+                            current = access.resolveValue(c, attribute.getName());
                         }
                         else
                         {
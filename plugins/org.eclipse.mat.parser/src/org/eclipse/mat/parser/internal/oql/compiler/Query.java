@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG and others.
+ * Copyright (c) 2008, 2018 SAP AG and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,8 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    IBM Corporation - bug fix for printing AS clause
+ *    IBM Corporation - ORDER BY and LIMIT
+ *    IBM Corporation - GROUP BY
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
@@ -333,9 +335,39 @@ public class Query
 
     }
 
+    public static class OrderByItem
+    {
+        Expression expression;
+        boolean descending;
+
+        public OrderByItem(Expression expression, boolean descending)
+        {
+            this.expression = expression;
+            this.descending = descending;
+        }
+
+        public Expression getExpression()
+        {
+            return expression;
+        }
+
+        public boolean isDescending()
+        {
+            return descending;
+        }
+
+        public String toString()
+        {
+            return descending ? expression + " DESC" : String.valueOf(expression);//$NON-NLS-1$
+        }
+    }
+
     private SelectClause selectClause;
     private FromClause fromClause;
     private Expression whereClause;
+    private List<Expression> groupBy;
+    private List<OrderByItem> orderBy;
+    private int limit = -1;
     private List<Query> unionQueries;
 
     public SelectClause getSelectClause()
@@ -368,6 +400,45 @@ public class Query
         this.whereClause = whereClause;
     }
 
+    public void addGroupBy(Expression expression)
+    {
+        if (groupBy == null)
+            groupBy = new ArrayList<Expression>();
+
+        groupBy.add(expression);
+    }
+
+    public List<Expression> getGroupBy()
+    {
+        return groupBy;
+    }
+
+    public void addOrderBy(OrderByItem item)
+    {
+        if (orderBy == null)
+            orderBy = new ArrayList<OrderByItem>();
+
+        orderBy.add(item);
+    }
+
+    public List<OrderByItem> getOrderBy()
+    {
+        return orderBy;
+    }
+
+    /**
+     * @return the most objects to select, or -1 for no limit
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public void setLimit(int limit)
+    {
+        this.limit = limit;
+    }
+
     public void addUnionQuery(Query query)
     {
         if (unionQueries == null)
@@ -398,6 +469,41 @@ public class Query
         if (whereClause != null)
             buf.append("WHERE ").append(whereClause);//$NON-NLS-1$
 
+        // group by clause
+        if (groupBy != null)
+        {
+            if (whereClause != null)
+                buf.append(" ");//$NON-NLS-1$
+            buf.append("GROUP BY ");//$NON-NLS-1$
+            for (Iterator<Expression> iter = groupBy.iterator(); iter.hasNext();)
+            {
+                buf.append(iter.next());
+                if (iter.hasNext())
+                    buf.append(", ");//$NON-NLS-1$
+            }
+        }
+
+        // order by clause
+        if (orderBy != null)
+        {
+            if (whereClause != null || groupBy != null)
+                buf.append(" ");//$NON-NLS-1$
+            buf.append("ORDER BY ");//$NON-NLS-1$
+            for (Iterator<OrderByItem> iter = orderBy.iterator(); iter.hasNext();)
+            {
+                buf.append(iter.next());
+                if (iter.hasNext())
+                    buf.append(", ");//$NON-NLS-1$
+            }
+        }
+
+        if (limit >= 0)
+        {
+            if (whereClause != null || groupBy != null || orderBy != null)
+                buf.append(" ");//$NON-NLS-1$
+            buf.append("LIMIT ").append(limit);//$NON-NLS-1$
+        }
+
         if (unionQueries != null)
         {
             for (Query q : unionQueries)
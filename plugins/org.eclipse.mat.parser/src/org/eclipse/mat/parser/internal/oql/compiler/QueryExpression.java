@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,6 +7,7 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - evaluation by several threads
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.oql.compiler;
 
@@ -30,15 +31,19 @@ public class QueryExpression extends Expression
     @Override
     public Object compute(EvaluationContext ctx) throws SnapshotException, OperationCanceledException
     {
-        if (!isDependencyCalculated)
+        // the WHERE clause can be evaluated by several threads
+        synchronized (this)
         {
-            isQueryContextDependent = this.isContextDependent(ctx);
-            isDependencyCalculated = true;
-
-            if (!isQueryContextDependent)
+            if (!isDependencyCalculated)
             {
-                OQLQueryImpl q = new OQLQueryImpl(ctx, query);
-                queryResult = q.execute(ctx.getSnapshot(), null);
+                isQueryContextDependent = this.isContextDependent(ctx);
+
+                if (!isQueryContextDependent)
+                {
+                    OQLQueryImpl q = new OQLQueryImpl(ctx, query);
+                    queryResult = q.execute(ctx.getSnapshot(), null);
+                }
+                isDependencyCalculated = true;
             }
         }
 
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2014 SAP AG, IBM Corporation and others.
+ * Copyright (c) 2008, 2018 SAP AG, IBM Corporation and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,6 +8,8 @@
  * Contributors:
  *     SAP AG - initial API and implementation
  *     IBM Corporation - move to JavaCC 5.0
+ *     IBM Corporation - ORDER BY and LIMIT
+ *     IBM Corporation - GROUP BY
  *******************************************************************************/
 /* Generated By:JavaCC: Do not edit this line. OQLParser.java */
 package org.eclipse.mat.parser.internal.oql.parser;
@@ -151,6 +153,30 @@ public class OQLParser implements OQLParserConstants
         else
         {
 
+        }
+        if (jj_2_11(1))
+        {
+            GroupByClause(q);
+        }
+        else
+        {
+
+        }
+        if (jj_2_8(1))
+        {
+            OrderByClause(q);
+        }
+        else
+        {
+
+        }
+        if (jj_2_9(1))
+        {
+            LimitClause(q);
+        }
+        else
+        {
+
         }
         if (jj_2_2(1))
         {
@@ -594,7 +620,7 @@ public class OQLParser implements OQLParserConstants
                 jj_consume_token(-1);
                 throw new ParseException();
         }
-        if (seeExclude("WHERE", "UNION"))
+        if (seeExclude("WHERE", "GROUP", "ORDER", "LIMIT", "UNION"))
         {
             t2 = jj_consume_token(IDENTIFIER);
         }
@@ -1311,6 +1337,117 @@ public class OQLParser implements OQLParserConstants
         throw new Error(Messages.OQLParser_Missing_return_statement_in_function);
     }
 
+    /* ---------------- group by --------------------- */
+    final public void GroupByClause(Query q) throws ParseException
+    {
+        Object ex;
+        if (seeUnreservedKeyword("GROUP", "BY"))
+        {
+
+        }
+        else
+        {
+            jj_consume_token(-1);
+            throw new ParseException();
+        }
+        jj_consume_token(IDENTIFIER);
+        jj_consume_token(IDENTIFIER);
+        ex = SimpleExpression();
+        q.addGroupBy((Expression) ex);
+        label_16: while (true)
+        {
+            switch ((jj_ntk == -1) ? jj_ntk() : jj_ntk)
+            {
+                case COMMA:
+
+                    break;
+                default:
+                    jj_la1[38] = jj_gen;
+                    break label_16;
+            }
+            jj_consume_token(COMMA);
+            ex = SimpleExpression();
+            q.addGroupBy((Expression) ex);
+        }
+    }
+
+    /* ---------------- order by --------------------- */
+    final public void OrderByClause(Query q) throws ParseException
+    {
+        if (seeUnreservedKeyword("ORDER", "BY"))
+        {
+
+        }
+        else
+        {
+            jj_consume_token(-1);
+            throw new ParseException();
+        }
+        jj_consume_token(IDENTIFIER);
+        jj_consume_token(IDENTIFIER);
+        OrderByItem(q);
+        label_15: while (true)
+        {
+            switch ((jj_ntk == -1) ? jj_ntk() : jj_ntk)
+            {
+                case COMMA:
+
+                    break;
+                default:
+                    jj_la1[37] = jj_gen;
+                    break label_15;
+            }
+            jj_consume_token(COMMA);
+            OrderByItem(q);
+        }
+    }
+
+    final public void OrderByItem(Query q) throws ParseException
+    {
+        Object ex;
+        boolean descending = false;
+        ex = SimpleExpression();
+        if (jj_2_10(1))
+        {
+            if (seeUnreservedKeyword("ASC"))
+            {
+                jj_consume_token(IDENTIFIER);
+            }
+            else if (seeUnreservedKeyword("DESC"))
+            {
+                jj_consume_token(IDENTIFIER);
+                descending = true;
+            }
+            else
+            {
+                jj_consume_token(-1);
+                throw new ParseException();
+            }
+        }
+        else
+        {
+
+        }
+        q.addOrderBy(new Query.OrderByItem((Expression) ex, descending));
+    }
+
+    final public void LimitClause(Query q) throws ParseException
+    {
+        Token t;
+        if (seeUnreservedKeyword("LIMIT"))
+        {
+
+        }
+        else
+        {
+            jj_consume_token(-1);
+            throw new ParseException();
+        }
+        jj_consume_token(IDENTIFIER);
+        t = jj_consume_token(INTEGER_LITERAL);
+        q.setLimit(Integer.parseInt(t.image));
+    }
+
     /* ---------------- union --------------------- */
     final public void UnionClause(Query q) throws ParseException
     {
@@ -1459,6 +1596,169 @@ public class OQLParser implements OQLParserConstants
         }
     }
 
+    private boolean jj_2_8(int xla)
+    {
+        jj_la = xla;
+        jj_lastpos = jj_scanpos = token;
+        try
+        {
+            return !jj_3_8();
+        }
+        catch (LookaheadSuccess ls)
+        {
+            return true;
+        }
+        finally
+        {
+            jj_save(7, xla);
+        }
+    }
+
+    private boolean jj_2_9(int xla)
+    {
+        jj_la = xla;
+        jj_lastpos = jj_scanpos = token;
+        try
+        {
+            return !jj_3_9();
+        }
+        catch (LookaheadSuccess ls)
+        {
+            return true;
+        }
+        finally
+        {
+            jj_save(8, xla);
+        }
+    }
+
+    private boolean jj_2_10(int xla)
+    {
+        jj_la = xla;
+        jj_lastpos = jj_scanpos = token;
+        try
+        {
+            return !jj_3_10();
+        }
+        catch (LookaheadSuccess ls)
+        {
+            return true;
+        }
+        finally
+        {
+            jj_save(9, xla);
+        }
+    }
+
+    private boolean jj_2_11(int xla)
+    {
+        jj_la = xla;
+        jj_lastpos = jj_scanpos = token;
+        try
+        {
+            return !jj_3_11();
+        }
+        catch (LookaheadSuccess ls)
+        {
+            return true;
+        }
+        finally
+        {
+            jj_save(10, xla);
+        }
+    }
+
+    private boolean jj_3_8()
+    {
+        if (jj_3R_34())
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_34()
+    {
+        jj_lookingAhead = true;
+        jj_semLA = seeUnreservedKeyword("ORDER", "BY");
+        jj_lookingAhead = false;
+        if (!jj_semLA || jj_3R_35())
+            return true;
+        if (jj_scan_token(IDENTIFIER))
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_35()
+    {
+        return false;
+    }
+
+    private boolean jj_3_9()
+    {
+        if (jj_3R_36())
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_36()
+    {
+        jj_lookingAhead = true;
+        jj_semLA = seeUnreservedKeyword("LIMIT");
+        jj_lookingAhead = false;
+        if (!jj_semLA || jj_3R_37())
+            return true;
+        if (jj_scan_token(IDENTIFIER))
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_37()
+    {
+        return false;
+    }
+
+    private boolean jj_3_11()
+    {
+        if (jj_3R_38())
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_38()
+    {
+        jj_lookingAhead = true;
+        jj_semLA = seeUnreservedKeyword("GROUP", "BY");
+        jj_lookingAhead = false;
+        if (!jj_semLA || jj_3R_39())
+            return true;
+        if (jj_scan_token(IDENTIFIER))
+            return true;
+        return false;
+    }
+
+    private boolean jj_3R_39()
+    {
+        return false;
+    }
+
+    private boolean jj_3_10()
+    {
+        Token xsp;
+        xsp = jj_scanpos;
+        jj_lookingAhead = true;
+        jj_semLA = seeUnreservedKeyword("ASC");
+        jj_lookingAhead = false;
+        if (!jj_semLA || jj_scan_token(IDENTIFIER))
+        {
+            jj_scanpos = xsp;
+            jj_lookingAhead = true;
+            jj_semLA = seeUnreservedKeyword("DESC");
+            jj_lookingAhead = false;
+            if (!jj_semLA || jj_scan_token(IDENTIFIER))
+                return true;
+        }
+        return false;
+    }
+
     private boolean jj_3R_20()
     {
         if (jj_scan_token(LT))
@@ -1722,7 +2022,7 @@ public class OQLParser implements OQLParserConstants
     private boolean jj_lookingAhead = false;
     private boolean jj_semLA;
     private int jj_gen;
-    final private int[] jj_la1 = new int[37];
+    final private int[] jj_la1 = new int[39];
     static private int[] jj_la1_0;
     static private int[] jj_la1_1;
     static
@@ -1736,7 +2036,7 @@ public class OQLParser implements OQLParserConstants
         jj_la1_0 = new int[] { 0x0, 0x0, 0x69b46000, 0x40200000, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0, 0x69b46000,
                         0x69b46000, 0x60212000, 0x0, 0x0, 0x60212000, 0x0, 0x0, 0x2000000, 0x4000000, 0x0, 0x0, 0x0,
                         0x10000000, 0x0, 0x0, 0x0, 0x0, 0x69b46000, 0x69b46000, 0x9b46000, 0x0, 0x0, 0x46000,
-                        0x1800000, };
+                        0x1800000, 0x0, 0x0, };
     }
 
     private static void jj_la1_init_1()
@@ -1744,10 +2044,10 @@ public class OQLParser implements OQLParserConstants
         jj_la1_1 = new int[] { 0x200, 0x100, 0x186000, 0x0, 0x20400, 0x400000, 0x20400, 0x20400, 0x400000, 0x20400,
                         0x2000, 0x200, 0x186000, 0x186000, 0x4000, 0x200, 0x200, 0x0, 0x400, 0x10000, 0x0, 0x0, 0x48,
                         0x48, 0x36, 0x0, 0x180000, 0x180000, 0x200100, 0x200100, 0x186000, 0x186000, 0x180000,
-                        0x180000, 0x180000, 0x0, 0x0, };
+                        0x180000, 0x180000, 0x0, 0x0, 0x200, 0x200, };
     }
 
-    final private JJCalls[] jj_2_rtns = new JJCalls[7];
+    final private JJCalls[] jj_2_rtns = new JJCalls[11];
     private boolean jj_rescan = false;
     private int jj_gc = 0;
 
@@ -1772,7 +2072,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -1799,7 +2099,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -1813,7 +2113,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -1827,7 +2127,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -1840,7 +2140,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -1853,7 +2153,7 @@ public class OQLParser implements OQLParserConstants
         token = new Token();
         jj_ntk = -1;
         jj_gen = 0;
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
             jj_la1[i] = -1;
         for (int i = 0; i < jj_2_rtns.length; i++)
             jj_2_rtns[i] = new JJCalls();
@@ -2019,7 +2319,7 @@ public class OQLParser implements OQLParserConstants
             la1tokens[jj_kind] = true;
             jj_kind = -1;
         }
-        for (int i = 0; i < 37; i++)
+        for (int i = 0; i < 39; i++)
         {
             if (jj_la1[i] == jj_gen)
             {
@@ -2067,7 +2367,7 @@ public class OQLParser implements OQLParserConstants
     private void jj_rescan_token()
     {
         jj_rescan = true;
-        for (int i = 0; i < 7; i++)
+        for (int i = 0; i < 11; i++)
         {
             try
             {
@@ -2101,6 +2401,18 @@ public class OQLParser implements OQLParserConstants
                             case 6:
                                 jj_3_7();
                                 break;
+                            case 7:
+                                jj_3_8();
+                                break;
+                            case 8:
+                                jj_3_9();
+                                break;
+                            case 9:
+                                jj_3_10();
+                                break;
+                            case 10:
+                                jj_3_11();
+                                break;
                         }
                     }
                     p = p.next;
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,6 +7,7 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - merge partial histograms
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
@@ -55,6 +56,16 @@ public class ClassHistogramRecordBuilder extends HistogramRecord
         this.usedHeapSize += usedHeapSize;
     }
 
+    /**
+     * Append the objects of another builder for the same class.
+     */
+    public void addAll(ClassHistogramRecordBuilder other)
+    {
+        this.objectIds.addAll(other.objectIds.toArray());
+        this.numberOfObjects += other.numberOfObjects;
+        this.usedHeapSize += other.usedHeapSize;
+    }
+
     public ClassHistogramRecord toClassHistogramRecord()
     {
         if (objectIds.length() > 0 && this.numberOfObjects != objectIds.length())
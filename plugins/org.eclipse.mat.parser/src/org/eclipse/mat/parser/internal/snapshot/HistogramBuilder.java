@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,6 +7,7 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - merge partial histograms
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
@@ -55,6 +56,25 @@ public class HistogramBuilder extends HistogramRecord
         object.add(objectId, heapSize);
     }
 
+    /**
+     * Append the objects of a partial histogram built with
+     * {@link #add(int, int, long)}. Partial histograms of consecutive parts of
+     * an array of objects merged in order give the same histogram as adding
+     * all the objects to one builder.
+     */
+    public void addAll(HistogramBuilder other)
+    {
+        for (Iterator<HashMapIntObject.Entry<Object>> e = other.data.entries(); e.hasNext();)
+        {
+            HashMapIntObject.Entry<Object> entry = e.next();
+            ClassHistogramRecordBuilder record = (ClassHistogramRecordBuilder) data.get(entry.getKey());
+            if (record == null)
+                data.put(entry.getKey(), entry.getValue());
+            else
+                record.addAll((ClassHistogramRecordBuilder) entry.getValue());
+        }
+    }
+
     public Histogram toHistogram(SnapshotImpl snapshot, boolean isDefaultHistogram) throws SnapshotException
     {
         ArrayList<ClassHistogramRecord> classHistogramRecords = new ArrayList<ClassHistogramRecord>(data.size());
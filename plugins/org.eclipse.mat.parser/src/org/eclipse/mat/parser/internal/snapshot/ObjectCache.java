@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,124 +7,368 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - segmented W-TinyLFU cache
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-
 import org.eclipse.mat.collect.HashMapIntObject;
+import org.eclipse.mat.snapshot.ObjectCacheStatistics;
 
+/**
+ * A cache of objects by id, which can be used by several threads at once.
+ * <p>
+ * The cache is split into segments by id, each with its own lock, and objects
+ * are loaded outside the lock. Each segment follows the W-TinyLFU policy: new
+ * objects enter a small LRU window, and objects leaving the window are only
+ * admitted to the main SLRU area if they have been used more often, according
+ * to a frequency sketch, than the object they would replace. So scanning many
+ * objects once does not flush the frequently used ones.
+ * <p>
+ * The capacity is either a number of objects, or a total weight such as an
+ * estimate of the bytes held, as given by {@link #weigh(Object)}.
+ */
 abstract public class ObjectCache<E>
 {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // Smallest capacity of a segment, in objects
+    private static final int MIN_SEGMENT_ENTRIES = 32;
+
     static class Entry<E>
     {
         E object;
         int key;
-        int numUsages;
+        int weight;
+        int region;
+        Entry<E> prev;
+        Entry<E> next;
     }
 
-    private int maxSize;
-    private final HashMapIntObject<Entry<E>> map;
-    private final List<LinkedList<Entry<E>>> lfus;
-    private int maxLfuBuckets = 0;
-    private int lowestNonEmptyLfu = 0;
+    private final long capacity;
+    private final Segment<E>[] segments;
+    private final int segmentShift;
 
+    /**
+     * A cache holding up to the given number of objects.
+     */
     public ObjectCache(int maxSize)
     {
-        this.maxSize = maxSize;
-        this.map = new HashMapIntObject<Entry<E>>(maxSize);
-        this.lfus = new ArrayList<LinkedList<Entry<E>>>(5);
-        this.maxLfuBuckets = maxSize / 3;
+        this(maxSize, maxSize);
     }
 
-    public synchronized E get(int objectId)
+    /**
+     * A cache holding objects up to the given total weight.
+     *
+     * @param maxWeight
+     *            the total weight of the cached objects
+     * @param expectedEntries
+     *            the number of objects expected to fit, used to size the
+     *            frequency sketch and the segments
+     */
+    @SuppressWarnings("unchecked")
+    public ObjectCache(long maxWeight, int expectedEntries)
     {
-        Entry<E> e = map.get(objectId);
-        if (e != null)
-        {
-            revalueEntry(e);
-        }
-        else
-        {
-            e = new Entry<E>();
-            e.object = load(objectId);
-            e.key = objectId;
+        maxWeight = Math.max(maxWeight, 1);
+        expectedEntries = Math.max(expectedEntries, 1);
 
-            doInsert(e);
+        int count = 1;
+        int limit = Math.min(Runtime.getRuntime().availableProcessors() * 4, expectedEntries / MIN_SEGMENT_ENTRIES);
+        while (count * 2 <= limit)
+            count *= 2;
 
-            while (map.size() > maxSize)
-                removeLeastValuableNode();
-        }
+        long segmentWeight = (maxWeight + count - 1) / count;
+        this.capacity = segmentWeight * count;
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        this.segments = new Segment[count];
+        for (int ii = 0; ii < count; ii++)
+            segments[ii] = new Segment<E>(segmentWeight, (expectedEntries + count - 1) / count);
+    }
 
-        return e.object;
+    public E get(int objectId)
+    {
+        Segment<E> segment = segmentFor(objectId);
+        E object = segment.get(objectId);
+        if (object != null)
+            return object;
+
+        object = load(objectId);
+        if (object == null)
+            return null;
+        return segment.put(objectId, object, weigh(object));
     }
 
-    public synchronized void clear()
+    public void clear()
     {
-        this.map.clear();
-        this.lfus.clear();
+        for (Segment<E> segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * The hits, misses and contents of the cache so far.
+     */
+    public ObjectCacheStatistics getStatistics()
+    {
+        long hits = 0, misses = 0, evictions = 0, size = 0, weight = 0;
+        for (Segment<E> segment : segments)
+        {
+            synchronized (segment)
+            {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                size += segment.map.size();
+                weight += segment.weight[WINDOW] + segment.weight[PROBATION] + segment.weight[PROTECTED];
+            }
+        }
+        return new ObjectCacheStatistics(hits, misses, evictions, size, weight, capacity);
     }
 
     protected abstract E load(int key);
 
-    protected synchronized void doInsert(final Entry<E> e)
+    /**
+     * The weight of an object, counted against the capacity of the cache.
+     *
+     * @return 1 unless overridden, so the capacity is a number of objects
+     */
+    protected int weigh(E object)
     {
-        lfu(e.numUsages).addFirst(e);
-        Entry<?> p = map.put(e.key, e);
-        lowestNonEmptyLfu = 0;
+        return 1;
+    }
 
-        if (p != null)
-            lfu(p.numUsages).remove(p);
+    private Segment<E> segmentFor(int key)
+    {
+        if (segments.length == 1)
+            return segments[0];
+        return segments[(key * 0x9E3779B9) >>> segmentShift];
     }
 
-    protected final LinkedList<Entry<E>> lfu(int numUsageIndex)
+    private static final class Segment<E>
     {
-        int lfuIndex = Math.min(maxLfuBuckets, numUsageIndex);
+        final HashMapIntObject<Entry<E>> map;
+        final FrequencySketch sketch;
+        // Sentinels of circular lists, least recently used first
+        @SuppressWarnings("unchecked")
+        final Entry<E>[] lists = new Entry[3];
+        final long[] weight = new long[3];
+        final long maximum;
+        final long windowMaximum;
+        final long protectedMaximum;
+        long hits;
+        long misses;
+        long evictions;
 
-        if (lfuIndex >= lfus.size())
+        Segment(long maximum, int expectedEntries)
         {
-            LinkedList<Entry<E>> lfu = new LinkedList<Entry<E>>();
-            lfus.add(lfuIndex, lfu);
-            return lfu;
+            this.maximum = maximum;
+            this.windowMaximum = Math.max(1, maximum / 100);
+            this.protectedMaximum = (maximum - windowMaximum) * 4 / 5;
+            this.map = new HashMapIntObject<Entry<E>>(Math.min(expectedEntries, 1 << 16));
+            this.sketch = new FrequencySketch(expectedEntries);
+            for (int ii = 0; ii < lists.length; ii++)
+            {
+                Entry<E> sentinel = new Entry<E>();
+                sentinel.prev = sentinel.next = sentinel;
+                lists[ii] = sentinel;
+            }
         }
-        else
+
+        synchronized E get(int key)
         {
-            return lfus.get(lfuIndex);
+            sketch.increment(key);
+            Entry<E> e = map.get(key);
+            if (e == null)
+            {
+                misses++;
+                return null;
+            }
+
+            hits++;
+            switch (e.region)
+            {
+                case WINDOW:
+                    moveToEnd(e, WINDOW);
+                    break;
+                case PROBATION:
+                    // Used again, so promote to the protected area
+                    moveToEnd(e, PROTECTED);
+                    while (weight[PROTECTED] > protectedMaximum && lists[PROTECTED].next != e)
+                        moveToEnd(lists[PROTECTED].next, PROBATION);
+                    break;
+                default:
+                    moveToEnd(e, PROTECTED);
+                    break;
+            }
+            return e.object;
         }
-    }
 
-    protected void revalueEntry(Entry<E> entry)
-    {
-        LinkedList<Entry<E>> currBucket = lfu(entry.numUsages);
-        LinkedList<Entry<E>> nextBucket = lfu(++entry.numUsages);
+        synchronized E put(int key, E object, int objectWeight)
+        {
+            Entry<E> e = map.get(key);
+            if (e != null)
+            {
+                // Another thread loaded it first
+                return e.object;
+            }
 
-        currBucket.remove(entry);
-        nextBucket.addFirst(entry);
-    }
+            e = new Entry<E>();
+            e.object = object;
+            e.key = key;
+            e.weight = objectWeight;
+            e.region = WINDOW;
+            link(e, WINDOW);
+            map.put(key, e);
 
-    protected LinkedList<Entry<E>> getLowestNonEmptyLfu()
-    {
-        LinkedList<Entry<E>> lfu = null;
-        for (int i = lowestNonEmptyLfu; i < lfus.size(); i++)
+            evict();
+            return object;
+        }
+
+        private void evict()
         {
-            lfu = lfu(i);
+            // Objects leaving the window become candidates for the main area
+            while (weight[WINDOW] > windowMaximum)
+                moveToEnd(lists[WINDOW].next, PROBATION);
 
-            if (lfu.size() != 0)
+            while (weight[WINDOW] + weight[PROBATION] + weight[PROTECTED] > maximum)
             {
-                lowestNonEmptyLfu = i;
-                return lfu;
+                Entry<E> victim;
+                Entry<E> probation = lists[PROBATION];
+                if (probation.next == probation)
+                {
+                    int region = lists[PROTECTED].next != lists[PROTECTED] ? PROTECTED : WINDOW;
+                    victim = lists[region].next;
+                }
+                else
+                {
+                    // The least recently used against the latest arrival
+                    Entry<E> first = probation.next;
+                    Entry<E> candidate = probation.prev;
+                    if (candidate != first && sketch.frequency(candidate.key) > sketch.frequency(first.key))
+                        victim = first;
+                    else
+                        victim = candidate;
+                }
+                unlink(victim);
+                map.remove(victim.key);
+                evictions++;
             }
         }
-        return lfu;
+
+        synchronized void clear()
+        {
+            map.clear();
+            for (int ii = 0; ii < lists.length; ii++)
+            {
+                lists[ii].prev = lists[ii].next = lists[ii];
+                weight[ii] = 0;
+            }
+        }
+
+        private void moveToEnd(Entry<E> e, int region)
+        {
+            unlink(e);
+            e.region = region;
+            link(e, region);
+        }
+
+        private void link(Entry<E> e, int region)
+        {
+            Entry<E> sentinel = lists[region];
+            e.prev = sentinel.prev;
+            e.next = sentinel;
+            sentinel.prev.next = e;
+            sentinel.prev = e;
+            weight[region] += e.weight;
+        }
+
+        private void unlink(Entry<E> e)
+        {
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+            e.prev = e.next = null;
+            weight[e.region] -= e.weight;
+        }
     }
 
-    protected void removeLeastValuableNode()
+    /**
+     * Estimates how often keys have been used recently, with four 4-bit
+     * counters per key in a count-min sketch. All counters are halved
+     * periodically so that old usage is forgotten.
+     */
+    static final class FrequencySketch
     {
-        LinkedList<Entry<E>> lfu = getLowestNonEmptyLfu();
-        Entry<?> lln = lfu.remove(lfu.size() - 1);
-        map.remove(lln.key);
-    }
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                        0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int size;
+
+        FrequencySketch(int expectedEntries)
+        {
+            int length = 8;
+            while (length < expectedEntries && length < (1 << 24))
+                length *= 2;
+            this.table = new long[length];
+            this.mask = length - 1;
+            this.sampleSize = 10 * length;
+        }
 
+        int frequency(int key)
+        {
+            int hash = spread(key);
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int ii = 0; ii < 4; ii++)
+            {
+                int index = indexOf(hash, ii);
+                int count = (int) ((table[index] >>> ((start + ii) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(int key)
+        {
+            int hash = spread(key);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int ii = 0; ii < 4; ii++)
+            {
+                int index = indexOf(hash, ii);
+                int offset = (start + ii) << 2;
+                long counter = 0xfL << offset;
+                if ((table[index] & counter) != counter)
+                {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++size == sampleSize)
+                reset();
+        }
+
+        private void reset()
+        {
+            for (int ii = 0; ii < table.length; ii++)
+                table[ii] = (table[ii] >>> 1) & RESET_MASK;
+            size /= 2;
+        }
+
+        private int indexOf(int hash, int depth)
+        {
+            long h = (hash + SEEDS[depth]) * SEEDS[depth];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+
+        private static int spread(int key)
+        {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2013 SAP AG and IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -8,22 +8,23 @@
  * Contributors:
  *    SAP AG - initial API and implementation
  *    Andrew Johnson (IBM Corporation) - improved multithreading using local stacks
+ *    IBM Corporation - work stealing between marking threads
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
-import java.lang.ref.SoftReference;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.BitField;
-import org.eclipse.mat.collect.QueueInt;
+import org.eclipse.mat.collect.ConcurrentBitField;
 import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.internal.Messages;
 import org.eclipse.mat.parser.internal.ParserPlugin;
-import org.eclipse.mat.parser.internal.util.IntStack;
 import org.eclipse.mat.snapshot.ExcludedReferencesDescriptor;
 import org.eclipse.mat.snapshot.ISnapshot;
 import org.eclipse.mat.snapshot.model.IObject;
@@ -33,28 +34,17 @@ import org.eclipse.mat.util.IProgressListener;
 public class ObjectMarker
 {
     int[] roots;
-    boolean[] bits;
+    ConcurrentBitField bits;
     IIndexReader.IOne2ManyIndex outbound;
-    long outboundMem;
     IProgressListener progressListener;
     private static final boolean DEBUG = Platform.inDebugMode() && ParserPlugin.getDefault().isDebugging();
-    private static final boolean USELOCAL = !(Platform.inDebugMode() && ParserPlugin.getDefault().isDebugging() && 
-                    Boolean.parseBoolean(Platform.getDebugOption("org.eclipse.mat.parser/debug/oldMarker"))); //$NON-NLS-1$
-    private static final int MIN_LOCALITY = 1000000;
 
-    public ObjectMarker(int[] roots, boolean[] bits, IIndexReader.IOne2ManyIndex outbound,
+    public ObjectMarker(int[] roots, ConcurrentBitField bits, IIndexReader.IOne2ManyIndex outbound,
                     IProgressListener progressListener)
-    {
-        this(roots, bits, outbound, 0, progressListener);
-    }
-    
-    public ObjectMarker(int[] roots, boolean[] bits, IIndexReader.IOne2ManyIndex outbound,
-                    long outboundLength, IProgressListener progressListener)
     {
         this.roots = roots;
         this.bits = bits;
         this.outbound = outbound;
-        this.outboundMem = outboundLength > 0 ? outboundLength : outbound.size() * 30L;
         this.progressListener = progressListener;
     }
 
@@ -67,7 +57,7 @@ public class ObjectMarker
 
         for (int rootId : roots)
         {
-            if (!bits[rootId])
+            if (bits.testAndSet(rootId))
             {
                 /* start stack.push() */
                 if (size == data.length)
@@ -79,7 +69,6 @@ public class ObjectMarker
                 data[size++] = rootId;
                 /* end stack.push() */
 
-                bits[rootId] = true;
                 count++;
 
                 rootsToProcess++;
@@ -105,7 +94,7 @@ public class ObjectMarker
 
             for (int child : outbound.get(current))
             {
-                if (!bits[child])
+                if (bits.testAndSet(child))
                 {
                     // stack.push(child);
                     /* start stack.push() */
@@ -118,7 +107,6 @@ public class ObjectMarker
                     data[size++] = child;
                     /* end stack.push() */
 
-                    bits[child] = true;
                     count++;
                 }
 
@@ -155,7 +143,7 @@ public class ObjectMarker
         /* first put all "roots" in the stack, and mark them as processed */
         for (int rootId : roots)
         {
-            if (!bits[rootId])
+            if (bits.testAndSet(rootId))
             {
                 /* start stack.push() */
                 if (size == data.length)
@@ -167,7 +155,6 @@ public class ObjectMarker
                 data[size++] = rootId;
                 /* end stack.push() */
 
-                bits[rootId] = true; // mark the object
                 count++;
 
                 rootsToProcess++;
@@ -195,7 +182,7 @@ public class ObjectMarker
 
             for (int child : outbound.get(current))
             {
-                if (!bits[child]) // already visited?
+                if (!bits.get(child)) // already visited?
                 {
                     if (!refersOnlyThroughExcluded(current, child, excludeSets, excludeObjectsBF, snapshot))
                     {
@@ -209,7 +196,7 @@ public class ObjectMarker
                         data[size++] = child;
                         /* end stack.push() */
 
-                        bits[child] = true; // mark the object
+                        bits.set(child); // mark the object
                         count++;
                     }
                 }
@@ -222,542 +209,348 @@ public class ObjectMarker
     }
 
     /**
-     * A stack accessible by multiple threads
-     * @author ajohnson
+     * Mark the objects reachable from the roots using several threads.
+     * <p>
+     * Each thread marks depth first from a private stack. The roots are handed
+     * out one at a time through an atomic counter. When other threads have run
+     * out of work, a busy thread moves the oldest entries of its stack, which
+     * usually lead to the largest unexplored parts of the graph, to a small
+     * shared stack of its own from which idle threads steal. Only the owner and
+     * a thief ever lock a shared stack, so there is no lock which all the
+     * threads contend for.
+     * <p>
+     * Bits are set atomically, so each object is visited by exactly one thread.
      *
+     * @return the number of objects newly marked
      */
-    static class MultiThreadedRootStack extends IntStack
+    public int markMultiThreaded(int numberOfThreads) throws InterruptedException
     {
-        private int waitingThreads;
-        private int totalThreads;
-        private int waits; // Debug
-        private long waitsduration; // Debug
-        static final int RESERVED_WAITING = 20;
-        static final int RESERVED_RUNNING = 5;
-        int totalWork;
-        int worked; // ticks done so far
-        int pushed; // items pushed to the stack
-        int lastDone; // items processed at last tick
-
-        MultiThreadedRootStack(int n)
-        {
-            super(n);
-            totalWork = n;
-            pushed = n;
-        }
-
-        /**
-         * Note that this thread is using this stack.
-         */
-        synchronized void linkThread()
-        {
-            ++totalThreads;
-        }
-
-        /**
-         * Note that this thread is no longer using the stack.
-         */
-        synchronized void unlinkThread()
+        int[] rootsToProcess = new int[roots.length];
+        int n = 0;
+        for (int rootId : roots)
         {
-            --totalThreads;
-            if (waitingThreads >= totalThreads)
+            if (bits.testAndSet(rootId))
             {
-                // Everyone else is waiting, so all must finish
-                notifyAll();
-                if (DEBUG && totalThreads == 0) System.out.println("Total waits "+waits+" "+waitsduration+"ms");  //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
+                rootsToProcess[n++] = rootId;
             }
         }
 
-        /**
-         * Calculate the number of ticks worked.
-         * The total ticks is just the initial stack size
-         * However, more items can be pushed later, so we calculate the 
-         * items processed since last time, the total to do, and the 
-         * remaining ticks.
-         * Must have the lock on this stack.
-         * @return new ticks worked
-         */
-        int worked()
+        long l = System.currentTimeMillis();
+        if (DEBUG) System.out.println("Starting threads "+(new Date()));  //$NON-NLS-1$
+        progressListener.beginTask(Messages.ObjectMarker_MarkingObjects, n);
+
+        MarkingState state = new MarkingState(rootsToProcess, n, numberOfThreads);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++)
         {
-            int done = pushed - size();
-            int newDone = done - lastDone;
-            int ticksLeft = totalWork - worked;
-            if (newDone > 0)
-            {
-                int k = ticksLeft * newDone / (newDone + size());
-                // Make sure we don't report progress too often
-                if (k < totalWork / 1000)
-                    k = 0;
-                if (k > 0)
-                {
-                    worked += k;
-                    lastDone = done;
-                }
-                return k;
-            }
-            else
-            {
-                return 0;
-            }
+            threads[i] = new Thread(state.markers[i], "ObjectMarkerThread-" + (i + 1));//$NON-NLS-1$
+            threads[i].start();
         }
 
-        /**
-         * When the stack is empty wait for another thread to
-         * put something back onto the stack.
-         * Must have lock on this stack.
-         * @return object id 
-         * -1 if all threads are waiting, so everything is done
-         */
-        int waitAndPop()
+        // wait for all the threads to finish, reporting the roots taken so far
+        int worked = 0;
+        try
         {
-            waitingThreads++;
-            long t = System.currentTimeMillis();
-            waits++;
-            try
+            for (int i = 0; i < numberOfThreads; i++)
             {
-                while (waitingThreads < totalThreads && size() == 0)
+                while (threads[i].isAlive())
                 {
-                    wait();
+                    threads[i].join(100);
+                    int taken = Math.min(state.nextRoot.get(), n);
+                    if (taken > worked)
+                    {
+                        progressListener.worked(taken - worked);
+                        worked = taken;
+                    }
                 }
             }
-            catch (InterruptedException e)
-            {
-                return -1;
-            }
-            long t2 = System.currentTimeMillis();
-            waitsduration += (t2-t);
-            if (DEBUG && t2 - t > 10) System.out.println("Slow wait "+(t2-t)+"ms "+Thread.currentThread()+" "+size());  //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$
-            if (waitingThreads >= totalThreads)
-            {
-                // Everyone is waiting, so all must finish
-                waitingThreads--;
-                return -1;
-            }
-            waitingThreads--;
-            return pop();
         }
-
-        /**
-         * Push an item onto the stack if another thread is waiting
-         * for something to be added and there aren't already 
-         * enough items on the stack for all the waiting threads.
-         * @param z
-         * @return true if the item has been pushed
-         * false if the item has not been pushed and should be 
-         * dealt with by the current thread
-         */
-        boolean pushIfWaiting(int z)
+        finally
         {
-            /*
-             * Push up to RESERVED_WAITING = 20 items per waiting thread, 
-             * RESERVED_RUNNING = 5 per non-waiting other threads,
-             * so the threads have a chance of finding work waiting.
-             * May require tuning.
-             */
-            if (waitingThreads * RESERVED_WAITING + 
-                (totalThreads - waitingThreads - 1) * RESERVED_RUNNING > size())
-            {
-                push(z);
-                ++pushed;
-                if (waitingThreads > 0)
-                    // All or one?
-                    notifyAll();
-                return true;
-            }
-            return false;
+            // stop the remaining threads if interrupted
+            state.stopped = true;
         }
+
+        if (state.failure instanceof RuntimeException)
+            throw (RuntimeException) state.failure;
+        if (state.failure instanceof Error)
+            throw (Error) state.failure;
+
+        int count = n;
+        for (Marker marker : state.markers)
+            count += marker.marked;
+
+        if (progressListener.isCanceled())
+            return count;
+
+        progressListener.done();
+        if (DEBUG) System.out.println("Took "+(System.currentTimeMillis() - l)+"ms steals="+state.steals.get()); //$NON-NLS-1$//$NON-NLS-2$
+        return count;
     }
 
-    public void markMultiThreaded(int numberOfThreads) throws InterruptedException
+    /**
+     * The work shared by the marking threads.
+     */
+    private class MarkingState
     {
-        MultiThreadedRootStack rootsStack = new MultiThreadedRootStack(roots.length);
-
-        for (int rootId : roots)
+        final int[] roots;
+        final int rootCount;
+        final AtomicInteger nextRoot = new AtomicInteger();
+        final Marker[] markers;
+        /** The number of threads which have, or are looking for, some work */
+        final AtomicInteger active;
+        final AtomicInteger steals = new AtomicInteger(); // Debug
+        volatile boolean stopped;
+        volatile Throwable failure;
+
+        MarkingState(int[] roots, int rootCount, int numberOfThreads)
         {
-            if (!bits[rootId])
-            {
-                rootsStack.push(rootId);
-                bits[rootId] = true;
-            }
+            this.roots = roots;
+            this.rootCount = rootCount;
+            this.markers = new Marker[numberOfThreads];
+            for (int i = 0; i < numberOfThreads; i++)
+                markers[i] = new Marker(this, i);
+            this.active = new AtomicInteger(numberOfThreads);
         }
 
-        long l = System.currentTimeMillis();
-        if (DEBUG) System.out.println("Starting threads "+(new Date()));  //$NON-NLS-1$
-        progressListener.beginTask(Messages.ObjectMarker_MarkingObjects, rootsStack.size());
-
-        // Heuristic guess as to a reasonable local range for thread to search
-        int n = bits.length;
-        Runtime runtime = Runtime.getRuntime();
-        // This free memory calculation is very approximate - we do a GC to get a better estimate
-        long maxFree = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
-        if (maxFree < outboundMem)
+        boolean hasRoots()
         {
-            runtime.gc();
-            maxFree = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+            return nextRoot.get() < rootCount;
         }
-        /*
-         *  Guess as to how many objects with outbound refs we can support @ 30 bytes per ref.
-         *  A better estimate would use the size of the outbound refs file.
-         */
-        int n1 = (int)Math.min(bits.length, bits.length * maxFree / outboundMem);
-        // guess as to size for each thread so we don't use all of the memory - allow for overlaps
-        int m = (int)((1.0 - Math.pow((double)(n - n1)/n, 1.0/numberOfThreads)) * n);
-        // now impose some reasonable limits
-        int locality = Math.min(n, Math.max(MIN_LOCALITY, m));
-        if (DEBUG) System.out.println("maxFree="+maxFree+" outbound mem="+outboundMem+" n="+n+" n1="+n1+" m="+m+" locality="+locality);  //$NON-NLS-1$//$NON-NLS-2$//$NON-NLS-3$//$NON-NLS-4$//$NON-NLS-5$ //$NON-NLS-6$
-
-        // create and start as much marker threads as specified
-        DfsThread[] dfsthreads = new DfsThread[numberOfThreads];
-        Thread[] threads = new Thread[numberOfThreads];
 
-        for (int i = 0; i < numberOfThreads; i++)
+        boolean hasSharedWork()
         {
-            DfsThread dfsthread = USELOCAL ? new LocalDfsThread(rootsStack, locality) :
-                                  new DfsThread(rootsStack);
-            dfsthreads[i] = dfsthread;
-            Thread thread = new Thread(dfsthread, "ObjectMarkerThread-" + (i + 1));//$NON-NLS-1$
-            thread.start();
-            threads[i] = thread;
+            for (Marker marker : markers)
+            {
+                if (marker.sharedSize > 0)
+                    return true;
+            }
+            return false;
         }
 
-        // wait for all the threads to finish
-        for (int i = 0; i < numberOfThreads; i++)
+        void fail(Throwable t)
         {
-            threads[i].join();
+            if (failure == null)
+                failure = t;
+            stopped = true;
         }
-
-        if (progressListener.isCanceled())
-            return;
-
-        progressListener.done();
-        if (DEBUG) System.out.println("Took "+(System.currentTimeMillis() - l)+"ms"); //$NON-NLS-1$//$NON-NLS-2$
     }
 
-    public class DfsThread implements Runnable
+    /**
+     * A marking thread, with a private stack and a shared stack for other
+     * threads to steal from.
+     */
+    private class Marker implements Runnable
     {
-
-        int size = 0;
-        int[] data = new int[10 * 1024]; // start with 10k
-        IntStack rootsStack;
-
-        public DfsThread(IntStack roots)
+        /** Number of objects between checks whether other threads need work */
+        private static final int CHECK_INTERVAL = 64;
+        /** Number of checks between checks for cancellation */
+        private static final int CANCEL_INTERVAL = 64;
+        /** Fewest entries on the private stack to make sharing worthwhile */
+        private static final int MIN_SHARE = 16;
+        private static final int SHARED_CAPACITY = 1024;
+        /** Number of times to yield when idle before sleeping */
+        private static final int SPINS = 100;
+
+        private final MarkingState state;
+        private final int index;
+
+        // the private stack holds data[bottom] to data[top - 1]
+        private int[] data = new int[10 * 1024]; // start with 10k
+        private int bottom;
+        private int top;
+
+        // the shared stack, guarded by this
+        private final int[] shared = new int[SHARED_CAPACITY];
+        private volatile int sharedSize;
+
+        // the number of objects marked by this thread, read after it has ended
+        int marked;
+
+        Marker(MarkingState state, int index)
         {
-            this.rootsStack = roots;
+            this.state = state;
+            this.index = index;
         }
 
         public void run()
         {
-            while (true)
+            try
             {
-                synchronized (rootsStack)
-                {
-                    progressListener.worked(1);
-                    if (progressListener.isCanceled())
-                        return;
+                while (findWork())
+                    mark();
+            }
+            catch (Throwable t)
+            {
+                state.fail(t);
+            }
+        }
 
-                    if (rootsStack.size() > 0) // still some roots are not
-                    // processed
-                    {
-                        data[0] = rootsStack.pop();
-                        size = 1;
-                    }
-                    else
-                    // the work is done
+        /**
+         * Mark depth first from the private stack until it is empty.
+         */
+        private void mark()
+        {
+            int checks = 0;
+            int count = 0;
+            while (top > bottom)
+            {
+                int current = data[--top];
+
+                if (++count == CHECK_INTERVAL)
+                {
+                    count = 0;
+                    if (++checks == CANCEL_INTERVAL)
                     {
-                        break;
+                        checks = 0;
+                        if (state.stopped || progressListener.isCanceled())
+                        {
+                            state.stopped = true;
+                            return;
+                        }
                     }
+                    if (sharedSize == 0 && top - bottom >= MIN_SHARE
+                                    && state.active.get() < state.markers.length)
+                        share();
                 }
 
-                int current;
-
-                while (size > 0)
+                for (int child : outbound.get(current))
                 {
-                    /* start stack.pop() */
-                    current = data[--size];
-                    /* end stack.pop */
-
-                    for (int child : outbound.get(current))
+                    // Only the thread which sets the bit visits the object
+                    if (bits.testAndSet(child))
                     {
-                        /*
-                         * No synchronization here. It costs a lot of
-                         * performance It is possible that some bits are marked
-                         * more than once, but this is not a problem
-                         */
-                        if (!bits[child])
-                        {
-                            bits[child] = true;
-                            // stack.push(child);
-                            /* start stack.push() */
-                            if (size == data.length)
-                            {
-                                int[] newArr = new int[data.length << 1];
-                                System.arraycopy(data, 0, newArr, 0, data.length);
-                                data = newArr;
-                            }
-                            data[size++] = child;
-                            /* end stack.push() */
-                        }
+                        marked++;
+                        push(child);
                     }
-                } // end of processing one GC root
+                }
             }
         }
-    }
 
-    /**
-     * Depth first search thread - with locality.
-     * Have a local stack for objects close to the current object.
-     * Have a local queue for remaining objects.
-     * Use the global stack for excess objects or when local stack and queue are empty.
-     */
-    public class LocalDfsThread extends DfsThread
-    {
-        private static final int RESERVED = MultiThreadedRootStack.RESERVED_WAITING - MultiThreadedRootStack.RESERVED_RUNNING;
-        static final int MAXSTACK = 100 * 1024;
-        /** How many times to loop before checking the global stack */
-        private static final int CHECKCOUNT = 10;
-        int localRange;
-        final int localRangeLimit;
-        SoftReference<int[]> sr;
-        double scaleUp = 0.005;
-        MultiThreadedRootStack rootsStack;
-        QueueInt queue = new QueueInt(1024);
-
-        public LocalDfsThread(MultiThreadedRootStack roots)
-        {
-            this(roots, 1000000);
-        }
-        public LocalDfsThread(MultiThreadedRootStack roots, int range)
+        private void push(int objectId)
         {
-            super(roots);
-            rootsStack = roots;
-            localRange = localRangeLimit = range;
-        }
-        int localBase;
-        void initLocalStack(int val) {
-            data[0] = val;
-            size = 1;
-            localBase = calcBase(data[0]);
-        }
-        void fillStack() {
-            // data array must be at least length 2
-            int originalQueueSize = queue.size();
-            // Look at every item in the queue
-            for (int i = 0; i < originalQueueSize; ++i)
+            if (top == data.length)
             {
-                int z = queue.get();
-                if (inRange(z))
+                if (bottom > data.length / 2)
                 {
-                    // In range, so put on the local stack
-                    data[size++] = z;
-                    if (size == data.length)
-                        break;
+                    // reclaim the space given away from the bottom
+                    System.arraycopy(data, bottom, data, 0, top - bottom);
                 }
                 else
                 {
-                    // Requeue
-                    queue.put(z);
+                    int[] newArr = new int[data.length << 1];
+                    System.arraycopy(data, bottom, newArr, 0, top - bottom);
+                    data = newArr;
                 }
+                top -= bottom;
+                bottom = 0;
             }
+            data[top++] = objectId;
         }
-        public void run()
-        {
-            rootsStack.linkThread();
-            try
-            {
-                boolean check = false;
-                int checkCount = 0;
-                while (true)
-                {
-                    // Pull some work off the global work stack
-                    int d;
-                    int work;
-                    synchronized (rootsStack)
-                    {
-
-                        if (rootsStack.size() > 0) // still some roots are not
-                            // processed
-                        {
-                            d = rootsStack.pop();
-                        }
-                        else
-                        {
-                            d = rootsStack.waitAndPop();
-                            if (d == -1)
-                                break;
-                        }
-                        work = rootsStack.worked(); 
-                    }
-                    if (work > 0)
-                        progressListener.worked(work);
-                    queue.put(d);
 
-                    while (queue.size() > 0) 
-                    {
-                        if (progressListener.isCanceled())
-                            return;
-                        initLocalStack(queue.get());
-                        fillStack();
+        /**
+         * Move the oldest half of the private stack to the shared stack.
+         */
+        private synchronized void share()
+        {
+            int n = Math.min((top - bottom) / 2, SHARED_CAPACITY - sharedSize);
+            System.arraycopy(data, bottom, shared, sharedSize, n);
+            bottom += n;
+            sharedSize += n;
+        }
 
-                        // Process the local stack and queue
-                        int current;
+        /**
+         * Find more work for the private stack, waiting until there is some.
+         * 
+         * @return false if there is no more work, and the thread should end
+         */
+        private boolean findWork()
+        {
+            if (state.stopped)
+                return false;
+            if (takeShared() || takeRoot() || steal())
+                return true;
 
-                        while (size > 0)
-                        {
-                            /* start stack.pop() */
-                            current = data[--size];
-                            /* end stack.pop */
-
-                            // See if other threads need work
-                            if (check || checkCount++ >= CHECKCOUNT)
-                            {
-                                checkCount = 0;
-                                check = true;
-                                if (queue.size() > 0 && queue.size() + size > RESERVED)
-                                {
-                                    int fromQueue;
-                                    synchronized (rootsStack)
-                                    {
-                                        do
-                                        {
-                                            fromQueue = queue.get();
-                                            check = rootsStack.pushIfWaiting(fromQueue);
-                                        }
-                                        while (check && queue.size() > 0 && queue.size() + size > RESERVED);
-                                    }
-                                    if (!check)
-                                        queue.put(fromQueue);
-                                }
-                                else if (size > RESERVED)
-                                {
-                                    synchronized (rootsStack)
-                                    {
-                                        do
-                                        {
-                                            check = rootsStack.pushIfWaiting(current);
-                                            if (check)
-                                                current = data[--size];
-                                        }
-                                        while (check && size > RESERVED);
-                                    }
-                                }
-                            }
-
-                            // Examine each outbound reference
-                            for (int child : outbound.get(current))
-                            {
-                                /*
-                                 * No synchronization here. It costs a lot of
-                                 * performance It is possible that some bits are
-                                 * marked more than once, but this is not a
-                                 * problem
-                                 */
-                                if (!bits[child])
-                                {
-                                    bits[child] = true;
-                                    if (size == 0)
-                                    {
-                                        // We have emptied the stack, so reset
-                                        // the base and refill
-                                        initLocalStack(child);
-                                        fillStack();
-                                    }
-                                    else if (inRange(child))
-                                    {
-                                        // In range
-                                        if (size < data.length)
-                                        {
-                                            data[size++] = child;
-                                        }
-                                        else if (size < MAXSTACK)
-                                        {
-                                            // Grow the local stack
-                                            int[] newArr = new int[Math.min(Math.max(0, data.length << 1), MAXSTACK)];
-                                            System.arraycopy(data, 0, newArr, 0, data.length);
-                                            data = newArr;
-                                            data[size++] = child;
-                                        }
-                                        else
-                                        {
-                                            // Local queue
-                                            queue.put(child);
-                                        }
-                                    }
-                                    else
-                                    {
-                                        // Local queue
-                                        queue.put(child);
-                                    }
-                                    /* end stack.push() */
-                                }
-                            }
-                        } // end of processing one GC root
-                    }
-                }
-            }
-            finally
+            state.active.decrementAndGet();
+            int spins = 0;
+            while (!state.stopped)
             {
-                rootsStack.unlinkThread();
+                if (state.hasRoots() || state.hasSharedWork())
+                {
+                    state.active.incrementAndGet();
+                    if (takeRoot() || steal())
+                        return true;
+                    state.active.decrementAndGet();
+                }
+                else if (state.active.get() == 0)
+                {
+                    // Only active threads can have work or share it, so
+                    // everything has been marked
+                    return false;
+                }
+                else if (++spins < SPINS)
+                {
+                    Thread.yield();
+                }
+                else
+                {
+                    LockSupport.parkNanos(100000L);
+                }
             }
+            return false;
         }
+
         /**
-         * Is the objectId in range for the local stack?
-         * @param val
-         * @return
+         * Take back all of the shared stack of this thread.
          */
-        private boolean inRange(int val)
+        private synchronized boolean takeShared()
         {
-            return val >= localBase && val - localBase < localRange;
+            if (sharedSize == 0)
+                return false;
+            for (int i = 0; i < sharedSize; i++)
+                push(shared[i]);
+            sharedSize = 0;
+            return true;
         }
-        /**
-         * Select a suitable base for the local stack.
-         * This is 1/4 range below and 3/4 range around the candidate item.
-         * @param v
-         * @return
-         */
-        private int calcBase(int v)
+
+        private boolean takeRoot()
         {
-            calcRange();
-            return Math.max(Math.min(v + (localRange * 3 >>> 2), bits.length) - localRange, 0);
+            if (!state.hasRoots())
+                return false;
+            int i = state.nextRoot.getAndIncrement();
+            if (i >= state.rootCount)
+                return false;
+            push(state.roots[i]);
+            return true;
         }
+
         /**
-         * Heuristic to vary size of range depending on GC pressure.
-         * Slowly increase the range if no GC pressure.
-         * Cleared soft reference means we are running out of space, so reduce the range.
+         * Steal half of the shared stack of another thread.
          */
-        private void calcRange()
+        private boolean steal()
         {
-            if (sr == null)
+            Marker[] markers = state.markers;
+            for (int i = 1; i < markers.length; i++)
             {
-                if (DEBUG) System.out.println("Set local range="+localRange); //$NON-NLS-1$
-                // set trigger
-                sr = new SoftReference<int[]>(new int[1024]);
-            }
-            else if (sr.get() != null)
-            {
-                if (localRange < bits.length && scaleUp > 0.0)
+                Marker victim = markers[(index + i) % markers.length];
+                if (victim.sharedSize > 0 && victim.stealInto(this))
                 {
-                    // Increase slowly
-                    localRange = Math.min((int)(localRange * (1.0 + scaleUp)), bits.length);
-                    if (DEBUG) System.out.println("Increased local range="+localRange+" "+scaleUp); //$NON-NLS-1$ //$NON-NLS-2$
+                    state.steals.incrementAndGet();
+                    return true;
                 }
             }
-            else if (localRange == localRangeLimit && scaleUp == 0.0)
-            {
-                // Already at minimum
-            }
-            else
-            {
-                // decrease more rapidly
-                localRange = Math.max((int)(localRange * 0.9), localRangeLimit);
-                // and don't increase as fast
-                scaleUp *= 0.5f;
-                // if it is too small, stop the scaling
-                if (scaleUp * localRange < 1.0)
-                    scaleUp = 0.0;
-                if (DEBUG) System.out.println("Decreased local range="+localRange+" "+scaleUp); //$NON-NLS-1$ //$NON-NLS-2$
-                // reset trigger
-                sr = new SoftReference<int[]>(new int[1024]);
-            }
+            return false;
+        }
+
+        private synchronized boolean stealInto(Marker thief)
+        {
+            int n = (sharedSize + 1) / 2;
+            if (n == 0)
+                return false;
+            for (int i = 0; i < n; i++)
+                thief.push(shared[i]);
+            System.arraycopy(shared, n, shared, 0, sharedSize - n);
+            sharedSize -= n;
+            return true;
         }
     }
 
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG.
+ * Copyright (c) 2008, 2018 SAP AG and IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,17 +7,22 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - append-only log with compaction
  *******************************************************************************/
 package org.eclipse.mat.parser.internal.snapshot;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,12 +31,41 @@ import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.internal.Messages;
 import org.eclipse.mat.parser.model.XSnapshotInfo;
 
+/**
+ * The retained sizes calculated for classes and class loaders.
+ * <p>
+ * The file is a log of (int key, long value) records, where a later record
+ * for a key replaces an earlier one. Each size is appended to the log as soon
+ * as it is stored, so the sizes survive a crash of the session, and a record
+ * only partly written by a crash is ignored. The log is compacted to one
+ * record per key once it holds many replaced records, and when it is closed.
+ * The file is not locked, so it should only be written by one session at a
+ * time.
+ * <p>
+ * Sizes can be read by several threads at once.
+ */
 public class RetainedSizeCache implements IIndexReader
 {
+    private static final int RECORD_SIZE = 12;
+
+    /**
+     * Replaced records allowed in the log before it is compacted, in
+     * addition to one for each key.
+     */
+    private static final int MIN_REPLACED_RECORDS = 1024;
+
     private String filename;
     private HashMapIntLong id2size;
-    private boolean isDirty = false;
-    
+    // the log opened for appending, or null until the next append
+    private FileOutputStream log;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // number of records in the log file
+    private long records;
+
+    // the log holds the old format, so must be rewritten before appending
+    private boolean rewrite = false;
+
     /**
      * File is expected to exist, and is read in the new format.
      * @param f
@@ -56,6 +90,7 @@ public class RetainedSizeCache implements IIndexReader
 
     public long get(int key)
     {
+        lock.readLock().lock();
         try
         {
             return id2size.get(key);
@@ -65,54 +100,152 @@ public class RetainedSizeCache implements IIndexReader
             // $JL-EXC$
             return 0;
         }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     public void put(int key, long value)
     {
-        id2size.put(key, value);
-        isDirty = true;
+        lock.writeLock().lock();
+        try
+        {
+            id2size.put(key, value);
+
+            if (rewrite || records >= 2L * id2size.size() + MIN_REPLACED_RECORDS)
+                compact();
+            else
+                append(key, value);
+        }
+        catch (IOException e)
+        {
+            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
+                            Messages.RetainedSizeCache_Warning_IgnoreError, e);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     public void close()
     {
-        if (!isDirty)
-            return;
-
+        lock.writeLock().lock();
         try
         {
-            File file = new File(filename);
+            if (rewrite || records > id2size.size())
+                compact();
+        }
+        catch (IOException e)
+        {
+            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
+                            Messages.RetainedSizeCache_Warning_IgnoreError, e);
+        }
+        finally
+        {
+            closeLog();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends one record with a single unbuffered write, so that a crash
+     * loses at most the record being written.
+     */
+    private void append(int key, long value) throws IOException
+    {
+        byte[] record = new byte[RECORD_SIZE];
+        for (int ii = 0; ii < 4; ii++)
+            record[ii] = (byte) (key >>> (24 - 8 * ii));
+        for (int ii = 0; ii < 8; ii++)
+            record[4 + ii] = (byte) (value >>> (56 - 8 * ii));
+
+        if (log == null)
+            log = new FileOutputStream(filename, true);
+        log.write(record);
+        records++;
+    }
+
+    private void closeLog()
+    {
+        if (log != null)
+        {
+            try
+            {
+                log.close();
+            }
+            catch (IOException ignore)
+            {
+                // $JL-EXC$
+            }
+            log = null;
+        }
+    }
 
-            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    /**
+     * Rewrites the log with one record for each key.
+     */
+    private void compact() throws IOException
+    {
+        File file = new File(filename);
 
+        // write a new file, then replace the log, so a crash leaves one or the other
+        File tmp = new File(filename.endsWith("index") //$NON-NLS-1$
+                        ? filename.substring(0, filename.length() - 5) + "tmp.index" //$NON-NLS-1$
+                        : filename + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try
+        {
             for (int key : id2size.getAllKeys())
             {
                 out.writeInt(key);
                 out.writeLong(id2size.get(key));
             }
-
+        }
+        finally
+        {
             out.close();
-
-            isDirty = false;
         }
-        catch (IOException e)
+
+        // the old log cannot be replaced while open on some platforms
+        closeLog();
+        if (!tmp.renameTo(file))
         {
-            Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
-                            Messages.RetainedSizeCache_Warning_IgnoreError, e);
+            // cannot rename over an existing file on some platforms
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException(tmp.getAbsolutePath());
         }
+
+        records = id2size.size();
+        rewrite = false;
     }
 
     private void doRead(File file, boolean readOldFormat)
     {
         DataInputStream in = null;
         boolean delete = false;
+        id2size = new HashMapIntLong();
+        records = 0;
 
         try
         {
-            id2size = new HashMapIntLong((int) file.length() / 8);
+            // ignore a record partly written when a session crashed
+            long length = file.length() / RECORD_SIZE * RECORD_SIZE;
+            if (length < file.length() && !readOldFormat && !truncate(file, length))
+            {
+                // appending after the partial record would misalign the
+                // records, so replace the whole log on the next put
+                rewrite = true;
+            }
+
+            records = length / RECORD_SIZE;
+            id2size = new HashMapIntLong((int) Math.min(records, Integer.MAX_VALUE / 2));
 
             in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
 
-            while (in.available() > 0)
+            for (long ii = 0; ii < records; ii++)
             {
                 int key = in.readInt();
                 long value = in.readLong();
@@ -126,9 +259,11 @@ public class RetainedSizeCache implements IIndexReader
             Logger.getLogger(RetainedSizeCache.class.getName()).log(Level.WARNING,
                             Messages.RetainedSizeCache_ErrorReadingRetainedSizes, e);
 
-            // might have read corrupt data
+            // might have read corrupt data, but keep a file which could
+            // not be opened
             id2size.clear();
-            delete = true;
+            records = 0;
+            delete = in != null && file.canWrite();
         }
         finally
         {
@@ -157,6 +292,34 @@ public class RetainedSizeCache implements IIndexReader
         }
     }
 
+    /**
+     * @return false if the file is read-only or otherwise could not be
+     *         truncated
+     */
+    private static boolean truncate(File file, long length)
+    {
+        if (!file.canWrite())
+            return false;
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            try
+            {
+                raf.setLength(length);
+                return true;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // $JL-EXC$
+            return false;
+        }
+    }
+
     private void readId2Size(String prefix)
     {
         File file = new File(filename);
@@ -170,17 +333,27 @@ public class RetainedSizeCache implements IIndexReader
             if (legacyFile.exists())
             {
                 doRead(legacyFile, true);
+                rewrite = true;
             }
             else
             {
                 id2size = new HashMapIntLong();
             }
+            records = 0;
         }
     }
 
     public int size()
     {
-        return id2size.size();
+        lock.readLock().lock();
+        try
+        {
+            return id2size.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     public void unload() throws IOException
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.parser.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.mat.parser.internal.Messages;
+
+/**
+ * A read-only file mapped into memory. Files larger than a single
+ * {@link ByteBuffer} can address are mapped as several chunks.
+ * <p>
+ * All reads give an absolute file position and never change the shared
+ * buffers, so any number of threads can read at once without locking. For
+ * sequential decoding each thread opens its own {@link Stream}.
+ * <p>
+ * After {@link #close()} reads fail with an {@link IOException}. The mapping
+ * itself is only released once the buffers have been garbage collected, so a
+ * read already in progress on another thread or an open {@link Stream} stays
+ * valid. Until then the file stays open, so for example cannot be deleted on
+ * Windows. For that reason the parser only maps dump and index files when the
+ * {@link #MAP_FILES} system property is set to true, and otherwise reads them
+ * with a {@link RandomAccessFile}.
+ *
+ * @since 1.9
+ */
+public class MappedFile
+{
+    /** The default size of each mapped chunk */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+    /**
+     * System property which when true lets the parser map dump and index
+     * files into memory.
+     */
+    public static final String MAP_FILES = "mapFiles"; //$NON-NLS-1$
+
+    private final long length;
+    private final int chunkShift;
+    private final int chunkMask;
+    private final ByteBuffer[] chunks;
+    private volatile boolean closed;
+
+    public MappedFile(File file) throws IOException
+    {
+        this(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param file
+     *            the file to map
+     * @param chunkSize
+     *            the size of each mapped chunk, a power of 2
+     */
+    public MappedFile(File file, int chunkSize) throws IOException
+    {
+        if (chunkSize <= 0 || Integer.bitCount(chunkSize) != 1)
+            throw new IllegalArgumentException(Integer.toString(chunkSize));
+
+        this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+        this.chunkMask = chunkSize - 1;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            this.length = channel.size();
+            this.chunks = new ByteBuffer[(int) ((length + chunkMask) >>> chunkShift)];
+            for (int ii = 0; ii < chunks.length; ii++)
+            {
+                long start = (long) ii << chunkShift;
+                chunks[ii] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+            }
+        }
+        finally
+        {
+            // the mappings stay valid once the file is closed, and if one
+            // failed those already made are released with the buffers
+            raf.close();
+        }
+    }
+
+    /**
+     * Whether dump and index files should be mapped, as set by the
+     * {@link #MAP_FILES} system property.
+     */
+    public static boolean isEnabled()
+    {
+        return Boolean.getBoolean(MAP_FILES);
+    }
+
+    public long length()
+    {
+        return length;
+    }
+
+    public byte readByte(long position) throws IOException
+    {
+        return chunk(position).get((int) position & chunkMask);
+    }
+
+    public int readInt(long position) throws IOException
+    {
+        ByteBuffer chunk = chunk(position);
+        int offset = (int) position & chunkMask;
+        if (offset <= chunk.limit() - 4)
+            return chunk.getInt(offset);
+
+        // crosses into the next chunk
+        int answer = 0;
+        for (int ii = 0; ii < 4; ii++)
+            answer = (answer << 8) | (readByte(position + ii) & 0xff);
+        return answer;
+    }
+
+    public long readLong(long position) throws IOException
+    {
+        ByteBuffer chunk = chunk(position);
+        int offset = (int) position & chunkMask;
+        if (offset <= chunk.limit() - 8)
+            return chunk.getLong(offset);
+
+        return ((long) readInt(position) << 32) | (readInt(position + 4) & 0x0FFFFFFFFL);
+    }
+
+    public void readFully(long position, byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            ByteBuffer chunk = chunk(position).duplicate();
+            chunk.position((int) position & chunkMask);
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Opens a stream positioned at the start of the file. Each stream has its
+     * own position, so must only be used by one thread at a time.
+     */
+    public Stream newInputStream()
+    {
+        return new Stream();
+    }
+
+    /**
+     * Closes the file. Reads afterwards fail with an {@link IOException}, and
+     * the mapping is released once no buffer refers to it.
+     */
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        for (int ii = 0; ii < chunks.length; ii++)
+            chunks[ii] = null;
+    }
+
+    private ByteBuffer chunk(long position) throws IOException
+    {
+        if (position < 0 || position >= length)
+            throw new EOFException(Long.toString(position));
+        ByteBuffer chunk = chunks[(int) (position >>> chunkShift)];
+        if (chunk == null || closed)
+            throw new IOException(Messages.MappedFile_Error_Closed);
+        return chunk;
+    }
+
+    /**
+     * An input stream over the mapped file, with a position of its own.
+     */
+    public final class Stream extends InputStream
+    {
+        private int chunk = -1;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        private Stream()
+        {
+            seek(0);
+        }
+
+        public void seek(long position)
+        {
+            position = Math.max(0, Math.min(position, length));
+            chunk = (int) (position >>> chunkShift);
+            ByteBuffer mapped = chunk < chunks.length ? chunks[chunk] : null;
+            if (mapped != null)
+            {
+                buffer = mapped.duplicate();
+                buffer.position((int) position & chunkMask);
+            }
+            else
+            {
+                // at the end of a file which fills the last chunk, or
+                // closed
+                buffer = ByteBuffer.allocate(0);
+            }
+        }
+
+        public long position()
+        {
+            return ((long) chunk << chunkShift) + buffer.position();
+        }
+
+        public int read() throws IOException
+        {
+            if (closed)
+                throw new IOException(Messages.MappedFile_Error_Closed);
+            if (!buffer.hasRemaining() && !nextChunk())
+                return -1;
+            return buffer.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (closed)
+                throw new IOException(Messages.MappedFile_Error_Closed);
+            if (!buffer.hasRemaining() && !nextChunk())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long position = position();
+            long target = Math.min(position + Math.max(n, 0), length);
+            seek(target);
+            return target - position;
+        }
+
+        public int available() throws IOException
+        {
+            return (int) Math.min(length - position(), Integer.MAX_VALUE);
+        }
+
+        private boolean nextChunk() throws IOException
+        {
+            if (chunk + 1 >= chunks.length)
+                return false;
+            ByteBuffer mapped = chunks[chunk + 1];
+            if (mapped == null)
+                throw new IOException(Messages.MappedFile_Error_Closed);
+            buffer = mapped.duplicate();
+            buffer.position(0);
+            chunk++;
+            return true;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2010 SAP AG and others.
+ * Copyright (c) 2008, 2018 SAP AG and others.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,16 +7,20 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - primitive array content as buffers
  *******************************************************************************/
 package org.eclipse.mat.parser.model;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.ArrayLong;
+import org.eclipse.mat.parser.IObjectReader;
+import org.eclipse.mat.parser.IPrimitiveArrayBufferReader;
 import org.eclipse.mat.snapshot.model.Field;
 import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.snapshot.model.NamedReference;
@@ -96,6 +100,95 @@ public class PrimitiveArrayImpl extends AbstractArrayImpl implements IPrimitiveA
         }
     }
 
+    /**
+     * @since 1.9
+     */
+    public ByteBuffer getValueBuffer(int offset, int length)
+    {
+        try
+        {
+            IObjectReader reader = source.getHeapObjectReader();
+            if (reader instanceof IPrimitiveArrayBufferReader)
+                return ((IPrimitiveArrayBufferReader) reader).readPrimitiveArrayBuffer(this, offset, length);
+            Object values = reader.readPrimitiveArrayContent(this, offset, length);
+            return values != null ? toBuffer(values, 0, length) : null;
+        }
+        catch (SnapshotException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies part of a primitive Java array into a buffer in the format of
+     * {@link IPrimitiveArray#getValueBuffer(int, int)}. The content of a byte
+     * array is not copied.
+     * 
+     * @param values
+     *            a byte[], short[], int[], long[], boolean[], char[], float[]
+     *            or double[]
+     * @param offset
+     *            the first element
+     * @param length
+     *            the number of elements
+     * @return a read-only buffer
+     * @since 1.9
+     */
+    public static ByteBuffer toBuffer(Object values, int offset, int length)
+    {
+        ByteBuffer buffer;
+        if (values instanceof byte[])
+        {
+            buffer = ByteBuffer.wrap((byte[]) values, offset, length).slice();
+        }
+        else if (values instanceof boolean[])
+        {
+            boolean[] b = (boolean[]) values;
+            buffer = ByteBuffer.allocate(length);
+            for (int ii = 0; ii < length; ii++)
+                buffer.put(ii, b[offset + ii] ? (byte) 1 : (byte) 0);
+        }
+        else if (values instanceof char[])
+        {
+            buffer = ByteBuffer.allocate(2 * length);
+            buffer.asCharBuffer().put((char[]) values, offset, length);
+        }
+        else if (values instanceof short[])
+        {
+            buffer = ByteBuffer.allocate(2 * length);
+            buffer.asShortBuffer().put((short[]) values, offset, length);
+        }
+        else if (values instanceof int[])
+        {
+            buffer = ByteBuffer.allocate(4 * length);
+            buffer.asIntBuffer().put((int[]) values, offset, length);
+        }
+        else if (values instanceof float[])
+        {
+            buffer = ByteBuffer.allocate(4 * length);
+            buffer.asFloatBuffer().put((float[]) values, offset, length);
+        }
+        else if (values instanceof long[])
+        {
+            buffer = ByteBuffer.allocate(8 * length);
+            buffer.asLongBuffer().put((long[]) values, offset, length);
+        }
+        else if (values instanceof double[])
+        {
+            buffer = ByteBuffer.allocate(8 * length);
+            buffer.asDoubleBuffer().put((double[]) values, offset, length);
+        }
+        else
+        {
+            throw new IllegalArgumentException(String.valueOf(values));
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
     protected Field internalGetField(String name)
     {
         return null;
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.collect;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bit field which can be changed by several threads at once. Each bit is
+ * set and cleared atomically, so when several threads try to set the same bit
+ * exactly one of them succeeds with {@link #testAndSet(int)}. This allows
+ * multi-threaded graph traversals to visit each object exactly once without
+ * any locking. Like {@link BitField}, out of performance reasons no method
+ * does any parameter checking, i.e. only valid values are expected.
+ * <p>
+ * The bulk operations {@link #cardinality()}, {@link #iterator()} and
+ * {@link #clear()} are not atomic as a whole. They should be used once the
+ * threads changing the bit field have finished.
+ *
+ * @since 1.9
+ */
+public final class ConcurrentBitField implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLongArray bits;
+    private final int size;
+
+    /**
+     * Creates a bit field with the given number of bits, all clear. Size is
+     * expected to be positive - out of performance reasons no checks are done!
+     * @param size the maximum size of the ConcurrentBitField
+     */
+    public ConcurrentBitField(int size)
+    {
+        this.bits = new AtomicLongArray(((size - 1) >>> 6) + 1);
+        this.size = size;
+    }
+
+    /**
+     * The number of bits in the bit field.
+     * @return the size given when the bit field was created
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Sets the bit on the given index. Index is expected to be in range - out
+     * of performance reasons no checks are done!
+     * @param index The 0-based index into the ConcurrentBitField.
+     */
+    public void set(int index)
+    {
+        testAndSet(index);
+    }
+
+    /**
+     * Sets the bit on the given index, if not already set. Index is expected
+     * to be in range - out of performance reasons no checks are done!
+     * @param index The 0-based index into the ConcurrentBitField.
+     * @return true if this call set the bit, false if it was already set.
+     */
+    public boolean testAndSet(int index)
+    {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long old;
+        do
+        {
+            old = bits.get(word);
+            if ((old & mask) != 0)
+                return false;
+        }
+        while (!bits.compareAndSet(word, old, old | mask));
+        return true;
+    }
+
+    /**
+     * Clears the bit on the given index. Index is expected to be in range - out
+     * of performance reasons no checks are done!
+     * @param index The 0-based index into the ConcurrentBitField.
+     */
+    public void clear(int index)
+    {
+        testAndClear(index);
+    }
+
+    /**
+     * Clears the bit on the given index, if set. Index is expected to be in
+     * range - out of performance reasons no checks are done!
+     * @param index The 0-based index into the ConcurrentBitField.
+     * @return true if this call cleared the bit, false if it was already clear.
+     */
+    public boolean testAndClear(int index)
+    {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long old;
+        do
+        {
+            old = bits.get(word);
+            if ((old & mask) == 0)
+                return false;
+        }
+        while (!bits.compareAndSet(word, old, old & ~mask));
+        return true;
+    }
+
+    /**
+     * Gets the bit on the given index. Index is expected to be in range - out
+     * of performance reasons no checks are done!
+     * @param index The 0-based index into the ConcurrentBitField.
+     * @return true if the bit is set, false if it was cleared or never set.
+     */
+    public boolean get(int index)
+    {
+        return (bits.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Clears all the bits.
+     */
+    public void clear()
+    {
+        for (int ii = 0; ii < bits.length(); ii++)
+            bits.set(ii, 0L);
+    }
+
+    /**
+     * Counts the bits which are set.
+     * @return the number of set bits
+     */
+    public int cardinality()
+    {
+        int count = 0;
+        for (int ii = 0; ii < bits.length(); ii++)
+            count += Long.bitCount(bits.get(ii));
+        return count;
+    }
+
+    /**
+     * Finds the first set bit at or after the given index.
+     * @param fromIndex the 0-based index to start from
+     * @return the index of the next set bit, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex)
+    {
+        if (fromIndex >= size)
+            return -1;
+        int word = fromIndex >>> 6;
+        long w = bits.get(word) & (-1L << fromIndex);
+        while (w == 0)
+        {
+            if (++word == bits.length())
+                return -1;
+            w = bits.get(word);
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(w);
+    }
+
+    /**
+     * Finds the first clear bit at or after the given index.
+     * @param fromIndex the 0-based index to start from
+     * @return the index of the next clear bit, or -1 if there is none
+     */
+    public int nextClearBit(int fromIndex)
+    {
+        if (fromIndex >= size)
+            return -1;
+        int word = fromIndex >>> 6;
+        long w = ~bits.get(word) & (-1L << fromIndex);
+        while (w == 0)
+        {
+            if (++word == bits.length())
+                return -1;
+            w = ~bits.get(word);
+        }
+        int index = (word << 6) + Long.numberOfTrailingZeros(w);
+        return index < size ? index : -1;
+    }
+
+    /**
+     * Iterates over the indices of the set bits in increasing order.
+     * @return an iterator over the set bits
+     */
+    public IteratorInt iterator()
+    {
+        return new IteratorInt()
+        {
+            int next = nextSetBit(0);
+
+            public boolean hasNext()
+            {
+                return next >= 0;
+            }
+
+            public int next()
+            {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                int answer = next;
+                next = nextSetBit(answer + 1);
+                return answer;
+            }
+        };
+    }
+}
@@ -20,6 +20,7 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses( { org.eclipse.mat.tests.collect.CompressedArraysTest.class, //
                 org.eclipse.mat.tests.collect.SetIntTest.class, //
                 org.eclipse.mat.tests.collect.SetLongTest.class, //
+                org.eclipse.mat.tests.collect.ConcurrentBitFieldTest.class, //
                 org.eclipse.mat.tests.collect.PrimitiveArrayTests.class, //
                 org.eclipse.mat.tests.collect.PrimitiveMapTests.class, //
                 org.eclipse.mat.tests.collect.CommandTests.class, //
@@ -27,6 +28,8 @@ import org.junit.runners.Suite.SuiteClasses;
                 org.eclipse.mat.tests.collect.ExtractCollectionEntriesTest.class, //
                 org.eclipse.mat.tests.parser.TestIndex.class, //
                 org.eclipse.mat.tests.parser.TestIndex1to1.class, //
+                org.eclipse.mat.tests.parser.TestMappedFile.class, //
+                org.eclipse.mat.tests.parser.TestRetainedSizeCache.class, //
                 org.eclipse.mat.tests.snapshot.DominatorTreeTest.class, //
                 org.eclipse.mat.tests.snapshot.TestUnreachableObjects.class, //
                 org.eclipse.mat.tests.snapshot.GeneralSnapshotTests.class, //
@@ -35,6 +38,9 @@ import org.junit.runners.Suite.SuiteClasses;
                 org.eclipse.mat.tests.snapshot.QueriesTest.class, //
                 org.eclipse.mat.tests.snapshot.OQLTest.class, //
                 org.eclipse.mat.tests.snapshot.MultipleSnapshots.class, //
+                org.eclipse.mat.tests.snapshot.ParallelParsingTest.class, //
+                org.eclipse.mat.tests.snapshot.SyntheticDumpTest.class, //
+                org.eclipse.mat.tests.snapshot.ResumeParseTest.class, //
                 org.eclipse.mat.tests.acquire.AcquireDumpTest.class,
                 org.eclipse.mat.tests.collect.ExtractCollectionEntriesTest3.class, //
                 org.eclipse.mat.tests.collect.ExtractCollectionEntriesTest4.class, //
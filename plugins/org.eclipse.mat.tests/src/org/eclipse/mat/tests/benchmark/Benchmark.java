@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An operation to be timed by the {@link BenchmarkRunner}.
+ */
+public abstract class Benchmark
+{
+    private final String name;
+    private final boolean singleShot;
+
+    /**
+     * @param name
+     *            the name reported in the results
+     * @param singleShot
+     *            true if the operation is long running, so each iteration
+     *            runs it exactly once rather than as often as fits in the
+     *            iteration time
+     */
+    protected Benchmark(String name, boolean singleShot)
+    {
+        this.name = name;
+        this.singleShot = singleShot;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public boolean isSingleShot()
+    {
+        return singleShot;
+    }
+
+    /**
+     * Prepare to run the operation. Not timed.
+     */
+    public void setUp(DumpFixture fixture) throws Exception
+    {}
+
+    /**
+     * Run the operation once. The result is kept by the runner so that the
+     * work cannot be optimized away.
+     */
+    public abstract Object run() throws Exception;
+
+    /**
+     * Times in milliseconds of the parts of the last operation, for example
+     * the phases of parsing.
+     */
+    public Map<String, Long> getSecondaryTimes()
+    {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Release anything held for the operation. Not timed.
+     */
+    public void tearDown() throws Exception
+    {}
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.eclipse.equinox.app.IApplication;
+import org.eclipse.equinox.app.IApplicationContext;
+
+/**
+ * Runs the benchmarks on some heap dumps and writes the results as JSON, for
+ * comparison between releases. The dumps are existing files or are generated
+ * by {@link HprofGenerator}.
+ */
+public class BenchmarkApplication implements IApplication
+{
+    public Object start(IApplicationContext context)
+    {
+        try
+        {
+            String[] args = (String[]) context.getArguments().get(IApplicationContext.APPLICATION_ARGS);
+            if (args == null)
+                args = new String[0];
+
+            int warmup = 2;
+            int iterations = 5;
+            long time = 1000;
+            Pattern include = null;
+            File out = null;
+            Map<String, String> options = new HashMap<String, String>();
+            List<File> dumps = new ArrayList<File>();
+            List<HprofGenerator> generators = new ArrayList<HprofGenerator>();
+
+            for (int ii = 0; ii < args.length; ii++)
+            {
+                String arg = args[ii];
+                if (arg.startsWith("-") && ii + 1 >= args.length)
+                {
+                    printUsage("Missing value for " + arg);
+                    return -1;
+                }
+                if ("-warmup".equals(arg))
+                    warmup = Integer.parseInt(args[++ii]);
+                else if ("-iterations".equals(arg))
+                    iterations = Integer.parseInt(args[++ii]);
+                else if ("-time".equals(arg))
+                    time = Long.parseLong(args[++ii]);
+                else if ("-include".equals(arg))
+                    include = Pattern.compile(args[++ii]);
+                else if ("-out".equals(arg))
+                    out = new File(args[++ii]);
+                else if ("-generate".equals(arg))
+                    generators.add(HprofGenerator.parse(args[++ii]));
+                else if ("-option".equals(arg))
+                {
+                    String option = args[++ii];
+                    int p = option.indexOf('=');
+                    if (p < 0)
+                    {
+                        printUsage("Expected key=value: " + option);
+                        return -1;
+                    }
+                    options.put(option.substring(0, p), option.substring(p + 1));
+                }
+                else if (arg.startsWith("-"))
+                {
+                    printUsage("Unknown argument: " + arg);
+                    return -1;
+                }
+                else
+                {
+                    File dump = new File(arg);
+                    if (!dump.isFile())
+                        throw new FileNotFoundException(dump.getAbsolutePath());
+                    dumps.add(dump);
+                }
+            }
+
+            if (dumps.isEmpty() && generators.isEmpty())
+            {
+                printUsage("Missing heap dumps.");
+                return -1;
+            }
+
+            List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+            for (Benchmark b : SnapshotBenchmarks.all())
+            {
+                if (include == null || include.matcher(b.getName()).find())
+                    benchmarks.add(b);
+            }
+
+            BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, time, System.out);
+            List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+            for (File dump : dumps)
+                run(runner, benchmarks, new DumpFixture(dump, options), results);
+            for (HprofGenerator generator : generators)
+            {
+                System.out.println("# Generating " + generator);
+                run(runner, benchmarks, new DumpFixture(generator, options), results);
+            }
+
+            PrintWriter writer = new PrintWriter(out != null ? new OutputStreamWriter(new FileOutputStream(out),
+                            "UTF-8") : new OutputStreamWriter(System.out));
+            try
+            {
+                BenchmarkResult.writeJSON(results, writer);
+            }
+            finally
+            {
+                if (out != null)
+                    writer.close();
+            }
+
+            return IApplication.EXIT_OK;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    private void run(BenchmarkRunner runner, List<Benchmark> benchmarks, DumpFixture fixture,
+                    List<BenchmarkResult> results) throws Exception
+    {
+        try
+        {
+            for (Benchmark b : benchmarks)
+                results.add(runner.run(b, fixture));
+        }
+        finally
+        {
+            fixture.dispose();
+        }
+    }
+
+    private void printUsage(String errorMessage)
+    {
+        System.err.println(errorMessage);
+        System.err.println("Usage: [<options>] [<heap dump>...]\n\n" + "where <options> are:\n" //
+                        + "  -warmup <n> : warm up iterations, default 2\n" //
+                        + "  -iterations <n> : measured iterations, default 5\n" //
+                        + "  -time <ms> : minimum time of each iteration, default 1000\n" //
+                        + "  -include <regex> : only run the benchmarks whose names match\n" //
+                        + "  -option <key>=<value> : parser option, may be repeated\n" //
+                        + "  -generate <name>=<value>,... : also generate a dump with these settings, may be repeated\n" //
+                        + "  -out <file> : write the JSON results to a file instead of the console\n");
+    }
+
+    public void stop()
+    {}
+}
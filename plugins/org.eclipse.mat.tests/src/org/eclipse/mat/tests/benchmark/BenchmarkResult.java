@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The measurements of one benchmark on one dump.
+ * <p>
+ * The results are written as JSON in the layout used by JMH, so that results
+ * from different releases can be compared with the usual JMH tools. Times are
+ * in milliseconds per operation and the score error is the standard
+ * deviation of the iterations.
+ */
+public class BenchmarkResult
+{
+    private final String benchmark;
+    private final String mode;
+    private final Map<String, String> params;
+    private final int warmupIterations;
+    private final double[] rawData;
+    private final Map<String, double[]> secondaryData;
+
+    public BenchmarkResult(String benchmark, String mode, Map<String, String> params, int warmupIterations,
+                    double[] rawData, Map<String, double[]> secondaryData)
+    {
+        this.benchmark = benchmark;
+        this.mode = mode;
+        this.params = params;
+        this.warmupIterations = warmupIterations;
+        this.rawData = rawData;
+        this.secondaryData = secondaryData;
+    }
+
+    public String getBenchmark()
+    {
+        return benchmark;
+    }
+
+    public Map<String, String> getParams()
+    {
+        return params;
+    }
+
+    public double getScore()
+    {
+        return mean(rawData);
+    }
+
+    public double getScoreError()
+    {
+        return deviation(rawData);
+    }
+
+    public Map<String, double[]> getSecondaryData()
+    {
+        return secondaryData;
+    }
+
+    private static double mean(double[] data)
+    {
+        double sum = 0;
+        for (double d : data)
+            sum += d;
+        return data.length > 0 ? sum / data.length : Double.NaN;
+    }
+
+    private static double deviation(double[] data)
+    {
+        if (data.length < 2)
+            return Double.NaN;
+        double mean = mean(data);
+        double sum = 0;
+        for (double d : data)
+            sum += (d - mean) * (d - mean);
+        return Math.sqrt(sum / (data.length - 1));
+    }
+
+    /**
+     * Write all the results as a JSON array.
+     */
+    public static void writeJSON(List<BenchmarkResult> results, PrintWriter out)
+    {
+        out.println("[");
+        for (int ii = 0; ii < results.size(); ii++)
+        {
+            results.get(ii).writeJSON(out);
+            out.println(ii + 1 < results.size() ? "," : "");
+        }
+        out.println("]");
+        out.flush();
+    }
+
+    private void writeJSON(PrintWriter out)
+    {
+        out.println("  {");
+        out.println("    \"benchmark\" : " + quote(benchmark) + ",");
+        out.println("    \"mode\" : " + quote(mode) + ",");
+        out.println("    \"threads\" : 1,");
+        out.println("    \"forks\" : 0,");
+        out.println("    \"warmupIterations\" : " + warmupIterations + ",");
+        out.println("    \"measurementIterations\" : " + rawData.length + ",");
+        out.print("    \"params\" : {");
+        String sep = "";
+        for (Map.Entry<String, String> e : params.entrySet())
+        {
+            out.print(sep + " " + quote(e.getKey()) + " : " + quote(e.getValue()));
+            sep = ",";
+        }
+        out.println(" },");
+        out.print("    \"primaryMetric\" : ");
+        writeMetric(out, rawData, "      ");
+        out.println(",");
+        out.print("    \"secondaryMetrics\" : {");
+        sep = "";
+        for (Map.Entry<String, double[]> e : secondaryData.entrySet())
+        {
+            out.println(sep);
+            out.print("      " + quote(e.getKey()) + " : ");
+            writeMetric(out, e.getValue(), "        ");
+            sep = ",";
+        }
+        out.println(secondaryData.isEmpty() ? "}" : "\n    }");
+        out.print("  }");
+    }
+
+    private static void writeMetric(PrintWriter out, double[] data, String indent)
+    {
+        out.println("{");
+        out.println(indent + "\"score\" : " + number(mean(data)) + ",");
+        out.println(indent + "\"scoreError\" : " + number(deviation(data)) + ",");
+        out.println(indent + "\"scoreUnit\" : \"ms/op\",");
+        out.print(indent + "\"rawData\" : [ [");
+        for (int ii = 0; ii < data.length; ii++)
+            out.print((ii > 0 ? ", " : " ") + number(data[ii]));
+        out.println(" ] ]");
+        out.print(indent.substring(2) + "}");
+    }
+
+    private static String number(double d)
+    {
+        // JSON has no NaN
+        return Double.isNaN(d) || Double.isInfinite(d) ? "\"NaN\"" : Double.toString(d);
+    }
+
+    private static String quote(String s)
+    {
+        StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+        for (int ii = 0; ii < s.length(); ii++)
+        {
+            char c = s.charAt(ii);
+            if (c == '"' || c == '\\')
+                b.append('\\').append(c);
+            else if (c < ' ')
+                b.append(String.format("\\u%04x", (int) c));
+            else
+                b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * Parameters in a stable order.
+     */
+    public static Map<String, String> params(String... keysAndValues)
+    {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (int ii = 0; ii + 1 < keysAndValues.length; ii += 2)
+            params.put(keysAndValues[ii], keysAndValues[ii + 1]);
+        return params;
+    }
+}
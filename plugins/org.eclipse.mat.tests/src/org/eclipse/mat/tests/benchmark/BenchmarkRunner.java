@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times benchmarks in the style of JMH: some warm up iterations whose times
+ * are discarded, then the measured iterations. An iteration runs the
+ * operation repeatedly until the iteration time has passed, or just once for
+ * single shot benchmarks.
+ */
+public class BenchmarkRunner
+{
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final PrintStream log;
+
+    /** Keeps the results of the operations so they cannot be optimized away */
+    private volatile Object sink;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis, PrintStream log)
+    {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+        this.log = log;
+    }
+
+    public BenchmarkResult run(Benchmark benchmark, DumpFixture fixture) throws Exception
+    {
+        log.println("# Benchmark: " + benchmark.getName() + " " + fixture.getName());
+        benchmark.setUp(fixture);
+        try
+        {
+            for (int ii = 0; ii < warmupIterations; ii++)
+            {
+                double time = iteration(benchmark);
+                log.println(String.format("# Warmup Iteration %3d: %.3f ms/op", ii + 1, time));
+            }
+
+            double[] times = new double[measurementIterations];
+            Map<String, double[]> secondary = new LinkedHashMap<String, double[]>();
+            for (int ii = 0; ii < measurementIterations; ii++)
+            {
+                times[ii] = iteration(benchmark);
+                log.println(String.format("Iteration %3d: %.3f ms/op", ii + 1, times[ii]));
+
+                for (Map.Entry<String, Long> e : benchmark.getSecondaryTimes().entrySet())
+                {
+                    double[] values = secondary.get(e.getKey());
+                    if (values == null)
+                    {
+                        values = new double[measurementIterations];
+                        secondary.put(e.getKey(), values);
+                    }
+                    values[ii] = e.getValue();
+                }
+            }
+
+            Map<String, String> params = BenchmarkResult.params("dump", fixture.getName());
+            for (Map.Entry<String, String> e : fixture.getOptions().entrySet())
+                params.put(e.getKey(), e.getValue());
+
+            BenchmarkResult result = new BenchmarkResult(BenchmarkRunner.class.getPackage().getName() + "."
+                            + benchmark.getName(), benchmark.isSingleShot() ? "ss" : "avgt", params,
+                            warmupIterations, times, secondary);
+            log.println(String.format("Result: %.3f +- %.3f ms/op", result.getScore(), result.getScoreError()));
+            return result;
+        }
+        finally
+        {
+            benchmark.tearDown();
+            sink = null;
+        }
+    }
+
+    /**
+     * @return the average time of an operation in milliseconds
+     */
+    private double iteration(Benchmark benchmark) throws Exception
+    {
+        long start = System.nanoTime();
+        long end = benchmark.isSingleShot() ? start : start + iterationMillis * 1000000L;
+        long now;
+        int ops = 0;
+        do
+        {
+            sink = benchmark.run();
+            ops++;
+            now = System.nanoTime();
+        }
+        while (now < end);
+        return (now - start) / 1e6 / ops;
+    }
+}
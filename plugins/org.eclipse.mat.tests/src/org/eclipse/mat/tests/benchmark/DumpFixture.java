@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.VoidProgressListener;
+
+/**
+ * A heap dump in a directory of its own, so that the benchmarks can create and
+ * delete index files without touching the original dump. The dump is either a
+ * copy of an existing dump or generated.
+ */
+public class DumpFixture
+{
+    private final String name;
+    private final Map<String, String> options;
+    private final File dir;
+    private final File dump;
+    private ISnapshot snapshot;
+
+    private DumpFixture(String name, String fileName, Map<String, String> options) throws IOException
+    {
+        this.name = name;
+        this.options = options;
+        this.dir = File.createTempFile("matbench", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException(dir.getAbsolutePath());
+        this.dump = new File(dir, fileName);
+    }
+
+    public DumpFixture(File original, Map<String, String> options) throws IOException
+    {
+        this(original.getName(), original.getName(), options);
+        copy(original, dump);
+    }
+
+    public DumpFixture(HprofGenerator generator, Map<String, String> options) throws IOException
+    {
+        this(generator.toString(), "synthetic.hprof", options);
+        generator.generate(dump, new VoidProgressListener());
+    }
+
+    /**
+     * The name of the original dump or the generator settings, used as a
+     * benchmark parameter.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    public File getDump()
+    {
+        return dump;
+    }
+
+    /**
+     * The options used to parse the dump.
+     */
+    public Map<String, String> getOptions()
+    {
+        return options;
+    }
+
+    /**
+     * Parse the dump from scratch, discarding any existing index files.
+     */
+    public ISnapshot parse(IProgressListener listener) throws SnapshotException
+    {
+        closeSnapshot();
+        deleteIndexes();
+        return SnapshotFactory.openSnapshot(dump, options, listener);
+    }
+
+    /**
+     * The parsed dump shared by the query benchmarks, opened on first use.
+     */
+    public ISnapshot getSnapshot() throws SnapshotException
+    {
+        if (snapshot == null)
+            snapshot = SnapshotFactory.openSnapshot(dump, options, new VoidProgressListener());
+        return snapshot;
+    }
+
+    public void closeSnapshot()
+    {
+        if (snapshot != null)
+        {
+            SnapshotFactory.dispose(snapshot);
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Remove the copy of the dump and all index files.
+     */
+    public void dispose()
+    {
+        closeSnapshot();
+        deleteIndexes();
+        dump.delete();
+        dir.delete();
+    }
+
+    private void deleteIndexes()
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+        {
+            if (!f.equals(dump))
+                f.delete();
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
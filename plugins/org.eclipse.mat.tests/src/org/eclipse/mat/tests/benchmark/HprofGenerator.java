@@ -0,0 +1,482 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.eclipse.mat.hprof.HprofWriter;
+import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.util.IProgressListener;
+
+/**
+ * Writes a HPROF heap dump of a synthetic object graph, so that parsing and
+ * the dominator tree can be tried with heaps of any size without a real dump.
+ * <p>
+ * The dump is streamed, so the generator needs very little memory whatever
+ * the size of the heap. The graph is fixed by the settings and the seed:
+ * <ul>
+ * <li><code>objects</code> instances of <code>synthetic.Node</code>, split
+ * into chains of <code>chainLength</code> nodes linked by the
+ * <code>next</code> field</li>
+ * <li><code>fanOut</code> more reference fields in each node, to
+ * pseudo-random nodes</li>
+ * <li><code>gcRoots</code> object arrays held by JNI global roots, which
+ * between them hold the first node of every chain, so all nodes are
+ * reachable</li>
+ * <li><code>giantArrays</code> object arrays, each a GC root, of
+ * <code>giantArrayLength</code> references to pseudo-random nodes</li>
+ * <li><code>classLoaders</code> class loaders, each of which defines its own
+ * <code>synthetic.Node</code> class, with the nodes shared between them.
+ * With none, the node class is loaded by the bootstrap loader.</li>
+ * <li><code>segmentSize</code> the most bytes of records in each heap dump
+ * segment, except for a single bigger record</li>
+ * </ul>
+ * The settings can also be given as a string such as
+ * <code>objects=1000000,fanOut=4,chainLength=1000</code>.
+ */
+public class HprofGenerator
+{
+    private static final int IDSIZE = 8;
+
+    /** By default heap dump records are collected into segments of about this size */
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final long CLASS_BASE = 0x100000L;
+    private static final long CLASS_STRIDE = 0x100;
+    private static final long OBJECT_HEADER = 16;
+    private static final long LOADER_STRIDE = 16;
+
+    // classes in order of their serial numbers, then the node classes
+    private static final String CLASS_NAMES[] = { "java.lang.Object", "java.lang.Class", "java.lang.ClassLoader",
+                    "[Ljava.lang.Object;", "synthetic.SyntheticClassLoader" };
+    private static final int OBJECT = 0;
+    private static final int CLASSLOADER = 2;
+    private static final int OBJECT_ARRAY = 3;
+    private static final int SYNTHETIC_CLASSLOADER = 4;
+    private static final String NODE = "synthetic.Node";
+
+    private int objects = 100000;
+    private int fanOut = 2;
+    private int chainLength = 1;
+    private int gcRoots = 100;
+    private int giantArrays = 0;
+    private int giantArrayLength = 1000000;
+    private int classLoaders = 0;
+    private int segmentSize = SEGMENT_SIZE;
+    private long seed = 1;
+
+    // layout of the dump, fixed by generate()
+    private HprofWriter writer;
+    private int nodeClasses;
+    private int chains;
+    private long loaderBase;
+    private long nodeBase;
+    private long nodeStride;
+    private long holderBase;
+    private long holderStride;
+    private long arrayBase;
+    private long arrayStride;
+
+    public HprofGenerator()
+    {}
+
+    /**
+     * Settings given as a comma separated list of name=value, for example
+     * <code>objects=1000000,fanOut=4</code>.
+     */
+    public static HprofGenerator parse(String spec)
+    {
+        HprofGenerator generator = new HprofGenerator();
+        for (String setting : spec.split(","))
+        {
+            int p = setting.indexOf('=');
+            if (p < 0)
+                throw new IllegalArgumentException(setting);
+            String name = setting.substring(0, p).trim();
+            long value = Long.parseLong(setting.substring(p + 1).trim());
+            if ("objects".equals(name))
+                generator.setObjects((int) value);
+            else if ("fanOut".equals(name))
+                generator.setFanOut((int) value);
+            else if ("chainLength".equals(name))
+                generator.setChainLength((int) value);
+            else if ("gcRoots".equals(name))
+                generator.setGCRoots((int) value);
+            else if ("giantArrays".equals(name))
+                generator.setGiantArrays((int) value);
+            else if ("giantArrayLength".equals(name))
+                generator.setGiantArrayLength((int) value);
+            else if ("classLoaders".equals(name))
+                generator.setClassLoaders((int) value);
+            else if ("segmentSize".equals(name))
+                generator.setSegmentSize((int) value);
+            else if ("seed".equals(name))
+                generator.setSeed(value);
+            else
+                throw new IllegalArgumentException(setting);
+        }
+        return generator;
+    }
+
+    public void setObjects(int objects)
+    {
+        if (objects < 1)
+            throw new IllegalArgumentException("objects " + objects);
+        this.objects = objects;
+    }
+
+    public void setFanOut(int fanOut)
+    {
+        if (fanOut < 0)
+            throw new IllegalArgumentException("fanOut " + fanOut);
+        this.fanOut = fanOut;
+    }
+
+    public void setChainLength(int chainLength)
+    {
+        if (chainLength < 1)
+            throw new IllegalArgumentException("chainLength " + chainLength);
+        this.chainLength = chainLength;
+    }
+
+    public void setGCRoots(int gcRoots)
+    {
+        if (gcRoots < 1)
+            throw new IllegalArgumentException("gcRoots " + gcRoots);
+        this.gcRoots = gcRoots;
+    }
+
+    public void setGiantArrays(int giantArrays)
+    {
+        if (giantArrays < 0)
+            throw new IllegalArgumentException("giantArrays " + giantArrays);
+        this.giantArrays = giantArrays;
+    }
+
+    public void setGiantArrayLength(int giantArrayLength)
+    {
+        if (giantArrayLength < 0)
+            throw new IllegalArgumentException("giantArrayLength " + giantArrayLength);
+        this.giantArrayLength = giantArrayLength;
+    }
+
+    public void setClassLoaders(int classLoaders)
+    {
+        if (classLoaders < 0)
+            throw new IllegalArgumentException("classLoaders " + classLoaders);
+        this.classLoaders = classLoaders;
+    }
+
+    public void setSegmentSize(int segmentSize)
+    {
+        if (segmentSize < 1)
+            throw new IllegalArgumentException("segmentSize " + segmentSize);
+        this.segmentSize = segmentSize;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * The number of objects in the dump, including classes, class loaders and
+     * arrays.
+     */
+    public long getNumberOfObjects()
+    {
+        return CLASS_NAMES.length + Math.max(classLoaders, 1) + classLoaders + (long) objects + gcRoots
+                        + giantArrays;
+    }
+
+    /**
+     * The settings, in the form accepted by {@link #parse(String)}.
+     */
+    @Override
+    public String toString()
+    {
+        return "objects=" + objects + ",fanOut=" + fanOut + ",chainLength=" + chainLength + ",gcRoots=" + gcRoots
+                        + ",giantArrays=" + giantArrays + ",giantArrayLength=" + giantArrayLength
+                        + ",classLoaders=" + classLoaders + ",segmentSize=" + segmentSize + ",seed=" + seed;
+    }
+
+    public void generate(File file, IProgressListener listener) throws IOException
+    {
+        layout();
+        listener.beginTask("Generating " + file.getName(), objects / 1000 + gcRoots / 1000 + giantArrays + 2);
+
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try
+        {
+            writer = new HprofWriter(IDSIZE, System.currentTimeMillis());
+            writer.writeHeader(os);
+            writeStrings(os);
+            writer.writeStackTrace(os, HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, 0, new long[0]);
+            for (int ii = 0; ii < CLASS_NAMES.length + nodeClasses; ii++)
+                writer.writeLoadClass(os, ii + 1, classAddress(ii), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                                ii < CLASS_NAMES.length ? ii + 1 : CLASS_NAMES.length + 1);
+
+            Segments segments = new Segments(os);
+            writeClasses(segments);
+            listener.worked(1);
+            writeNodes(segments, listener);
+            writeHolders(segments, listener);
+            writeGiantArrays(segments, listener);
+            segments.flush();
+
+            writer.writeHeapDumpEnd(os);
+        }
+        finally
+        {
+            os.close();
+        }
+        listener.done();
+    }
+
+    private void layout()
+    {
+        nodeClasses = Math.max(classLoaders, 1);
+        chains = (objects + chainLength - 1) / chainLength;
+        loaderBase = classAddress(CLASS_NAMES.length + nodeClasses);
+        nodeBase = loaderBase + classLoaders * LOADER_STRIDE;
+        nodeStride = align(OBJECT_HEADER + nodeFieldsSize());
+        holderBase = nodeBase + objects * nodeStride;
+        holderStride = align(OBJECT_HEADER + (long) holderLength(0) * IDSIZE);
+        arrayBase = holderBase + gcRoots * holderStride;
+        arrayStride = align(OBJECT_HEADER + (long) giantArrayLength * IDSIZE);
+
+        HprofWriter sizes = new HprofWriter(IDSIZE, 0);
+        if (sizes.getObjectArrayDumpSize(holderLength(0)) > HprofWriter.MAX_SEGMENT)
+            throw new IllegalArgumentException("Too many chains for each GC root, increase gcRoots or chainLength");
+        if (sizes.getObjectArrayDumpSize(giantArrayLength) > HprofWriter.MAX_SEGMENT)
+            throw new IllegalArgumentException("giantArrayLength " + giantArrayLength);
+    }
+
+    private static long align(long size)
+    {
+        return (size + 7) & ~7L;
+    }
+
+    private int nodeFieldsSize()
+    {
+        // next, value, then the fan out references
+        return IDSIZE + 8 + fanOut * IDSIZE;
+    }
+
+    private long classAddress(int serial)
+    {
+        return CLASS_BASE + serial * CLASS_STRIDE;
+    }
+
+    private long nodeAddress(int node)
+    {
+        return nodeBase + node * nodeStride;
+    }
+
+    /**
+     * The number of chains held by a GC root.
+     */
+    private int holderLength(int root)
+    {
+        return root < chains ? (chains - root + gcRoots - 1) / gcRoots : 0;
+    }
+
+    /**
+     * A pseudo-random node, the same for the same arguments.
+     */
+    private int target(long a, long b)
+    {
+        return (int) ((mix(mix(seed + a) + b) >>> 1) % objects);
+    }
+
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Class names have the IDs 1 to n in the order of {@link #CLASS_NAMES},
+     * then the node class, then the field names.
+     */
+    private void writeStrings(DataOutput os) throws IOException
+    {
+        long id = 1;
+        for (String name : CLASS_NAMES)
+            writer.writeStringUTF(os, id++, name);
+        writer.writeStringUTF(os, id++, NODE);
+        writer.writeStringUTF(os, id++, "next");
+        writer.writeStringUTF(os, id++, "value");
+        for (int ii = 0; ii < fanOut; ii++)
+            writer.writeStringUTF(os, id++, "ref" + ii);
+    }
+
+    private void writeClasses(Segments segments) throws IOException
+    {
+        long classDumpSize = 1 + IDSIZE + 4 + 6 * IDSIZE + 4 + 2 + 2 + 2;
+        for (int ii = 0; ii < CLASS_NAMES.length; ii++)
+        {
+            DataOutput os = segments.record(classDumpSize + 1 + IDSIZE);
+            long superClass = ii == OBJECT ? 0 : classAddress(ii == SYNTHETIC_CLASSLOADER ? CLASSLOADER : OBJECT);
+            writer.writeClassDumpHeader(os, classAddress(ii), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, superClass, 0,
+                            0, 0, 0, 0, 0);
+            os.writeShort(0); // constant pool
+            os.writeShort(0); // static fields
+            os.writeShort(0); // instance fields
+            writer.writeRootStickyClass(os, classAddress(ii));
+        }
+
+        long nameID = CLASS_NAMES.length + 2;
+        for (int ii = 0; ii < nodeClasses; ii++)
+        {
+            int serial = CLASS_NAMES.length + ii;
+            long loader = classLoaders > 0 ? loaderBase + ii * LOADER_STRIDE : 0;
+            DataOutput os = segments.record(classDumpSize + (2 + fanOut) * (IDSIZE + 1)
+                            + (loader == 0 ? 1 + IDSIZE : 0));
+            writer.writeClassDumpHeader(os, classAddress(serial), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                            classAddress(OBJECT), loader, 0, 0, 0, 0, nodeFieldsSize());
+            os.writeShort(0); // constant pool
+            os.writeShort(0); // static fields
+            os.writeShort(2 + fanOut);
+            writer.writeFieldDescriptor(os, nameID, IObject.Type.OBJECT);
+            writer.writeFieldDescriptor(os, nameID + 1, IObject.Type.LONG);
+            for (int jj = 0; jj < fanOut; jj++)
+                writer.writeFieldDescriptor(os, nameID + 2 + jj, IObject.Type.OBJECT);
+            if (loader == 0)
+                writer.writeRootStickyClass(os, classAddress(serial));
+        }
+
+        for (int ii = 0; ii < classLoaders; ii++)
+        {
+            DataOutput os = segments.record(writer.getInstanceDumpSize(0));
+            writer.writeInstanceDumpHeader(os, loaderBase + ii * LOADER_STRIDE,
+                            HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, classAddress(SYNTHETIC_CLASSLOADER), 0);
+        }
+    }
+
+    private void writeNodes(Segments segments, IProgressListener listener) throws IOException
+    {
+        int size = nodeFieldsSize();
+        long recordSize = writer.getInstanceDumpSize(size);
+        for (int ii = 0; ii < objects; ii++)
+        {
+            DataOutput os = segments.record(recordSize);
+            writer.writeInstanceDumpHeader(os, nodeAddress(ii), HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                            classAddress(CLASS_NAMES.length + ii % nodeClasses), size);
+            boolean last = (ii + 1) % chainLength == 0 || ii + 1 == objects;
+            writer.writeID(os, last ? 0 : nodeAddress(ii + 1));
+            os.writeLong(ii);
+            for (int jj = 0; jj < fanOut; jj++)
+                writer.writeID(os, nodeAddress(target(ii, jj)));
+
+            if (ii % 1000 == 999)
+            {
+                listener.worked(1);
+                if (listener.isCanceled())
+                    throw new IProgressListener.OperationCanceledException();
+            }
+        }
+    }
+
+    private void writeHolders(Segments segments, IProgressListener listener) throws IOException
+    {
+        for (int ii = 0; ii < gcRoots; ii++)
+        {
+            int length = holderLength(ii);
+            long address = holderBase + ii * holderStride;
+            DataOutput os = segments.record(writer.getObjectArrayDumpSize(length));
+            writer.writeObjectArrayDumpHeader(os, address, HprofWriter.UNKNOWN_STACK_TRACE_SERIAL, length,
+                            classAddress(OBJECT_ARRAY));
+            for (int jj = 0; jj < length; jj++)
+            {
+                long chain = ii + (long) jj * gcRoots;
+                writer.writeID(os, nodeAddress((int) (chain * chainLength)));
+            }
+            os = segments.record(1 + 2 * IDSIZE);
+            writer.writeRootJNIGlobal(os, address, 0);
+
+            if (ii % 1000 == 999)
+                listener.worked(1);
+        }
+    }
+
+    private void writeGiantArrays(Segments segments, IProgressListener listener) throws IOException
+    {
+        for (int ii = 0; ii < giantArrays; ii++)
+        {
+            long address = arrayBase + ii * arrayStride;
+            DataOutput os = segments.record(writer.getObjectArrayDumpSize(giantArrayLength));
+            writer.writeObjectArrayDumpHeader(os, address, HprofWriter.UNKNOWN_STACK_TRACE_SERIAL,
+                            giantArrayLength, classAddress(OBJECT_ARRAY));
+            for (int jj = 0; jj < giantArrayLength; jj++)
+                writer.writeID(os, nodeAddress(target(~ii, jj)));
+            os = segments.record(1 + 2 * IDSIZE);
+            writer.writeRootJNIGlobal(os, address, 0);
+
+            listener.worked(1);
+            if (listener.isCanceled())
+                throw new IProgressListener.OperationCanceledException();
+        }
+    }
+
+    /**
+     * Collects heap dump records into segments. The length of a segment comes
+     * before the records, so small records are buffered until the segment is
+     * full. A record too big for the buffer gets a segment of its own, and is
+     * written straight to the file.
+     */
+    private class Segments
+    {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(segmentSize);
+        private final DataOutputStream data = new DataOutputStream(buffer);
+
+        Segments(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        /**
+         * Where to write the next record.
+         *
+         * @param size
+         *            the exact size of the record
+         */
+        DataOutput record(long size) throws IOException
+        {
+            if (buffer.size() + size > segmentSize)
+                flush();
+            if (size > segmentSize)
+            {
+                writer.writeHeapDumpSegmentHeader(out, size);
+                return out;
+            }
+            return data;
+        }
+
+        void flush() throws IOException
+        {
+            if (buffer.size() > 0)
+            {
+                writer.writeHeapDumpSegmentHeader(out, buffer.size());
+                buffer.writeTo(out);
+                buffer.reset();
+            }
+        }
+    }
+}
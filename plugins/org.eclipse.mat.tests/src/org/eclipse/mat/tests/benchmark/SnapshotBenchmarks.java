@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.mat.parser.index.IIndexReader;
+import org.eclipse.mat.parser.index.IndexManager;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.VoidProgressListener;
+
+/**
+ * The benchmarks of parsing, index access and the main snapshot queries.
+ */
+public class SnapshotBenchmarks
+{
+    /** Every n-th object is used for the retained set and histogram of objects */
+    private static final int SAMPLE_STRIDE = 100;
+
+    public static List<Benchmark> all()
+    {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Parse());
+        benchmarks.add(new IndexScan());
+        benchmarks.add(new RetainedSet());
+        benchmarks.add(new Histogram());
+        benchmarks.add(new HistogramOfObjects());
+        benchmarks.add(new OQL("oqlInstanceOf", //
+                        "SELECT * FROM INSTANCEOF java.lang.Object o WHERE o.@usedHeapSize > 64"));
+        benchmarks.add(new OQL("oqlStrings", //
+                        "SELECT toString(s) FROM java.lang.String s WHERE s.@retainedHeapSize > 64"));
+        return benchmarks;
+    }
+
+    /**
+     * Sample object ids spread over the whole snapshot.
+     */
+    static int[] sampleObjects(ISnapshot snapshot)
+    {
+        int n = snapshot.getSnapshotInfo().getNumberOfObjects();
+        int[] ids = new int[(n + SAMPLE_STRIDE - 1) / SAMPLE_STRIDE];
+        for (int ii = 0; ii < ids.length; ii++)
+            ids[ii] = ii * SAMPLE_STRIDE;
+        return ids;
+    }
+
+    /**
+     * Parse the dump from scratch. The pass 1 and pass 2 parsers, the removal
+     * of unreachable objects and the dominator tree calculation are reported
+     * separately, by the progress messages of each phase.
+     */
+    static class Parse extends Benchmark
+    {
+        private DumpFixture fixture;
+        private PhaseListener listener;
+
+        Parse()
+        {
+            super("parse", true);
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture)
+        {
+            this.fixture = fixture;
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            listener = new PhaseListener(fixture.getDump());
+            ISnapshot snapshot = fixture.parse(listener);
+            listener.done();
+            int objects = snapshot.getSnapshotInfo().getNumberOfObjects();
+            SnapshotFactory.dispose(snapshot);
+            return objects;
+        }
+
+        @Override
+        public Map<String, Long> getSecondaryTimes()
+        {
+            return listener.getTimes();
+        }
+    }
+
+    /**
+     * Time spent in each task reported to the progress listener.
+     */
+    static class PhaseListener implements IProgressListener
+    {
+        private final String path;
+        private final String dumpName;
+        private final Map<String, Long> times = new LinkedHashMap<String, Long>();
+        private String task;
+        private long start;
+
+        PhaseListener(File dump)
+        {
+            this.path = dump.getParentFile().getAbsolutePath();
+            String n = dump.getName();
+            int p = n.lastIndexOf('.');
+            this.dumpName = p >= 0 ? n.substring(0, p) : n;
+        }
+
+        public void beginTask(String name, int totalWork)
+        {
+            subTask(name);
+        }
+
+        public void subTask(String name)
+        {
+            long now = System.currentTimeMillis();
+            if (task != null)
+            {
+                Long sofar = times.get(task);
+                times.put(task, (sofar != null ? sofar : 0L) + now - start);
+            }
+            // the same names for every dump, so results can be compared
+            task = name == null ? null : name.replace(path, "DIR").replace(dumpName, "DUMP");
+            start = now;
+        }
+
+        public void done()
+        {
+            subTask(null);
+        }
+
+        Map<String, Long> getTimes()
+        {
+            return times;
+        }
+
+        public boolean isCanceled()
+        {
+            return false;
+        }
+
+        public void setCanceled(boolean value)
+        {}
+
+        public void worked(int work)
+        {}
+
+        public void sendUserMessage(Severity severity, String message, Throwable exception)
+        {}
+    }
+
+    /**
+     * Read all the entries of the main indexes with newly opened readers, so
+     * each page is read and decoded.
+     */
+    static class IndexScan extends Benchmark
+    {
+        private String prefix;
+
+        IndexScan()
+        {
+            super("indexScan", false);
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture) throws Exception
+        {
+            prefix = fixture.getSnapshot().getSnapshotInfo().getPrefix();
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            IndexManager indexes = new IndexManager();
+            indexes.init(prefix);
+            try
+            {
+                long total = 0;
+                IIndexReader.IOne2ManyIndex outbound = indexes.outbound();
+                IIndexReader.IOne2ManyIndex inbound = indexes.inbound();
+                IIndexReader.IOne2OneIndex o2c = indexes.o2class();
+                IIndexReader.IOne2LongIndex idx = indexes.o2address();
+                int n = outbound.size();
+                for (int ii = 0; ii < n; ii++)
+                {
+                    total += outbound.get(ii).length;
+                    total += inbound.get(ii).length;
+                    total += o2c.get(ii);
+                    total += idx.get(ii);
+                }
+                return total;
+            }
+            finally
+            {
+                indexes.close();
+            }
+        }
+    }
+
+    /**
+     * The retained set of many objects, found by marking everything else
+     * reachable from the GC roots.
+     */
+    static class RetainedSet extends Benchmark
+    {
+        private ISnapshot snapshot;
+        private int[] objects;
+
+        RetainedSet()
+        {
+            super("retainedSet", false);
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture) throws Exception
+        {
+            snapshot = fixture.getSnapshot();
+            objects = sampleObjects(snapshot);
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            return snapshot.getRetainedSet(objects, new VoidProgressListener());
+        }
+    }
+
+    static class Histogram extends Benchmark
+    {
+        private ISnapshot snapshot;
+
+        Histogram()
+        {
+            super("histogram", false);
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture) throws Exception
+        {
+            snapshot = fixture.getSnapshot();
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            return snapshot.getHistogram(new VoidProgressListener());
+        }
+    }
+
+    static class HistogramOfObjects extends Benchmark
+    {
+        private ISnapshot snapshot;
+        private int[] objects;
+
+        HistogramOfObjects()
+        {
+            super("histogramOfObjects", false);
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture) throws Exception
+        {
+            snapshot = fixture.getSnapshot();
+            objects = sampleObjects(snapshot);
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            return snapshot.getHistogram(objects, new VoidProgressListener());
+        }
+    }
+
+    static class OQL extends Benchmark
+    {
+        private final String query;
+        private ISnapshot snapshot;
+
+        OQL(String name, String query)
+        {
+            super(name, false);
+            this.query = query;
+        }
+
+        @Override
+        public void setUp(DumpFixture fixture) throws Exception
+        {
+            snapshot = fixture.getSnapshot();
+        }
+
+        @Override
+        public Object run() throws Exception
+        {
+            return SnapshotFactory.createQuery(query).execute(snapshot, new VoidProgressListener());
+        }
+    }
+}
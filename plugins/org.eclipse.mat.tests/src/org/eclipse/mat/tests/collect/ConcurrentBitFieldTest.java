@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.collect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.mat.collect.ConcurrentBitField;
+import org.eclipse.mat.collect.IteratorInt;
+import org.junit.Test;
+
+public class ConcurrentBitFieldTest
+{
+    private static final int SIZES[] = { 1, 63, 64, 65, 1000 };
+
+    /**
+     * Compare single bit operations against a BitSet
+     */
+    @Test
+    public void testSetClear()
+    {
+        Random r = new Random(1);
+        for (int size : SIZES)
+        {
+            ConcurrentBitField bf = new ConcurrentBitField(size);
+            BitSet bs = new BitSet(size);
+            for (int i = 0; i < size * 4; ++i)
+            {
+                int v = r.nextInt(size);
+                if (r.nextBoolean())
+                {
+                    assertEquals("testAndSet " + v, !bs.get(v), bf.testAndSet(v)); //$NON-NLS-1$
+                    bs.set(v);
+                }
+                else
+                {
+                    assertEquals("testAndClear " + v, bs.get(v), bf.testAndClear(v)); //$NON-NLS-1$
+                    bs.clear(v);
+                }
+            }
+            for (int i = 0; i < size; ++i)
+            {
+                assertEquals("get " + i, bs.get(i), bf.get(i)); //$NON-NLS-1$
+            }
+            assertEquals("cardinality", bs.cardinality(), bf.cardinality()); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Check the searches and the iterator, including the last bits
+     */
+    @Test
+    public void testIteration()
+    {
+        Random r = new Random(2);
+        for (int size : SIZES)
+        {
+            ConcurrentBitField bf = new ConcurrentBitField(size);
+            BitSet bs = new BitSet(size);
+            for (int i = 0; i < size / 2; ++i)
+            {
+                int v = r.nextInt(size);
+                bf.set(v);
+                bs.set(v);
+            }
+            bf.set(size - 1);
+            bs.set(size - 1);
+
+            IteratorInt it = bf.iterator();
+            for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1))
+            {
+                assertTrue(it.hasNext());
+                assertEquals(i, it.next());
+            }
+            assertFalse(it.hasNext());
+
+            for (int i = 0; i < size; ++i)
+            {
+                assertEquals("nextSetBit " + i, bs.nextSetBit(i), bf.nextSetBit(i)); //$NON-NLS-1$
+                int clear = bs.nextClearBit(i);
+                assertEquals("nextClearBit " + i, clear < size ? clear : -1, bf.nextClearBit(i)); //$NON-NLS-1$
+            }
+            assertEquals(-1, bf.nextSetBit(size));
+
+            bf.clear();
+            assertEquals("cleared", 0, bf.cardinality()); //$NON-NLS-1$
+            assertEquals(-1, bf.nextSetBit(0));
+            assertEquals(0, bf.nextClearBit(0));
+        }
+    }
+
+    /**
+     * Several threads setting overlapping bits - each bit is only won once
+     */
+    @Test
+    public void testConcurrentTestAndSet() throws InterruptedException
+    {
+        final int size = 100000;
+        final ConcurrentBitField bf = new ConcurrentBitField(size);
+        final AtomicInteger won = new AtomicInteger();
+        Thread threads[] = new Thread[4];
+        for (int t = 0; t < threads.length; ++t)
+        {
+            final int seed = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    // every thread covers every bit, in a different order
+                    int step = 7 + 2 * seed;
+                    int count = 0;
+                    for (int i = 0, v = seed; i < size; ++i, v = (v + step) % size)
+                    {
+                        if (bf.testAndSet(v))
+                            ++count;
+                    }
+                    won.addAndGet(count);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals("bits won", size, won.get()); //$NON-NLS-1$
+        assertEquals("cardinality", size, bf.cardinality()); //$NON-NLS-1$
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2012 IBM Corporation.
+ * Copyright (c) 2012, 2018 IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -10,6 +10,8 @@
  *******************************************************************************/
 package org.eclipse.mat.tests.parser;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -20,8 +22,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
 
+import org.eclipse.mat.parser.index.IIndexReader.IOne2LongIndex;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2ManyBatchIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2ManyIndex;
 import org.eclipse.mat.parser.index.IIndexReader.IOne2ManyObjectsIndex;
+import org.eclipse.mat.parser.index.IIndexReader.IOne2SizeIndex;
 import org.eclipse.mat.parser.index.IndexReader;
 import org.eclipse.mat.parser.index.IndexWriter;
 import org.eclipse.mat.parser.index.IndexWriter.KeyWriter;
@@ -206,6 +211,146 @@ public class TestIndex
         }
     }
     
+    /**
+     * Sort the inbound references in small runs on several threads, with
+     * duplicate references which should be removed.
+     */
+    @Test
+    public void testInboundSmallMemory() throws IOException
+    {
+        assumeTrue((long) M * N < MAXELEMENTS);
+        int ii[][] = new int[P + 1][];
+        for (int p = 0; p < P + 1; p++)
+        {
+            int nn = N + p;
+            ii[p] = new int[nn];
+            for (int i = 0; i < nn; ++i)
+            {
+                ii[p][i] = i;
+            }
+        }
+        int mx = Math.max(M, N+P);
+        File indexFile = File.createTempFile("Inbound", ".index");
+        try
+        {
+            IndexWriter.InboundWriter f = new IndexWriter.InboundWriter(mx, indexFile, 3, 0);
+            for (int j = 0; j < M; ++j)
+            {
+                int p = j % (P + 1);
+                for (int k = ii[p].length - 1; k >= 0; --k)
+                {
+                    f.log(j, ii[p][k], k == 0);
+                    // the first is also logged as an ordinary reference
+                    if (k % 5 == 0)
+                        f.log(j, ii[p][k], false);
+                }
+            }
+            final int pseudo[] = new int[M];
+            KeyWriter kw = new KeyWriter()
+            {
+                public void storeKey(int index, Serializable key)
+                {
+                    pseudo[index] = ((int[]) key)[1];
+                }
+            };
+            IOne2ManyObjectsIndex z = f.flush(new VoidProgressListener(), kw);
+            try
+            {
+                for (int j = 0; j < M; ++j)
+                {
+                    int p = j % (P + 1);
+                    int i2[] = z.get(j);
+                    if (!Arrays.equals(ii[p], i2))
+                    {
+                        Assert.assertArrayEquals(ii[p], i2);
+                    }
+                    assertEquals(ii[p].length > 0 ? 1 : 0, pseudo[j]);
+                }
+            }
+            finally
+            {
+                z.close();
+            }
+        }
+        finally
+        {
+            assertTrue(indexFile.delete());
+        }
+    }
+
+    /**
+     * The collectors which keep their values in memory mapped files give
+     * the same indexes as those in the heap.
+     */
+    @Test
+    public void testMappedCollectors() throws IOException
+    {
+        assumeTrue((long) M * N < MAXELEMENTS);
+        int size = M + N;
+        Random r = new Random(size);
+        IndexWriter.IntIndexCollector ints = new IndexWriter.IntIndexCollector(size, 30);
+        IndexWriter.LongIndexCollector longs = new IndexWriter.LongIndexCollector(size, 62);
+        IndexWriter.SizeIndexCollectorUncompressed sizes = new IndexWriter.SizeIndexCollectorUncompressed(size);
+        File mappedFile1 = File.createTempFile("MappedInt", ".map");
+        File mappedFile2 = File.createTempFile("MappedLong", ".map");
+        File mappedFile3 = File.createTempFile("MappedSize", ".map");
+        IndexWriter.MappedIntIndexCollector mappedInts = new IndexWriter.MappedIntIndexCollector(size, mappedFile1);
+        IndexWriter.MappedLongIndexCollector mappedLongs = new IndexWriter.MappedLongIndexCollector(size, mappedFile2);
+        IndexWriter.SizeIndexCollectorUncompressed mappedSizes = new IndexWriter.MappedSizeIndexCollector(size,
+                        mappedFile3);
+        // in a random order, as pass 2 sets them
+        for (int i = 0; i < size; ++i)
+        {
+            int j = r.nextInt(size);
+            int v = r.nextInt(Integer.MAX_VALUE);
+            long l = r.nextLong() >>> 2;
+            long s = r.nextInt(Integer.MAX_VALUE) * 8L;
+            ints.set(j, v);
+            mappedInts.set(j, v);
+            longs.set(j, l);
+            mappedLongs.set(j, l);
+            sizes.set(j, s);
+            mappedSizes.set(j, s);
+        }
+        File indexFile1 = File.createTempFile("Int", ".index");
+        File indexFile2 = File.createTempFile("Long", ".index");
+        File indexFile3 = File.createTempFile("Size", ".index");
+        File indexFile4 = File.createTempFile("Size", ".index");
+        try
+        {
+            assertArrayEquals(ints.getNext(0, size), mappedInts.getNext(0, size));
+            IOne2LongIndex l1 = longs.writeTo(indexFile1);
+            IOne2LongIndex l2 = mappedLongs.writeTo(indexFile2);
+            IOne2SizeIndex s1 = sizes.writeTo(indexFile3);
+            IOne2SizeIndex s2 = mappedSizes.writeTo(indexFile4);
+            try
+            {
+                for (int i = 0; i < size; ++i)
+                {
+                    assertEquals(l1.get(i), l2.get(i));
+                    assertEquals(s1.getSize(i), s2.getSize(i));
+                }
+            }
+            finally
+            {
+                l1.close();
+                l2.close();
+                s1.close();
+                s2.close();
+            }
+        }
+        finally
+        {
+            mappedInts.delete();
+            mappedLongs.delete();
+            mappedSizes.delete();
+            assertTrue(indexFile1.delete());
+            assertTrue(indexFile2.delete());
+            assertTrue(indexFile3.delete());
+            assertTrue(indexFile4.delete());
+        }
+    }
+
     @Test
     public void testLong() throws IOException
     {
@@ -363,4 +508,114 @@ public class TestIndex
             assertTrue(indexFile.delete());
         }
     }
+
+    @Test
+    public void test1ToNGetAll() throws IOException
+    {
+        assumeTrue((long) M * N < MAXELEMENTS2);
+        int ii[][] = new int[P + 1][];
+        for (int p = 0; p < P + 1; p++)
+        {
+            int nn = N + p;
+            ii[p] = new int[nn];
+            for (int i = 0; i < nn; ++i)
+            {
+                ii[p][i] = i;
+            }
+        }
+        File indexFile = File.createTempFile("1toN", ".index");
+        try
+        {
+            IndexWriter.IntArray1NWriter f = new IndexWriter.IntArray1NWriter(M, indexFile);
+            for (int j = 0; j < M; ++j)
+            {
+                // Vary the length a little
+                int p = j % (P + 1);
+                f.log(j, ii[p]);
+            }
+            IOne2ManyIndex i2 = f.flush();
+            try
+            {
+                checkGetAll(i2, ii);
+            }
+            finally
+            {
+                i2.close();
+            }
+        }
+        finally
+        {
+            assertTrue(indexFile.delete());
+        }
+    }
+
+    @Test
+    public void test1ToNSortedReaderGetAll() throws IOException
+    {
+        assumeTrue((long) M * N < MAXELEMENTS2);
+        int ii[][] = new int[P + 1][];
+        for (int p = 0; p < P + 1; p++)
+        {
+            int nn = N + p;
+            ii[p] = new int[nn];
+            for (int i = 0; i < nn; ++i)
+            {
+                ii[p][i] = i;
+            }
+        }
+        File indexFile = File.createTempFile("1toN", ".index");
+        try
+        {
+            IndexWriter.IntArray1NSortedWriter f = new IndexWriter.IntArray1NSortedWriter(M, indexFile);
+            for (int j = 0; j < M; ++j)
+            {
+                // Vary the length a little
+                int p = j % (P + 1);
+                f.log(j, ii[p]);
+            }
+            IOne2ManyIndex i2 = f.flush();
+            i2.close();
+            i2 = new IndexReader.IntIndex1NSortedReader(indexFile);
+            try
+            {
+                checkGetAll(i2, ii);
+            }
+            finally
+            {
+                i2.close();
+            }
+        }
+        finally
+        {
+            assertTrue(indexFile.delete());
+        }
+    }
+
+    /**
+     * Look up shuffled and repeated indices at once, and compare with single lookups.
+     */
+    private void checkGetAll(IOne2ManyIndex index, int ii[][])
+    {
+        assertTrue(index instanceof IOne2ManyBatchIndex);
+        IOne2ManyBatchIndex i2 = (IOne2ManyBatchIndex) index;
+        Random r = new Random(M);
+        int request[] = new int[Math.min(M * 2, 1000)];
+        for (int k = 0; k < request.length; ++k)
+        {
+            request[k] = r.nextInt(M);
+        }
+        int offsets[] = new int[request.length + 1];
+        int all[] = i2.getAll(request, offsets);
+        assertEquals(all.length, offsets[request.length]);
+        for (int k = 0; k < request.length; ++k)
+        {
+            int i3[] = new int[offsets[k + 1] - offsets[k]];
+            System.arraycopy(all, offsets[k], i3, 0, i3.length);
+            int p = request[k] % (P + 1);
+            // Junit array comparison is too slow
+            if (!Arrays.equals(ii[p], i3))
+                Assert.assertArrayEquals(ii[p], i3);
+        }
+        assertArrayEquals(all, i2.getAll(request, null));
+    }
 }
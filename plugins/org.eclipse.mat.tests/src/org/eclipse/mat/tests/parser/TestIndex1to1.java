@@ -26,6 +26,7 @@ import org.eclipse.mat.parser.index.IIndexReader;
 import org.eclipse.mat.parser.index.IndexReader;
 import org.eclipse.mat.parser.index.IndexWriter;
 import org.eclipse.mat.parser.index.IndexWriter.Identifier;
+import org.eclipse.mat.parser.io.MappedFile;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -192,6 +193,96 @@ public class TestIndex1to1
         }
     }
 
+    /**
+     * Reopened index files, which are mapped when that is enabled, can be
+     * read by several threads at once.
+     */
+    @Test
+    public void intIndexConcurrent() throws Exception
+    {
+        assumeTrue(N < MAXELEMENTS);
+        File indexFile = File.createTempFile("int1_", ".index");
+        final long n = N;
+        IndexWriter.IntIndexStreamer ic = new IndexWriter.IntIndexStreamer();
+
+        try
+        {
+            ic.writeTo(indexFile, new IteratorInt() {
+                long i;
+                public boolean hasNext()
+                {
+                    return i < n;
+                }
+
+                public int next()
+                {
+                    return (int)(i++ * 7);
+                }
+
+            }).close();
+            final IndexReader.IntIndexReader ir;
+            String old = System.setProperty(MappedFile.MAP_FILES, "true");
+            try
+            {
+                ir = new IndexReader.IntIndexReader(indexFile);
+            }
+            finally
+            {
+                if (old == null)
+                    System.clearProperty(MappedFile.MAP_FILES);
+                else
+                    System.setProperty(MappedFile.MAP_FILES, old);
+            }
+            try
+            {
+                final Throwable failure[] = new Throwable[1];
+                Thread threads[] = new Thread[4];
+                for (int t = 0; t < threads.length; ++t)
+                {
+                    final int seed = t;
+                    threads[t] = new Thread() {
+                        public void run()
+                        {
+                            try
+                            {
+                                Random r = new Random(seed);
+                                int n2 = (int) Math.min(n, Integer.MAX_VALUE);
+                                for (int j = 0; j < 100000 && n2 > 0; ++j)
+                                {
+                                    int i = r.nextInt(n2);
+                                    int in = ir.get(i);
+                                    if (i * 7 != in)
+                                        assertEquals(i * 7, in);
+                                }
+                            }
+                            catch (Throwable e)
+                            {
+                                failure[0] = e;
+                            }
+                        }
+                    };
+                    threads[t].start();
+                }
+                for (Thread t : threads)
+                    t.join();
+                if (failure[0] instanceof AssertionError)
+                    throw (AssertionError)failure[0];
+                if (failure[0] != null)
+                    throw new RuntimeException(failure[0]);
+            }
+            finally
+            {
+                ir.close();
+            }
+        }
+        finally
+        {
+            // A mapped file might only be deletable once garbage collected
+            if (!indexFile.delete())
+                indexFile.deleteOnExit();
+        }
+    }
+
     @Test
     public void intIndex4() throws IOException
     {
@@ -368,4 +459,113 @@ public class TestIndex1to1
                 assertTrue(l1 <= id.get(i + 1));
         }
     }
+    /**
+     * Addresses which are not in the identifier give the insertion point.
+     */
+    @Test
+    public void intIdentifier5()
+    {
+        assumeTrue(N < MAXELEMENTS2);
+        assumeTrue(N > 0);
+        Identifier id = new Identifier();
+        checkReverse(id);
+    }
+
+    @Test
+    public void intIdentifierMapped() throws IOException
+    {
+        assumeTrue(N < MAXELEMENTS2);
+        assumeTrue(N > 0);
+        File file = File.createTempFile("o2a_", ".map");
+        // only created once the addresses do not fit in the heap
+        assertTrue(file.delete());
+        IndexWriter.MappedIdentifier id = new IndexWriter.MappedIdentifier(file, 0);
+        try
+        {
+            checkReverse(id);
+            assertEquals(N > 65536, id.isMapped());
+
+            // addresses added after sorting
+            long extra[] = { 1, 7, Long.MAX_VALUE };
+            for (long l : extra)
+                id.add(l);
+            assertEquals(extra[2], id.get((int) N + 2));
+            id.sort();
+            assertEquals(N + extra.length, id.size());
+            for (long l : extra)
+                assertEquals(l, id.get(id.reverse(l)));
+            for (int i = 1; i < id.size(); ++i)
+                assertTrue(id.get(i - 1) <= id.get(i));
+        }
+        finally
+        {
+            id.delete();
+        }
+        assertTrue(!file.exists());
+    }
+
+    @Test
+    public void longIndexSamples() throws IOException
+    {
+        assumeTrue(N < MAXELEMENTS2);
+        int n = (int) N;
+        long values[] = new long[n];
+        for (int i = 0; i < n; ++i)
+            values[i] = 8L * i + 16;
+        File indexFile = File.createTempFile("long1_", ".index");
+        File samplesFile = File.createTempFile("long1_", ".index");
+        try
+        {
+            IIndexReader.IOne2LongIndex index = new IndexWriter.LongIndexStreamer().writeTo(indexFile, values);
+            IndexReader.LongIndexSampleReader samples = new IndexWriter.LongIndexSampleWriter().writeTo(samplesFile,
+                            values, IndexWriter.LongIndexSampleWriter.STEP);
+            try
+            {
+                assertEquals(n, samples.size());
+                for (int i = 0; i < n; ++i)
+                {
+                    assertEquals(i, samples.reverse(index, values[i]));
+                    assertEquals(-2 - i, samples.reverse(index, values[i] + 4));
+                }
+                assertEquals(-1, samples.reverse(index, 0));
+            }
+            finally
+            {
+                index.close();
+                samples.close();
+            }
+        }
+        finally
+        {
+            assertTrue(indexFile.delete());
+            assertTrue(samplesFile.delete());
+        }
+    }
+
+    private void checkReverse(Identifier id)
+    {
+        int n = (int) N;
+        long sorted[] = new long[n];
+        Random r = new Random(N);
+        for (int i = 0; i < n; ++i)
+        {
+            // even addresses in a few widely separated ranges
+            long l1 = ((long) r.nextInt(4) << 40) + (r.nextInt(1 << 30) & ~1L);
+            sorted[i] = l1;
+            id.add(l1);
+        }
+        id.sort();
+        Arrays.sort(sorted);
+        assertEquals(n, id.size());
+        for (int i = 0; i < n; ++i)
+        {
+            assertEquals(sorted[i], id.get(i));
+            int j = id.reverse(sorted[i]);
+            assertEquals(sorted[i], id.get(j));
+            // odd addresses are missing
+            assertEquals(Arrays.binarySearch(sorted, sorted[i] + 1), id.reverse(sorted[i] + 1));
+        }
+        assertEquals(-1, id.reverse(-1));
+        assertEquals(-1 - n, id.reverse(Long.MAX_VALUE));
+    }
 }
\ No newline at end of file
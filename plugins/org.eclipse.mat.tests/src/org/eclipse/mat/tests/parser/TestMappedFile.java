@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.eclipse.mat.parser.io.MappedFile;
+import org.eclipse.mat.parser.io.PositionInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(value = Parameterized.class)
+public class TestMappedFile
+{
+    @Parameters
+    public static Collection<Object[]> data()
+    {
+        return Arrays.asList(new Object[][] {
+                        { 0, 16 },
+                        { 1, 16 },
+                        // file ends on a chunk boundary
+                        { 64, 16 },
+                        { 1000, 16 },
+                        { 1000, 1024 },
+                        { 1000, MappedFile.DEFAULT_CHUNK_SIZE },
+        });
+    }
+
+    private final int size;
+    private final int chunkSize;
+    private byte[] content;
+    private File file;
+
+    public TestMappedFile(int size, int chunkSize)
+    {
+        this.size = size;
+        this.chunkSize = chunkSize;
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        content = new byte[size];
+        new Random(size).nextBytes(content);
+        file = File.createTempFile("mapped_", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(content);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        // The mapping may prevent deletion until it is garbage collected
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    @Test
+    public void absoluteReads() throws IOException
+    {
+        MappedFile mapped = new MappedFile(file, chunkSize);
+        try
+        {
+            assertEquals(size, mapped.length());
+            for (int ii = 0; ii < size; ii++)
+            {
+                assertEquals(content[ii], mapped.readByte(ii));
+                if (ii + 4 <= size)
+                    assertEquals(new DataInputStream(new ByteArrayInputStream(content, ii, 4)).readInt(),
+                                    mapped.readInt(ii));
+                if (ii + 8 <= size)
+                    assertEquals(new DataInputStream(new ByteArrayInputStream(content, ii, 8)).readLong(),
+                                    mapped.readLong(ii));
+            }
+            for (int ii = 0; ii < size; ii += 7)
+            {
+                byte[] b = new byte[Math.min(50, size - ii)];
+                mapped.readFully(ii, b, 0, b.length);
+                byte[] expected = new byte[b.length];
+                System.arraycopy(content, ii, expected, 0, b.length);
+                assertArrayEquals(expected, b);
+            }
+        }
+        finally
+        {
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void streams() throws IOException
+    {
+        MappedFile mapped = new MappedFile(file, chunkSize);
+        try
+        {
+            PositionInputStream in1 = new PositionInputStream(mapped.newInputStream());
+            PositionInputStream in2 = new PositionInputStream(mapped.newInputStream());
+
+            byte[] b = new byte[size];
+            in1.readFully(b);
+            assertArrayEquals(content, b);
+            assertEquals(-1, in1.read());
+
+            // an independent position
+            for (int ii = size - 1; ii >= 0; ii -= 3)
+            {
+                in2.seek(ii);
+                assertEquals(content[ii], in2.readByte());
+                assertEquals(ii + 1, in2.position());
+            }
+
+            in1.seek(0);
+            assertEquals(size / 2, in1.skipBytes(size / 2));
+            if (size > 0)
+                assertEquals(content[size / 2], in1.readByte());
+            assertEquals(size - in1.position(), in1.skipBytes(size));
+            assertEquals(-1, in1.read());
+        }
+        finally
+        {
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void readAfterClose() throws IOException
+    {
+        MappedFile mapped = new MappedFile(file, chunkSize);
+        MappedFile.Stream in = mapped.newInputStream();
+        mapped.close();
+        // closing twice is harmless
+        mapped.close();
+
+        try
+        {
+            mapped.readByte(0);
+            fail("read from a closed file"); //$NON-NLS-1$
+        }
+        catch (IOException expected)
+        {}
+
+        try
+        {
+            in.read();
+            fail("read from a stream of a closed file"); //$NON-NLS-1$
+        }
+        catch (IOException expected)
+        {}
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.eclipse.mat.parser.index.IndexManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The retained size cache is a log which is read again by the next session.
+ */
+public class TestRetainedSizeCache
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String prefix;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        prefix = new File(folder.getRoot(), "dump.").getPath();
+        file = IndexManager.Index.I2RETAINED.getFile(prefix);
+        file.createNewFile();
+    }
+
+    private IndexManager open() throws IOException
+    {
+        IndexManager indexManager = new IndexManager();
+        indexManager.init(prefix);
+        return indexManager;
+    }
+
+    /**
+     * The sizes are kept without closing the cache, as after a crash.
+     */
+    @Test
+    public void sizesWithoutClose() throws IOException
+    {
+        IndexManager first = open();
+        for (int ii = 0; ii < 100; ii++)
+            first.i2sv2.put(ii, ii * 1000L);
+        first.i2sv2.put(5, -7L);
+
+        IndexManager second = open();
+        assertEquals(100, second.i2sv2.size());
+        assertEquals(-7L, second.i2sv2.get(5));
+        assertEquals(99000L, second.i2sv2.get(99));
+        assertEquals(0L, second.i2sv2.get(100));
+    }
+
+    /**
+     * A record partly written by a crash is ignored, and later records are
+     * still read.
+     */
+    @Test
+    public void partialRecord() throws IOException
+    {
+        IndexManager first = open();
+        first.i2sv2.put(1, 10L);
+        first.i2sv2.put(2, 20L);
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 3, 0 });
+        out.close();
+
+        IndexManager second = open();
+        assertEquals(2, second.i2sv2.size());
+        second.i2sv2.put(3, 30L);
+
+        IndexManager third = open();
+        assertEquals(3, third.i2sv2.size());
+        assertEquals(10L, third.i2sv2.get(1));
+        assertEquals(30L, third.i2sv2.get(3));
+    }
+
+    /**
+     * A read-only log with a partial record is read, but left unchanged.
+     */
+    @Test
+    public void readOnlyPartialRecord() throws IOException
+    {
+        IndexManager first = open();
+        first.i2sv2.put(1, 10L);
+        first.i2sv2.put(2, 20L);
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 3, 0 });
+        out.close();
+        long length = file.length();
+
+        assertTrue(file.setWritable(false));
+        try
+        {
+            // the owner can still write as a superuser
+            assumeFalse(file.canWrite());
+
+            IndexManager second = open();
+            assertEquals(2, second.i2sv2.size());
+            assertEquals(20L, second.i2sv2.get(2));
+            assertEquals(length, file.length());
+        }
+        finally
+        {
+            file.setWritable(true);
+        }
+    }
+
+    /**
+     * A log which cannot be opened gives no sizes, and is not deleted.
+     */
+    @Test
+    public void unreadable() throws IOException
+    {
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+
+        IndexManager first = open();
+        assertEquals(0, first.i2sv2.size());
+        assertEquals(0L, first.i2sv2.get(1));
+        assertTrue(file.isDirectory());
+    }
+
+    /**
+     * Sizes stored after the log has been compacted are appended to the new
+     * log.
+     */
+    @Test
+    public void appendAfterCompaction() throws IOException
+    {
+        IndexManager first = open();
+        for (int ii = 0; ii < 5000; ii++)
+            first.i2sv2.put(ii % 10, ii);
+        first.i2sv2.put(10, 10L);
+
+        IndexManager second = open();
+        assertEquals(11, second.i2sv2.size());
+        assertEquals(4999L, second.i2sv2.get(9));
+        assertEquals(10L, second.i2sv2.get(10));
+    }
+
+    /**
+     * Replaced sizes are removed from the log.
+     */
+    @Test
+    public void compaction() throws IOException
+    {
+        IndexManager first = open();
+        for (int ii = 0; ii < 5000; ii++)
+            first.i2sv2.put(ii % 10, ii);
+        assertTrue(file.length() < 5000 * 12);
+        first.i2sv2.close();
+        assertEquals(10 * 12, file.length());
+
+        IndexManager second = open();
+        assertEquals(10, second.i2sv2.size());
+        assertEquals(4999L, second.i2sv2.get(9));
+    }
+}
@@ -1,5 +1,5 @@
 /*******************************************************************************
- * Copyright (c) 2008, 2015 SAP AG, IBM Corporation.
+ * Copyright (c) 2008, 2018 SAP AG, IBM Corporation.
  * All rights reserved. This program and the accompanying materials
  * are made available under the terms of the Eclipse Public License v1.0
  * which accompanies this distribution, and is available at
@@ -7,16 +7,26 @@
  *
  * Contributors:
  *    SAP AG - initial API and implementation
+ *    IBM Corporation - parallel dominator tree
  *******************************************************************************/
 package org.eclipse.mat.tests.snapshot;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -24,14 +34,23 @@ import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.query.IResultTable;
 import org.eclipse.mat.query.IResultTree;
 import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.query.SnapshotQuery;
 import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.tests.benchmark.HprofGenerator;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.IProgressListener.Severity;
 import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class DominatorTreeTest
 {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testDomTreeSunJdk6_32() throws SnapshotException
     {
@@ -56,6 +75,164 @@ public class DominatorTreeTest
         testWith(TestSnapshots.getSnapshot(TestSnapshots.IBM_JDK6_32BIT_HEAP, false), 256);
     }
 
+    @Test
+    public void testParallelDomTreeSunJdk6_32() throws SnapshotException
+    {
+        testParallelWith(TestSnapshots.SUN_JDK6_32BIT, 224);
+    }
+
+    @Test
+    public void testParallelDomTreeSunJdk6_18_64() throws SnapshotException
+    {
+        testParallelWith(TestSnapshots.SUN_JDK6_18_64BIT, -1);
+    }
+
+    /**
+     * A generated dump of random references between many objects, so that
+     * most objects have several referrers and the dominators take more than
+     * one pass of the parallel calculation.
+     */
+    @Test
+    public void testParallelDomTreeGenerated() throws Exception
+    {
+        File dump = folder.newFile("generated.hprof");
+        HprofGenerator.parse("objects=100000,fanOut=3,chainLength=20,gcRoots=100").generate(dump,
+                        new VoidProgressListener());
+        ISnapshot sequential = open(dump, "1", new VoidProgressListener());
+        try
+        {
+            ISnapshot parallel = open(dump, "4", new VoidProgressListener());
+            try
+            {
+                compare(sequential, parallel);
+            }
+            finally
+            {
+                SnapshotFactory.dispose(parallel);
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(sequential);
+        }
+    }
+
+    /**
+     * An invalid number of threads should be reported, and then the dominator
+     * tree calculated on one thread.
+     */
+    @Test
+    public void testInvalidDominatorThreads() throws Exception
+    {
+        File dump = folder.newFile("generated.hprof");
+        HprofGenerator.parse("objects=10000,fanOut=2,chainLength=20,gcRoots=10").generate(dump,
+                        new VoidProgressListener());
+        final List<String> warnings = new ArrayList<String>();
+        ISnapshot snapshot = open(dump, "many", new VoidProgressListener()
+        {
+            @Override
+            public void sendUserMessage(Severity severity, String message, Throwable exception)
+            {
+                if (severity == Severity.WARNING)
+                    warnings.add(message);
+            }
+        });
+        try
+        {
+            assertEquals(warnings.toString(), 1, warnings.size());
+            assertTrue(warnings.get(0), warnings.get(0).contains("many"));
+            assertNotNull(snapshot.getImmediateDominatedIds(-1));
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Parse a dump in a directory of its own, so it is parsed afresh.
+     */
+    private ISnapshot open(File dump, String threads, IProgressListener listener) throws Exception
+    {
+        File copy = new File(folder.newFolder(), dump.getName());
+        copy(dump, copy);
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("dominator_threads", threads);
+        return SnapshotFactory.openSnapshot(copy, options, listener);
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * The dominator tree calculated with several threads should be the same
+     * as the one calculated with one thread.
+     */
+    private void testParallelWith(String dump, long size) throws SnapshotException
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("dominator_threads", "1");
+        ISnapshot snapshot = TestSnapshots.getSnapshot(dump, options, true);
+        try
+        {
+            options.put("dominator_threads", "4");
+            ISnapshot parallel = TestSnapshots.getSnapshot(dump, options, true);
+            try
+            {
+                if (size >= 0)
+                    testWith(parallel, size);
+                compare(snapshot, parallel);
+            }
+            finally
+            {
+                SnapshotFactory.dispose(parallel);
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    private void compare(ISnapshot snapshot, ISnapshot parallel) throws SnapshotException
+    {
+        int numberOfObjects = snapshot.getSnapshotInfo().getNumberOfObjects();
+        assertEquals(numberOfObjects, parallel.getSnapshotInfo().getNumberOfObjects());
+        for (int id = 0; id < numberOfObjects; id++)
+        {
+            assertEquals("Dominator of " + id, snapshot.getImmediateDominatorId(id),
+                            parallel.getImmediateDominatorId(id));
+            assertEquals("Retained size of " + id, snapshot.getRetainedHeapSize(id),
+                            parallel.getRetainedHeapSize(id));
+            int[] dominated1 = snapshot.getImmediateDominatedIds(id);
+            int[] dominated2 = parallel.getImmediateDominatedIds(id);
+            Arrays.sort(dominated1);
+            Arrays.sort(dominated2);
+            assertArrayEquals("Dominated by " + id, dominated1, dominated2);
+        }
+    }
+
     private void testWith(ISnapshot snapshot, long size) throws SnapshotException
     {
         Collection<IClass> rClasses = snapshot.getClassesByName(
@@ -18,6 +18,7 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
@@ -29,6 +30,8 @@ import static org.junit.Assume.assumeTrue;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -39,6 +42,7 @@ import org.eclipse.mat.SnapshotException;
 import org.eclipse.mat.collect.SetInt;
 import org.eclipse.mat.query.IResult;
 import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.ObjectCacheStatistics;
 import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.snapshot.SnapshotInfo;
 import org.eclipse.mat.snapshot.model.GCRootInfo;
@@ -46,6 +50,7 @@ import org.eclipse.mat.snapshot.model.GCRootInfo.Type;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.snapshot.model.IClassLoader;
 import org.eclipse.mat.snapshot.model.IObject;
+import org.eclipse.mat.snapshot.model.IPrimitiveArray;
 import org.eclipse.mat.snapshot.model.IStackFrame;
 import org.eclipse.mat.snapshot.model.IThreadStack;
 import org.eclipse.mat.snapshot.query.SnapshotQuery;
@@ -284,6 +289,73 @@ public class GeneralSnapshotTests
         assertEquals("Total heap size", n, total);
     }
 
+    /**
+     * The buffer of each primitive array holds the same values as the Java array.
+     */
+    @Test
+    public void primitiveArrayBuffers() throws SnapshotException
+    {
+        for (IClass cls : snapshot.getClasses())
+        {
+            if (!cls.isArrayType())
+                continue;
+            for (int o : cls.getObjectIds())
+            {
+                IObject obj = snapshot.getObject(o);
+                if (!(obj instanceof IPrimitiveArray))
+                    break;
+                IPrimitiveArray array = (IPrimitiveArray) obj;
+                int length = array.getLength();
+                Object values = array.getValueArray();
+                assumeNotNull(values);
+                ByteBuffer buffer = array.getValueBuffer(0, length);
+                // a copy, not a view of a mapped dump
+                assertFalse(obj.toString(), buffer.isDirect());
+                int elementSize = IPrimitiveArray.ELEMENT_SIZE[array.getType()];
+                assertEquals(length * elementSize, buffer.limit());
+                for (int ii = 0; ii < length; ii++)
+                {
+                    Object value;
+                    switch (array.getType())
+                    {
+                        case IObject.Type.BOOLEAN:
+                            value = buffer.get(ii) != 0;
+                            break;
+                        case IObject.Type.BYTE:
+                            value = buffer.get(ii);
+                            break;
+                        case IObject.Type.CHAR:
+                            value = buffer.getChar(2 * ii);
+                            break;
+                        case IObject.Type.SHORT:
+                            value = buffer.getShort(2 * ii);
+                            break;
+                        case IObject.Type.INT:
+                            value = buffer.getInt(4 * ii);
+                            break;
+                        case IObject.Type.FLOAT:
+                            value = buffer.getFloat(4 * ii);
+                            break;
+                        case IObject.Type.LONG:
+                            value = buffer.getLong(8 * ii);
+                            break;
+                        default:
+                            value = buffer.getDouble(8 * ii);
+                            break;
+                    }
+                    assertEquals(obj.toString(), Array.get(values, ii), value);
+                }
+                if (length > 2)
+                {
+                    ByteBuffer part = array.getValueBuffer(1, length - 2);
+                    buffer.position(elementSize);
+                    buffer.limit((length - 1) * elementSize);
+                    assertEquals(obj.toString(), buffer.slice(), part);
+                }
+            }
+        }
+    }
+
     @Test
     public void topComponents() throws SnapshotException
     {
@@ -561,6 +633,27 @@ public class GeneralSnapshotTests
         assertThat(printables, greaterThanOrEqualTo(objects * 2 / 3));
     }
 
+    /**
+     * Test the statistics of the object cache
+     */
+    @Test
+    public void objectCacheStatistics() throws SnapshotException
+    {
+        Collection<IClass> tClasses = snapshot.getClassesByName("java.lang.String", false);
+        assumeNotNull(tClasses);
+        int ids[] = tClasses.iterator().next().getObjectIds();
+        assumeTrue(ids.length > 0);
+        ObjectCacheStatistics before = snapshot.getObjectCacheStatistics();
+        IObject o1 = snapshot.getObject(ids[0]);
+        IObject o2 = snapshot.getObject(ids[0]);
+        assertSame(o1, o2);
+        ObjectCacheStatistics after = snapshot.getObjectCacheStatistics();
+        assertEquals(before.getHits() + before.getMisses() + 2, after.getHits() + after.getMisses());
+        assertThat(after.getHits(), greaterThan(before.getHits()));
+        assertThat(after.getSize(), greaterThan(0L));
+        assertTrue(after.getWeight() <= after.getCapacity());
+    }
+
     /**
      * Test caching of snapshots
      * @throws SnapshotException
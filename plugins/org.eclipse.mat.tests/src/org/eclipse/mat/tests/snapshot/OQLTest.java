@@ -9,6 +9,9 @@
  *    SAP AG - initial API and implementation
  *    IBM Corporation - test AS clause
  *    IBM Corporation - test instanceof with object id/address
+ *    IBM Corporation - test ORDER BY and LIMIT
+ *    IBM Corporation - test GROUP BY
+ *    IBM Corporation - test the WHERE clause evaluated by several threads
  *******************************************************************************/
 package org.eclipse.mat.tests.snapshot;
 
@@ -20,8 +23,10 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -34,13 +39,19 @@ import org.eclipse.mat.snapshot.OQLParseException;
 import org.eclipse.mat.snapshot.SnapshotFactory;
 import org.eclipse.mat.snapshot.model.IClass;
 import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.tests.benchmark.HprofGenerator;
 import org.eclipse.mat.util.MessageUtil;
 import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 @SuppressWarnings("nls")
 public class OQLTest
 {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testUnreservedKeywords() throws SnapshotException
     {
@@ -398,6 +409,88 @@ public class OQLTest
         assertEquals("Expected to read ", 52, objectIds.length);
     }
 
+    /**
+     * Check conditions evaluated from the indexes before the objects are read
+     * @throws SnapshotException
+     */
+    @Test
+    public void testWhereIndexedAttributes() throws SnapshotException
+    {
+        int[] objectIds = (int[]) execute("SELECT * FROM java.lang.String s WHERE s.@retainedHeapSize > s.@usedHeapSize AND s.count > 100");
+        assertEquals(6, objectIds.length);
+
+        objectIds = (int[]) execute("SELECT * FROM java.lang.String s WHERE s.@clazz.@name = \"java.lang.String\"");
+        assertEquals(492, objectIds.length);
+
+        objectIds = (int[]) execute("SELECT * FROM java.lang.String s WHERE toHex(s.@objectAddress) = \"0x17c38b80\" AND toString(s) = \"little\"");
+        assertEquals(1, objectIds.length);
+
+        objectIds = (int[]) execute("SELECT * FROM java.lang.String s WHERE @usedHeapSize > 0 AND @objectId >= 0 AND s.@retainedHeapSize > 1024L");
+        assertEquals(4, objectIds.length);
+    }
+
+    @Test
+    public void testOrderByLimit() throws SnapshotException
+    {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK5_64BIT, false);
+
+        int[] all = (int[]) execute("SELECT * FROM java.lang.String s ORDER BY s.@retainedHeapSize DESC");
+        assertEquals(492, all.length);
+        for (int ii = 1; ii < all.length; ii++)
+            assertThat(snapshot.getRetainedHeapSize(all[ii - 1]),
+                            greaterThanOrEqualTo(snapshot.getRetainedHeapSize(all[ii])));
+
+        int[] top = (int[]) execute("SELECT * FROM java.lang.String s ORDER BY s.@retainedHeapSize DESC LIMIT 4");
+        assertEquals(4, top.length);
+        for (int ii = 0; ii < top.length; ii++)
+            assertEquals(all[ii], top[ii]);
+
+        int[] unordered = (int[]) execute("SELECT * FROM java.lang.String s");
+        int[] first = (int[]) execute("SELECT * FROM java.lang.String s LIMIT 5");
+        assertEquals(5, first.length);
+        for (int ii = 0; ii < first.length; ii++)
+            assertEquals(unordered[ii], first[ii]);
+
+        int[] shortest = (int[]) execute("SELECT * FROM java.lang.String s WHERE s.count > 100 ORDER BY s.count, s.@objectId LIMIT 3");
+        assertEquals(3, shortest.length);
+    }
+
+    @Test
+    public void testGroupBy() throws SnapshotException
+    {
+        ISnapshot snapshot = TestSnapshots.getSnapshot(TestSnapshots.SUN_JDK5_64BIT, false);
+        int[] strings = (int[]) execute("SELECT * FROM java.lang.String");
+
+        IResultTable table = (IResultTable) execute("SELECT s.@clazz.@name AS name, count(s) AS n, sum(s.@usedHeapSize) AS used FROM java.lang.String s GROUP BY s.@clazz");
+        assertEquals(1, table.getRowCount());
+        Object row = table.getRow(0);
+        assertEquals("java.lang.String", table.getColumnValue(row, 0));
+        assertEquals(Long.valueOf(strings.length), table.getColumnValue(row, 1));
+        assertEquals(Long.valueOf(snapshot.getHeapSize(strings)), table.getColumnValue(row, 2));
+
+        // aggregates without GROUP BY make one group
+        int[] longStrings = (int[]) execute("SELECT * FROM java.lang.String s WHERE s.count > 100");
+        table = (IResultTable) execute("SELECT count(s), min(s.count), max(s.count), avg(s.count) FROM java.lang.String s WHERE s.count > 100");
+        assertEquals(1, table.getRowCount());
+        row = table.getRow(0);
+        assertEquals(Long.valueOf(longStrings.length), table.getColumnValue(row, 0));
+        assertThat((Integer) table.getColumnValue(row, 1), greaterThanOrEqualTo(101));
+        assertThat((Integer) table.getColumnValue(row, 2), greaterThanOrEqualTo((Integer) table.getColumnValue(row, 1)));
+
+        // the groups are ordered and limited
+        table = (IResultTable) execute("SELECT s.count AS length, count(s) AS n FROM java.lang.String s GROUP BY s.count ORDER BY count(s) DESC LIMIT 3");
+        assertEquals(3, table.getRowCount());
+        for (int ii = 1; ii < table.getRowCount(); ii++)
+            assertThat((Long) table.getColumnValue(table.getRow(ii - 1), 1),
+                            greaterThanOrEqualTo((Long) table.getColumnValue(table.getRow(ii), 1)));
+
+        table = (IResultTable) execute("SELECT s.count AS length, count(s) AS n FROM java.lang.String s GROUP BY s.count");
+        long total = 0;
+        for (int ii = 0; ii < table.getRowCount(); ii++)
+            total += (Long) table.getColumnValue(table.getRow(ii), 1);
+        assertEquals(strings.length, total);
+    }
+
     @Test
     public void testWhereArithmetic() throws SnapshotException
     {
@@ -938,6 +1031,55 @@ public class OQLTest
         assertThat("Multiple objects expected", objs.length, greaterThanOrEqualTo(2));
     }
     
+    /**
+     * Enough objects of each class for the WHERE clause to be evaluated by
+     * several threads, which should give the same results in the same order
+     * as one thread.
+     */
+    @Test
+    public void testParallelFilter() throws Exception
+    {
+        File dump = folder.newFile("synthetic.hprof");
+        HprofGenerator.parse("objects=60000,fanOut=2,chainLength=10,gcRoots=10,classLoaders=2").generate(dump,
+                        new VoidProgressListener());
+        ISnapshot snapshot = SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(),
+                        new VoidProgressListener());
+        try
+        {
+            String[] queries = {
+                            "SELECT * FROM synthetic.Node n WHERE n.next != null",
+                            "SELECT * FROM INSTANCEOF java.lang.Object o WHERE o implements org.eclipse.mat.snapshot.model.IInstance",
+                            "SELECT * FROM synthetic.Node n WHERE n.next != null LIMIT 50",
+                            "SELECT * FROM synthetic.Node n WHERE n.next != null ORDER BY n.@retainedHeapSize DESC LIMIT 100",
+                            "SELECT n.@clazz.@name AS name, count(n) AS objects, sum(n.@retainedHeapSize) AS retained FROM synthetic.Node n WHERE n.next != null GROUP BY n.@clazz" };
+            for (String oql : queries)
+            {
+                Object sequential = execute(snapshot, oql, "1");
+                Object parallel = execute(snapshot, oql, "4");
+                if (sequential instanceof int[])
+                {
+                    assertThat(oql, ((int[]) sequential).length, greaterThanOrEqualTo(50));
+                    assertTrue(oql, Arrays.equals((int[]) sequential, (int[]) parallel));
+                }
+                else
+                {
+                    IResultTable expected = (IResultTable) sequential;
+                    IResultTable actual = (IResultTable) parallel;
+                    assertEquals(oql, 2, expected.getRowCount());
+                    assertEquals(oql, expected.getRowCount(), actual.getRowCount());
+                    for (int ii = 0; ii < expected.getRowCount(); ii++)
+                        for (int jj = 0; jj < expected.getColumns().length; jj++)
+                            assertEquals(oql, expected.getColumnValue(expected.getRow(ii), jj),
+                                            actual.getColumnValue(actual.getRow(ii), jj));
+                }
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
     // //////////////////////////////////////////////////////////////
     // internal helper
     // //////////////////////////////////////////////////////////////
@@ -955,4 +1097,20 @@ public class OQLTest
             throw new SnapshotException("Error while parsing: " + oql, e);
         }
     }
+
+    private Object execute(ISnapshot snapshot, String oql, String threads) throws SnapshotException
+    {
+        String old = System.setProperty("oqlFilterThreads", threads);
+        try
+        {
+            return SnapshotFactory.createQuery(oql).execute(snapshot, new VoidProgressListener());
+        }
+        finally
+        {
+            if (old == null)
+                System.clearProperty("oqlFilterThreads");
+            else
+                System.setProperty("oqlFilterThreads", old);
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
+import org.eclipse.core.runtime.preferences.InstanceScope;
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.tests.TestSnapshots;
+import org.eclipse.mat.tests.benchmark.HprofGenerator;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks that reading a HPROF dump with several parser threads gives the
+ * same snapshot as reading it sequentially.
+ */
+@RunWith(value = Parameterized.class)
+public class ParallelParsingTest
+{
+    /**
+     * A generated dump of about 11MB in heap dump segments of 1MB. The parser
+     * threads read ranges of at least 1MB, so this gives several ranges
+     * whose results have to be put back in file order.
+     */
+    private static final String GENERATED = "objects=200000,fanOut=2,chainLength=100,gcRoots=10,segmentSize=1048576";
+
+    @Parameters(name="{index}: Snapshot={0}")
+    public static Collection<Object[]> data()
+    {
+        return Arrays.asList(new Object[][] {
+            {TestSnapshots.SUN_JDK6_32BIT},
+            {TestSnapshots.SUN_JDK6_18_64BIT},
+            {TestSnapshots.SUN_JDK5_13_32BIT},
+            {TestSnapshots.SUN_JDK6_30_64BIT_COMPRESSED_OOPS},
+            {TestSnapshots.ORACLE_JDK8_05_64BIT},
+            {GENERATED},
+        });
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String dumpname;
+
+    public ParallelParsingTest(String dumpname)
+    {
+        this.dumpname = dumpname;
+    }
+
+    private ISnapshot snapshot(String threads) throws Exception
+    {
+        final String hprofPlugin = "org.eclipse.mat.hprof";
+        final String key = "hprofParserThreads";
+        IEclipsePreferences preferences = InstanceScope.INSTANCE.getNode(hprofPlugin);
+        String prev = preferences.get(key, null);
+        preferences.put(key, threads);
+        try {
+            if (GENERATED.equals(dumpname))
+            {
+                // a directory of its own, so the dump is parsed afresh
+                File dump = new File(folder.newFolder(), "generated.hprof");
+                HprofGenerator.parse(GENERATED).generate(dump, new VoidProgressListener());
+                return SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener());
+            }
+            return TestSnapshots.getSnapshot(dumpname, true);
+        } finally {
+            if (prev != null)
+                preferences.put(key, prev);
+            else
+                preferences.remove(key);
+        }
+    }
+
+    @Test
+    public void testSameSnapshot() throws Exception
+    {
+        ISnapshot sequential = snapshot("1");
+        try
+        {
+            ISnapshot parallel = snapshot("4");
+            try
+            {
+                compare(sequential, parallel);
+            }
+            finally
+            {
+                SnapshotFactory.dispose(parallel);
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(sequential);
+        }
+    }
+
+    private void compare(ISnapshot sequential, ISnapshot parallel) throws SnapshotException
+    {
+        assertEquals(sequential.getSnapshotInfo().getNumberOfObjects(), parallel.getSnapshotInfo().getNumberOfObjects());
+        assertEquals(sequential.getSnapshotInfo().getUsedHeapSize(), parallel.getSnapshotInfo().getUsedHeapSize());
+        assertEquals(sequential.getSnapshotInfo().getIdentifierSize(), parallel.getSnapshotInfo().getIdentifierSize());
+        assertArrayEquals(sequential.getGCRoots(), parallel.getGCRoots());
+
+        int objects = sequential.getSnapshotInfo().getNumberOfObjects();
+        for (int i = 0; i < objects; ++i)
+        {
+            assertEquals(sequential.mapIdToAddress(i), parallel.mapIdToAddress(i));
+            assertEquals(sequential.getClassOf(i).getObjectId(), parallel.getClassOf(i).getObjectId());
+            assertEquals(sequential.getHeapSize(i), parallel.getHeapSize(i));
+            assertArrayEquals(sequential.getOutboundReferentIds(i), parallel.getOutboundReferentIds(i));
+            assertEquals(sequential.getRetainedHeapSize(i), parallel.getRetainedHeapSize(i));
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.mat.SnapshotException;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.tests.benchmark.HprofGenerator;
+import org.eclipse.mat.util.IProgressListener;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A parse which is cancelled after a checkpoint carries on from there the
+ * next time the dump is opened, unless the checkpoint does not fit.
+ */
+public class ResumeParseTest
+{
+    /** Time given to the hprof position index to see if it was written again */
+    private static final long MARK = 1000000000000L;
+
+    private static final String SPEC = "objects=20000,fanOut=2,chainLength=10,gcRoots=10";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File generated;
+    private File dump;
+    private String prefix;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        generated = folder.newFile("generated.hprof");
+        HprofGenerator.parse(SPEC).generate(generated, new VoidProgressListener());
+        dump = new File(folder.newFolder(), "synthetic.hprof");
+        copy(generated, dump);
+        prefix = new File(dump.getParentFile(), "synthetic.").getPath();
+    }
+
+    /**
+     * Cancelled while calculating the dominator tree, so the snapshot index is
+     * reused.
+     */
+    @Test
+    public void resumeFromSnapshot() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+
+        ISnapshot snapshot = open(dump, new HashMap<String, String>());
+        try
+        {
+            assertTrue(resumed());
+            assertFalse(manifest().exists());
+            assertFalse(new File(prefix + "checkpoint.state").exists());
+            compareWithCleanParse(snapshot);
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Stopped before the snapshot index was written, so the snapshot is
+     * rebuilt from the saved state and the object indexes.
+     */
+    @Test
+    public void resumeFromIndexes() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        setPhase("INDEXES");
+        assertTrue(new File(prefix + "index").delete());
+
+        ISnapshot snapshot = open(dump, new HashMap<String, String>());
+        try
+        {
+            assertTrue(resumed());
+            assertFalse(manifest().exists());
+            compareWithCleanParse(snapshot);
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    @Test
+    public void rejectModifiedDump() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        assertTrue(dump.setLastModified(System.currentTimeMillis() + 60000));
+        reparsed(new HashMap<String, String>());
+    }
+
+    @Test
+    public void rejectOtherOptions() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("keep_unreachable_objects", "true");
+        reparsed(options);
+    }
+
+    @Test
+    public void corruptManifest() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        FileOutputStream out = new FileOutputStream(manifest());
+        try
+        {
+            out.write("phase=\u0000garbage".getBytes("ISO-8859-1"));
+        }
+        finally
+        {
+            out.close();
+        }
+        reparsed(new HashMap<String, String>());
+    }
+
+    @Test
+    public void truncatedState() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        setPhase("INDEXES");
+        assertTrue(new File(prefix + "index").delete());
+        File state = new File(prefix + "checkpoint.state");
+        RandomAccessFile raf = new RandomAccessFile(state, "rw");
+        try
+        {
+            raf.setLength(raf.length() / 2);
+        }
+        finally
+        {
+            raf.close();
+        }
+        reparsed(new HashMap<String, String>());
+    }
+
+    /**
+     * A saved state which can be read, but holds the wrong objects.
+     */
+    @Test
+    public void wrongState() throws Exception
+    {
+        cancelAt("SNAPSHOT");
+        setPhase("INDEXES");
+        assertTrue(new File(prefix + "index").delete());
+        File state = new File(prefix + "checkpoint.state");
+        String version;
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(state));
+        try
+        {
+            version = in.readUTF();
+        }
+        finally
+        {
+            in.close();
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(state));
+        try
+        {
+            out.writeUTF(version);
+            out.writeObject("not a snapshot info");
+        }
+        finally
+        {
+            out.close();
+        }
+        reparsed(new HashMap<String, String>());
+    }
+
+    /**
+     * The dump is parsed from the start and gives the same snapshot.
+     */
+    private void reparsed(Map<String, String> options) throws Exception
+    {
+        ISnapshot snapshot = open(dump, options);
+        try
+        {
+            assertFalse(resumed());
+            assertFalse(manifest().exists());
+            if (options.isEmpty())
+                compareWithCleanParse(snapshot);
+            else
+                // and the system class loader
+                assertEquals(HprofGenerator.parse(SPEC).getNumberOfObjects() + 1, snapshot.getSnapshotInfo()
+                                .getNumberOfObjects());
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Parse the dump, cancelling once the checkpoint reaches the phase.
+     */
+    private void cancelAt(final String phase) throws Exception
+    {
+        IProgressListener listener = new VoidProgressListener()
+        {
+            @Override
+            public boolean isCanceled()
+            {
+                return phase.equals(readPhase());
+            }
+        };
+        try
+        {
+            SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), listener);
+            fail("parse was not cancelled");
+        }
+        catch (IProgressListener.OperationCanceledException expected)
+        {}
+        assertEquals(phase, readPhase());
+
+        // mark the files the parser writes, to see if they are written again
+        assertTrue(new File(prefix + "o2hprof.index").setLastModified(MARK));
+    }
+
+    private boolean resumed()
+    {
+        return new File(prefix + "o2hprof.index").lastModified() == MARK;
+    }
+
+    private File manifest()
+    {
+        return new File(prefix + "checkpoint");
+    }
+
+    private String readPhase()
+    {
+        if (!manifest().exists())
+            return null;
+        try
+        {
+            return load().getProperty("phase");
+        }
+        catch (IOException e)
+        {
+            // being written
+            return null;
+        }
+    }
+
+    private Properties load() throws IOException
+    {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(manifest());
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        return props;
+    }
+
+    private void setPhase(String phase) throws IOException
+    {
+        Properties props = load();
+        props.setProperty("phase", phase);
+        FileOutputStream out = new FileOutputStream(manifest());
+        try
+        {
+            props.store(out, null);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private ISnapshot open(File file, Map<String, String> options) throws SnapshotException
+    {
+        return SnapshotFactory.openSnapshot(file, options, new VoidProgressListener());
+    }
+
+    private void compareWithCleanParse(ISnapshot snapshot) throws Exception
+    {
+        File copy = new File(folder.newFolder(), generated.getName());
+        copy(generated, copy);
+        ISnapshot clean = open(copy, new HashMap<String, String>());
+        try
+        {
+            int numberOfObjects = clean.getSnapshotInfo().getNumberOfObjects();
+            assertEquals(numberOfObjects, snapshot.getSnapshotInfo().getNumberOfObjects());
+            assertEquals(clean.getSnapshotInfo().getUsedHeapSize(), snapshot.getSnapshotInfo().getUsedHeapSize());
+            assertArrayEquals(clean.getGCRoots(), snapshot.getGCRoots());
+            assertEquals(clean.getClasses().size(), snapshot.getClasses().size());
+            for (int id = 0; id < numberOfObjects; id++)
+            {
+                assertEquals(clean.mapIdToAddress(id), snapshot.mapIdToAddress(id));
+                assertEquals(clean.getClassOf(id).getName(), snapshot.getClassOf(id).getName());
+                assertEquals(clean.getImmediateDominatorId(id), snapshot.getImmediateDominatorId(id));
+                assertEquals(clean.getRetainedHeapSize(id), snapshot.getRetainedHeapSize(id));
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(clean);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        FileInputStream in = new FileInputStream(from);
+        try
+        {
+            FileOutputStream out = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2018 IBM Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    IBM Corporation - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.mat.tests.snapshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import org.eclipse.mat.snapshot.ClassHistogramRecord;
+import org.eclipse.mat.snapshot.Histogram;
+import org.eclipse.mat.snapshot.ISnapshot;
+import org.eclipse.mat.snapshot.SnapshotFactory;
+import org.eclipse.mat.snapshot.model.IClass;
+import org.eclipse.mat.tests.benchmark.HprofGenerator;
+import org.eclipse.mat.util.VoidProgressListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Parses dumps written by the synthetic heap dump generator.
+ */
+public class SyntheticDumpTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ISnapshot generate(String spec) throws Exception
+    {
+        File dump = new File(folder.getRoot(), "synthetic.hprof");
+        HprofGenerator.parse(spec).generate(dump, new VoidProgressListener());
+        return SnapshotFactory.openSnapshot(dump, new HashMap<String, String>(), new VoidProgressListener());
+    }
+
+    @Test
+    public void testShape() throws Exception
+    {
+        String spec = "objects=1000,fanOut=3,chainLength=10,gcRoots=7,giantArrays=2,giantArrayLength=5000,classLoaders=5";
+        HprofGenerator generator = HprofGenerator.parse(spec);
+        ISnapshot snapshot = generate(spec);
+        try
+        {
+            // and the system class loader
+            assertEquals(generator.getNumberOfObjects() + 1, snapshot.getSnapshotInfo().getNumberOfObjects());
+            assertEquals(6, snapshot.getSnapshotInfo().getNumberOfClassLoaders());
+            // the holders, the giant arrays and the system classes
+            assertEquals(7 + 2 + 5, snapshot.getGCRoots().length);
+
+            Collection<IClass> nodes = snapshot.getClassesByName("synthetic.Node", false);
+            assertEquals(5, nodes.size());
+            int count = 0;
+            for (IClass node : nodes)
+                count += node.getNumberOfObjects();
+            assertEquals(1000, count);
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * A single long chain, where each node dominates the rest of the chain.
+     */
+    @Test
+    public void testDeepChain() throws Exception
+    {
+        ISnapshot snapshot = generate("objects=100000,fanOut=0,chainLength=100000,gcRoots=1");
+        try
+        {
+            IClass node = snapshot.getClassesByName("synthetic.Node", false).iterator().next();
+            int head = node.getObjectIds()[0];
+            for (int id : node.getObjectIds())
+            {
+                if (snapshot.mapIdToAddress(id) < snapshot.mapIdToAddress(head))
+                    head = id;
+            }
+            assertEquals(100000 * node.getHeapSizePerInstance(), snapshot.getRetainedHeapSize(head));
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    /**
+     * Enough objects for the histogram to be built by several threads, which
+     * should give the same records as one thread.
+     */
+    @Test
+    public void testParallelHistogram() throws Exception
+    {
+        ISnapshot snapshot = generate("objects=150000,fanOut=2,chainLength=10,gcRoots=10,classLoaders=3");
+        try
+        {
+            int[] objectIds = new int[snapshot.getSnapshotInfo().getNumberOfObjects()];
+            for (int ii = 0; ii < objectIds.length; ii++)
+                objectIds[ii] = ii;
+
+            List<ClassHistogramRecord> sequential = records(snapshot, objectIds, "1");
+            List<ClassHistogramRecord> parallel = records(snapshot, objectIds, "4");
+            assertEquals(sequential.size(), parallel.size());
+            for (int ii = 0; ii < sequential.size(); ii++)
+            {
+                ClassHistogramRecord expected = sequential.get(ii);
+                ClassHistogramRecord actual = parallel.get(ii);
+                assertEquals(expected.getClassId(), actual.getClassId());
+                assertEquals(expected.getLabel(), actual.getLabel());
+                assertEquals(expected.getNumberOfObjects(), actual.getNumberOfObjects());
+                assertEquals(expected.getUsedHeapSize(), actual.getUsedHeapSize());
+                assertArrayEquals(expected.getObjectIds(), actual.getObjectIds());
+                assertEquals(expected.getRetainedHeapSize(), actual.getRetainedHeapSize());
+                assertEquals(expected.calculateRetainedSize(snapshot, true, false, new VoidProgressListener()),
+                                actual.calculateRetainedSize(snapshot, true, false, new VoidProgressListener()));
+            }
+        }
+        finally
+        {
+            SnapshotFactory.dispose(snapshot);
+        }
+    }
+
+    private static List<ClassHistogramRecord> records(ISnapshot snapshot, int[] objectIds, String threads)
+                    throws Exception
+    {
+        Histogram histogram;
+        String old = System.setProperty("histogramThreads", threads);
+        try
+        {
+            histogram = snapshot.getHistogram(objectIds, new VoidProgressListener());
+        }
+        finally
+        {
+            if (old == null)
+                System.clearProperty("histogramThreads");
+            else
+                System.setProperty("histogramThreads", old);
+        }
+        List<ClassHistogramRecord> records = new ArrayList<ClassHistogramRecord>(histogram.getClassHistogramRecords());
+        Collections.sort(records, new Comparator<ClassHistogramRecord>()
+        {
+            public int compare(ClassHistogramRecord r1, ClassHistogramRecord r2)
+            {
+                return r1.getClassId() < r2.getClassId() ? -1 : r1.getClassId() == r2.getClassId() ? 0 : 1;
+            }
+        });
+        return records;
+    }
+}